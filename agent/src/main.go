@@ -11,12 +11,16 @@ import (
 	"path/filepath"
 	"strings"
 	"sync"
+	"time"
 
 	pb "github.com/example/remote-build-server/agent/src/main/proto"
 	"google.golang.org/grpc"
 	"google.golang.org/grpc/credentials/insecure"
+	"google.golang.org/grpc/health"
+	healthpb "google.golang.org/grpc/health/grpc_health_v1"
 	"google.golang.org/grpc/metadata"
 	"google.golang.org/grpc/reflection"
+	"google.golang.org/protobuf/encoding/protowire"
 	"google.golang.org/protobuf/types/known/emptypb"
 )
 
@@ -151,18 +155,147 @@ func (s *server) ExecuteCommand(stream pb.Runner_ExecuteCommandServer) error {
 	return nil
 }
 
-func resolveBazelSocket() (string, error) {
-	// 1. Ask Bazel for the output base (this also starts the server if needed)
-	args := []string{}
-
-	// Inject Startup Options
+// bazelStartupArgs returns the session's Bazel startup options.
+func bazelStartupArgs() []string {
 	startupOptsEnv := os.Getenv("BAZEL_STARTUP_OPTIONS")
-	if startupOptsEnv != "" {
-		opts := strings.Split(startupOptsEnv, "|||")
-		args = append(args, opts...)
+	if startupOptsEnv == "" {
+		return nil
+	}
+	return strings.Split(startupOptsEnv, "|||")
+}
+
+// warmUp starts the Bazel server and runs the configured warm-up command
+// (RBS_WARMUP_COMMAND, e.g. "build --nobuild //..."), so the user's first
+// command finds a warm JVM with the workspace loaded. Failures are logged but
+// do not block readiness: the user's own command will surface them.
+func warmUp() error {
+	warmupCommand := os.Getenv("RBS_WARMUP_COMMAND")
+	if warmupCommand == "" {
+		return nil
+	}
+	commands.start("warm-up")
+	defer commands.finish()
+	start := time.Now()
+	if _, err := resolveBazelSocket(); err != nil {
+		slog.Warn("warm-up: failed to start bazel server", "error", err)
+		return err
+	}
+	args := append(bazelStartupArgs(), withRemoteFlags(strings.Fields(warmupCommand))...)
+	cmd := exec.Command("bazel", args...)
+	cmd.Env = os.Environ()
+	if out, err := cmd.CombinedOutput(); err != nil {
+		slog.Warn("warm-up command failed", "command", warmupCommand, "error", err, "output", string(out))
+		return err
+	}
+	slog.Info("Warm-up finished", "command", warmupCommand, "duration", time.Since(start))
+	return nil
+}
+
+// goldenBuild runs a golden build (RBS_GOLDEN=1): only the warm-up command,
+// then it stops the Bazel server so the output base is quiescent when the
+// orchestrator snapshots it. The exit code tells the orchestrator whether
+// the snapshot is worth taking.
+func goldenBuild() int {
+	if err := warmUp(); err != nil {
+		slog.Error("Golden build failed", "error", err)
+		return 1
+	}
+	cmd := exec.Command("bazel", append(bazelStartupArgs(), "shutdown")...)
+	cmd.Env = os.Environ()
+	if out, err := cmd.CombinedOutput(); err != nil {
+		slog.Error("Failed to stop the bazel server after the golden build", "error", err, "output", string(out))
+		return 1
+	}
+	slog.Info("Golden build finished")
+	return 0
+}
+
+// cachedCommands are the Bazel commands that execute actions and so read and
+// write the remote cache.
+var cachedCommands = map[string]bool{
+	"build": true, "test": true, "run": true, "coverage": true, "cquery": true, "aquery": true,
+}
+
+// remoteFlags are the flags pointing Bazel at the orchestrator's shared
+// cache (RBS_REMOTE_CACHE), downloader (RBS_REMOTE_DOWNLOADER) and worker pool
+// (RBS_REMOTE_EXECUTOR), and at the disk and repository caches the workspace
+// keeps on its node (RBS_LOCAL_CACHE). Executed actions and downloads carry
+// the session ID, by which the orchestrator schedules fairly and learns each
+// repo's dependencies.
+func remoteFlags() []string {
+	var flags []string
+	if dir := os.Getenv("RBS_LOCAL_CACHE"); dir != "" {
+		flags = append(flags, "--disk_cache="+filepath.Join(dir, "disk"),
+			"--repository_cache="+filepath.Join(dir, "repository"))
+	}
+	if cache := os.Getenv("RBS_REMOTE_CACHE"); cache != "" {
+		flags = append(flags, "--remote_cache="+cache)
+	}
+	if downloader := os.Getenv("RBS_REMOTE_DOWNLOADER"); downloader != "" {
+		flags = append(flags, "--experimental_remote_downloader="+downloader,
+			"--remote_downloader_header=x-rbs-session-id="+os.Getenv("RBS_SESSION_ID"))
+	}
+	if executor := os.Getenv("RBS_REMOTE_EXECUTOR"); executor != "" {
+		flags = append(flags, "--remote_executor="+executor,
+			"--remote_header=x-rbs-session-id="+os.Getenv("RBS_SESSION_ID"))
+	}
+	return flags
+}
+
+// withRemoteFlags inserts the remote flags right after the command name, so
+// flags the user passes explicitly still win.
+func withRemoteFlags(args []string) []string {
+	flags := remoteFlags()
+	if len(flags) == 0 || len(args) == 0 || !cachedCommands[args[0]] {
+		return args
 	}
+	return append(append([]string{args[0]}, flags...), args[1:]...)
+}
 
-	args = append(args, "info", "output_base")
+// runRequestArgField is RunRequest.arg in Bazel's command_server.proto; the
+// first arg is the command name.
+const runRequestArgField = 2
+
+// injectRemoteFlags applies withRemoteFlags to a forwarded
+// command_server.RunRequest. The frame is decoded as Empty, so the request is
+// edited in its unknown fields on the wire.
+func injectRemoteFlags(frame *emptypb.Empty) {
+	flags := remoteFlags()
+	if len(flags) == 0 {
+		return
+	}
+	raw := frame.ProtoReflect().GetUnknown()
+	for offset := 0; offset < len(raw); {
+		num, typ, n := protowire.ConsumeTag(raw[offset:])
+		if n < 0 {
+			return
+		}
+		m := protowire.ConsumeFieldValue(num, typ, raw[offset+n:])
+		if m < 0 {
+			return
+		}
+		end := offset + n + m
+		if num == runRequestArgField && typ == protowire.BytesType {
+			command, _ := protowire.ConsumeBytes(raw[offset+n:])
+			if !cachedCommands[string(command)] {
+				return
+			}
+			rewritten := append([]byte{}, raw[:end]...)
+			for _, flag := range flags {
+				rewritten = protowire.AppendTag(rewritten, runRequestArgField, protowire.BytesType)
+				rewritten = protowire.AppendBytes(rewritten, []byte(flag))
+			}
+			rewritten = append(rewritten, raw[end:]...)
+			frame.ProtoReflect().SetUnknown(rewritten)
+			return
+		}
+		offset = end
+	}
+}
+
+func resolveBazelSocket() (string, error) {
+	// 1. Ask Bazel for the output base (this also starts the server if needed)
+	args := append(bazelStartupArgs(), "info", "output_base")
 
 	cmd := exec.Command("bazel", args...)
 	// Inherit environment to ensure we pick up the same workspace config
@@ -190,15 +323,40 @@ func resolveBazelSocket() (string, error) {
 }
 
 func main() {
+	// The image pre-pull DaemonSet runs each agent image with --version: the
+	// image has no shell to run a no-op with.
+	if len(os.Args) > 1 && os.Args[1] == "--version" {
+		fmt.Println("rbs-agent")
+		return
+	}
 
 	port := os.Getenv("PORT")
 	if port == "" {
 		port = "9011"
 	}
+	if os.Getenv("RBS_WORKER") != "" {
+		serveWorker(port)
+		return
+	}
+	// The workspace must be in place before Bazel starts in it.
+	ws, err := newWorkspace()
+	if err == nil && ws != nil {
+		err = ws.materialise(context.Background())
+	}
+	if err != nil {
+		slog.Error("failed to materialise the workspace", "error", err)
+		os.Exit(1)
+	}
+	if os.Getenv("RBS_GOLDEN") != "" {
+		os.Exit(goldenBuild())
+	}
 
 	// Generic Forwarding Logic
 	opts := []grpc.ServerOption{
 		grpc.UnknownServiceHandler(func(srv interface{}, stream grpc.ServerStream) error {
+			if method, _ := grpc.MethodFromServerStream(stream); ws != nil && method == syncWorkspaceMethod {
+				return ws.handle(stream)
+			}
 			// Extract context for tracing
 			return forwardToBazel(stream.Context(), stream)
 		}),
@@ -218,6 +376,15 @@ func main() {
 	pb.RegisterRunnerServer(s, &server{})
 	reflection.Register(s)
 
+	// The pod's readiness probe checks gRPC health: NOT_SERVING until warm-up is done.
+	healthServer := health.NewServer()
+	healthServer.SetServingStatus("", healthpb.HealthCheckResponse_NOT_SERVING)
+	healthpb.RegisterHealthServer(s, healthServer)
+	go func() {
+		warmUp()
+		healthServer.SetServingStatus("", healthpb.HealthCheckResponse_SERVING)
+	}()
+
 	slog.Info("Agent listening", "port", port)
 	if err := s.Serve(lis); err != nil {
 		slog.Error("failed to serve", "error", err)
@@ -264,10 +431,21 @@ func forwardToBazel(ctx context.Context, serverStream grpc.ServerStream) error {
 	}
 
 	errChan := make(chan error, 2)
+	// A Run call counts as an active command until it returns.
+	var trackMu sync.Mutex
+	tracking, returned := false, false
+	defer func() {
+		trackMu.Lock()
+		defer trackMu.Unlock()
+		returned = true
+		if tracking {
+			commands.finish()
+		}
+	}()
 
 	// Server -> Bazel
 	go func() {
-		for {
+		for first := true; ; first = false {
 			var frame emptypb.Empty
 			if err := serverStream.RecvMsg(&frame); err != nil {
 				if err != io.EOF {
@@ -276,6 +454,17 @@ func forwardToBazel(ctx context.Context, serverStream grpc.ServerStream) error {
 				clientStream.CloseSend()
 				return
 			}
+			if methodName == "/command_server.CommandServer/Run" {
+				if first {
+					trackMu.Lock()
+					if !returned {
+						commands.start(runCommandName(&frame))
+						tracking = true
+					}
+					trackMu.Unlock()
+				}
+				injectRemoteFlags(&frame)
+			}
 			if err := clientStream.SendMsg(&frame); err != nil {
 				errChan <- err
 				return
@@ -0,0 +1,213 @@
+package main
+
+import (
+	"bufio"
+	"context"
+	"os"
+	"os/exec"
+	"strconv"
+	"strings"
+	"sync"
+	"time"
+
+	orchpb "github.com/example/remote-build-server/orchestrator/src/main/proto"
+	"google.golang.org/protobuf/types/known/emptypb"
+)
+
+// Resource telemetry: the proxy calls Runner/GetResourceUsage before each
+// heartbeat and forwards the sample, which the orchestrator sizes the pod by.
+// Memory and CPU come from the container's cgroup (v2); the heap comes from
+// the Bazel server itself.
+
+// cgroupDir is the agent's cgroup: the container's own in a pod, or the one
+// the orchestrator made for it in local mode (RBS_CGROUP_DIR).
+var cgroupDir = agentCgroupDir()
+
+func agentCgroupDir() string {
+	if dir := os.Getenv("RBS_CGROUP_DIR"); dir != "" {
+		return dir
+	}
+	return "/sys/fs/cgroup"
+}
+
+// heapInfoTimeout bounds `bazel info`, which waits for the server's command
+// lock; the heap is only sampled while no command is running.
+const heapInfoTimeout = 3 * time.Second
+
+// commandTracker records the Bazel commands in flight: forwarded Run calls
+// and the warm-up.
+type commandTracker struct {
+	mu           sync.Mutex
+	running      int
+	active       string
+	lastFinished time.Time
+}
+
+var commands = &commandTracker{lastFinished: time.Now()}
+
+func (t *commandTracker) start(name string) {
+	t.mu.Lock()
+	defer t.mu.Unlock()
+	t.running++
+	t.active = name
+}
+
+func (t *commandTracker) finish() {
+	t.mu.Lock()
+	defer t.mu.Unlock()
+	t.running--
+	if t.running == 0 {
+		t.active = ""
+		t.lastFinished = time.Now()
+	}
+}
+
+// snapshot returns the running command, or "" and how long the server has
+// been idle.
+func (t *commandTracker) snapshot() (string, time.Duration) {
+	t.mu.Lock()
+	defer t.mu.Unlock()
+	if t.running > 0 {
+		return t.active, 0
+	}
+	return "", time.Since(t.lastFinished)
+}
+
+// runCommandName returns the command of a forwarded command_server.RunRequest.
+func runCommandName(frame *emptypb.Empty) string {
+	msg, err := parseMessage(frame.ProtoReflect().GetUnknown())
+	if err != nil {
+		return ""
+	}
+	if args := msg.strings(runRequestArgField); len(args) > 0 {
+		return args[0]
+	}
+	return ""
+}
+
+// cpuSampler turns the cgroup's cumulative CPU time into a rate between two
+// samples.
+type cpuSampler struct {
+	mu        sync.Mutex
+	lastUsec  int64
+	lastAt    time.Time
+	lastValid bool
+}
+
+var cpu = &cpuSampler{}
+
+func (s *cpuSampler) millicores(usageUsec int64, now time.Time) int64 {
+	s.mu.Lock()
+	defer s.mu.Unlock()
+	var rate int64
+	if elapsed := now.Sub(s.lastAt).Microseconds(); s.lastValid && elapsed > 0 && usageUsec >= s.lastUsec {
+		rate = (usageUsec - s.lastUsec) * 1000 / elapsed
+	}
+	s.lastUsec, s.lastAt, s.lastValid = usageUsec, now, true
+	return rate
+}
+
+func (s *server) GetResourceUsage(ctx context.Context, _ *emptypb.Empty) (*orchpb.ResourceUsage, error) {
+	usage := &orchpb.ResourceUsage{
+		RssBytes:         readCgroupInt("memory.current"),
+		MemoryLimitBytes: readCgroupInt("memory.max"),
+	}
+	if stat, err := readCgroupKeyed("cpu.stat"); err == nil {
+		usage.CpuMillicores = cpu.millicores(stat["usage_usec"], time.Now())
+	}
+	usage.CpuLimitMillicores = readCPULimit()
+
+	active, idle := commands.snapshot()
+	usage.ActiveCommand = active
+	usage.IdleMillis = idle.Milliseconds()
+	if active == "" {
+		sampleHeap(ctx, usage)
+	}
+	return usage, nil
+}
+
+// sampleHeap fills in the Bazel server's heap from `bazel info`. It is
+// best-effort: a command that starts meanwhile makes it time out.
+func sampleHeap(ctx context.Context, usage *orchpb.ResourceUsage) {
+	ctx, cancel := context.WithTimeout(ctx, heapInfoTimeout)
+	defer cancel()
+	args := append(bazelStartupArgs(), "info", "used-heap-size", "committed-heap-size", "max-heap-size")
+	cmd := exec.CommandContext(ctx, "bazel", args...)
+	cmd.Env = os.Environ()
+	out, err := cmd.Output()
+	if err != nil {
+		return
+	}
+	for _, line := range strings.Split(string(out), "\n") {
+		key, value, ok := strings.Cut(line, ":")
+		if !ok {
+			continue
+		}
+		// Bazel reports heap sizes in whole megabytes, e.g. "412MB".
+		mb, err := strconv.ParseInt(strings.TrimSuffix(strings.TrimSpace(value), "MB"), 10, 64)
+		if err != nil {
+			continue
+		}
+		switch strings.TrimSpace(key) {
+		case "used-heap-size":
+			usage.HeapUsedBytes = mb << 20
+		case "committed-heap-size":
+			usage.HeapCommittedBytes = mb << 20
+		case "max-heap-size":
+			usage.HeapMaxBytes = mb << 20
+		}
+	}
+}
+
+// readCgroupInt reads a single-value cgroup file; "max" and errors read as 0.
+func readCgroupInt(name string) int64 {
+	data, err := os.ReadFile(cgroupDir + "/" + name)
+	if err != nil {
+		return 0
+	}
+	value, err := strconv.ParseInt(strings.TrimSpace(string(data)), 10, 64)
+	if err != nil {
+		return 0
+	}
+	return value
+}
+
+// readCgroupKeyed reads a flat-keyed cgroup file such as cpu.stat.
+func readCgroupKeyed(name string) (map[string]int64, error) {
+	f, err := os.Open(cgroupDir + "/" + name)
+	if err != nil {
+		return nil, err
+	}
+	defer f.Close()
+	values := make(map[string]int64)
+	scanner := bufio.NewScanner(f)
+	for scanner.Scan() {
+		fields := strings.Fields(scanner.Text())
+		if len(fields) != 2 {
+			continue
+		}
+		if value, err := strconv.ParseInt(fields[1], 10, 64); err == nil {
+			values[fields[0]] = value
+		}
+	}
+	return values, scanner.Err()
+}
+
+// readCPULimit converts cpu.max ("<quota> <period>" in microseconds) to
+// millicores; 0 when unlimited.
+func readCPULimit() int64 {
+	data, err := os.ReadFile(cgroupDir + "/cpu.max")
+	if err != nil {
+		return 0
+	}
+	fields := strings.Fields(string(data))
+	if len(fields) != 2 || fields[0] == "max" {
+		return 0
+	}
+	quota, err1 := strconv.ParseInt(fields[0], 10, 64)
+	period, err2 := strconv.ParseInt(fields[1], 10, 64)
+	if err1 != nil || err2 != nil || period == 0 {
+		return 0
+	}
+	return quota * 1000 / period
+}
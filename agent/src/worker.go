@@ -0,0 +1,687 @@
+package main
+
+import (
+	"bytes"
+	"context"
+	"crypto/rand"
+	"crypto/sha256"
+	"encoding/hex"
+	"errors"
+	"fmt"
+	"io"
+	"log/slog"
+	"net"
+	"os"
+	"os/exec"
+	"path/filepath"
+	"strings"
+	"time"
+
+	"google.golang.org/genproto/googleapis/rpc/errdetails"
+	"google.golang.org/grpc"
+	"google.golang.org/grpc/codes"
+	"google.golang.org/grpc/credentials/insecure"
+	"google.golang.org/grpc/health"
+	healthpb "google.golang.org/grpc/health/grpc_health_v1"
+	"google.golang.org/grpc/status"
+	"google.golang.org/protobuf/encoding/protowire"
+	"google.golang.org/protobuf/types/known/emptypb"
+)
+
+// Worker mode (RBS_WORKER=1): instead of fronting a Bazel server, the agent
+// runs single actions for the orchestrator's execution scheduler. It serves
+// rbs.Worker/RunAction (orchestrator/src/main/proto/worker.proto) and talks
+// to the remote cache in RBS_REMOTE_CACHE on raw frames, like the Bazel
+// forwarding, reading and writing the Remote Execution API messages it needs
+// field by field.
+
+const runActionMethod = "/rbs.Worker/RunAction"
+
+// Field numbers from build/bazel/remote/execution/v2/remote_execution.proto
+// and worker.proto.
+const (
+	digestHash = 1
+	digestSize = 2
+
+	actionCommandDigest   = 1
+	actionInputRootDigest = 2
+	actionTimeout         = 6
+
+	commandArguments         = 1
+	commandEnvironment       = 2
+	commandOutputFiles       = 3
+	commandOutputDirectories = 4
+	commandWorkingDirectory  = 6
+	commandOutputPaths       = 7
+
+	directoryFiles       = 1
+	directoryDirectories = 2
+	directorySymlinks    = 3
+
+	nodeName       = 1 // FileNode, DirectoryNode and SymlinkNode
+	nodeDigest     = 2 // FileNode and DirectoryNode
+	symlinkTarget  = 2
+	fileExecutable = 4
+
+	treeRoot     = 1
+	treeChildren = 2
+
+	resultOutputFiles       = 2
+	resultOutputDirectories = 3
+	resultExitCode          = 4
+	resultStdoutDigest      = 6
+	resultStderrDigest      = 8
+
+	outputFilePath       = 1
+	outputFileDigest     = 2
+	outputFileExecutable = 4
+	outputDirPath        = 1
+	outputDirTreeDigest  = 3
+
+	runActionDigest = 1
+	runActionResult = 1
+)
+
+// Field numbers from google/bytestream/bytestream.proto.
+const (
+	readResourceName  = 1
+	readResponseData  = 10
+	writeResourceName = 1
+	writeOffset       = 2
+	writeFinish       = 3
+	writeData         = 10
+	byteStreamChunk   = 64 * 1024
+)
+
+// field is one decoded protobuf field: varint holds varint fields, bytes
+// length-delimited ones.
+type field struct {
+	num    protowire.Number
+	varint uint64
+	bytes  []byte
+}
+
+type message []field
+
+func parseMessage(b []byte) (message, error) {
+	var m message
+	for len(b) > 0 {
+		num, typ, n := protowire.ConsumeTag(b)
+		if n < 0 {
+			return nil, protowire.ParseError(n)
+		}
+		b = b[n:]
+		f := field{num: num}
+		switch typ {
+		case protowire.VarintType:
+			f.varint, n = protowire.ConsumeVarint(b)
+		case protowire.BytesType:
+			f.bytes, n = protowire.ConsumeBytes(b)
+		default:
+			n = protowire.ConsumeFieldValue(num, typ, b)
+		}
+		if n < 0 {
+			return nil, protowire.ParseError(n)
+		}
+		b = b[n:]
+		m = append(m, f)
+	}
+	return m, nil
+}
+
+// get returns the last occurrence of a singular length-delimited field.
+func (m message) get(num protowire.Number) []byte {
+	var value []byte
+	for _, f := range m {
+		if f.num == num {
+			value = f.bytes
+		}
+	}
+	return value
+}
+
+func (m message) all(num protowire.Number) [][]byte {
+	var values [][]byte
+	for _, f := range m {
+		if f.num == num {
+			values = append(values, f.bytes)
+		}
+	}
+	return values
+}
+
+func (m message) strings(num protowire.Number) []string {
+	var values []string
+	for _, v := range m.all(num) {
+		values = append(values, string(v))
+	}
+	return values
+}
+
+func (m message) varint(num protowire.Number) uint64 {
+	var value uint64
+	for _, f := range m {
+		if f.num == num {
+			value = f.varint
+		}
+	}
+	return value
+}
+
+func appendField(b []byte, num protowire.Number, value []byte) []byte {
+	b = protowire.AppendTag(b, num, protowire.BytesType)
+	return protowire.AppendBytes(b, value)
+}
+
+func appendVarint(b []byte, num protowire.Number, value uint64) []byte {
+	b = protowire.AppendTag(b, num, protowire.VarintType)
+	return protowire.AppendVarint(b, value)
+}
+
+func rawFrame(b []byte) *emptypb.Empty {
+	frame := &emptypb.Empty{}
+	frame.ProtoReflect().SetUnknown(b)
+	return frame
+}
+
+type digest struct {
+	hash string
+	size int64
+}
+
+func digestOf(data []byte) digest {
+	sum := sha256.Sum256(data)
+	return digest{hash: hex.EncodeToString(sum[:]), size: int64(len(data))}
+}
+
+func parseDigest(b []byte) (digest, error) {
+	m, err := parseMessage(b)
+	if err != nil {
+		return digest{}, err
+	}
+	return digest{hash: string(m.get(digestHash)), size: int64(m.varint(digestSize))}, nil
+}
+
+func (d digest) encode() []byte {
+	b := appendField(nil, digestHash, []byte(d.hash))
+	if d.size != 0 {
+		b = appendVarint(b, digestSize, uint64(d.size))
+	}
+	return b
+}
+
+// casClient reads and writes blobs over ByteStream.
+type casClient struct {
+	conn *grpc.ClientConn
+}
+
+func (c *casClient) read(ctx context.Context, d digest) ([]byte, error) {
+	if d.size == 0 {
+		return nil, nil
+	}
+	stream, err := c.conn.NewStream(ctx, &grpc.StreamDesc{ServerStreams: true}, "/google.bytestream.ByteStream/Read")
+	if err != nil {
+		return nil, err
+	}
+	request := appendField(nil, readResourceName, []byte(fmt.Sprintf("blobs/%s/%d", d.hash, d.size)))
+	if err := stream.SendMsg(rawFrame(request)); err != nil && err != io.EOF {
+		return nil, err
+	}
+	if err := stream.CloseSend(); err != nil {
+		return nil, err
+	}
+	data := make([]byte, 0, d.size)
+	for {
+		var frame emptypb.Empty
+		err := stream.RecvMsg(&frame)
+		if err == io.EOF {
+			break
+		}
+		if err != nil {
+			return nil, fmt.Errorf("reading %s: %w", d.hash, err)
+		}
+		response, err := parseMessage(frame.ProtoReflect().GetUnknown())
+		if err != nil {
+			return nil, err
+		}
+		data = append(data, response.get(readResponseData)...)
+	}
+	if int64(len(data)) != d.size {
+		return nil, fmt.Errorf("blob %s: got %d bytes, want %d", d.hash, len(data), d.size)
+	}
+	return data, nil
+}
+
+func (c *casClient) write(ctx context.Context, data []byte) (digest, error) {
+	d := digestOf(data)
+	if d.size == 0 {
+		return d, nil
+	}
+	stream, err := c.conn.NewStream(ctx, &grpc.StreamDesc{ClientStreams: true}, "/google.bytestream.ByteStream/Write")
+	if err != nil {
+		return d, err
+	}
+	for offset := 0; offset < len(data); {
+		end := min(offset+byteStreamChunk, len(data))
+		var request []byte
+		if offset == 0 {
+			resource := fmt.Sprintf("uploads/%s/blobs/%s/%d", newUUID(), d.hash, d.size)
+			request = appendField(request, writeResourceName, []byte(resource))
+		}
+		request = appendVarint(request, writeOffset, uint64(offset))
+		if end == len(data) {
+			request = appendVarint(request, writeFinish, 1)
+		}
+		request = appendField(request, writeData, data[offset:end])
+		if err := stream.SendMsg(rawFrame(request)); err != nil {
+			// io.EOF: the server ended the stream; RecvMsg has its status.
+			if err != io.EOF {
+				return d, err
+			}
+			break
+		}
+		offset = end
+	}
+	if err := stream.CloseSend(); err != nil {
+		return d, err
+	}
+	var response emptypb.Empty
+	if err := stream.RecvMsg(&response); err != nil {
+		return d, fmt.Errorf("writing %s: %w", d.hash, err)
+	}
+	return d, nil
+}
+
+func newUUID() string {
+	b := make([]byte, 16)
+	rand.Read(b)
+	return fmt.Sprintf("%x-%x-%x-%x-%x", b[0:4], b[4:6], b[6:8], b[8:10], b[10:])
+}
+
+type worker struct {
+	cas     *casClient
+	workDir string
+}
+
+func serveWorker(port string) {
+	cacheAddress := strings.TrimPrefix(os.Getenv("RBS_REMOTE_CACHE"), "grpc://")
+	if cacheAddress == "" {
+		slog.Error("worker mode needs RBS_REMOTE_CACHE")
+		os.Exit(1)
+	}
+	conn, err := grpc.Dial(cacheAddress, grpc.WithTransportCredentials(insecure.NewCredentials()))
+	if err != nil {
+		slog.Error("failed to connect to remote cache", "address", cacheAddress, "error", err)
+		os.Exit(1)
+	}
+	w := &worker{cas: &casClient{conn: conn}, workDir: os.TempDir()}
+
+	lis, err := net.Listen("tcp", fmt.Sprintf(":%s", port))
+	if err != nil {
+		slog.Error("failed to listen", "error", err)
+		os.Exit(1)
+	}
+	s := grpc.NewServer(grpc.UnknownServiceHandler(w.handle))
+	healthServer := health.NewServer()
+	healthServer.SetServingStatus("", healthpb.HealthCheckResponse_SERVING)
+	healthpb.RegisterHealthServer(s, healthServer)
+
+	slog.Info("Worker listening", "port", port, "cache", cacheAddress)
+	if err := s.Serve(lis); err != nil {
+		slog.Error("failed to serve", "error", err)
+		os.Exit(1)
+	}
+}
+
+func (w *worker) handle(srv interface{}, stream grpc.ServerStream) error {
+	method, _ := grpc.MethodFromServerStream(stream)
+	if method != runActionMethod {
+		return status.Errorf(codes.Unimplemented, "unknown method %s", method)
+	}
+	var frame emptypb.Empty
+	if err := stream.RecvMsg(&frame); err != nil {
+		return err
+	}
+	request, err := parseMessage(frame.ProtoReflect().GetUnknown())
+	if err != nil {
+		return status.Errorf(codes.InvalidArgument, "bad request: %v", err)
+	}
+	actionDigest, err := parseDigest(request.get(runActionDigest))
+	if err != nil {
+		return status.Errorf(codes.InvalidArgument, "bad action digest: %v", err)
+	}
+	start := time.Now()
+	result, err := w.runAction(stream.Context(), actionDigest)
+	if err != nil {
+		slog.Warn("Action failed", "action", actionDigest.hash, "error", err)
+		return err
+	}
+	slog.Info("Action finished", "action", actionDigest.hash, "duration", time.Since(start))
+	return stream.SendMsg(rawFrame(appendField(nil, runActionResult, result)))
+}
+
+// runAction fetches the action's command and inputs into a fresh directory,
+// runs it, uploads its outputs and returns the encoded ActionResult.
+func (w *worker) runAction(ctx context.Context, actionDigest digest) ([]byte, error) {
+	action, err := w.fetchMessage(ctx, actionDigest)
+	if err != nil {
+		return nil, err
+	}
+	commandDigest, err := parseDigest(action.get(actionCommandDigest))
+	if err != nil {
+		return nil, status.Errorf(codes.InvalidArgument, "bad command digest: %v", err)
+	}
+	command, err := w.fetchMessage(ctx, commandDigest)
+	if err != nil {
+		return nil, err
+	}
+	inputRoot, err := parseDigest(action.get(actionInputRootDigest))
+	if err != nil {
+		return nil, status.Errorf(codes.InvalidArgument, "bad input root digest: %v", err)
+	}
+
+	execRoot, err := os.MkdirTemp(w.workDir, "action-")
+	if err != nil {
+		return nil, status.Errorf(codes.Internal, "creating exec root: %v", err)
+	}
+	defer os.RemoveAll(execRoot)
+	if err := w.fetchDirectory(ctx, inputRoot, execRoot); err != nil {
+		return nil, err
+	}
+
+	args := command.strings(commandArguments)
+	if len(args) == 0 {
+		return nil, status.Error(codes.InvalidArgument, "command has no arguments")
+	}
+	workDir := filepath.Join(execRoot, string(command.get(commandWorkingDirectory)))
+	// Output paths are relative to the working directory; v2.1 clients send output_paths only.
+	outputs := command.strings(commandOutputPaths)
+	if len(outputs) == 0 {
+		outputs = append(command.strings(commandOutputFiles), command.strings(commandOutputDirectories)...)
+	}
+	for _, output := range outputs {
+		if !validOutputPath(output) {
+			return nil, status.Errorf(codes.InvalidArgument, "bad output path %q", output)
+		}
+		if err := os.MkdirAll(filepath.Dir(filepath.Join(workDir, output)), 0o755); err != nil {
+			return nil, status.Errorf(codes.Internal, "creating output directory: %v", err)
+		}
+	}
+	var env []string
+	for _, variable := range command.all(commandEnvironment) {
+		v, err := parseMessage(variable)
+		if err != nil {
+			return nil, status.Errorf(codes.InvalidArgument, "bad environment variable: %v", err)
+		}
+		env = append(env, string(v.get(1))+"="+string(v.get(2)))
+	}
+
+	runCtx := ctx
+	if timeout := parseDuration(action.get(actionTimeout)); timeout > 0 {
+		var cancel context.CancelFunc
+		runCtx, cancel = context.WithTimeout(ctx, timeout)
+		defer cancel()
+	}
+	var stdout, stderr bytes.Buffer
+	cmd := exec.CommandContext(runCtx, args[0], args[1:]...)
+	cmd.Dir = workDir
+	cmd.Env = env
+	cmd.Stdout = &stdout
+	cmd.Stderr = &stderr
+	exitCode := 0
+	if err := cmd.Run(); err != nil {
+		var exitErr *exec.ExitError
+		switch {
+		case runCtx.Err() == context.DeadlineExceeded:
+			return nil, status.Error(codes.DeadlineExceeded, "action timed out")
+		case errors.As(err, &exitErr):
+			exitCode = exitErr.ExitCode()
+		default:
+			return nil, status.Errorf(codes.InvalidArgument, "starting %s: %v", args[0], err)
+		}
+	}
+
+	var result []byte
+	for _, output := range outputs {
+		path := filepath.Join(workDir, output)
+		info, err := os.Stat(path)
+		if err != nil {
+			// Missing outputs are left for the client to report.
+			continue
+		}
+		if info.IsDir() {
+			treeDigest, err := w.uploadTree(ctx, path)
+			if err != nil {
+				return nil, status.Errorf(codes.Unavailable, "uploading %s: %v", output, err)
+			}
+			node := appendField(nil, outputDirPath, []byte(output))
+			node = appendField(node, outputDirTreeDigest, treeDigest.encode())
+			result = appendField(result, resultOutputDirectories, node)
+			continue
+		}
+		fileDigest, err := w.uploadFile(ctx, path)
+		if err != nil {
+			return nil, status.Errorf(codes.Unavailable, "uploading %s: %v", output, err)
+		}
+		node := appendField(nil, outputFilePath, []byte(output))
+		node = appendField(node, outputFileDigest, fileDigest.encode())
+		if info.Mode()&0o111 != 0 {
+			node = appendVarint(node, outputFileExecutable, 1)
+		}
+		result = appendField(result, resultOutputFiles, node)
+	}
+	result = appendVarint(result, resultExitCode, uint64(int64(exitCode)))
+	for _, stream := range []struct {
+		num  protowire.Number
+		data []byte
+	}{{resultStdoutDigest, stdout.Bytes()}, {resultStderrDigest, stderr.Bytes()}} {
+		d, err := w.cas.write(ctx, stream.data)
+		if err != nil {
+			return nil, status.Errorf(codes.Unavailable, "uploading output streams: %v", err)
+		}
+		result = appendField(result, stream.num, d.encode())
+	}
+	return result, nil
+}
+
+// fetchMessage reads a blob holding a message; a missing blob is a failed
+// precondition, so the client uploads it and retries.
+func (w *worker) fetchMessage(ctx context.Context, d digest) (message, error) {
+	data, err := w.cas.read(ctx, d)
+	if err != nil {
+		if status.Code(err) == codes.NotFound {
+			return nil, missingBlob(d, "blob")
+		}
+		return nil, status.Errorf(codes.Unavailable, "reading %s: %v", d.hash, err)
+	}
+	m, err := parseMessage(data)
+	if err != nil {
+		return nil, status.Errorf(codes.InvalidArgument, "bad message in %s: %v", d.hash, err)
+	}
+	return m, nil
+}
+
+// fetchDirectory materializes the Directory with digest d into dir.
+func (w *worker) fetchDirectory(ctx context.Context, d digest, dir string) error {
+	directory, err := w.fetchMessage(ctx, d)
+	if err != nil {
+		return err
+	}
+	for _, encoded := range directory.all(directoryFiles) {
+		node, name, err := parseNode(encoded)
+		if err != nil {
+			return err
+		}
+		fileDigest, err := parseDigest(node.get(nodeDigest))
+		if err != nil {
+			return status.Errorf(codes.InvalidArgument, "bad digest for %s: %v", name, err)
+		}
+		data, err := w.cas.read(ctx, fileDigest)
+		if err != nil {
+			if status.Code(err) == codes.NotFound {
+				return missingBlob(fileDigest, "input "+name)
+			}
+			return status.Errorf(codes.Unavailable, "reading input %s: %v", name, err)
+		}
+		mode := os.FileMode(0o644)
+		if node.varint(fileExecutable) != 0 {
+			mode = 0o755
+		}
+		if err := os.WriteFile(filepath.Join(dir, name), data, mode); err != nil {
+			return status.Errorf(codes.Internal, "writing input %s: %v", name, err)
+		}
+	}
+	for _, encoded := range directory.all(directoryDirectories) {
+		node, name, err := parseNode(encoded)
+		if err != nil {
+			return err
+		}
+		subdirDigest, err := parseDigest(node.get(nodeDigest))
+		if err != nil {
+			return status.Errorf(codes.InvalidArgument, "bad digest for %s: %v", name, err)
+		}
+		subdir := filepath.Join(dir, name)
+		if err := os.MkdirAll(subdir, 0o755); err != nil {
+			return status.Errorf(codes.Internal, "creating input directory %s: %v", name, err)
+		}
+		if err := w.fetchDirectory(ctx, subdirDigest, subdir); err != nil {
+			return err
+		}
+	}
+	for _, encoded := range directory.all(directorySymlinks) {
+		node, name, err := parseNode(encoded)
+		if err != nil {
+			return err
+		}
+		if err := os.Symlink(string(node.get(symlinkTarget)), filepath.Join(dir, name)); err != nil {
+			return status.Errorf(codes.Internal, "creating input symlink %s: %v", name, err)
+		}
+	}
+	return nil
+}
+
+// missingBlob is the FAILED_PRECONDITION the Remote Execution API specifies
+// for a blob that is not in the CAS: a PreconditionFailure with a MISSING
+// violation naming it, which is what the client uploads before retrying.
+func missingBlob(d digest, what string) error {
+	st := status.Newf(codes.FailedPrecondition, "missing %s %s/%d", what, d.hash, d.size)
+	detailed, err := st.WithDetails(&errdetails.PreconditionFailure{
+		Violations: []*errdetails.PreconditionFailure_Violation{{
+			Type:    "MISSING",
+			Subject: fmt.Sprintf("blobs/%s/%d", d.hash, d.size),
+		}},
+	})
+	if err != nil {
+		return st.Err()
+	}
+	return detailed.Err()
+}
+
+// validOutputPath reports whether an output path stays inside the working
+// directory: relative, and without ".." components, like the names of the
+// entries fetchDirectory writes.
+func validOutputPath(output string) bool {
+	if output == "" || filepath.IsAbs(output) {
+		return false
+	}
+	for _, part := range strings.Split(output, "/") {
+		if part == ".." {
+			return false
+		}
+	}
+	return true
+}
+
+// parseNode decodes a FileNode, DirectoryNode or SymlinkNode and checks that
+// its name is a single path component.
+func parseNode(encoded []byte) (message, string, error) {
+	node, err := parseMessage(encoded)
+	if err != nil {
+		return nil, "", status.Errorf(codes.InvalidArgument, "bad directory entry: %v", err)
+	}
+	name := string(node.get(nodeName))
+	if name == "" || name == "." || name == ".." || strings.Contains(name, "/") {
+		return nil, "", status.Errorf(codes.InvalidArgument, "bad directory entry name %q", name)
+	}
+	return node, name, nil
+}
+
+func (w *worker) uploadFile(ctx context.Context, path string) (digest, error) {
+	data, err := os.ReadFile(path)
+	if err != nil {
+		return digest{}, err
+	}
+	return w.cas.write(ctx, data)
+}
+
+// uploadTree uploads the files under dir and a Tree describing them, and
+// returns the Tree's digest.
+func (w *worker) uploadTree(ctx context.Context, dir string) (digest, error) {
+	var children [][]byte
+	root, err := w.encodeDirectory(ctx, dir, &children)
+	if err != nil {
+		return digest{}, err
+	}
+	tree := appendField(nil, treeRoot, root)
+	for _, child := range children {
+		tree = appendField(tree, treeChildren, child)
+	}
+	return w.cas.write(ctx, tree)
+}
+
+// encodeDirectory encodes dir as a Directory, uploading its files, and
+// appends the Directory of every subdirectory to children.
+func (w *worker) encodeDirectory(ctx context.Context, dir string, children *[][]byte) ([]byte, error) {
+	entries, err := os.ReadDir(dir) // Sorted by name, as Directory requires.
+	if err != nil {
+		return nil, err
+	}
+	var files, dirs, symlinks []byte
+	for _, entry := range entries {
+		path := filepath.Join(dir, entry.Name())
+		switch {
+		case entry.Type()&os.ModeSymlink != 0:
+			target, err := os.Readlink(path)
+			if err != nil {
+				return nil, err
+			}
+			node := appendField(nil, nodeName, []byte(entry.Name()))
+			node = appendField(node, symlinkTarget, []byte(target))
+			symlinks = appendField(symlinks, directorySymlinks, node)
+		case entry.IsDir():
+			subdir, err := w.encodeDirectory(ctx, path, children)
+			if err != nil {
+				return nil, err
+			}
+			*children = append(*children, subdir)
+			node := appendField(nil, nodeName, []byte(entry.Name()))
+			node = appendField(node, nodeDigest, digestOf(subdir).encode())
+			dirs = appendField(dirs, directoryDirectories, node)
+		default:
+			info, err := entry.Info()
+			if err != nil {
+				return nil, err
+			}
+			fileDigest, err := w.uploadFile(ctx, path)
+			if err != nil {
+				return nil, err
+			}
+			node := appendField(nil, nodeName, []byte(entry.Name()))
+			node = appendField(node, nodeDigest, fileDigest.encode())
+			if info.Mode()&0o111 != 0 {
+				node = appendVarint(node, fileExecutable, 1)
+			}
+			files = appendField(files, directoryFiles, node)
+		}
+	}
+	return append(append(files, dirs...), symlinks...), nil
+}
+
+// parseDuration decodes a google.protobuf.Duration; zero if absent.
+func parseDuration(b []byte) time.Duration {
+	m, err := parseMessage(b)
+	if err != nil {
+		return 0
+	}
+	return time.Duration(int64(m.varint(1)))*time.Second + time.Duration(int64(int32(m.varint(2))))
+}
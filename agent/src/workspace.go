@@ -0,0 +1,408 @@
+package main
+
+import (
+	"context"
+	"crypto/sha256"
+	"encoding/hex"
+	"fmt"
+	"io"
+	"log/slog"
+	"os"
+	"path/filepath"
+	"strconv"
+	"strings"
+	"sync"
+	"time"
+
+	"google.golang.org/grpc"
+	"google.golang.org/grpc/codes"
+	"google.golang.org/grpc/credentials/insecure"
+	"google.golang.org/grpc/status"
+	"google.golang.org/protobuf/encoding/protowire"
+	"google.golang.org/protobuf/types/known/emptypb"
+)
+
+// Workspace sync (RBS_WORKSPACE_DIR): the session's workspace lives in the
+// pod rather than on a node path. Before anything else the agent fetches the
+// tree named by RBS_WORKSPACE_DIGEST ("<hash>/<size>") from the remote cache
+// into the directory, then serves rbs.WorkspaceSync/SyncWorkspace
+// (orchestrator/src/main/proto/workspace_sync.proto) for the proxy's later
+// syncs, as the orchestrator does for local sessions. The last tree applied
+// is kept in memory, so a sync only walks the subtrees whose digest changed
+// and only writes the files that did. Files are written to a temporary
+// directory next to the workspace and renamed into place, so a build running
+// meanwhile sees each file either old or new.
+
+const syncWorkspaceMethod = "/rbs.WorkspaceSync/SyncWorkspace"
+
+// Field numbers from workspace_sync.proto.
+const (
+	syncRequestRootDigest      = 3
+	syncResponseMissingDigests = 1
+	syncResponseWorkspacePath  = 2
+	syncResponseFilesWritten   = 3
+	syncResponseBytesWritten   = 4
+	syncResponseEntriesDeleted = 5
+)
+
+type workspace struct {
+	cas    *casClient
+	dir    string
+	tmpDir string
+
+	mu    sync.Mutex
+	known bool               // whether root and tree describe the directory
+	root  digest             // the tree last applied
+	tree  map[digest]message // its directories
+}
+
+type syncStats struct {
+	filesWritten   int64
+	bytesWritten   int64
+	entriesDeleted int64
+}
+
+// newWorkspace returns nil if the pod has no workspace to sync.
+func newWorkspace() (*workspace, error) {
+	dir := os.Getenv("RBS_WORKSPACE_DIR")
+	if dir == "" {
+		return nil, nil
+	}
+	cacheAddress := strings.TrimPrefix(os.Getenv("RBS_REMOTE_CACHE"), "grpc://")
+	if cacheAddress == "" {
+		return nil, fmt.Errorf("RBS_WORKSPACE_DIR needs RBS_REMOTE_CACHE")
+	}
+	conn, err := grpc.Dial(cacheAddress, grpc.WithTransportCredentials(insecure.NewCredentials()))
+	if err != nil {
+		return nil, fmt.Errorf("connecting to remote cache %s: %w", cacheAddress, err)
+	}
+	// On the same volume as the workspace, so files can be renamed into it.
+	tmpDir := filepath.Join(filepath.Dir(dir), "tmp")
+	for _, d := range []string{dir, tmpDir} {
+		if err := os.MkdirAll(d, 0o755); err != nil {
+			return nil, err
+		}
+	}
+	return &workspace{cas: &casClient{conn: conn}, dir: dir, tmpDir: tmpDir}, nil
+}
+
+// materialise applies the tree in RBS_WORKSPACE_DIGEST, which the proxy
+// uploaded before asking for the session's server.
+func (ws *workspace) materialise(ctx context.Context) error {
+	text := os.Getenv("RBS_WORKSPACE_DIGEST")
+	if text == "" {
+		return nil
+	}
+	hash, size, ok := strings.Cut(text, "/")
+	n, err := strconv.ParseInt(size, 10, 64)
+	if !ok || err != nil {
+		return fmt.Errorf("bad RBS_WORKSPACE_DIGEST %q", text)
+	}
+	start := time.Now()
+	stats, missing, err := ws.sync(ctx, digest{hash: hash, size: n})
+	if err != nil {
+		return err
+	}
+	if len(missing) > 0 {
+		return fmt.Errorf("workspace tree %s is missing %d blobs in the remote cache", hash, len(missing))
+	}
+	slog.Info("Workspace materialised", "dir", ws.dir, "files", stats.filesWritten, "bytes", stats.bytesWritten,
+		"duration", time.Since(start))
+	return nil
+}
+
+func (ws *workspace) handle(stream grpc.ServerStream) error {
+	var frame emptypb.Empty
+	if err := stream.RecvMsg(&frame); err != nil {
+		return err
+	}
+	request, err := parseMessage(frame.ProtoReflect().GetUnknown())
+	if err != nil {
+		return status.Errorf(codes.InvalidArgument, "bad request: %v", err)
+	}
+	root, err := parseDigest(request.get(syncRequestRootDigest))
+	if err != nil || root.hash == "" {
+		return status.Errorf(codes.InvalidArgument, "bad root digest: %v", err)
+	}
+	stats, missing, err := ws.sync(stream.Context(), root)
+	if err != nil {
+		slog.Warn("Workspace sync failed", "root", root.hash, "error", err)
+		return err
+	}
+	var response []byte
+	for _, d := range missing {
+		response = appendField(response, syncResponseMissingDigests, d.encode())
+	}
+	if len(missing) == 0 {
+		response = appendField(response, syncResponseWorkspacePath, []byte(ws.dir))
+		response = appendVarint(response, syncResponseFilesWritten, uint64(stats.filesWritten))
+		response = appendVarint(response, syncResponseBytesWritten, uint64(stats.bytesWritten))
+		response = appendVarint(response, syncResponseEntriesDeleted, uint64(stats.entriesDeleted))
+		slog.Info("Workspace synced", "root", root.hash, "files", stats.filesWritten,
+			"deleted", stats.entriesDeleted)
+	}
+	return stream.SendMsg(rawFrame(response))
+}
+
+// sync makes the workspace match the tree, or returns the directories still
+// missing from the remote cache without changing anything.
+func (ws *workspace) sync(ctx context.Context, root digest) (syncStats, []digest, error) {
+	ws.mu.Lock()
+	defer ws.mu.Unlock()
+	if ws.known && root == ws.root {
+		return syncStats{}, nil, nil
+	}
+	tree := map[digest]message{}
+	var missing []digest
+	pending := []digest{root}
+	for len(pending) > 0 {
+		d := pending[0]
+		pending = pending[1:]
+		if _, ok := tree[d]; ok {
+			continue
+		}
+		data, err := ws.cas.read(ctx, d)
+		if status.Code(err) == codes.NotFound {
+			missing = append(missing, d)
+			continue
+		}
+		if err != nil {
+			return syncStats{}, nil, status.Errorf(codes.Unavailable, "reading %s: %v", d.hash, err)
+		}
+		directory, err := parseMessage(data)
+		if err != nil {
+			return syncStats{}, nil, status.Errorf(codes.InvalidArgument, "bad directory %s: %v", d.hash, err)
+		}
+		tree[d] = directory
+		for _, encoded := range directory.all(directoryDirectories) {
+			node, _, err := parseNode(encoded)
+			if err != nil {
+				return syncStats{}, nil, err
+			}
+			child, err := parseDigest(node.get(nodeDigest))
+			if err != nil {
+				return syncStats{}, nil, status.Errorf(codes.InvalidArgument, "bad digest: %v", err)
+			}
+			pending = append(pending, child)
+		}
+	}
+	if len(missing) > 0 {
+		return syncStats{}, missing, nil
+	}
+
+	known, previous := ws.known, ws.tree
+	had := previous[ws.root]
+	// Until this sync completes the workspace matches neither tree.
+	ws.known = false
+	var stats syncStats
+	if err := ws.apply(ctx, ws.dir, tree[root], had, known, tree, previous, true, &stats); err != nil {
+		return stats, nil, err
+	}
+	ws.known, ws.root, ws.tree = true, root, tree
+	return stats, nil, nil
+}
+
+// apply makes dir match want. had is what was applied to it last time if
+// known; otherwise the disk is compared.
+func (ws *workspace) apply(ctx context.Context, dir string, want, had message, known bool,
+	tree, previous map[digest]message, top bool, stats *syncStats) error {
+	names := map[string]bool{}
+	for _, kind := range []protowire.Number{directoryFiles, directoryDirectories, directorySymlinks} {
+		for _, encoded := range want.all(kind) {
+			_, name, err := parseNode(encoded)
+			if err != nil {
+				return err
+			}
+			names[name] = true
+		}
+	}
+
+	// Deletions first, so the disk never holds both trees' files at once.
+	if known {
+		for _, kind := range []protowire.Number{directoryFiles, directoryDirectories, directorySymlinks} {
+			for _, encoded := range had.all(kind) {
+				if _, name, err := parseNode(encoded); err == nil && !names[name] {
+					if err := removeEntry(filepath.Join(dir, name), stats); err != nil {
+						return err
+					}
+				}
+			}
+		}
+	} else {
+		entries, err := os.ReadDir(dir)
+		if err != nil {
+			return status.Errorf(codes.Internal, "listing %s: %v", dir, err)
+		}
+		for _, entry := range entries {
+			// Bazel's convenience symlinks are not part of the tree.
+			if !names[entry.Name()] && !(top && strings.HasPrefix(entry.Name(), "bazel-")) {
+				if err := removeEntry(filepath.Join(dir, entry.Name()), stats); err != nil {
+					return err
+				}
+			}
+		}
+	}
+
+	for _, encoded := range want.all(directoryFiles) {
+		node, name, _ := parseNode(encoded)
+		fileDigest, err := parseDigest(node.get(nodeDigest))
+		if err != nil {
+			return status.Errorf(codes.InvalidArgument, "bad digest for %s: %v", name, err)
+		}
+		executable := node.varint(fileExecutable) != 0
+		path := filepath.Join(dir, name)
+		var unchanged bool
+		if known {
+			old, ok := findNode(had, directoryFiles, name)
+			unchanged = ok && string(old.get(nodeDigest)) == string(node.get(nodeDigest)) &&
+				(old.varint(fileExecutable) != 0) == executable
+		} else {
+			unchanged = matchesDisk(path, fileDigest, executable)
+		}
+		if !unchanged {
+			if err := ws.writeFile(ctx, path, fileDigest, executable, stats); err != nil {
+				return err
+			}
+		}
+	}
+	for _, encoded := range want.all(directorySymlinks) {
+		node, name, _ := parseNode(encoded)
+		path := filepath.Join(dir, name)
+		target := string(node.get(symlinkTarget))
+		if current, err := os.Readlink(path); err == nil && current == target {
+			continue
+		}
+		if err := removeEntry(path, stats); err != nil {
+			return err
+		}
+		if err := os.Symlink(target, path); err != nil {
+			return status.Errorf(codes.Internal, "creating symlink %s: %v", path, err)
+		}
+	}
+	for _, encoded := range want.all(directoryDirectories) {
+		node, name, _ := parseNode(encoded)
+		childDigest, _ := parseDigest(node.get(nodeDigest))
+		path := filepath.Join(dir, name)
+		var childHad message
+		childKnown := known
+		if known {
+			old, ok := findNode(had, directoryDirectories, name)
+			if ok && string(old.get(nodeDigest)) == string(node.get(nodeDigest)) {
+				continue
+			}
+			if ok {
+				oldDigest, _ := parseDigest(old.get(nodeDigest))
+				childHad, childKnown = previous[oldDigest]
+			}
+		}
+		if info, err := os.Lstat(path); err != nil || !info.IsDir() {
+			if err := removeEntry(path, stats); err != nil {
+				return err
+			}
+			if err := os.Mkdir(path, 0o755); err != nil {
+				return status.Errorf(codes.Internal, "creating directory %s: %v", path, err)
+			}
+			childHad, childKnown = nil, true
+		}
+		if err := ws.apply(ctx, path, tree[childDigest], childHad, childKnown, tree, previous, false,
+			stats); err != nil {
+			return err
+		}
+	}
+	return nil
+}
+
+func (ws *workspace) writeFile(ctx context.Context, path string, d digest, executable bool,
+	stats *syncStats) error {
+	data, err := ws.cas.read(ctx, d)
+	if status.Code(err) == codes.NotFound {
+		return status.Errorf(codes.FailedPrecondition, "blob %s was evicted during the sync", d.hash)
+	}
+	if err != nil {
+		return status.Errorf(codes.Unavailable, "reading %s: %v", d.hash, err)
+	}
+	tmp, err := os.CreateTemp(ws.tmpDir, "sync-")
+	if err != nil {
+		return status.Errorf(codes.Internal, "creating temporary file: %v", err)
+	}
+	defer os.Remove(tmp.Name())
+	_, err = tmp.Write(data)
+	if closeErr := tmp.Close(); err == nil {
+		err = closeErr
+	}
+	mode := os.FileMode(0o644)
+	if executable {
+		mode = 0o755
+	}
+	if err == nil {
+		err = os.Chmod(tmp.Name(), mode)
+	}
+	if err != nil {
+		return status.Errorf(codes.Internal, "writing %s: %v", path, err)
+	}
+	if info, err := os.Lstat(path); err == nil && info.IsDir() {
+		if err := removeEntry(path, stats); err != nil {
+			return err
+		}
+	}
+	if err := os.Rename(tmp.Name(), path); err != nil {
+		return status.Errorf(codes.Internal, "writing %s: %v", path, err)
+	}
+	stats.filesWritten++
+	stats.bytesWritten += d.size
+	return nil
+}
+
+// findNode returns the entry of the given kind named name in a Directory.
+func findNode(directory message, kind protowire.Number, name string) (message, bool) {
+	for _, encoded := range directory.all(kind) {
+		if node, nodeName, err := parseNode(encoded); err == nil && nodeName == name {
+			return node, true
+		}
+	}
+	return nil, false
+}
+
+func matchesDisk(path string, d digest, executable bool) bool {
+	info, err := os.Lstat(path)
+	if err != nil || !info.Mode().IsRegular() || info.Size() != d.size || (info.Mode()&0o111 != 0) != executable {
+		return false
+	}
+	f, err := os.Open(path)
+	if err != nil {
+		return false
+	}
+	defer f.Close()
+	sum := sha256.New()
+	if _, err := io.Copy(sum, f); err != nil {
+		return false
+	}
+	return hex.EncodeToString(sum.Sum(nil)) == d.hash
+}
+
+// removeEntry deletes path and everything under it, counting the entries.
+func removeEntry(path string, stats *syncStats) error {
+	info, err := os.Lstat(path)
+	if os.IsNotExist(err) {
+		return nil
+	}
+	if err != nil {
+		return status.Errorf(codes.Internal, "deleting %s: %v", path, err)
+	}
+	if info.IsDir() {
+		entries, err := os.ReadDir(path)
+		if err != nil {
+			return status.Errorf(codes.Internal, "deleting %s: %v", path, err)
+		}
+		for _, entry := range entries {
+			if err := removeEntry(filepath.Join(path, entry.Name()), stats); err != nil {
+				return err
+			}
+		}
+	}
+	if err := os.Remove(path); err != nil && !os.IsNotExist(err) {
+		return status.Errorf(codes.Internal, "deleting %s: %v", path, err)
+	}
+	stats.entriesDeleted++
+	return nil
+}
@@ -0,0 +1,267 @@
+package com.example.rbs.e2e;
+
+import com.example.rbs.proto.GetServerRequest;
+import com.example.rbs.proto.GetServerResponse;
+import com.example.rbs.proto.HeartbeatRequest;
+import com.example.rbs.proto.HeartbeatResponse;
+import com.example.rbs.proto.OrchestratorGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.stub.StreamObserver;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Simulates a fleet of proxies against a running orchestrator.
+ *
+ * <p>
+ * Each virtual proxy follows the real proxy protocol: it polls
+ * {@code GetServer} until READY, heartbeats every 30 seconds, and disconnects
+ * (stops heartbeating) when its session ends. Run it against an orchestrator
+ * started with {@code --local-mode --fake-compute} to measure the control
+ * plane alone:
+ *
+ * <pre>
+ * bazel run //orchestrator:server -- --local-mode --fake-compute --fake-start-median-ms=20000
+ * bazel run //e2e:load_generator -- --proxies=5000 --ramp-seconds=300
+ * </pre>
+ *
+ * RPCs are issued on async stubs so a slow orchestrator shows up as RPC
+ * latency rather than being hidden by a saturated client thread pool.
+ */
+public class LoadGenerator {
+    private final Options options;
+    private final List<OrchestratorGrpc.OrchestratorStub> stubs = new ArrayList<>();
+    private final List<ManagedChannel> channels = new ArrayList<>();
+    private final ScheduledExecutorService scheduler;
+    private final Random random = new Random();
+
+    // Time-to-READY in milliseconds, RPC latencies in microseconds.
+    private final Histogram timeToReady = new ConcurrentHistogram(3);
+    private final Histogram getServerLatency = new ConcurrentHistogram(3);
+    private final Histogram heartbeatLatency = new ConcurrentHistogram(3);
+    private final AtomicLong rpcErrors = new AtomicLong();
+    private final AtomicLong readySessions = new AtomicLong();
+    private final AtomicLong activeSessions = new AtomicLong();
+
+    LoadGenerator(Options options) {
+        this.options = options;
+        this.scheduler = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors());
+        for (int i = 0; i < options.channels; i++) {
+            ManagedChannel channel = ManagedChannelBuilder.forTarget(options.target).usePlaintext().build();
+            channels.add(channel);
+            stubs.add(OrchestratorGrpc.newStub(channel));
+        }
+    }
+
+    void run() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(options.proxies);
+        String runId = Long.toHexString(System.currentTimeMillis());
+        for (int i = 0; i < options.proxies; i++) {
+            long startDelayMillis = options.rampSeconds * 1000L * i / Math.max(1, options.proxies);
+            VirtualProxy proxy = new VirtualProxy(i, runId, stubs.get(i % stubs.size()), done);
+            scheduler.schedule(proxy::start, startDelayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor();
+        progress.scheduleAtFixedRate(() -> System.out.printf(
+                "active=%d ready=%d errors=%d ttr_p50=%dms ttr_p99=%dms get_server_p99=%dus heartbeat_p99=%dus%n",
+                activeSessions.get(), readySessions.get(), rpcErrors.get(),
+                timeToReady.getValueAtPercentile(50), timeToReady.getValueAtPercentile(99),
+                getServerLatency.getValueAtPercentile(99), heartbeatLatency.getValueAtPercentile(99)),
+                10, 10, TimeUnit.SECONDS);
+
+        done.await();
+        progress.shutdownNow();
+        scheduler.shutdownNow();
+        for (ManagedChannel channel : channels) {
+            channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        }
+        report(System.out);
+    }
+
+    void report(PrintStream out) {
+        out.println("=== Load generator report ===");
+        out.printf("proxies=%d ready=%d rpc_errors=%d%n", options.proxies, readySessions.get(), rpcErrors.get());
+        printSummary(out, "time_to_ready (ms)", timeToReady);
+        printSummary(out, "GetServer latency (us)", getServerLatency);
+        printSummary(out, "Heartbeat latency (us)", heartbeatLatency);
+        out.println("--- time_to_ready distribution (ms) ---");
+        timeToReady.outputPercentileDistribution(out, 1.0);
+        out.println("--- GetServer latency distribution (ms) ---");
+        getServerLatency.outputPercentileDistribution(out, 1000.0);
+    }
+
+    private static void printSummary(PrintStream out, String name, Histogram histogram) {
+        out.printf("%-24s count=%d p50=%d p90=%d p99=%d p99.9=%d max=%d%n", name, histogram.getTotalCount(),
+                histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(90),
+                histogram.getValueAtPercentile(99), histogram.getValueAtPercentile(99.9), histogram.getMaxValue());
+    }
+
+    /** One simulated proxy: poll until READY, heartbeat, then disconnect. */
+    private class VirtualProxy {
+        private final OrchestratorGrpc.OrchestratorStub stub;
+        private final CountDownLatch done;
+        private final GetServerRequest request;
+        private final String sessionId;
+        private long startNanos;
+        private long endNanos;
+
+        VirtualProxy(int index, String runId, OrchestratorGrpc.OrchestratorStub stub, CountDownLatch done) {
+            this.stub = stub;
+            this.done = done;
+            this.sessionId = "load-" + runId + "-" + index;
+            this.request = GetServerRequest.newBuilder()
+                    .setUserId("load-user-" + (index % options.users))
+                    .setRepoHash("load-repo-" + (index % options.repos))
+                    .setSessionId(sessionId)
+                    .setSourcePath("/tmp/load/" + index)
+                    .build();
+        }
+
+        void start() {
+            activeSessions.incrementAndGet();
+            startNanos = System.nanoTime();
+            // Exponentially distributed session length around the configured mean.
+            long sessionMillis = (long) (-Math.log(1 - random.nextDouble()) * options.sessionSeconds * 1000);
+            endNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(sessionMillis);
+            poll();
+        }
+
+        private void poll() {
+            long sent = System.nanoTime();
+            stub.withDeadlineAfter(10, TimeUnit.SECONDS).getServer(request, new StreamObserver<GetServerResponse>() {
+                private GetServerResponse response;
+
+                @Override
+                public void onNext(GetServerResponse value) {
+                    response = value;
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    getServerLatency.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sent));
+                    rpcErrors.incrementAndGet();
+                    // The real proxy backs off 2s on errors.
+                    scheduleOrFinish(VirtualProxy.this::poll, 2000);
+                }
+
+                @Override
+                public void onCompleted() {
+                    long now = System.nanoTime();
+                    getServerLatency.recordValue(TimeUnit.NANOSECONDS.toMicros(now - sent));
+                    if ("READY".equals(response.getStatus())) {
+                        timeToReady.recordValue(TimeUnit.NANOSECONDS.toMillis(now - startNanos));
+                        readySessions.incrementAndGet();
+                        scheduleOrFinish(VirtualProxy.this::heartbeat, options.heartbeatSeconds * 1000L);
+                    } else {
+                        scheduleOrFinish(VirtualProxy.this::poll, options.pollIntervalMillis);
+                    }
+                }
+            });
+        }
+
+        private void heartbeat() {
+            long sent = System.nanoTime();
+            HeartbeatRequest heartbeat = HeartbeatRequest.newBuilder().setSessionId(sessionId).build();
+            stub.withDeadlineAfter(5, TimeUnit.SECONDS).heartbeat(heartbeat, new StreamObserver<HeartbeatResponse>() {
+                @Override
+                public void onNext(HeartbeatResponse value) {
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    heartbeatLatency.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sent));
+                    rpcErrors.incrementAndGet();
+                    scheduleOrFinish(VirtualProxy.this::heartbeat, options.heartbeatSeconds * 1000L);
+                }
+
+                @Override
+                public void onCompleted() {
+                    heartbeatLatency.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sent));
+                    scheduleOrFinish(VirtualProxy.this::heartbeat, options.heartbeatSeconds * 1000L);
+                }
+            });
+        }
+
+        /** Schedules the next protocol step, or disconnects once the session is over. */
+        private void scheduleOrFinish(Runnable next, long delayMillis) {
+            if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis) > endNanos) {
+                activeSessions.decrementAndGet();
+                done.countDown();
+                return;
+            }
+            scheduler.schedule(next, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    static class Options {
+        String target = "localhost:50051";
+        int proxies = 100;
+        int users = 100;
+        int repos = 10;
+        int channels = 4;
+        int rampSeconds = 60;
+        int sessionSeconds = 600;
+        int heartbeatSeconds = 30;
+        long pollIntervalMillis = 1000;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                String[] kv = arg.split("=", 2);
+                if (kv.length != 2) {
+                    throw new IllegalArgumentException("Expected --flag=value, got " + arg);
+                }
+                switch (kv[0]) {
+                    case "--target":
+                        options.target = kv[1];
+                        break;
+                    case "--proxies":
+                        options.proxies = Integer.parseInt(kv[1]);
+                        break;
+                    case "--users":
+                        options.users = Integer.parseInt(kv[1]);
+                        break;
+                    case "--repos":
+                        options.repos = Integer.parseInt(kv[1]);
+                        break;
+                    case "--channels":
+                        options.channels = Integer.parseInt(kv[1]);
+                        break;
+                    case "--ramp-seconds":
+                        options.rampSeconds = Integer.parseInt(kv[1]);
+                        break;
+                    case "--session-seconds":
+                        options.sessionSeconds = Integer.parseInt(kv[1]);
+                        break;
+                    case "--heartbeat-seconds":
+                        options.heartbeatSeconds = Integer.parseInt(kv[1]);
+                        break;
+                    case "--poll-interval-ms":
+                        options.pollIntervalMillis = Long.parseLong(kv[1]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown flag " + kv[0]);
+                }
+            }
+            return options;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        System.out.println("Starting " + options.proxies + " virtual proxies against " + options.target + " over "
+                + options.rampSeconds + "s");
+        new LoadGenerator(options).run();
+    }
+}
@@ -0,0 +1,419 @@
+package com.example.rbs.e2e;
+
+import com.google.protobuf.CodedOutputStream;
+import io.grpc.CallOptions;
+import io.grpc.ManagedChannel;
+import io.grpc.MethodDescriptor;
+import io.grpc.StatusRuntimeException;
+import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.shaded.io.netty.channel.EventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.unix.DomainSocketAddress;
+import io.grpc.stub.ClientCalls;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Measures time to first build output through the real proxy, orchestrator
+ * and agent, the way the Bazel client drives them.
+ *
+ * <p>
+ * Each command starts the proxy as the Bazel client starts its server
+ * ({@code --output_base}, {@code --workspace_directory}), waits for the
+ * {@code request_cookie} the proxy writes once its session is READY, and
+ * sends {@code CommandServer/Run} over {@code server.socket}. The proxy exits
+ * when the command ends, like a real one. Three scenarios are measured:
+ *
+ * <ul>
+ * <li>{@code cold}: a new workspace, so a new session, agent and Bazel server.
+ * <li>{@code warm}: the same workspace again; the proxy re-attaches to the
+ * live agent and Bazel server.
+ * <li>{@code restart}: the same workspace after {@code shutdown}; the agent is
+ * reused but starts a new Bazel server.
+ * </ul>
+ *
+ * Every command is split into phases: {@code spawn} (proxy process start),
+ * {@code session} (GetServer polling until READY), {@code listen} (until
+ * the socket and cookie are written), {@code first_output} (connect and Run
+ * until the first response) and {@code command} (until Run completes).
+ * {@code total} is spawn to first output. {@code ttfb_benchmark.sh} starts the
+ * orchestrator in local mode with a stub Bazel server behind the agent:
+ *
+ * <pre>
+ * bazel run //e2e:ttfb_benchmark -- --iterations=50
+ * </pre>
+ */
+public class TimeToFirstBuild {
+    static final String[] PHASES = {"spawn", "session", "listen", "first_output", "command", "total"};
+
+    private static final MethodDescriptor.Marshaller<byte[]> BYTES = new MethodDescriptor.Marshaller<byte[]>() {
+        @Override
+        public InputStream stream(byte[] value) {
+            return new ByteArrayInputStream(value);
+        }
+
+        @Override
+        public byte[] parse(InputStream stream) {
+            try {
+                return stream.readAllBytes();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    };
+
+    // Bazel's command_server.proto; frames are passed through as raw bytes.
+    private static final MethodDescriptor<byte[], byte[]> RUN = MethodDescriptor.<byte[], byte[]>newBuilder()
+            .setType(MethodDescriptor.MethodType.SERVER_STREAMING)
+            .setFullMethodName("command_server.CommandServer/Run")
+            .setRequestMarshaller(BYTES)
+            .setResponseMarshaller(BYTES)
+            .build();
+
+    private final Options options;
+    private final EventLoopGroup eventLoop = new EpollEventLoopGroup(1);
+    // Phase durations in microseconds, by scenario and phase.
+    private final Map<String, Map<String, Histogram>> results = new LinkedHashMap<>();
+    private final Map<String, Integer> failures = new LinkedHashMap<>();
+    private final List<String> csvRows = new ArrayList<>();
+    private int workspaces;
+
+    TimeToFirstBuild(Options options) {
+        this.options = options;
+    }
+
+    void run() throws IOException, InterruptedException {
+        for (String scenario : options.scenarios) {
+            Map<String, Histogram> phases = new LinkedHashMap<>();
+            for (String phase : PHASES) {
+                phases.put(phase, new Histogram(3));
+            }
+            results.put(scenario, phases);
+            failures.put(scenario, 0);
+            System.out.println("Running " + scenario + ": " + options.warmup + " warm-up and " + options.iterations
+                    + " measured iterations");
+            switch (scenario) {
+                case "cold":
+                    for (int i = 0; i < options.warmup + options.iterations; i++) {
+                        Path workspace = newWorkspace(scenario);
+                        measure(scenario, i, workspace);
+                        shutdown(workspace);
+                    }
+                    break;
+                case "warm": {
+                    Path workspace = newWorkspace(scenario);
+                    invoke(workspace, options.command);
+                    for (int i = 0; i < options.warmup + options.iterations; i++) {
+                        measure(scenario, i, workspace);
+                    }
+                    shutdown(workspace);
+                    break;
+                }
+                case "restart": {
+                    Path workspace = newWorkspace(scenario);
+                    invoke(workspace, options.command);
+                    for (int i = 0; i < options.warmup + options.iterations; i++) {
+                        shutdown(workspace);
+                        measure(scenario, i, workspace);
+                    }
+                    shutdown(workspace);
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown scenario " + scenario);
+            }
+        }
+        eventLoop.shutdownGracefully();
+        report(System.out);
+        if (options.csv != null) {
+            List<String> lines = new ArrayList<>();
+            lines.add("scenario,iteration," + String.join(",", PHASES));
+            lines.addAll(csvRows);
+            Files.write(Paths.get(options.csv), lines, StandardCharsets.UTF_8);
+        }
+    }
+
+    void report(PrintStream out) {
+        out.println("=== Time to first build report (ms) ===");
+        for (Map.Entry<String, Map<String, Histogram>> scenario : results.entrySet()) {
+            out.printf("%s: failures=%d%n", scenario.getKey(), failures.get(scenario.getKey()));
+            for (Map.Entry<String, Histogram> phase : scenario.getValue().entrySet()) {
+                Histogram histogram = phase.getValue();
+                out.printf("  %-14s count=%d p50=%.1f p90=%.1f p99=%.1f max=%.1f%n", phase.getKey(),
+                        histogram.getTotalCount(), histogram.getValueAtPercentile(50) / 1000.0,
+                        histogram.getValueAtPercentile(90) / 1000.0, histogram.getValueAtPercentile(99) / 1000.0,
+                        histogram.getMaxValue() / 1000.0);
+            }
+        }
+    }
+
+    private void measure(String scenario, int iteration, Path workspace) throws InterruptedException {
+        long[] micros;
+        try {
+            micros = invoke(workspace, options.command);
+        } catch (IOException | StatusRuntimeException e) {
+            System.out.println(scenario + " iteration " + iteration + " failed: " + e.getMessage());
+            if (iteration >= options.warmup) {
+                failures.merge(scenario, 1, Integer::sum);
+            }
+            return;
+        }
+        if (iteration < options.warmup) {
+            return;
+        }
+        StringBuilder row = new StringBuilder(scenario).append(',').append(iteration - options.warmup);
+        for (int i = 0; i < PHASES.length; i++) {
+            results.get(scenario).get(PHASES[i]).recordValue(micros[i]);
+            row.append(',').append(String.format("%.3f", micros[i] / 1000.0));
+        }
+        csvRows.add(row.toString());
+    }
+
+    /** Stops the workspace's Bazel server; the agent stays up until its session is reaped. */
+    private void shutdown(Path workspace) throws InterruptedException {
+        try {
+            invoke(workspace, "shutdown");
+        } catch (IOException | StatusRuntimeException e) {
+            System.out.println("shutdown of " + workspace + " failed: " + e.getMessage());
+        }
+    }
+
+    /** Runs one command through a new proxy and returns its phase durations in microseconds. */
+    private long[] invoke(Path workspace, String command) throws IOException, InterruptedException {
+        // The proxy names its session by the second it started in; a new second keeps sessions apart.
+        Thread.sleep(1000 - System.currentTimeMillis() % 1000);
+        Path outputBase = options.workDir.resolve("client").resolve(workspace.getFileName());
+        Path serverDir = outputBase.resolve("server");
+        Files.createDirectories(serverDir);
+        // Left behind by the previous proxy; the Bazel client would find its PID dead.
+        Files.deleteIfExists(serverDir.resolve("request_cookie"));
+
+        long spawned = System.nanoTime();
+        ProcessBuilder builder = new ProcessBuilder(options.proxy, "--output_base=" + outputBase,
+                "--workspace_directory=" + workspace).redirectErrorStream(true);
+        builder.environment().put("ORCHESTRATOR_ADDR", options.orchestrator);
+        builder.environment().put("RBS_USER_ID", options.user);
+        Process proxy = builder.start();
+        ProxyLog log = new ProxyLog(proxy.getInputStream());
+        log.start();
+        try {
+            String cookie = awaitCookie(serverDir.resolve("request_cookie"), proxy, log);
+            long listening = System.nanoTime();
+            long firstOutput = 0;
+            ManagedChannel channel = NettyChannelBuilder
+                    .forAddress(new DomainSocketAddress(serverDir.resolve("server.socket").toString()))
+                    .eventLoopGroup(eventLoop)
+                    .channelType(EpollDomainSocketChannel.class)
+                    .overrideAuthority("localhost")
+                    .usePlaintext()
+                    .build();
+            try {
+                Iterator<byte[]> responses = ClientCalls.blockingServerStreamingCall(channel, RUN,
+                        CallOptions.DEFAULT.withDeadlineAfter(options.timeoutSeconds, TimeUnit.SECONDS),
+                        runRequest(cookie, command.split(" ")));
+                while (responses.hasNext()) {
+                    responses.next();
+                    if (firstOutput == 0) {
+                        firstOutput = System.nanoTime();
+                    }
+                }
+            } finally {
+                channel.shutdownNow();
+            }
+            long done = System.nanoTime();
+            if (firstOutput == 0) {
+                throw new IOException("Run returned no output");
+            }
+            long started = log.startedNanos != 0 ? log.startedNanos : spawned;
+            long ready = log.readyNanos != 0 ? log.readyNanos : started;
+            return new long[] {
+                micros(started - spawned),
+                micros(ready - started),
+                micros(listening - ready),
+                micros(firstOutput - listening),
+                micros(done - firstOutput),
+                micros(firstOutput - spawned),
+            };
+        } finally {
+            // A proxy exits after its command; one that does not is stuck.
+            if (!proxy.waitFor(5, TimeUnit.SECONDS)) {
+                proxy.destroyForcibly().waitFor();
+            }
+        }
+    }
+
+    private String awaitCookie(Path cookieFile, Process proxy, ProxyLog log) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.timeoutSeconds);
+        while (System.nanoTime() < deadline) {
+            if (Files.exists(cookieFile)) {
+                String cookie = new String(Files.readAllBytes(cookieFile), StandardCharsets.UTF_8).trim();
+                if (!cookie.isEmpty()) {
+                    return cookie;
+                }
+            }
+            if (!proxy.isAlive()) {
+                throw new IOException("Proxy exited with " + proxy.exitValue() + ":\n" + log.tail());
+            }
+            Thread.sleep(2);
+        }
+        throw new IOException("No request_cookie after " + options.timeoutSeconds + "s:\n" + log.tail());
+    }
+
+    private Path newWorkspace(String scenario) throws IOException {
+        Path workspace = options.workDir.resolve("ws").resolve(scenario + "-" + (workspaces++));
+        Files.createDirectories(workspace);
+        Files.write(workspace.resolve("MODULE.bazel"), new byte[0]);
+        return workspace.toRealPath();
+    }
+
+    /** A command_server.RunRequest: cookie, args, block_for_lock and client_description. */
+    static byte[] runRequest(String cookie, String... args) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        out.writeString(1, cookie);
+        for (String arg : args) {
+            out.writeByteArray(2, arg.getBytes(StandardCharsets.UTF_8));
+        }
+        out.writeBool(3, true);
+        out.writeString(4, "pid=" + ProcessHandle.current().pid() + " (ttfb benchmark)");
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static long micros(long nanos) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /** Reads the proxy's log and stamps when it started and when its session turned READY. */
+    private static class ProxyLog extends Thread {
+        private final BufferedReader reader;
+        private final Deque<String> tail = new ArrayDeque<>();
+        volatile long startedNanos;
+        volatile long readyNanos;
+
+        ProxyLog(InputStream in) {
+            this.reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (String line; (line = reader.readLine()) != null;) {
+                    long now = System.nanoTime();
+                    if (startedNanos == 0 && line.contains("Proxy Server Mode starting")) {
+                        startedNanos = now;
+                    } else if (readyNanos == 0 && line.contains("Remote Server READY")) {
+                        readyNanos = now;
+                    }
+                    synchronized (tail) {
+                        tail.add(line);
+                        if (tail.size() > 20) {
+                            tail.poll();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // The proxy exited.
+            }
+        }
+
+        String tail() {
+            synchronized (tail) {
+                return String.join("\n", tail);
+            }
+        }
+    }
+
+    static class Options {
+        String proxy;
+        String orchestrator = "localhost:50051";
+        String user = "ttfb";
+        Path workDir;
+        List<String> scenarios = Arrays.asList("cold", "warm", "restart");
+        int iterations = 20;
+        int warmup = 1;
+        String command = "build //...";
+        int timeoutSeconds = 120;
+        String csv;
+
+        static Options parse(String[] args) throws IOException {
+            Options options = new Options();
+            for (String arg : args) {
+                String[] kv = arg.split("=", 2);
+                if (kv.length != 2) {
+                    throw new IllegalArgumentException("Expected --flag=value, got " + arg);
+                }
+                switch (kv[0]) {
+                    case "--proxy":
+                        options.proxy = kv[1];
+                        break;
+                    case "--orchestrator":
+                        options.orchestrator = kv[1];
+                        break;
+                    case "--user":
+                        options.user = kv[1];
+                        break;
+                    case "--work-dir":
+                        options.workDir = Paths.get(kv[1]);
+                        break;
+                    case "--scenarios":
+                        options.scenarios = Arrays.asList(kv[1].split(","));
+                        break;
+                    case "--iterations":
+                        options.iterations = Integer.parseInt(kv[1]);
+                        break;
+                    case "--warmup":
+                        options.warmup = Integer.parseInt(kv[1]);
+                        break;
+                    case "--command":
+                        options.command = kv[1];
+                        break;
+                    case "--timeout-seconds":
+                        options.timeoutSeconds = Integer.parseInt(kv[1]);
+                        break;
+                    case "--csv":
+                        options.csv = kv[1];
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown flag " + kv[0]);
+                }
+            }
+            if (options.proxy == null) {
+                throw new IllegalArgumentException("--proxy is required");
+            }
+            if (options.workDir == null) {
+                options.workDir = Files.createTempDirectory("ttfb");
+            }
+            return options;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        System.out.println("Measuring time to first build through " + options.proxy + " against "
+                + options.orchestrator + " in " + options.workDir);
+        new TimeToFirstBuild(options).run();
+    }
+}
@@ -6,10 +6,13 @@ import (
 	"fmt"
 	"log"
 	"net"
+	"os"
+	"time"
 
 	"google.golang.org/grpc"
 	"google.golang.org/grpc/credentials/insecure"
 	"google.golang.org/grpc/metadata"
+	"google.golang.org/protobuf/encoding/protowire"
 	"google.golang.org/protobuf/types/known/emptypb"
 )
 
@@ -20,10 +23,14 @@ func main() {
 	mode := flag.String("mode", "", "server or client")
 	addr := flag.String("addr", "", "address to listen (server) or connect (client)")
 	targetAddr := flag.String("target", "", "target address for client")
+	startDelay := flag.Duration("start-delay", 0, "bazel-server: time to start, like a JVM's")
+	commandTime := flag.Duration("command-time", 0, "bazel-server: time between first output and exit code")
 	flag.Parse()
 
 	if *mode == "server" {
 		runServer(*addr)
+	} else if *mode == "bazel-server" {
+		runBazelServer(*addr, *startDelay, *commandTime)
 	} else if *mode == "client" {
 		runClient(*targetAddr)
 	} else {
@@ -55,6 +62,82 @@ func runServer(addr string) {
 	}
 }
 
+// runBazelServer stands in for a Bazel server behind the agent in
+// benchmarks. It answers CommandServer/Run like Bazel does: a first
+// RunResponse with output, then one with the exit code. After a shutdown
+// command it stops and removes its socket, so the next `bazel info` starts a
+// new one.
+func runBazelServer(addr string, startDelay, commandTime time.Duration) {
+	time.Sleep(startDelay)
+	os.Remove(addr)
+	lis, err := net.Listen("unix", addr)
+	if err != nil {
+		log.Fatalf("failed to listen: %v", err)
+	}
+
+	var s *grpc.Server
+	s = grpc.NewServer(grpc.UnknownServiceHandler(func(srv interface{}, stream grpc.ServerStream) error {
+		var request emptypb.Empty
+		if err := stream.RecvMsg(&request); err != nil {
+			return err
+		}
+		command := runCommand(request.ProtoReflect().GetUnknown())
+		if err := stream.SendMsg(stderrResponse("INFO: Running " + command + "\n")); err != nil {
+			return err
+		}
+		time.Sleep(commandTime)
+		if command == "shutdown" {
+			go s.GracefulStop()
+		}
+		return stream.SendMsg(finishedResponse())
+	}))
+
+	fmt.Printf("Bazel server listening on %s\n", addr)
+	if err := s.Serve(lis); err != nil {
+		log.Fatalf("failed to serve: %v", err)
+	}
+}
+
+// runCommand is the first arg (field 2) of a command_server.RunRequest.
+func runCommand(raw []byte) string {
+	for len(raw) > 0 {
+		num, typ, n := protowire.ConsumeTag(raw)
+		if n < 0 {
+			return ""
+		}
+		m := protowire.ConsumeFieldValue(num, typ, raw[n:])
+		if m < 0 {
+			return ""
+		}
+		if num == 2 && typ == protowire.BytesType {
+			arg, _ := protowire.ConsumeBytes(raw[n:])
+			return string(arg)
+		}
+		raw = raw[n+m:]
+	}
+	return ""
+}
+
+// Frames carry a command_server.RunResponse in an Empty's unknown fields,
+// like every frame the proxy and agent forward.
+func runResponse(raw []byte) *emptypb.Empty {
+	response := &emptypb.Empty{}
+	response.ProtoReflect().SetUnknown(raw)
+	return response
+}
+
+// stderrResponse sets RunResponse.standard_error (field 3).
+func stderrResponse(text string) *emptypb.Empty {
+	raw := protowire.AppendTag(nil, 3, protowire.BytesType)
+	return runResponse(protowire.AppendBytes(raw, []byte(text)))
+}
+
+// finishedResponse sets RunResponse.finished (field 4); exit_code stays 0.
+func finishedResponse() *emptypb.Empty {
+	raw := protowire.AppendTag(nil, 4, protowire.VarintType)
+	return runResponse(protowire.AppendVarint(raw, 1))
+}
+
 func runClient(target string) {
 	conn, err := grpc.Dial(target,
 		grpc.WithTransportCredentials(insecure.NewCredentials()),
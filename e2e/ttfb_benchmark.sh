@@ -0,0 +1,97 @@
+#!/bin/bash
+set -e
+
+# ttfb_benchmark.sh
+# Measures time to first build output (cold, warm and restart) through the
+# real proxy, orchestrator (local mode) and agent. A stub Bazel server stands
+# behind the agent, so only a plain Linux box is needed. Arguments are passed
+# to the driver (see TimeToFirstBuild.java), e.g.:
+#
+#   bazel run //e2e:ttfb_benchmark -- --iterations=50 --csv=/tmp/ttfb.csv
+#
+# RBS_BENCH_SERVER_START and RBS_BENCH_COMMAND_TIME (Go durations, default 0s)
+# model the Bazel server's startup and the build after its first output.
+
+# Runfiles layout under `bazel run`, else bazel-bin from the workspace root.
+function locate() {
+    if [ -f "$1" ]; then
+        readlink -f "$1"
+    elif [ -f "./bazel-bin/$1" ]; then
+        readlink -f "./bazel-bin/$1"
+    else
+        echo "Error: Could not locate $1" >&2
+        exit 1
+    fi
+}
+
+AGENT_BINARY=$(locate agent/agent_/agent)
+ORCHESTRATOR_BINARY=$(locate orchestrator/server)
+PROXY_BINARY=$(locate proxy/proxy_/proxy)
+VERIFIER_BINARY=$(locate e2e/test_tools/verifier_/verifier)
+CLIENT_BINARY=$(locate e2e/ttfb_client)
+if [ -d ../_main ] && [ -z "$JAVA_RUNFILES" ]; then
+    export JAVA_RUNFILES=$(readlink -f ..)
+fi
+export AGENT_BINARY VERIFIER_BINARY
+
+PORT="${RBS_BENCH_PORT:-50051}"
+WORK_DIR=$(mktemp -d)
+ORCHESTRATOR_PID=""
+function cleanup() {
+    if [ -n "$ORCHESTRATOR_PID" ]; then
+        # Agents are the orchestrator's children; stub Bazel servers run from WORK_DIR.
+        pkill -P "$ORCHESTRATOR_PID" 2>/dev/null || true
+        kill "$ORCHESTRATOR_PID" 2>/dev/null || true
+    fi
+    pkill -f "$WORK_DIR" 2>/dev/null || true
+    rm -rf "$WORK_DIR"
+}
+trap cleanup EXIT
+
+# The agent runs `bazel info output_base` in the workspace before forwarding
+# each command. This stub starts a Bazel server for the workspace if none is
+# running, like the real client does.
+mkdir -p "$WORK_DIR/bin"
+cat > "$WORK_DIR/bin/bazel" <<EOF
+#!/bin/bash
+while [[ "\$1" == -* ]]; do
+    shift
+done
+OUTPUT_BASE="\$PWD/.ttfb_output_base"
+SOCKET="\$OUTPUT_BASE/server/server.socket"
+if [ "\$1" != "info" ] || [ "\$2" != "output_base" ]; then
+    echo "Unsupported command \$@" >&2
+    exit 1
+fi
+if [ ! -S "\$SOCKET" ]; then
+    mkdir -p "\$OUTPUT_BASE/server"
+    nohup "$VERIFIER_BINARY" --mode bazel-server --addr "\$SOCKET" \\
+        --start-delay="\${RBS_BENCH_SERVER_START:-0s}" --command-time="\${RBS_BENCH_COMMAND_TIME:-0s}" \\
+        > "\$OUTPUT_BASE/server.log" 2>&1 &
+    for i in \$(seq 1 6000); do
+        [ -S "\$SOCKET" ] && break
+        sleep 0.01
+    done
+fi
+echo "\$OUTPUT_BASE"
+EOF
+chmod +x "$WORK_DIR/bin/bazel"
+export PATH="$WORK_DIR/bin:$PATH"
+
+# Resumption lets a new proxy re-attach to the workspace's live agent.
+# Agents of finished cold runs are reaped two minutes after their last proxy.
+"$ORCHESTRATOR_BINARY" --port="$PORT" --local-mode --resume-sessions \
+    --stale-threshold-seconds=120 --reap-interval-seconds=10 > "$WORK_DIR/orchestrator.log" 2>&1 &
+ORCHESTRATOR_PID=$!
+
+for i in $(seq 1 300); do
+    (exec 3<>"/dev/tcp/localhost/$PORT") 2>/dev/null && break
+    if ! kill -0 "$ORCHESTRATOR_PID" 2>/dev/null; then
+        echo "Orchestrator exited:"
+        cat "$WORK_DIR/orchestrator.log"
+        exit 1
+    fi
+    sleep 0.1
+done
+
+"$CLIENT_BINARY" --proxy="$PROXY_BINARY" --orchestrator="localhost:$PORT" --work-dir="$WORK_DIR" "$@"
@@ -2,6 +2,20 @@ CREATE TABLE BuildSessions (
     UserId STRING(MAX) NOT NULL,
     RepoHash STRING(MAX) NOT NULL, -- MD5 of the local path
     SessionId STRING(MAX),         -- ID to handle desktop bounces
+    ComputeSessionId STRING(MAX),  -- Session the pod was created for (differs for claimed pre-provisioned pods)
     PodIP STRING(MAX),
-    Status STRING(MAX)             -- PENDING, READY
+    Status STRING(MAX),            -- PENDING, READY
+    LastHeartbeat INT64,           -- Epoch millis of the last GetServer/Heartbeat
+    StartupOptionsHash STRING(64)  -- SHA-256 of the server's Bazel startup options, for session resumption
 ) PRIMARY KEY (UserId, RepoHash);
+
+CREATE TABLE SessionEvents (
+    UserId STRING(MAX) NOT NULL,
+    RepoHash STRING(MAX) NOT NULL,
+    AtMillis INT64 NOT NULL,       -- Epoch millis of the session start or end
+    EventId STRING(36) NOT NULL,   -- Random, so two events in the same millisecond do not collide
+    Kind STRING(8) NOT NULL,       -- START, END
+    SourcePath STRING(MAX),        -- How the session was started (START only), to pre-provision the next one alike
+    StartupOptions ARRAY<STRING(MAX)>,
+    Region STRING(MAX)
+) PRIMARY KEY (UserId, RepoHash, AtMillis, EventId);
@@ -0,0 +1,235 @@
+package com.example.rbs;
+
+import com.example.rbs.proto.ResourceUsage;
+import io.opentelemetry.api.metrics.Meter;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps the session servers running at once and decides who gets the next one.
+ *
+ * <p>
+ * Sessions beyond {@code maxSessions} wait in a queue instead of creating a pod
+ * that would sit in Pending. Slots go to the waiting user with the fewest
+ * running servers first, then in arrival order, so one user with many
+ * workspaces cannot starve everyone else. Each user's fair share is the
+ * capacity divided by the users running or waiting. When the pool is full, the
+ * longest-idle session of a user over their fair share is preempted for the
+ * head of the queue, once it has run no command for {@code preemptIdleAfter}.
+ * A user under their share therefore waits at most that long.
+ *
+ * <p>
+ * Admission is decided when a waiting session polls, and only for the head of
+ * the queue; waiting sessions that stopped polling are skipped. The state is in
+ * memory and per replica: after a restart, running sessions are counted again
+ * as they poll or heartbeat.
+ */
+public class AdmissionController {
+    public static class Settings {
+        /** Session servers allowed to run at once. */
+        public int maxSessions = 100;
+        /** A session must have run no command for this long before it can be preempted. */
+        public Duration preemptIdleAfter = Duration.ofMinutes(10);
+        /** A waiting session that has not polled for this long loses its turn until it does. */
+        public Duration pollTimeout = Duration.ofSeconds(10);
+    }
+
+    /** Outcome of a poll: admitted, or the queue position, plus a session to preempt first. */
+    public static final class Decision {
+        public final boolean admitted;
+        /** 1-based position in the queue; 0 once admitted. */
+        public final int position;
+        /** Running session the caller must delete before starting the admitted one; null if none. */
+        public final String preempt;
+
+        Decision(boolean admitted, int position, String preempt) {
+            this.admitted = admitted;
+            this.position = position;
+            this.preempt = preempt;
+        }
+    }
+
+    private static final class Running {
+        final String userId;
+        long idleSinceMillis = -1; // Unknown until the session's heartbeats carry usage.
+
+        Running(String userId) {
+            this.userId = userId;
+        }
+    }
+
+    private static final class Waiting {
+        final String userId;
+        final long enqueuedMillis;
+        long lastPollMillis;
+
+        Waiting(String userId, long enqueuedMillis) {
+            this.userId = userId;
+            this.enqueuedMillis = enqueuedMillis;
+            this.lastPollMillis = enqueuedMillis;
+        }
+    }
+
+    private final Clock clock;
+    private final Settings settings;
+    // Keyed by session ID.
+    private final Map<String, Running> running = new HashMap<>();
+    private final Map<String, Waiting> waiting = new LinkedHashMap<>();
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong preempted = new AtomicLong();
+
+    public AdmissionController(Clock clock, Settings settings) {
+        this.clock = clock;
+        this.settings = settings;
+    }
+
+    public void registerMetrics(Meter meter) {
+        meter.upDownCounterBuilder("rbs.admission.running").setDescription("Admitted session servers")
+                .buildWithCallback(m -> m.record(getRunningCount()));
+        meter.upDownCounterBuilder("rbs.admission.queued").setDescription("Sessions waiting for a server")
+                .buildWithCallback(m -> m.record(getQueuedCount()));
+        meter.counterBuilder("rbs.admission.admitted").setDescription("Sessions admitted from the queue")
+                .buildWithCallback(m -> m.record(admitted.get()));
+        meter.counterBuilder("rbs.admission.preempted").setDescription("Idle sessions preempted for waiting users")
+                .buildWithCallback(m -> m.record(preempted.get()));
+    }
+
+    /**
+     * Asks for a server for a new or waiting session. An admitted session
+     * counts as running until {@link #release}; otherwise it is queued.
+     */
+    public synchronized Decision poll(String userId, String sessionId) {
+        if (running.containsKey(sessionId)) {
+            return new Decision(true, 0, null);
+        }
+        long now = clock.millis();
+        Waiting self = waiting.get(sessionId);
+        if (self == null) {
+            self = new Waiting(userId, now);
+            waiting.put(sessionId, self);
+        }
+        self.lastPollMillis = now;
+
+        List<String> order = queueOrder(now);
+        int position = order.indexOf(sessionId) + 1;
+        if (position != 1) {
+            return new Decision(false, position, null);
+        }
+        String victim = null;
+        if (running.size() >= settings.maxSessions) {
+            victim = findPreemptible(userId, now);
+            if (victim == null) {
+                return new Decision(false, position, null);
+            }
+            running.remove(victim);
+            preempted.incrementAndGet();
+        }
+        waiting.remove(sessionId);
+        running.put(sessionId, new Running(userId));
+        admitted.incrementAndGet();
+        return new Decision(true, 0, victim);
+    }
+
+    /**
+     * Counts a session as running without queueing it, e.g. one that took over
+     * an existing server, or one this replica learns about after a restart.
+     */
+    public synchronized void track(String userId, String sessionId) {
+        waiting.remove(sessionId);
+        running.computeIfAbsent(sessionId, id -> new Running(userId));
+    }
+
+    /** Frees the session's slot, or its place in the queue. */
+    public synchronized void release(String sessionId) {
+        running.remove(sessionId);
+        waiting.remove(sessionId);
+    }
+
+    public synchronized boolean isQueued(String sessionId) {
+        return waiting.containsKey(sessionId);
+    }
+
+    /** Records how long a running session has been idle, from its heartbeat. */
+    public synchronized void onUsage(String sessionId, ResourceUsage usage) {
+        Running session = running.get(sessionId);
+        if (session != null) {
+            session.idleSinceMillis = usage.getActiveCommand().isEmpty()
+                    ? clock.millis() - usage.getIdleMillis()
+                    : -1;
+        }
+    }
+
+    synchronized int getRunningCount() {
+        return running.size();
+    }
+
+    synchronized int getQueuedCount() {
+        return waiting.size();
+    }
+
+    /**
+     * Waiting sessions that are still polling, by their user's running servers
+     * and then by arrival.
+     */
+    private List<String> queueOrder(long now) {
+        Map<String, Integer> runningByUser = runningByUser();
+        List<String> order = new ArrayList<>();
+        for (Map.Entry<String, Waiting> entry : waiting.entrySet()) {
+            if (now - entry.getValue().lastPollMillis <= settings.pollTimeout.toMillis()) {
+                order.add(entry.getKey());
+            }
+        }
+        order.sort(Comparator
+                .comparingInt((String id) -> runningByUser.getOrDefault(waiting.get(id).userId, 0))
+                .thenComparingLong(id -> waiting.get(id).enqueuedMillis));
+        return order;
+    }
+
+    /**
+     * The longest-idle session of a user over their fair share, if idle for
+     * long enough. Only a user under their own share may preempt.
+     */
+    private String findPreemptible(String userId, long now) {
+        Map<String, Integer> runningByUser = runningByUser();
+        Set<String> users = new HashSet<>(runningByUser.keySet());
+        for (Waiting w : waiting.values()) {
+            users.add(w.userId);
+        }
+        int fairShare = Math.max(1, settings.maxSessions / users.size());
+        if (runningByUser.getOrDefault(userId, 0) >= fairShare) {
+            return null;
+        }
+        String victim = null;
+        long oldestIdleSince = Long.MAX_VALUE;
+        for (Map.Entry<String, Running> entry : running.entrySet()) {
+            Running session = entry.getValue();
+            if (runningByUser.get(session.userId) <= fairShare || session.idleSinceMillis < 0
+                    || now - session.idleSinceMillis < settings.preemptIdleAfter.toMillis()) {
+                continue;
+            }
+            if (session.idleSinceMillis < oldestIdleSince) {
+                oldestIdleSince = session.idleSinceMillis;
+                victim = entry.getKey();
+            }
+        }
+        return victim;
+    }
+
+    private Map<String, Integer> runningByUser() {
+        Map<String, Integer> counts = new HashMap<>();
+        for (Running session : running.values()) {
+            counts.merge(session.userId, 1, Integer::sum);
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,189 @@
+package com.example.rbs;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Catalog of agent images keyed by repository and Bazel version.
+ *
+ * <p>
+ * The catalog is read from a plain text file with one entry per line:
+ *
+ * <pre>
+ * image   &lt;bazelVersion&gt; &lt;registry/name&gt;@sha256:&lt;digest&gt;
+ * repo    &lt;repoHash&gt; &lt;bazelVersion&gt;
+ * default &lt;bazelVersion&gt;
+ * warmup  &lt;repoHash|*&gt; &lt;bazel command and arguments&gt;
+ * </pre>
+ *
+ * A repo is resolved to its Bazel version (or the default version), and the
+ * version to its image. Catalog images must be pinned by digest so that every
+ * node runs exactly the bytes the pre-pull DaemonSet cached.
+ *
+ * <p>
+ * A {@code warmup} entry (e.g. {@code warmup * build --nobuild //...}) is run
+ * by the agent after starting the Bazel server and before it reports ready, so
+ * the first user command finds a warm JVM and a loaded workspace. {@code *}
+ * applies to repos without their own entry.
+ */
+public class AgentImageCatalog {
+    private static final Logger logger = Logger.getLogger(AgentImageCatalog.class.getName());
+
+    /** Image used when no catalog is configured (kind/minikube side-loaded). */
+    static final AgentImage LOCAL_IMAGE = new AgentImage("localhost/agent:latest", "Never", null);
+
+    private final Map<String, AgentImage> imagesByVersion;
+    private final Map<String, String> versionsByRepo;
+    private final String defaultVersion;
+    private final Map<String, String> warmupByRepo;
+
+    AgentImageCatalog(Map<String, AgentImage> imagesByVersion, Map<String, String> versionsByRepo,
+            String defaultVersion, Map<String, String> warmupByRepo) {
+        this.imagesByVersion = imagesByVersion;
+        this.versionsByRepo = versionsByRepo;
+        this.defaultVersion = defaultVersion;
+        this.warmupByRepo = warmupByRepo;
+    }
+
+    /** Returns an empty catalog that always resolves to the side-loaded local image. */
+    public static AgentImageCatalog localDefault() {
+        return new AgentImageCatalog(Collections.emptyMap(), Collections.emptyMap(), null, Collections.emptyMap());
+    }
+
+    public static AgentImageCatalog load(Path path) throws IOException {
+        return parse(Files.readAllLines(path, StandardCharsets.UTF_8));
+    }
+
+    static AgentImageCatalog parse(List<String> lines) {
+        Map<String, AgentImage> images = new LinkedHashMap<>();
+        Map<String, String> repos = new HashMap<>();
+        Map<String, String> warmups = new HashMap<>();
+        String defaultVersion = null;
+
+        int lineNumber = 0;
+        for (String raw : lines) {
+            lineNumber++;
+            String line = raw.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            switch (parts[0]) {
+                case "image":
+                    requireArgs(parts, 3, lineNumber);
+                    if (!isDigestPinned(parts[2])) {
+                        throw new IllegalArgumentException("Line " + lineNumber + ": image " + parts[2]
+                                + " is not pinned by digest (expected <name>@sha256:<digest>)");
+                    }
+                    images.put(parts[1], new AgentImage(parts[2], "IfNotPresent", parts[1]));
+                    break;
+                case "repo":
+                    requireArgs(parts, 3, lineNumber);
+                    repos.put(parts[1], parts[2]);
+                    break;
+                case "default":
+                    requireArgs(parts, 2, lineNumber);
+                    defaultVersion = parts[1];
+                    break;
+                case "warmup":
+                    if (parts.length < 3) {
+                        throw new IllegalArgumentException("Line " + lineNumber
+                                + ": expected a repo (or *) and a Bazel command for 'warmup'");
+                    }
+                    warmups.put(parts[1], line.split("\\s+", 3)[2]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Line " + lineNumber + ": unknown entry '" + parts[0] + "'");
+            }
+        }
+
+        for (Map.Entry<String, String> repo : repos.entrySet()) {
+            if (!images.containsKey(repo.getValue())) {
+                throw new IllegalArgumentException("Repo " + repo.getKey() + " references Bazel version "
+                        + repo.getValue() + " which has no image");
+            }
+        }
+        if (defaultVersion != null && !images.containsKey(defaultVersion)) {
+            throw new IllegalArgumentException("Default Bazel version " + defaultVersion + " has no image");
+        }
+
+        logger.info("Loaded image catalog: " + images.size() + " images, " + repos.size() + " repo pins, "
+                + warmups.size() + " warm-up commands");
+        return new AgentImageCatalog(images, repos, defaultVersion, warmups);
+    }
+
+    /**
+     * Resolves the agent image for a repository: the repo's pinned Bazel version,
+     * else the catalog default, else the local side-loaded image.
+     */
+    public AgentImage resolve(String repoHash) {
+        String version = versionsByRepo.getOrDefault(repoHash, defaultVersion);
+        if (version != null) {
+            AgentImage image = imagesByVersion.get(version);
+            if (image != null) {
+                return image;
+            }
+        }
+        return LOCAL_IMAGE;
+    }
+
+    /**
+     * Returns the Bazel command (without the {@code bazel} binary or startup
+     * options) the agent runs to warm up a session for the repo, or null for none.
+     */
+    public String warmupCommand(String repoHash) {
+        return warmupByRepo.getOrDefault(repoHash, warmupByRepo.get("*"));
+    }
+
+    /** All digest-pinned images in the catalog, i.e. the set to pre-pull on build nodes. */
+    public Collection<AgentImage> getImages() {
+        return new ArrayList<>(imagesByVersion.values());
+    }
+
+    static boolean isDigestPinned(String reference) {
+        int at = reference.indexOf("@sha256:");
+        return at > 0 && reference.length() - (at + "@sha256:".length()) == 64;
+    }
+
+    private static void requireArgs(String[] parts, int count, int lineNumber) {
+        if (parts.length != count) {
+            throw new IllegalArgumentException("Line " + lineNumber + ": expected " + (count - 1)
+                    + " arguments for '" + parts[0] + "'");
+        }
+    }
+
+    public static class AgentImage {
+        private final String reference;
+        private final String pullPolicy;
+        private final String bazelVersion;
+
+        public AgentImage(String reference, String pullPolicy, String bazelVersion) {
+            this.reference = reference;
+            this.pullPolicy = pullPolicy;
+            this.bazelVersion = bazelVersion;
+        }
+
+        public String getReference() {
+            return reference;
+        }
+
+        public String getPullPolicy() {
+            return pullPolicy;
+        }
+
+        /** The Bazel version this image was built for, or null for the local image. */
+        public String getBazelVersion() {
+            return bazelVersion;
+        }
+    }
+}
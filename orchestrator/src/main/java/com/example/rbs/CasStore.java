@@ -0,0 +1,272 @@
+package com.example.rbs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * Size-bounded, disk-backed blob store with least-recently-used eviction.
+ *
+ * <p>
+ * Each blob is one file named by its key, spread over 256 subdirectories by
+ * the key's first two characters. The index of keys, sizes and recency lives
+ * in memory and is rebuilt on startup from the files, ordered by modification
+ * time (which {@link #get} bumps, at most once a minute per blob, so recency
+ * survives restarts). Blobs are written to a temporary file and renamed into
+ * place, so a reader never sees a partial blob. Blobs are read through open
+ * channels or read-only memory maps, both of which stay valid if the blob is
+ * evicted meanwhile. Blobs of 2 GiB or more only through channels, as a
+ * single map cannot hold them.
+ *
+ * <p>
+ * Keys must be file-name safe; the remote cache uses {@code <sha256>-<size>},
+ * and the size is checked against the file when the index is rebuilt.
+ */
+class CasStore {
+    private static final Logger logger = Logger.getLogger(CasStore.class.getName());
+    private static final long TOUCH_INTERVAL_MILLIS = 60_000;
+
+    private final Path dir;
+    private final Path tmpDir;
+    private final long maxBytes;
+    // Access order: the first entry is the least recently used.
+    private final LinkedHashMap<String, Entry> index = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes; // guarded by this
+    private long evictions; // guarded by this
+
+    CasStore(Path dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.tmpDir = dir.resolve("tmp");
+        this.maxBytes = maxBytes;
+        Files.createDirectories(tmpDir);
+        load();
+    }
+
+    /** Key for a blob with this SHA-256 hash and size. */
+    static String key(String hash, long sizeBytes) {
+        return hash + "-" + sizeBytes;
+    }
+
+    /** True if the blob is present; counts as a use, as a client checking for it is about to rely on it. */
+    synchronized boolean contains(String key) {
+        return index.get(key) != null;
+    }
+
+    /**
+     * Returns the blob, or null if absent; counts as a use for eviction. Blobs
+     * too large for one buffer are refused; read those with {@link #open}.
+     */
+    ByteBuffer get(String key) throws IOException {
+        try (FileChannel channel = open(key)) {
+            if (channel == null) {
+                return null;
+            }
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Blob " + key + " is too large to map (" + channel.size() + " bytes)");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /** Opens the blob for reading, or returns null if absent; counts as a use for eviction. */
+    FileChannel open(String key) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            entry = index.get(key);
+        }
+        if (entry == null) {
+            return null;
+        }
+        Path path = path(key);
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            long now = System.currentTimeMillis();
+            if (now - entry.touchedMillis > TOUCH_INTERVAL_MILLIS) {
+                entry.touchedMillis = now;
+                Files.setLastModifiedTime(path, FileTime.fromMillis(now));
+            }
+            return channel;
+        } catch (NoSuchFileException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            // Evicted between the index lookup and the open, or lost to a racing eviction.
+            synchronized (this) {
+                if (index.get(key) == entry) {
+                    index.remove(key);
+                    totalBytes -= entry.sizeBytes;
+                }
+            }
+            return null;
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            throw e;
+        }
+    }
+
+    void put(String key, byte[] data) throws IOException {
+        Path tmp = newTempFile();
+        try {
+            Files.write(tmp, data);
+            commit(tmp, key);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /** A file in the store's directory for streaming a blob into before {@link #commit}. */
+    Path newTempFile() throws IOException {
+        return Files.createFile(tmpDir.resolve(UUID.randomUUID().toString()));
+    }
+
+    /** Moves a fully written temporary file into the store under {@code key}. */
+    void commit(Path tmp, String key) throws IOException {
+        long size = Files.size(tmp);
+        Path target = path(key);
+        Files.createDirectories(target.getParent());
+        try {
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        List<String> evicted;
+        synchronized (this) {
+            Entry old = index.put(key, new Entry(size, System.currentTimeMillis()));
+            totalBytes += size - (old != null ? old.sizeBytes : 0);
+            evicted = evictOverflow();
+        }
+        delete(evicted);
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    synchronized int getBlobCount() {
+        return index.size();
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    // Caller holds the lock; files are deleted after it is released.
+    private List<String> evictOverflow() {
+        List<String> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, Entry>> it = index.entrySet().iterator();
+        // Never evict the entry just written, even if it alone exceeds the limit.
+        while (totalBytes > maxBytes && index.size() > 1 && it.hasNext()) {
+            Map.Entry<String, Entry> lru = it.next();
+            it.remove();
+            totalBytes -= lru.getValue().sizeBytes;
+            evictions++;
+            evicted.add(lru.getKey());
+        }
+        return evicted;
+    }
+
+    private void delete(List<String> keys) {
+        for (String key : keys) {
+            try {
+                Files.deleteIfExists(path(key));
+            } catch (IOException e) {
+                logger.warning("Failed to delete evicted blob " + key + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private Path path(String key) {
+        return dir.resolve(key.length() >= 2 ? key.substring(0, 2) : "_").resolve(key);
+    }
+
+    private void load() throws IOException {
+        // Left behind by writes interrupted by a crash.
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(tmpDir)) {
+            for (Path tmp : leftovers) {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        List<Found> found = new ArrayList<>();
+        try (DirectoryStream<Path> shards = Files.newDirectoryStream(dir, Files::isDirectory)) {
+            for (Path shard : shards) {
+                if (shard.equals(tmpDir)) {
+                    continue;
+                }
+                try (DirectoryStream<Path> blobs = Files.newDirectoryStream(shard)) {
+                    for (Path blob : blobs) {
+                        String key = blob.getFileName().toString();
+                        long size = Files.size(blob);
+                        if (!sizeMatches(key, size)) {
+                            logger.warning("Dropping blob with wrong size: " + blob);
+                            Files.deleteIfExists(blob);
+                            continue;
+                        }
+                        found.add(new Found(key, new Entry(size, Files.getLastModifiedTime(blob).toMillis())));
+                    }
+                }
+            }
+        }
+        found.sort((a, b) -> Long.compare(a.entry.touchedMillis, b.entry.touchedMillis));
+        List<String> evicted;
+        synchronized (this) {
+            for (Found blob : found) {
+                index.put(blob.key, blob.entry);
+                totalBytes += blob.entry.sizeBytes;
+            }
+            evicted = evictOverflow();
+        }
+        delete(evicted);
+        logger.info("Loaded " + index.size() + " blobs (" + totalBytes + " bytes) from " + dir);
+    }
+
+    /** Keys without a {@code -<size>} suffix (e.g. action cache keys) are not checked. */
+    private static boolean sizeMatches(String key, long size) {
+        int dash = key.lastIndexOf('-');
+        if (dash < 0) {
+            return true;
+        }
+        try {
+            return Long.parseLong(key.substring(dash + 1)) == size;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    private static class Entry {
+        final long sizeBytes;
+        volatile long touchedMillis;
+
+        Entry(long sizeBytes, long touchedMillis) {
+            this.sizeBytes = sizeBytes;
+            this.touchedMillis = touchedMillis;
+        }
+    }
+
+    private static class Found {
+        final String key;
+        final Entry entry;
+
+        Found(String key, Entry entry) {
+            this.key = key;
+            this.entry = entry;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package com.example.rbs;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.Meter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Puts each local agent in its own cgroup v2 subtree, so one runaway Bazel
+ * server cannot starve the other sessions on the host, and reads back what
+ * each session used.
+ *
+ * <p>
+ * The root must be a cgroup the orchestrator may write and that holds no
+ * processes itself, e.g. {@code /sys/fs/cgroup/rbs} created by root and
+ * chowned to the orchestrator's user, or a child of a systemd unit's cgroup
+ * with {@code Delegate=yes}. {@link #open} enables the cpu, memory and io
+ * controllers for its children. Each agent is started through a shell that
+ * moves itself into the agent's cgroup before exec'ing the agent (see
+ * {@link #wrap}). The Bazel server and every other descendant therefore start
+ * inside the cgroup, and are limited and counted with it, even though the
+ * Bazel server detaches from the agent's process tree. The cgroup gets
+ * {@code cpu.weight} and {@code io.weight} (relative shares under contention),
+ * and optionally {@code cpu.max}, {@code memory.high} (reclaim and throttle
+ * above it), {@code memory.max} (OOM-kill above it) and {@code io.max} device
+ * limits. Deleting a container kills everything left in its cgroup, which
+ * {@code Process.destroyForcibly} on the agent alone would not, and logs its
+ * totals.
+ */
+public class CgroupManager {
+    private static final Logger logger = Logger.getLogger(CgroupManager.class.getName());
+    private static final AttributeKey<String> CONTAINER = AttributeKey.stringKey("rbs.local.container");
+    private static final AttributeKey<String> DIRECTION = AttributeKey.stringKey("rbs.local.direction");
+    private static final List<String> CONTROLLERS = Arrays.asList("cpu", "memory", "io");
+    private static final long CPU_PERIOD_MICROS = 100_000;
+
+    /** Limits applied to every agent's cgroup. */
+    public static class Settings {
+        /** Share of CPU under contention, 1 to 10000; 100 is the kernel default. */
+        public int cpuWeight = 100;
+        /** Hard CPU cap; 0 is none. */
+        public long cpuMaxMillicores = 0;
+        /** Memory above which the cgroup is reclaimed and throttled; 0 is none. */
+        public long memoryHighBytes = 0;
+        /** Memory above which the cgroup is OOM-killed; 0 is none. */
+        public long memoryMaxBytes = 0;
+        /** Share of disk bandwidth under contention, 1 to 10000; 100 is the kernel default. */
+        public int ioWeight = 100;
+        /** {@code io.max} lines, e.g. {@code "259:0 rbps=209715200 wbps=104857600"}. */
+        public List<String> ioMax = new ArrayList<>();
+    }
+
+    /** What a cgroup has used, from its interface files. */
+    public static class Usage {
+        public final long memoryBytes;
+        /** Highest memory use; 0 on kernels without {@code memory.peak} (before 5.19). */
+        public final long memoryPeakBytes;
+        public final long cpuMicros;
+        public final long cpuThrottledMicros;
+        public final long ioReadBytes;
+        public final long ioWriteBytes;
+        public final long oomKills;
+
+        Usage(long memoryBytes, long memoryPeakBytes, long cpuMicros, long cpuThrottledMicros, long ioReadBytes,
+                long ioWriteBytes, long oomKills) {
+            this.memoryBytes = memoryBytes;
+            this.memoryPeakBytes = memoryPeakBytes;
+            this.cpuMicros = cpuMicros;
+            this.cpuThrottledMicros = cpuThrottledMicros;
+            this.ioReadBytes = ioReadBytes;
+            this.ioWriteBytes = ioWriteBytes;
+            this.oomKills = oomKills;
+        }
+    }
+
+    private final Path root;
+    private final Settings settings;
+    private final Set<String> enabled;
+    // Cgroups of running containers, by container ID.
+    private final Map<String, Path> cgroups = new ConcurrentHashMap<>();
+
+    CgroupManager(Path root, Settings settings, Set<String> enabled) {
+        this.root = root;
+        this.settings = settings;
+        this.enabled = enabled;
+    }
+
+    /**
+     * Enables the controllers the settings need under {@code root}; fails if
+     * a limit is configured whose controller the root was not delegated.
+     */
+    public static CgroupManager open(Path root, Settings settings) throws IOException {
+        Set<String> available = new HashSet<>(Arrays.asList(read(root.resolve("cgroup.controllers")).split("\\s+")));
+        Set<String> enabled = new HashSet<>();
+        for (String controller : CONTROLLERS) {
+            if (available.contains(controller)) {
+                write(root.resolve("cgroup.subtree_control"), "+" + controller);
+                enabled.add(controller);
+            }
+        }
+        requireController(enabled, "cpu", settings.cpuWeight != 100 || settings.cpuMaxMillicores > 0);
+        requireController(enabled, "memory", true);
+        requireController(enabled, "io", settings.ioWeight != 100 || !settings.ioMax.isEmpty());
+        if (!enabled.contains("io")) {
+            logger.warning("No io controller under " + root + "; disk usage is not isolated or counted");
+        }
+        return new CgroupManager(root, settings, enabled);
+    }
+
+    /** Creates the container's cgroup with the configured limits. */
+    Path create(String containerId) throws IOException {
+        Path cgroup = root.resolve(containerId.replaceAll("[^A-Za-z0-9._-]", "_"));
+        if (Files.isDirectory(cgroup)) {
+            kill(cgroup); // Left over from an earlier container with the same ID.
+        } else {
+            Files.createDirectory(cgroup);
+        }
+        cgroups.put(containerId, cgroup);
+        try {
+            configure(cgroup);
+        } catch (IOException | RuntimeException e) {
+            delete(containerId);
+            throw e;
+        }
+        return cgroup;
+    }
+
+    private void configure(Path cgroup) throws IOException {
+        if (enabled.contains("cpu")) {
+            write(cgroup.resolve("cpu.weight"), Integer.toString(settings.cpuWeight));
+            write(cgroup.resolve("cpu.max"), settings.cpuMaxMillicores > 0
+                    ? (settings.cpuMaxMillicores * CPU_PERIOD_MICROS / 1000) + " " + CPU_PERIOD_MICROS
+                    : "max " + CPU_PERIOD_MICROS);
+        }
+        write(cgroup.resolve("memory.high"), limit(settings.memoryHighBytes));
+        write(cgroup.resolve("memory.max"), limit(settings.memoryMaxBytes));
+        if (enabled.contains("io")) {
+            write(cgroup.resolve("io.weight"), "default " + settings.ioWeight);
+            // The kernel takes one device per write.
+            for (String line : settings.ioMax) {
+                write(cgroup.resolve("io.max"), line);
+            }
+        }
+    }
+
+    /** Tracks the cgroup an earlier orchestrator process created for the container, if it is still there. */
+    void adopt(String containerId) {
+        Path cgroup = root.resolve(containerId.replaceAll("[^A-Za-z0-9._-]", "_"));
+        if (Files.isDirectory(cgroup)) {
+            cgroups.put(containerId, cgroup);
+        }
+    }
+
+    /** A command that joins the cgroup and then execs {@code command}, keeping its PID. */
+    static List<String> wrap(Path cgroup, List<String> command) {
+        List<String> wrapped = new ArrayList<>(Arrays.asList("/bin/sh", "-c",
+                "echo $$ > \"$1\" && shift && exec \"$@\"", "rbs-cgroup", cgroup.resolve("cgroup.procs").toString()));
+        wrapped.addAll(command);
+        return wrapped;
+    }
+
+    /** The container's usage so far, or null if it has no cgroup. */
+    Usage usage(String containerId) {
+        Path cgroup = cgroups.get(containerId);
+        return cgroup != null ? readUsage(cgroup) : null;
+    }
+
+    /** Kills what is left in the container's cgroup, logs its totals and removes it. */
+    void delete(String containerId) {
+        Path cgroup = cgroups.remove(containerId);
+        if (cgroup == null) {
+            return;
+        }
+        Usage usage = readUsage(cgroup);
+        if (usage != null) {
+            logger.info(String.format("Container %s used %.1f CPU-s (%.1f s throttled), peak %d MiB, read %d MiB,"
+                    + " wrote %d MiB, OOM kills %d", containerId, usage.cpuMicros / 1e6,
+                    usage.cpuThrottledMicros / 1e6, Math.max(usage.memoryPeakBytes, usage.memoryBytes) >> 20,
+                    usage.ioReadBytes >> 20, usage.ioWriteBytes >> 20, usage.oomKills));
+        }
+        try {
+            kill(cgroup);
+            // rmdir succeeds once the cgroup is empty, interface files and all.
+            for (int attempt = 0;; attempt++) {
+                try {
+                    Files.delete(cgroup);
+                    return;
+                } catch (IOException e) {
+                    if (attempt >= 20) {
+                        throw e;
+                    }
+                    Thread.sleep(50);
+                }
+            }
+        } catch (IOException e) {
+            logger.warning("Failed to remove cgroup " + cgroup + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void registerMetrics(Meter meter) {
+        meter.gaugeBuilder("rbs.local.memory").setDescription("Memory used by each local agent's cgroup")
+                .setUnit("By").ofLongs().buildWithCallback(m -> forEachUsage((attributes, usage) ->
+                        m.record(usage.memoryBytes, attributes)));
+        meter.counterBuilder("rbs.local.cpu_time").setDescription("CPU time used by each local agent's cgroup")
+                .setUnit("s").ofDoubles().buildWithCallback(m -> forEachUsage((attributes, usage) ->
+                        m.record(usage.cpuMicros / 1e6, attributes)));
+        meter.counterBuilder("rbs.local.cpu_throttled_time")
+                .setDescription("Time each local agent's cgroup was held back by cpu.max").setUnit("s").ofDoubles()
+                .buildWithCallback(m -> forEachUsage((attributes, usage) ->
+                        m.record(usage.cpuThrottledMicros / 1e6, attributes)));
+        meter.counterBuilder("rbs.local.io").setDescription("Disk bytes read and written by each local agent's cgroup")
+                .setUnit("By").buildWithCallback(m -> forEachUsage((attributes, usage) -> {
+                    m.record(usage.ioReadBytes, attributes.toBuilder().put(DIRECTION, "read").build());
+                    m.record(usage.ioWriteBytes, attributes.toBuilder().put(DIRECTION, "write").build());
+                }));
+        meter.counterBuilder("rbs.local.oom_kills").setDescription("OOM kills in each local agent's cgroup")
+                .buildWithCallback(m -> forEachUsage((attributes, usage) -> m.record(usage.oomKills, attributes)));
+    }
+
+    private interface UsageConsumer {
+        void accept(Attributes attributes, Usage usage);
+    }
+
+    private void forEachUsage(UsageConsumer consumer) {
+        for (Map.Entry<String, Path> entry : cgroups.entrySet()) {
+            Usage usage = readUsage(entry.getValue());
+            if (usage != null) {
+                consumer.accept(Attributes.of(CONTAINER, entry.getKey()), usage);
+            }
+        }
+    }
+
+    private Usage readUsage(Path cgroup) {
+        try {
+            Map<String, Long> cpu = readKeyed(cgroup.resolve("cpu.stat"));
+            Map<String, Long> events = readKeyed(cgroup.resolve("memory.events"));
+            long ioRead = 0;
+            long ioWrite = 0;
+            if (enabled.contains("io")) {
+                // One line per device: "259:0 rbytes=... wbytes=... rios=... wios=...".
+                for (String line : read(cgroup.resolve("io.stat")).split("\n")) {
+                    for (String field : line.trim().split("\\s+")) {
+                        if (field.startsWith("rbytes=")) {
+                            ioRead += Long.parseLong(field.substring("rbytes=".length()));
+                        } else if (field.startsWith("wbytes=")) {
+                            ioWrite += Long.parseLong(field.substring("wbytes=".length()));
+                        }
+                    }
+                }
+            }
+            long peak = 0;
+            Path peakFile = cgroup.resolve("memory.peak");
+            if (Files.exists(peakFile)) {
+                peak = Long.parseLong(read(peakFile));
+            }
+            return new Usage(Long.parseLong(read(cgroup.resolve("memory.current"))), peak,
+                    cpu.getOrDefault("usage_usec", 0L), cpu.getOrDefault("throttled_usec", 0L), ioRead, ioWrite,
+                    events.getOrDefault("oom_kill", 0L));
+        } catch (NoSuchFileException e) {
+            return null; // Removed meanwhile.
+        } catch (IOException | NumberFormatException e) {
+            logger.warning("Failed to read usage of " + cgroup + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** Kills every process in the cgroup, with cgroup.kill where the kernel has it (5.14+). */
+    private static void kill(Path cgroup) throws IOException {
+        Path killFile = cgroup.resolve("cgroup.kill");
+        if (Files.exists(killFile)) {
+            write(killFile, "1");
+            return;
+        }
+        for (String pid : read(cgroup.resolve("cgroup.procs")).split("\\s+")) {
+            if (!pid.isEmpty()) {
+                ProcessHandle.of(Long.parseLong(pid)).ifPresent(ProcessHandle::destroyForcibly);
+            }
+        }
+    }
+
+    private static void requireController(Set<String> enabled, String controller, boolean needed) {
+        if (needed && !enabled.contains(controller)) {
+            throw new IllegalStateException("The " + controller + " controller is not delegated to the cgroup root");
+        }
+    }
+
+    private static String limit(long bytes) {
+        return bytes > 0 ? Long.toString(bytes) : "max";
+    }
+
+    private static Map<String, Long> readKeyed(Path file) throws IOException {
+        Map<String, Long> values = new HashMap<>();
+        for (String line : read(file).split("\n")) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length == 2) {
+                values.put(fields[0], Long.parseLong(fields[1]));
+            }
+        }
+        return values;
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+    }
+
+    private static void write(Path file, String value) throws IOException {
+        // Interface files take one value per write.
+        Files.write(file, value.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -4,6 +4,11 @@ package com.example.rbs;
  * Interface for managing compute resources (containers/pods/processes).
  */
 public interface ComputeService {
+    /** userId under which execution workers are created, polled and deleted. */
+    String WORKER_USER = "rbs-worker";
+    /** userId under which golden builds (see {@link GoldenSnapshots}) are created, polled and deleted. */
+    String GOLDEN_USER = "rbs-golden";
+
     /**
      * Creates a compute container for a build session.
      * 
@@ -19,6 +24,62 @@ public interface ComputeService {
             java.util.List<String> startupOptions,
             String region);
 
+    /**
+     * Creates an execution worker: an agent that runs single actions for the
+     * {@link ExecutionScheduler} instead of a Bazel server. It is polled and
+     * deleted like a session container, with userId {@link #WORKER_USER}.
+     *
+     * @param pool     The worker pool, used as the repository hash.
+     * @param workerId The unique worker ID, used as the session ID.
+     * @return The name/ID of the created container.
+     */
+    String createWorker(String pool, String workerId);
+
+    /**
+     * Creates a golden build: a container like a session's whose Bazel output
+     * base lives on a volume that can be snapshotted. It runs {@code command}
+     * as its warm-up, then stops its Bazel server, and reports READY once
+     * done. It is polled and deleted like a session container, with userId
+     * {@link #GOLDEN_USER}.
+     *
+     * @param repoHash       The repository hash.
+     * @param buildId        The unique build ID, used as the session ID.
+     * @param sourcePath     The source path.
+     * @param startupOptions The Bazel startup options.
+     * @param command        The warm build, e.g. {@code build //...}.
+     * @return The name/ID of the created container.
+     */
+    String createGoldenBuild(String repoHash, String buildId, String sourcePath,
+            java.util.List<String> startupOptions, String command);
+
+    /**
+     * Starts a snapshot of a finished golden build's output base. It outlives
+     * the build's container.
+     *
+     * @param repoHash   The repository hash.
+     * @param buildId    The golden build's ID.
+     * @param snapshotId The unique snapshot ID.
+     */
+    void snapshotOutputBase(String repoHash, String buildId, String snapshotId);
+
+    /**
+     * Whether a snapshot can be cloned yet.
+     *
+     * @return True once ready, false while being taken.
+     * @throws IllegalStateException if the snapshot failed or is gone.
+     */
+    boolean isSnapshotReady(String repoHash, String snapshotId);
+
+    /**
+     * Starts every later session container of the repo with a copy-on-write
+     * clone of the snapshot as its output base, or with an empty one if
+     * {@code snapshotId} is null. Containers already running keep theirs.
+     */
+    void useSnapshot(String repoHash, String snapshotId);
+
+    /** Deletes a snapshot; clones already made from it are not affected. */
+    void deleteSnapshot(String repoHash, String snapshotId);
+
     /**
      * Deletes a compute container.
      * 
@@ -39,6 +100,36 @@ public interface ComputeService {
      */
     ContainerStatus getContainerStatus(String userId, String repoHash, String sessionId);
 
+    /**
+     * Reports a container's resource usage, sampled by its agent and carried
+     * by the session's heartbeat. Implementations that can resize containers
+     * in place use it to do so; the default ignores it.
+     *
+     * @param userId    The user ID.
+     * @param repoHash  The repository hash.
+     * @param sessionId The unique session ID.
+     * @param usage     The usage sample.
+     */
+    default void reportUsage(String userId, String repoHash, String sessionId,
+            com.example.rbs.proto.ResourceUsage usage) {
+    }
+
+    /**
+     * Calls {@code listener} whenever a session container's status or address
+     * changes, e.g. when its pod is rescheduled. Implementations that cannot
+     * watch their containers never call it; callers then only learn of
+     * changes through {@link #getContainerStatus}.
+     *
+     * @param listener Called with the session ID the container was created
+     *                 under and its new status, or null once it is gone.
+     */
+    default void watchContainers(ContainerListener listener) {
+    }
+
+    interface ContainerListener {
+        void onContainerChanged(String sessionId, ContainerStatus status);
+    }
+
     class ContainerStatus {
         private final String status; // e.g. "READY", "PENDING"
         private final String address;
@@ -0,0 +1,62 @@
+package com.example.rbs;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Immutable consistent-hash ring mapping keys (session IDs) to members
+ * (replica IDs). Each member is placed at many virtual points so load is even,
+ * and adding or removing a member only moves the keys adjacent to its points.
+ */
+public class ConsistentHashRing {
+    static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final SortedSet<String> members;
+
+    public ConsistentHashRing(Collection<String> members) {
+        this(members, DEFAULT_VIRTUAL_NODES);
+    }
+
+    ConsistentHashRing(Collection<String> members, int virtualNodes) {
+        this.members = new TreeSet<>(members);
+        for (String member : this.members) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(member + "#" + i), member);
+            }
+        }
+    }
+
+    /** Returns the member owning {@code key}, or null if the ring is empty. */
+    public String ownerOf(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    public SortedSet<String> getMembers() {
+        return members;
+    }
+
+    /** First 8 bytes of MD5: stable across JVMs and replicas, unlike String.hashCode distribution. */
+    static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int i = 0; i < 8; i++) {
+                h = (h << 8) | (digest[i] & 0xff);
+            }
+            return h;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+}
@@ -0,0 +1,550 @@
+package com.example.rbs;
+
+import build.bazel.remote.execution.v2.Action;
+import build.bazel.remote.execution.v2.ActionResult;
+import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.ExecuteOperationMetadata;
+import build.bazel.remote.execution.v2.ExecuteRequest;
+import build.bazel.remote.execution.v2.ExecuteResponse;
+import build.bazel.remote.execution.v2.ExecutionGrpc;
+import build.bazel.remote.execution.v2.ExecutionStage;
+import build.bazel.remote.execution.v2.WaitExecutionRequest;
+import com.example.rbs.proto.RunActionRequest;
+import com.example.rbs.proto.RunActionResponse;
+import com.example.rbs.proto.WorkerGrpc;
+import com.google.longrunning.Operation;
+import com.google.protobuf.Any;
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.protobuf.StatusProto;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import io.opentelemetry.api.metrics.Meter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Remote Execution API {@code Execution} service that runs actions on a pool
+ * of worker containers, so a large rebuild fans out beyond its session's pod.
+ *
+ * <p>
+ * Actions are queued per session (the {@code x-rbs-session-id} header the
+ * agent adds) and dispatched round-robin across sessions, so one session's
+ * full rebuild cannot starve another's incremental build. Workers are created
+ * through the {@link ComputeService} while queued actions exceed free slots,
+ * up to {@code maxWorkers}, and deleted after {@code idleTimeout} without
+ * work, so an unused pool scales to zero. Inputs and outputs go through the
+ * {@link RemoteCache}, which also answers actions that already ran and keeps
+ * the results of successful ones.
+ */
+public class ExecutionScheduler {
+    private static final Logger logger = Logger.getLogger(ExecutionScheduler.class.getName());
+
+    static final Metadata.Key<String> SESSION_HEADER = Metadata.Key.of("x-rbs-session-id",
+            Metadata.ASCII_STRING_MARSHALLER);
+    private static final Context.Key<String> SESSION = Context.key("rbs-execution-session");
+    static final String UNKNOWN_SESSION = "unknown";
+    // Attempts per action when its worker goes away mid-run.
+    static final int MAX_ATTEMPTS = 3;
+
+    /** Tuning knobs. */
+    public static class Settings {
+        public String pool = "default";
+        /** The pool scales between zero and this many workers. */
+        public int maxWorkers = 8;
+        /** Actions one worker runs at a time. */
+        public int slotsPerWorker = 4;
+        /** A worker without work for this long is deleted. */
+        public Duration idleTimeout = Duration.ofMinutes(2);
+    }
+
+    private final ComputeService computeService;
+    private final RemoteCache cache;
+    private final Clock clock;
+    private final Settings settings;
+    private final Function<String, ManagedChannel> channelFactory;
+
+    // Per-session queues, and the sessions with queued actions in the order of their next turn.
+    private final Map<String, ArrayDeque<Job>> queues = new HashMap<>(); // guarded by this
+    private final ArrayDeque<String> turns = new ArrayDeque<>(); // guarded by this
+    private final Map<String, Worker> workers = new LinkedHashMap<>(); // guarded by this
+    private int queued; // guarded by this
+    private final Map<String, Job> operations = new ConcurrentHashMap<>();
+
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong workersCreated = new AtomicLong();
+
+    public ExecutionScheduler(ComputeService computeService, RemoteCache cache, Clock clock, Settings settings) {
+        this(computeService, cache, clock, settings,
+                address -> ManagedChannelBuilder.forTarget(address).usePlaintext()
+                        .keepAliveTime(30, TimeUnit.SECONDS).build());
+    }
+
+    ExecutionScheduler(ComputeService computeService, RemoteCache cache, Clock clock, Settings settings,
+            Function<String, ManagedChannel> channelFactory) {
+        this.computeService = computeService;
+        this.cache = cache;
+        this.clock = clock;
+        this.settings = settings;
+        this.channelFactory = channelFactory;
+    }
+
+    /** The Execution service, reading the session from {@code x-rbs-session-id}. */
+    public ServerServiceDefinition service() {
+        ServerInterceptor sessionInterceptor = new ServerInterceptor() {
+            @Override
+            public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                    Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+                String session = headers.get(SESSION_HEADER);
+                Context context = Context.current().withValue(SESSION, session != null ? session : UNKNOWN_SESSION);
+                return Contexts.interceptCall(context, call, headers, next);
+            }
+        };
+        return ServerInterceptors.intercept(new ExecutionService(), sessionInterceptor);
+    }
+
+    public void start(ScheduledExecutorService executor) {
+        executor.scheduleAtFixedRate(() -> {
+            try {
+                tick();
+            } catch (RuntimeException e) {
+                logger.warning("Worker pool tick failed: " + e.getMessage());
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public void registerMetrics(Meter meter) {
+        meter.upDownCounterBuilder("rbs.execution.queued").setDescription("Actions waiting for a worker slot")
+                .buildWithCallback(m -> m.record(getQueuedCount()));
+        meter.upDownCounterBuilder("rbs.execution.workers").setDescription("Worker containers, starting or ready")
+                .buildWithCallback(m -> m.record(getWorkerCount()));
+        meter.counterBuilder("rbs.execution.executed").setDescription("Actions run on a worker")
+                .buildWithCallback(m -> m.record(executed.get()));
+        meter.counterBuilder("rbs.execution.cache_hits").setDescription("Actions answered from the action cache")
+                .buildWithCallback(m -> m.record(cacheHits.get()));
+        meter.counterBuilder("rbs.execution.workers_created").setDescription("Worker containers created")
+                .buildWithCallback(m -> m.record(workersCreated.get()));
+    }
+
+    synchronized int getQueuedCount() {
+        return queued;
+    }
+
+    synchronized int getWorkerCount() {
+        return workers.size();
+    }
+
+    /** Deletes every worker; the pool is not persisted, so they would otherwise be orphaned. */
+    public void shutdown() {
+        List<Worker> all;
+        synchronized (this) {
+            all = new ArrayList<>(workers.values());
+            workers.clear();
+        }
+        for (Worker worker : all) {
+            deleteWorker(worker);
+        }
+    }
+
+    /**
+     * Scales the pool: adds workers for queued actions that exceed the free
+     * slots, polls starting workers, and deletes idle ones.
+     */
+    void tick() {
+        long now = clock.millis();
+        List<Worker> starting = new ArrayList<>();
+        List<Worker> idle = new ArrayList<>();
+        int toCreate;
+        synchronized (this) {
+            int running = 0;
+            for (Worker worker : workers.values()) {
+                running += worker.running;
+                if (worker.stub == null) {
+                    starting.add(worker);
+                } else if (queued == 0 && worker.running == 0
+                        && now - worker.idleSinceMillis >= settings.idleTimeout.toMillis()) {
+                    idle.add(worker);
+                }
+            }
+            for (Worker worker : idle) {
+                workers.remove(worker.id);
+            }
+            int missingSlots = queued + running - workers.size() * settings.slotsPerWorker;
+            int wanted = (Math.max(0, missingSlots) + settings.slotsPerWorker - 1) / settings.slotsPerWorker;
+            toCreate = Math.min(wanted, settings.maxWorkers - workers.size());
+        }
+        for (Worker worker : idle) {
+            logger.info("Deleting idle worker " + worker.id);
+            deleteWorker(worker);
+        }
+        for (int i = 0; i < toCreate; i++) {
+            // Namespaces are named after the first 8 characters of the ID.
+            String id = UUID.randomUUID().toString().substring(0, 8);
+            try {
+                computeService.createWorker(settings.pool, id);
+            } catch (RuntimeException e) {
+                logger.warning("Failed to create worker " + id + ": " + e.getMessage());
+                break;
+            }
+            workersCreated.incrementAndGet();
+            synchronized (this) {
+                workers.put(id, new Worker(id));
+            }
+            logger.info("Created worker " + id + " in pool " + settings.pool);
+        }
+        for (Worker worker : starting) {
+            poll(worker, now);
+        }
+        dispatch();
+    }
+
+    private void poll(Worker worker, long now) {
+        ComputeService.ContainerStatus status;
+        try {
+            status = computeService.getContainerStatus(ComputeService.WORKER_USER, settings.pool, worker.id);
+        } catch (RuntimeException e) {
+            logger.warning("Failed to poll worker " + worker.id + ": " + e.getMessage());
+            return;
+        }
+        if (status == null || "TERMINATED".equals(status.getStatus())) {
+            logger.warning("Worker " + worker.id + " is gone; replacing it");
+            synchronized (this) {
+                workers.remove(worker.id);
+            }
+            deleteWorker(worker);
+        } else if ("READY".equals(status.getStatus()) && status.getAddress() != null) {
+            ManagedChannel channel = channelFactory.apply(status.getAddress());
+            synchronized (this) {
+                worker.channel = channel;
+                worker.stub = WorkerGrpc.newStub(channel);
+                worker.idleSinceMillis = now;
+            }
+            logger.info("Worker " + worker.id + " ready at " + status.getAddress());
+        }
+    }
+
+    private void deleteWorker(Worker worker) {
+        if (worker.channel != null) {
+            worker.channel.shutdown();
+        }
+        try {
+            computeService.deleteContainer(ComputeService.WORKER_USER, settings.pool, worker.id);
+        } catch (RuntimeException e) {
+            logger.warning("Failed to delete worker " + worker.id + ": " + e.getMessage());
+        }
+    }
+
+    private void enqueue(Job job, boolean front) {
+        synchronized (this) {
+            ArrayDeque<Job> queue = queues.computeIfAbsent(job.session, s -> new ArrayDeque<>());
+            if (queue.isEmpty()) {
+                turns.addLast(job.session);
+            }
+            if (front) {
+                queue.addFirst(job);
+            } else {
+                queue.addLast(job);
+            }
+            queued++;
+        }
+        dispatch();
+    }
+
+    /** Starts queued actions on free worker slots until either runs out. */
+    private void dispatch() {
+        while (true) {
+            Job job;
+            Worker worker;
+            WorkerGrpc.WorkerStub stub;
+            synchronized (this) {
+                worker = leastLoadedWorker();
+                if (worker == null) {
+                    return;
+                }
+                job = nextJob();
+                if (job == null) {
+                    return;
+                }
+                worker.running++;
+                job.attempts++;
+                stub = worker.stub;
+            }
+            run(job, worker, stub);
+        }
+    }
+
+    // Caller holds the lock.
+    private Worker leastLoadedWorker() {
+        Worker best = null;
+        for (Worker worker : workers.values()) {
+            if (worker.stub != null && worker.running < settings.slotsPerWorker
+                    && (best == null || worker.running < best.running)) {
+                best = worker;
+            }
+        }
+        return best;
+    }
+
+    // Caller holds the lock. Takes one action from the session whose turn it is, then moves that session to
+    // the back. Actions nobody waits for any more (the build was interrupted) are dropped.
+    private Job nextJob() {
+        while (!turns.isEmpty()) {
+            String session = turns.pollFirst();
+            ArrayDeque<Job> queue = queues.get(session);
+            Job job = queue.pollFirst();
+            queued--;
+            if (queue.isEmpty()) {
+                queues.remove(session);
+            } else {
+                turns.addLast(session);
+            }
+            if (!job.hasWatchers()) {
+                operations.remove(job.name);
+                continue;
+            }
+            return job;
+        }
+        return null;
+    }
+
+    private void run(Job job, Worker worker, WorkerGrpc.WorkerStub stub) {
+        job.publish(ExecutionStage.Value.EXECUTING, null);
+        stub.runAction(RunActionRequest.newBuilder().setActionDigest(job.request.getActionDigest()).build(),
+                new StreamObserver<RunActionResponse>() {
+                    private RunActionResponse response;
+
+                    @Override
+                    public void onNext(RunActionResponse value) {
+                        response = value;
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        Status status = Status.fromThrowable(t);
+                        release(worker, status.getCode() == Status.Code.UNAVAILABLE);
+                        failed(job, status, StatusProto.fromThrowable(t));
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        release(worker, false);
+                        succeeded(job, response != null ? response.getResult() : ActionResult.getDefaultInstance());
+                    }
+                });
+    }
+
+    private void release(Worker worker, boolean unreachable) {
+        ManagedChannel broken = null;
+        synchronized (this) {
+            worker.running--;
+            if (worker.running == 0) {
+                worker.idleSinceMillis = clock.millis();
+            }
+            if (unreachable && worker.stub != null) {
+                // Stop dispatching to it; the next tick polls it and replaces it if it is gone.
+                broken = worker.channel;
+                worker.stub = null;
+                worker.channel = null;
+            }
+        }
+        if (broken != null) {
+            broken.shutdown();
+        }
+    }
+
+    private void succeeded(Job job, ActionResult result) {
+        executed.incrementAndGet();
+        if (result.getExitCode() == 0 && isCacheable(job.request.getActionDigest())) {
+            try {
+                cache.storeActionResult(job.request.getActionDigest(), result);
+            } catch (IOException e) {
+                logger.warning("Failed to cache result of " + job.request.getActionDigest().getHash() + ": "
+                        + e.getMessage());
+            }
+        }
+        complete(job, ExecuteResponse.newBuilder()
+                .setResult(result)
+                .setStatus(com.google.rpc.Status.newBuilder().setCode(Status.Code.OK.value()))
+                .build());
+    }
+
+    /**
+     * @param detailed The worker's status with its details, e.g. the missing
+     *                 blobs of a FAILED_PRECONDITION, or null if it sent none.
+     */
+    private void failed(Job job, Status status, com.google.rpc.Status detailed) {
+        if (status.getCode() == Status.Code.UNAVAILABLE && job.attempts < MAX_ATTEMPTS) {
+            logger.info("Worker unavailable for " + job.name + "; requeueing (attempt " + job.attempts + ")");
+            job.publish(ExecutionStage.Value.QUEUED, null);
+            enqueue(job, true);
+            return;
+        }
+        complete(job, ExecuteResponse.newBuilder()
+                .setStatus(detailed != null ? detailed : com.google.rpc.Status.newBuilder()
+                        .setCode(status.getCode().value())
+                        .setMessage(status.getDescription() != null ? status.getDescription() : "")
+                        .build())
+                .build());
+    }
+
+    private void complete(Job job, ExecuteResponse response) {
+        operations.remove(job.name);
+        job.publish(ExecutionStage.Value.COMPLETED, response);
+        dispatch();
+    }
+
+    /** False for actions marked do_not_cache, and if the Action cannot be read. */
+    private boolean isCacheable(Digest actionDigest) {
+        try {
+            ByteBuffer action = cache.getBlob(actionDigest);
+            return action != null && !Action.parseFrom(action).getDoNotCache();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static Operation operation(String name, Digest actionDigest, ExecutionStage.Value stage,
+            ExecuteResponse response) {
+        Operation.Builder operation = Operation.newBuilder()
+                .setName(name)
+                .setMetadata(Any.pack(ExecuteOperationMetadata.newBuilder()
+                        .setStage(stage)
+                        .setActionDigest(actionDigest)
+                        .build()));
+        if (response != null) {
+            operation.setDone(true).setResponse(Any.pack(response));
+        }
+        return operation.build();
+    }
+
+    private class ExecutionService extends ExecutionGrpc.ExecutionImplBase {
+        @Override
+        public void execute(ExecuteRequest request, StreamObserver<Operation> responseObserver) {
+            String invalid = RemoteCache.validate(request.getActionDigest());
+            if (invalid != null) {
+                responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(invalid).asRuntimeException());
+                return;
+            }
+            String name = "executions/" + UUID.randomUUID();
+            if (!request.getSkipCacheLookup()) {
+                try {
+                    ActionResult result = cache.lookupActionResult(request.getActionDigest());
+                    if (result != null) {
+                        cacheHits.incrementAndGet();
+                        responseObserver.onNext(operation(name, request.getActionDigest(),
+                                ExecutionStage.Value.COMPLETED,
+                                ExecuteResponse.newBuilder().setResult(result).setCachedResult(true).build()));
+                        responseObserver.onCompleted();
+                        return;
+                    }
+                } catch (IOException e) {
+                    logger.warning("Action cache lookup failed, executing: " + e.getMessage());
+                }
+            }
+            Job job = new Job(name, SESSION.get() != null ? SESSION.get() : UNKNOWN_SESSION, request);
+            operations.put(name, job);
+            job.watch(responseObserver);
+            enqueue(job, false);
+        }
+
+        @Override
+        public void waitExecution(WaitExecutionRequest request, StreamObserver<Operation> responseObserver) {
+            Job job = operations.get(request.getName());
+            if (job == null) {
+                // Finished or dropped; the client executes again and most likely hits the cache.
+                responseObserver.onError(Status.NOT_FOUND.withDescription(request.getName()).asRuntimeException());
+                return;
+            }
+            job.watch(responseObserver);
+        }
+    }
+
+    /** One Execute call, watched by the original stream and any WaitExecution streams. */
+    private static class Job {
+        final String name;
+        final String session;
+        final ExecuteRequest request;
+        final List<StreamObserver<Operation>> watchers = new ArrayList<>(); // guarded by this
+        ExecutionStage.Value stage = ExecutionStage.Value.QUEUED; // guarded by this
+        ExecuteResponse response; // guarded by this
+        int attempts; // guarded by the scheduler
+
+        Job(String name, String session, ExecuteRequest request) {
+            this.name = name;
+            this.session = session;
+            this.request = request;
+        }
+
+        synchronized void watch(StreamObserver<Operation> watcher) {
+            if (response == null && watcher instanceof ServerCallStreamObserver) {
+                ((ServerCallStreamObserver<Operation>) watcher).setOnCancelHandler(() -> {
+                    synchronized (this) {
+                        watchers.remove(watcher);
+                    }
+                });
+            }
+            watcher.onNext(operation(name, request.getActionDigest(), stage, response));
+            if (response != null) {
+                watcher.onCompleted();
+                return;
+            }
+            watchers.add(watcher);
+        }
+
+        synchronized boolean hasWatchers() {
+            return !watchers.isEmpty();
+        }
+
+        synchronized void publish(ExecutionStage.Value stage, ExecuteResponse response) {
+            this.stage = stage;
+            this.response = response;
+            Operation operation = operation(name, request.getActionDigest(), stage, response);
+            for (StreamObserver<Operation> watcher : watchers) {
+                watcher.onNext(operation);
+                if (response != null) {
+                    watcher.onCompleted();
+                }
+            }
+            if (response != null) {
+                watchers.clear();
+            }
+        }
+    }
+
+    private static class Worker {
+        final String id;
+        ManagedChannel channel; // guarded by the scheduler
+        WorkerGrpc.WorkerStub stub; // guarded by the scheduler; null until ready
+        int running; // guarded by the scheduler
+        long idleSinceMillis; // guarded by the scheduler
+
+        Worker(String id) {
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.example.rbs;
+
+import java.time.Clock;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * ComputeService implementation that only models latency.
+ * Used for load testing the orchestrator without Kubernetes or agent
+ * processes: every call pays a configurable API round-trip, and a container
+ * reports READY once its sampled start latency has elapsed on the injected
+ * clock.
+ */
+public class FakeComputeService implements ComputeService {
+    private static final Logger logger = Logger.getLogger(FakeComputeService.class.getName());
+
+    private final Clock clock;
+    private final LongSupplier startLatencyMillis;
+    private final long apiLatencyMillis;
+    private final Map<String, Long> readyAtMillis = new ConcurrentHashMap<>();
+    private final Map<String, String> addresses = new ConcurrentHashMap<>();
+    private final AtomicInteger nextAddress = new AtomicInteger();
+    private final java.util.Set<String> snapshots = ConcurrentHashMap.newKeySet();
+    private final Map<String, String> goldenByRepo = new ConcurrentHashMap<>();
+    // Warm pool slots, each holding the time its pre-started pod is ready to hand out.
+    private long[] warmPoolReadyAt = new long[0];
+    private long warmStartMillis;
+    private long warmPoolHits;
+
+    /**
+     * @param clock              Clock used to decide when containers become READY.
+     * @param startLatencyMillis Sampled once per container: time from creation to READY.
+     * @param apiLatencyMillis   Wall-clock delay injected into every call to mimic
+     *                           API server round-trips.
+     */
+    public FakeComputeService(Clock clock, LongSupplier startLatencyMillis, long apiLatencyMillis) {
+        this.clock = clock;
+        this.startLatencyMillis = startLatencyMillis;
+        this.apiLatencyMillis = apiLatencyMillis;
+    }
+
+    /**
+     * Models a pool of pre-started pods. A session that finds a ready slot starts
+     * in {@code warmStartMillis}; the slot is refilled with a fresh cold start.
+     */
+    public synchronized FakeComputeService withWarmPool(int size, long warmStartMillis) {
+        this.warmPoolReadyAt = new long[size];
+        this.warmStartMillis = warmStartMillis;
+        long now = clock.millis();
+        for (int i = 0; i < size; i++) {
+            warmPoolReadyAt[i] = now;
+        }
+        return this;
+    }
+
+    /**
+     * Log-normal start latency, the usual shape of pod start times: most pods
+     * start near the median with a long tail of slow image pulls and schedules.
+     */
+    public static LongSupplier logNormal(long medianMillis, double sigma, Random random) {
+        return () -> Math.round(medianMillis * Math.exp(sigma * random.nextGaussian()));
+    }
+
+    @Override
+    public String createContainer(String userId, String repoHash, String sessionId, String sourcePath,
+            java.util.List<String> startupOptions, String region) {
+        injectApiLatency();
+        String containerId = getContainerId(userId, repoHash, sessionId);
+        if (readyAtMillis.putIfAbsent(containerId, clock.millis() + sampleStartLatency()) == null) {
+            int n = nextAddress.getAndIncrement();
+            addresses.put(containerId,
+                    "10." + ((n >> 16) & 0xff) + "." + ((n >> 8) & 0xff) + "." + (n & 0xff) + ":9011");
+            logger.fine("Fake: created " + containerId);
+        }
+        return containerId;
+    }
+
+    @Override
+    public String createWorker(String pool, String workerId) {
+        return createContainer(WORKER_USER, pool, workerId, null, java.util.Collections.emptyList(), null);
+    }
+
+    @Override
+    public String createGoldenBuild(String repoHash, String buildId, String sourcePath,
+            java.util.List<String> startupOptions, String command) {
+        return createContainer(GOLDEN_USER, repoHash, buildId, sourcePath, startupOptions, null);
+    }
+
+    @Override
+    public void snapshotOutputBase(String repoHash, String buildId, String snapshotId) {
+        injectApiLatency();
+        snapshots.add(snapshotId);
+    }
+
+    @Override
+    public boolean isSnapshotReady(String repoHash, String snapshotId) {
+        if (!snapshots.contains(snapshotId)) {
+            throw new IllegalStateException("No snapshot " + snapshotId);
+        }
+        return true;
+    }
+
+    @Override
+    public void useSnapshot(String repoHash, String snapshotId) {
+        if (snapshotId == null) {
+            goldenByRepo.remove(repoHash);
+        } else {
+            goldenByRepo.put(repoHash, snapshotId);
+        }
+    }
+
+    @Override
+    public void deleteSnapshot(String repoHash, String snapshotId) {
+        injectApiLatency();
+        snapshots.remove(snapshotId);
+        goldenByRepo.remove(repoHash, snapshotId);
+    }
+
+    /** The snapshot new containers of the repo would be cloned from, or null. */
+    public String getGoldenSnapshot(String repoHash) {
+        return goldenByRepo.get(repoHash);
+    }
+
+    /** Number of snapshots not deleted yet. */
+    public int getSnapshotCount() {
+        return snapshots.size();
+    }
+
+    @Override
+    public void deleteContainer(String userId, String repoHash, String sessionId) {
+        injectApiLatency();
+        String containerId = getContainerId(userId, repoHash, sessionId);
+        readyAtMillis.remove(containerId);
+        addresses.remove(containerId);
+    }
+
+    @Override
+    public ContainerStatus getContainerStatus(String userId, String repoHash, String sessionId) {
+        injectApiLatency();
+        String containerId = getContainerId(userId, repoHash, sessionId);
+        Long readyAt = readyAtMillis.get(containerId);
+        if (readyAt == null) {
+            return null;
+        }
+        if (clock.millis() < readyAt) {
+            return new ContainerStatus("PENDING", null);
+        }
+        return new ContainerStatus("READY", addresses.get(containerId));
+    }
+
+    private synchronized long sampleStartLatency() {
+        long now = clock.millis();
+        for (int i = 0; i < warmPoolReadyAt.length; i++) {
+            if (warmPoolReadyAt[i] <= now) {
+                warmPoolReadyAt[i] = now + startLatencyMillis.getAsLong();
+                warmPoolHits++;
+                return warmStartMillis;
+            }
+        }
+        return startLatencyMillis.getAsLong();
+    }
+
+    /** Number of sessions that were served from the warm pool. */
+    public synchronized long getWarmPoolHits() {
+        return warmPoolHits;
+    }
+
+    /** Number of containers currently provisioned. */
+    public int size() {
+        return readyAtMillis.size();
+    }
+
+    private void injectApiLatency() {
+        if (apiLatencyMillis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(apiLatencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String getContainerId(String userId, String repoHash, String sessionId) {
+        return "fake-" + userId + "-" + repoHash + "-" + sessionId;
+    }
+}
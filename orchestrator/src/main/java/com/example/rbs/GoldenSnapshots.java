@@ -0,0 +1,268 @@
+package com.example.rbs;
+
+import io.opentelemetry.api.metrics.Meter;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a periodically refreshed golden snapshot of a warm Bazel output base
+ * for each busy repo, so a new session's first build finds the external
+ * repositories fetched and most outputs present instead of starting from
+ * nothing.
+ *
+ * <p>
+ * A repo qualifies once {@code minSessions} of its sessions started within
+ * {@code activeWindow}. For such a repo, every {@code refreshInterval} a
+ * golden build is started like the repo's latest session (source path,
+ * startup options) and runs {@code command}. When it has finished, its output
+ * base is snapshotted. Once the snapshot is ready, the compute service starts
+ * every new session of the repo with a copy-on-write clone of it (a CSI
+ * VolumeSnapshot clone on Kubernetes). The previous snapshot is kept until the
+ * next refresh, since clones of it may still be provisioning, and the one
+ * before it is deleted. A repo that stops qualifying loses its snapshots.
+ *
+ * <p>
+ * At most {@code maxConcurrentBuilds} golden builds run at once. A build that
+ * fails or exceeds {@code buildTimeout} is deleted and retried at the next
+ * refresh. The state is in memory and per replica; after a restart the
+ * snapshots are rebuilt as repos qualify again.
+ *
+ * <p>
+ * Session starts are recorded without taking the lock {@link #tick} holds
+ * across compute calls (a golden build's deletion can take a minute), so
+ * {@code GetServer} never waits on a golden build.
+ */
+public class GoldenSnapshots {
+    private static final Logger logger = Logger.getLogger(GoldenSnapshots.class.getName());
+
+    /** Tuning knobs. */
+    public static class Settings {
+        /** The warm build; it should build what most sessions build. */
+        public String command = "build //...";
+        public Duration refreshInterval = Duration.ofHours(6);
+        public Duration buildTimeout = Duration.ofHours(2);
+        public int minSessions = 3;
+        public Duration activeWindow = Duration.ofDays(1);
+        public int maxConcurrentBuilds = 2;
+    }
+
+    private static final class Repo {
+        final Deque<Long> starts = new ConcurrentLinkedDeque<>();
+        // How the latest session started; read together, so set together.
+        volatile Launch launch;
+        // The rest is only touched by tick.
+        long lastBuildMillis = Long.MIN_VALUE;
+        Build build;
+        // Snapshot new sessions are cloned from, and the one before it.
+        volatile String current;
+        String previous;
+    }
+
+    private static final class Launch {
+        final String sourcePath;
+        final List<String> startupOptions;
+
+        Launch(String sourcePath, List<String> startupOptions) {
+            this.sourcePath = sourcePath;
+            this.startupOptions = startupOptions;
+        }
+    }
+
+    private static final class Build {
+        final String buildId;
+        final long startedMillis;
+        boolean snapshotting;
+
+        Build(String buildId, long startedMillis) {
+            this.buildId = buildId;
+            this.startedMillis = startedMillis;
+        }
+    }
+
+    private final ComputeService computeService;
+    private final Clock clock;
+    private final Settings settings;
+    private final ConcurrentMap<String, Repo> repos = new ConcurrentHashMap<>();
+    private int sequence; // guarded by this, which only tick holds
+
+    private final AtomicLong builds = new AtomicLong();
+    private final AtomicLong refreshed = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public GoldenSnapshots(ComputeService computeService, Clock clock, Settings settings) {
+        this.computeService = computeService;
+        this.clock = clock;
+        this.settings = settings;
+    }
+
+    public void start(ScheduledExecutorService executor) {
+        executor.scheduleAtFixedRate(this::tick, 1, 1, TimeUnit.MINUTES);
+    }
+
+    public void registerMetrics(Meter meter) {
+        meter.counterBuilder("rbs.golden.builds").setDescription("Golden builds started")
+                .buildWithCallback(m -> m.record(builds.get()));
+        meter.counterBuilder("rbs.golden.refreshed").setDescription("Golden snapshots put into use")
+                .buildWithCallback(m -> m.record(refreshed.get()));
+        meter.counterBuilder("rbs.golden.failures").setDescription("Golden builds or snapshots that failed")
+                .buildWithCallback(m -> m.record(failures.get()));
+        meter.upDownCounterBuilder("rbs.golden.repos").setDescription("Repos whose new sessions start from a snapshot")
+                .buildWithCallback(m -> m.record(getRepoCount()));
+    }
+
+    void onSessionStarted(String repoHash, String sourcePath, List<String> startupOptions) {
+        long now = clock.millis();
+        Launch launch = new Launch(sourcePath, startupOptions);
+        // Atomic with retire's removal of an idle repo, so no start lands in a forgotten one.
+        repos.compute(repoHash, (r, repo) -> {
+            Repo updated = repo != null ? repo : new Repo();
+            updated.starts.add(now);
+            updated.launch = launch;
+            return updated;
+        });
+    }
+
+    synchronized void tick() {
+        long now = clock.millis();
+        int running = 0;
+        for (Repo repo : repos.values()) {
+            if (repo.build != null) {
+                running++;
+            }
+        }
+        for (Map.Entry<String, Repo> entry : new HashMap<>(repos).entrySet()) {
+            String repoHash = entry.getKey();
+            Repo repo = entry.getValue();
+            while (!repo.starts.isEmpty() && now - repo.starts.peek() > settings.activeWindow.toMillis()) {
+                repo.starts.poll();
+            }
+            try {
+                if (repo.build != null) {
+                    advance(repoHash, repo, now);
+                    if (repo.build == null) {
+                        running--;
+                    }
+                } else if (repo.starts.size() < settings.minSessions) {
+                    retire(repoHash, repo);
+                } else if (running < settings.maxConcurrentBuilds
+                        && now - repo.lastBuildMillis >= settings.refreshInterval.toMillis()) {
+                    startBuild(repoHash, repo, now);
+                    running++;
+                }
+            } catch (RuntimeException e) {
+                logger.warning("Golden snapshot of " + repoHash + " failed: " + e.getMessage());
+                if (repo.build != null) {
+                    fail(repoHash, repo);
+                    running--;
+                }
+            }
+        }
+    }
+
+    int getRepoCount() {
+        int count = 0;
+        for (Repo repo : repos.values()) {
+            if (repo.current != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    long getRefreshed() {
+        return refreshed.get();
+    }
+
+    long getFailures() {
+        return failures.get();
+    }
+
+    private void startBuild(String repoHash, Repo repo, long now) {
+        // Time first: container names are keyed by the ID's first characters.
+        String buildId = Long.toString(now, 36) + "-golden-" + (sequence++);
+        repo.lastBuildMillis = now;
+        repo.build = new Build(buildId, now);
+        builds.incrementAndGet();
+        logger.info("Starting golden build " + buildId + " of " + repoHash + ": " + settings.command);
+        Launch launch = repo.launch;
+        computeService.createGoldenBuild(repoHash, buildId, launch.sourcePath, launch.startupOptions,
+                settings.command);
+    }
+
+    private void advance(String repoHash, Repo repo, long now) {
+        Build build = repo.build;
+        if (now - build.startedMillis > settings.buildTimeout.toMillis()) {
+            logger.warning("Golden build " + build.buildId + " of " + repoHash + " timed out");
+            fail(repoHash, repo);
+            return;
+        }
+        if (!build.snapshotting) {
+            ComputeService.ContainerStatus status = computeService.getContainerStatus(ComputeService.GOLDEN_USER,
+                    repoHash, build.buildId);
+            if (status == null || "TERMINATED".equals(status.getStatus())) {
+                logger.warning("Golden build " + build.buildId + " of " + repoHash + " failed");
+                fail(repoHash, repo);
+            } else if ("READY".equals(status.getStatus())) {
+                computeService.snapshotOutputBase(repoHash, build.buildId, build.buildId);
+                build.snapshotting = true;
+            }
+            return;
+        }
+        if (!computeService.isSnapshotReady(repoHash, build.buildId)) {
+            return;
+        }
+        computeService.useSnapshot(repoHash, build.buildId);
+        if (repo.previous != null) {
+            computeService.deleteSnapshot(repoHash, repo.previous);
+        }
+        repo.previous = repo.current;
+        repo.current = build.buildId;
+        repo.build = null;
+        refreshed.incrementAndGet();
+        logger.info("New sessions of " + repoHash + " start from golden snapshot " + repo.current + " (built in "
+                + Duration.ofMillis(now - build.startedMillis) + ")");
+        computeService.deleteContainer(ComputeService.GOLDEN_USER, repoHash, build.buildId);
+    }
+
+    private void fail(String repoHash, Repo repo) {
+        Build build = repo.build;
+        repo.build = null;
+        failures.incrementAndGet();
+        try {
+            if (build.snapshotting) {
+                computeService.deleteSnapshot(repoHash, build.buildId);
+            }
+            computeService.deleteContainer(ComputeService.GOLDEN_USER, repoHash, build.buildId);
+        } catch (RuntimeException e) {
+            logger.warning("Failed to clean up golden build " + build.buildId + ": " + e.getMessage());
+        }
+    }
+
+    /** Stops cloning for a repo that is no longer busy and deletes its snapshots. */
+    private void retire(String repoHash, Repo repo) {
+        if (repo.current == null) {
+            repos.computeIfPresent(repoHash, (r, idle) -> idle.starts.isEmpty() ? null : idle);
+            return;
+        }
+        logger.info("Retiring golden snapshots of " + repoHash + ", which no longer has enough sessions");
+        computeService.useSnapshot(repoHash, null);
+        for (String snapshotId : new String[] {repo.previous, repo.current}) {
+            if (snapshotId != null) {
+                computeService.deleteSnapshot(repoHash, snapshotId);
+            }
+        }
+        repo.current = null;
+        repo.previous = null;
+    }
+}
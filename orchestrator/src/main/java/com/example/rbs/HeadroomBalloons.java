@@ -0,0 +1,318 @@
+package com.example.rbs;
+
+import io.fabric8.kubernetes.api.model.Quantity;
+import io.fabric8.kubernetes.api.model.apps.Deployment;
+import io.fabric8.kubernetes.api.model.apps.DeploymentBuilder;
+import io.fabric8.kubernetes.api.model.scheduling.v1.PriorityClass;
+import io.fabric8.kubernetes.api.model.scheduling.v1.PriorityClassBuilder;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.opentelemetry.api.metrics.Meter;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Keeps spare room in the build pool as low-priority placeholder pods, so a
+ * burst of new sessions schedules at once instead of waiting for the cluster
+ * autoscaler.
+ *
+ * <p>
+ * Manages a Deployment of pause pods, each requesting what a new session pod
+ * requests, under the {@link #BALLOON_PRIORITY_CLASS} PriorityClass.
+ * Session pods (and the image pre-pull DaemonSet) run under the higher
+ * {@link #SESSION_PRIORITY_CLASS}, so the scheduler preempts a balloon to
+ * place a session on its node right away. The evicted balloon turns
+ * Pending, and the cluster autoscaler adds a node for it behind the
+ * session. Balloons never preempt anything themselves.
+ *
+ * <p>
+ * Every minute the number of balloons is set to the session pods expected
+ * to arrive within {@code nodeProvisionTime}, the time the autoscaler takes
+ * to add a node. The expected rate is the larger of the recent arrival rate
+ * (an exponentially weighted moving average with half-life
+ * {@code halfLife}) and the rate usually seen at this time of day and
+ * {@code nodeProvisionTime} ahead (a moving average per hour of day, to
+ * which each day contributes {@code dayWeight}). Headroom grows at once and
+ * shrinks only after the target has stayed lower for {@code scaleDownDelay}.
+ *
+ * <p>
+ * With a {@link SessionRepository}, session starts are also kept in its
+ * session history (unless the {@link PreProvisioner} already records them),
+ * and {@link #loadHistory} replays the last {@link #HISTORY_DAYS} days of
+ * them into the per-hour rates at startup, so a restart does not forget the
+ * usual morning burst.
+ */
+public class HeadroomBalloons {
+    private static final Logger logger = Logger.getLogger(HeadroomBalloons.class.getName());
+
+    static final String DEPLOYMENT_NAME = "rbs-balloon";
+    static final String BALLOON_PRIORITY_CLASS = "rbs-balloon";
+    static final String SESSION_PRIORITY_CLASS = "rbs-session";
+    static final int BALLOON_PRIORITY = -10;
+    static final int SESSION_PRIORITY = 1000;
+    // A day's weight is below 1% after two weeks at the default dayWeight.
+    static final int HISTORY_DAYS = 14;
+
+    /** Tuning knobs; the defaults suit a cluster autoscaler that adds a node in a few minutes. */
+    public static class Settings {
+        public String namespace = "default";
+        public int minPods = 0;
+        public int maxPods = 20;
+        public Duration nodeProvisionTime = Duration.ofMinutes(5);
+        public Duration halfLife = Duration.ofMinutes(10);
+        public double dayWeight = 0.3;
+        public Duration scaleDownDelay = Duration.ofMinutes(15);
+    }
+
+    private final KubernetesClient k8sClient;
+    private final Map<String, String> nodeSelector;
+    private final VerticalScaler.Size podSize;
+    private final Clock clock;
+    private final ZoneId zone;
+    private final Settings settings;
+    private SessionRepository sessionRepo;
+    private boolean recordsHistory;
+
+    private final AtomicLong arrivals = new AtomicLong();
+    // Session pods per minute, recently and by hour of day.
+    private double recentRate;
+    private final double[] hourlyRates = new double[24];
+    private long lastTickMillis;
+    private int replicas = -1;
+    private int target;
+    private long lowerSinceMillis = -1;
+    private LocalDate lastPruned;
+
+    public HeadroomBalloons(KubernetesClient k8sClient, Map<String, String> nodeSelector,
+            VerticalScaler.Size podSize, Clock clock, ZoneId zone, Settings settings) {
+        this.k8sClient = k8sClient;
+        this.nodeSelector = nodeSelector;
+        this.podSize = podSize;
+        this.clock = clock;
+        this.zone = zone;
+        this.settings = settings;
+    }
+
+    /**
+     * Seeds the per-hour rates from {@code sessionRepo}'s session history. With
+     * {@code record}, session starts are written to it and old ones pruned;
+     * otherwise the {@link PreProvisioner} does both.
+     */
+    public void setSessionRepository(SessionRepository sessionRepo, boolean record) {
+        this.sessionRepo = sessionRepo;
+        this.recordsHistory = record;
+    }
+
+    public void start(ScheduledExecutorService executor) {
+        executor.scheduleAtFixedRate(this::tick, 1, 1, TimeUnit.MINUTES);
+    }
+
+    public void registerMetrics(Meter meter) {
+        meter.upDownCounterBuilder("rbs.balloon.pods").setDescription("Placeholder pods holding headroom")
+                .buildWithCallback(m -> m.record(Math.max(getReplicas(), 0)));
+        meter.upDownCounterBuilder("rbs.balloon.target")
+                .setDescription("Session pods expected before the autoscaler can add a node")
+                .buildWithCallback(m -> m.record(getTarget()));
+        meter.gaugeBuilder("rbs.balloon.arrival_rate").setDescription("Recent session pod arrivals")
+                .setUnit("1/min").buildWithCallback(m -> m.record(getRecentRate()));
+    }
+
+    /**
+     * Creates the PriorityClasses and the balloon Deployment at its minimum
+     * size. Runs before anything references the session class.
+     */
+    public synchronized void sync() {
+        k8sClient.resource(buildPriorityClass(BALLOON_PRIORITY_CLASS, BALLOON_PRIORITY, "Never",
+                "Placeholder pods keeping headroom for build sessions"))
+                .fieldManager(KubernetesComputeService.FIELD_MANAGER).forceConflicts().serverSideApply();
+        k8sClient.resource(buildPriorityClass(SESSION_PRIORITY_CLASS, SESSION_PRIORITY, "PreemptLowerPriority",
+                "Build session pods; they preempt headroom placeholders"))
+                .fieldManager(KubernetesComputeService.FIELD_MANAGER).forceConflicts().serverSideApply();
+        lastTickMillis = clock.millis();
+        if (replicas < 0) {
+            scale(Math.max(settings.minPods, target));
+        }
+    }
+
+    /**
+     * Rebuilds the per-hour rates from the session starts of the last
+     * {@link #HISTORY_DAYS} days, replaying each past hour as a tick would.
+     */
+    public void loadHistory() {
+        long now = clock.millis();
+        ZonedDateTime currentHour = Instant.ofEpochMilli(now).atZone(zone).truncatedTo(ChronoUnit.HOURS);
+        ZonedDateTime hour = currentHour.toLocalDate().minusDays(HISTORY_DAYS).atStartOfDay(zone);
+        Map<Long, Integer> starts = new HashMap<>();
+        for (SessionRepository.SessionEvent event : sessionRepo.getSessionEvents(hour.toInstant().toEpochMilli())) {
+            if (event.start) {
+                starts.merge(Instant.ofEpochMilli(event.atMillis).atZone(zone).truncatedTo(ChronoUnit.HOURS)
+                        .toInstant().toEpochMilli(), 1, Integer::sum);
+            }
+        }
+        double[] rates = new double[hourlyRates.length];
+        for (; hour.isBefore(currentHour); hour = hour.plusHours(1)) {
+            double observed = starts.getOrDefault(hour.toInstant().toEpochMilli(), 0) / 60.0;
+            rates[hour.getHour()] += settings.dayWeight * (observed - rates[hour.getHour()]);
+        }
+        synchronized (this) {
+            System.arraycopy(rates, 0, hourlyRates, 0, rates.length);
+        }
+        logger.info("Seeded headroom balloons from " + starts.values().stream().mapToInt(Integer::intValue).sum()
+                + " session starts");
+    }
+
+    /** Records a session start in the session history, if the balloons keep it. */
+    void onSessionStarted(String userId, String repoHash, String sourcePath, List<String> startupOptions,
+            String region) {
+        if (sessionRepo == null || !recordsHistory) {
+            return;
+        }
+        try {
+            sessionRepo.recordSessionEvent(SessionRepository.SessionEvent.start(userId, repoHash, clock.millis(),
+                    sourcePath, startupOptions, region));
+        } catch (RuntimeException e) {
+            // Only the model after a restart loses this start.
+            logger.warning("Failed to persist session start for headroom balloons: " + e.getMessage());
+        }
+    }
+
+    /** Counts a session pod about to be created. */
+    void onServerStarting() {
+        arrivals.incrementAndGet();
+    }
+
+    synchronized void tick() {
+        long now = clock.millis();
+        prune(now);
+        double minutes = lastTickMillis > 0 ? Math.max(now - lastTickMillis, 1) / 60_000.0 : 1;
+        lastTickMillis = now;
+        double observed = arrivals.getAndSet(0) / minutes;
+
+        recentRate += (1 - Math.pow(0.5, minutes / (settings.halfLife.toMillis() / 60_000.0)))
+                * (observed - recentRate);
+        int hour = hourAt(now);
+        hourlyRates[hour] += (1 - Math.pow(1 - settings.dayWeight, minutes / 60)) * (observed - hourlyRates[hour]);
+
+        long provisionMillis = settings.nodeProvisionTime.toMillis();
+        double rate = Math.max(recentRate, Math.max(hourlyRates[hour], hourlyRates[hourAt(now + provisionMillis)]));
+        target = (int) Math.min(Math.max(Math.round(rate * provisionMillis / 60_000.0), settings.minPods),
+                settings.maxPods);
+
+        if (replicas < 0 || target > replicas) {
+            lowerSinceMillis = -1;
+            scale(target);
+        } else if (target == replicas) {
+            lowerSinceMillis = -1;
+        } else if (lowerSinceMillis < 0) {
+            lowerSinceMillis = now;
+        } else if (now - lowerSinceMillis >= settings.scaleDownDelay.toMillis()) {
+            lowerSinceMillis = -1;
+            scale(target);
+        }
+    }
+
+    private void prune(long now) {
+        LocalDate today = Instant.ofEpochMilli(now).atZone(zone).toLocalDate();
+        if (sessionRepo == null || !recordsHistory || today.equals(lastPruned)) {
+            return;
+        }
+        try {
+            sessionRepo.deleteSessionEvents(now - Duration.ofDays(HISTORY_DAYS + 1).toMillis());
+            lastPruned = today;
+        } catch (RuntimeException e) {
+            logger.warning("Failed to prune session history events: " + e.getMessage());
+        }
+    }
+
+    private void scale(int pods) {
+        try {
+            k8sClient.apps().deployments().inNamespace(settings.namespace).resource(buildDeployment(pods))
+                    .fieldManager(KubernetesComputeService.FIELD_MANAGER).forceConflicts().serverSideApply();
+        } catch (Exception e) {
+            // Retried on the next tick.
+            logger.warning("Failed to scale headroom balloons to " + pods + ": " + e.getMessage());
+            return;
+        }
+        if (pods != replicas) {
+            logger.info("Headroom balloons: " + replicas + " -> " + pods + " (recent "
+                    + String.format("%.2f", recentRate) + "/min)");
+        }
+        replicas = pods;
+    }
+
+    private int hourAt(long millis) {
+        return Instant.ofEpochMilli(millis).atZone(zone).getHour();
+    }
+
+    static PriorityClass buildPriorityClass(String name, int value, String preemptionPolicy, String description) {
+        return new PriorityClassBuilder()
+                .withNewMetadata()
+                .withName(name)
+                .endMetadata()
+                .withValue(value)
+                .withPreemptionPolicy(preemptionPolicy)
+                .withGlobalDefault(false)
+                .withDescription(description)
+                .build();
+    }
+
+    Deployment buildDeployment(int pods) {
+        Map<String, Quantity> amounts = new HashMap<>();
+        amounts.put("memory", new Quantity((podSize.memoryBytes >> 20) + "Mi"));
+        amounts.put("cpu", new Quantity(podSize.cpuMillis + "m"));
+        return new DeploymentBuilder()
+                .withNewMetadata()
+                .withName(DEPLOYMENT_NAME)
+                .withNamespace(settings.namespace)
+                .addToLabels("app", DEPLOYMENT_NAME)
+                .endMetadata()
+                .withNewSpec()
+                .withReplicas(pods)
+                .withNewSelector()
+                .addToMatchLabels("app", DEPLOYMENT_NAME)
+                .endSelector()
+                .withNewTemplate()
+                .withNewMetadata()
+                .addToLabels("app", DEPLOYMENT_NAME)
+                .endMetadata()
+                .withNewSpec()
+                .withNodeSelector(nodeSelector.isEmpty() ? null : nodeSelector)
+                .withPriorityClassName(BALLOON_PRIORITY_CLASS)
+                // Preempted balloons should free their node for the session at once.
+                .withTerminationGracePeriodSeconds(0L)
+                .addNewContainer()
+                .withName("pause")
+                .withImage(ImagePrePuller.PAUSE_IMAGE)
+                .withNewResources()
+                .withRequests(amounts)
+                .endResources()
+                .endContainer()
+                .endSpec()
+                .endTemplate()
+                .endSpec()
+                .build();
+    }
+
+    synchronized int getReplicas() {
+        return replicas;
+    }
+
+    synchronized int getTarget() {
+        return target;
+    }
+
+    synchronized double getRecentRate() {
+        return recentRate;
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.rbs;
+
+import io.fabric8.kubernetes.api.model.Container;
+import io.fabric8.kubernetes.api.model.ContainerBuilder;
+import io.fabric8.kubernetes.api.model.Quantity;
+import io.fabric8.kubernetes.api.model.apps.DaemonSet;
+import io.fabric8.kubernetes.api.model.apps.DaemonSetBuilder;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Keeps every catalog image cached on every node of the build pool.
+ *
+ * <p>
+ * Manages a DaemonSet whose init containers reference each catalog image and
+ * exit immediately; the kubelet has to pull each image to run them, so a node
+ * holds the whole catalog before the first session lands on it. Agent images
+ * have no shell, so the init containers run {@code /app/agent --version}. A pause
+ * container keeps the pod (and with it the image references) alive so the
+ * kubelet's image GC does not evict them.
+ */
+public class ImagePrePuller {
+    private static final Logger logger = Logger.getLogger(ImagePrePuller.class.getName());
+
+    static final String DAEMONSET_NAME = "rbs-agent-prepull";
+    // Pinned by digest (the 3.9 manifest list), like the catalog images.
+    static final String PAUSE_IMAGE = "registry.k8s.io/pause:3.9"
+            + "@sha256:7031c1b283388d2c2e09b57badb803c05ebed362dc88d84b480cc47f72a21097";
+    /** Runs in each catalog image and exits at once; see the agent's {@code --version}. */
+    static final String[] NO_OP_COMMAND = {"/app/agent", "--version"};
+
+    private final KubernetesClient k8sClient;
+    private final AgentImageCatalog catalog;
+    private final String namespace;
+    private final Map<String, String> nodeSelector;
+    private volatile String priorityClassName;
+
+    public ImagePrePuller(KubernetesClient k8sClient, AgentImageCatalog catalog, String namespace,
+            Map<String, String> nodeSelector) {
+        this.k8sClient = k8sClient;
+        this.catalog = catalog;
+        this.namespace = namespace;
+        this.nodeSelector = nodeSelector;
+    }
+
+    /** Runs the pre-pull pods at the session pods' priority, so sessions do not preempt them. */
+    public void setPriorityClassName(String priorityClassName) {
+        this.priorityClassName = priorityClassName;
+    }
+
+    /** Creates or updates the pre-pull DaemonSet to match the catalog. */
+    public void sync() {
+        List<AgentImageCatalog.AgentImage> images = new ArrayList<>(catalog.getImages());
+        if (images.isEmpty()) {
+            logger.info("Image catalog is empty, removing pre-pull DaemonSet if present");
+            k8sClient.apps().daemonSets().inNamespace(namespace).withName(DAEMONSET_NAME).delete();
+            return;
+        }
+
+        DaemonSet daemonSet = buildDaemonSet(images);
+        k8sClient.apps().daemonSets().inNamespace(namespace).resource(daemonSet)
+                .fieldManager(KubernetesComputeService.FIELD_MANAGER).forceConflicts().serverSideApply();
+        logger.info("Synced pre-pull DaemonSet " + namespace + "/" + DAEMONSET_NAME + " with " + images.size()
+                + " images");
+    }
+
+    /**
+     * Returns true once every scheduled node has the DaemonSet pod ready, i.e. all
+     * catalog images are cached across the build pool.
+     */
+    public boolean isRolledOut() {
+        DaemonSet daemonSet = k8sClient.apps().daemonSets().inNamespace(namespace).withName(DAEMONSET_NAME).get();
+        if (daemonSet == null || daemonSet.getStatus() == null) {
+            return false;
+        }
+        Integer desired = daemonSet.getStatus().getDesiredNumberScheduled();
+        Integer ready = daemonSet.getStatus().getNumberReady();
+        Integer updated = daemonSet.getStatus().getUpdatedNumberScheduled();
+        return desired != null && desired.equals(ready) && desired.equals(updated);
+    }
+
+    DaemonSet buildDaemonSet(List<AgentImageCatalog.AgentImage> images) {
+        List<Container> initContainers = new ArrayList<>();
+        for (int i = 0; i < images.size(); i++) {
+            initContainers.add(new ContainerBuilder()
+                    .withName("prepull-" + i)
+                    .withImage(images.get(i).getReference())
+                    .withImagePullPolicy("IfNotPresent")
+                    .withCommand(NO_OP_COMMAND)
+                    .withNewResources()
+                    .addToRequests("cpu", new Quantity("10m"))
+                    .addToRequests("memory", new Quantity("16Mi"))
+                    .endResources()
+                    .build());
+        }
+
+        return new DaemonSetBuilder()
+                .withNewMetadata()
+                .withName(DAEMONSET_NAME)
+                .withNamespace(namespace)
+                .addToLabels("app", DAEMONSET_NAME)
+                .endMetadata()
+                .withNewSpec()
+                .withNewSelector()
+                .addToMatchLabels("app", DAEMONSET_NAME)
+                .endSelector()
+                .withNewTemplate()
+                .withNewMetadata()
+                .addToLabels("app", DAEMONSET_NAME)
+                .endMetadata()
+                .withNewSpec()
+                .withNodeSelector(nodeSelector)
+                .withPriorityClassName(priorityClassName)
+                .withInitContainers(initContainers)
+                .addNewContainer()
+                .withName("pause")
+                .withImage(PAUSE_IMAGE)
+                .withNewResources()
+                .addToRequests("cpu", new Quantity("1m"))
+                .addToRequests("memory", new Quantity("8Mi"))
+                .endResources()
+                .endContainer()
+                .endSpec()
+                .endTemplate()
+                .endSpec()
+                .build();
+    }
+}
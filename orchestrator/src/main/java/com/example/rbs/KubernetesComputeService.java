@@ -1,96 +1,724 @@
 package com.example.rbs;
 
+import io.fabric8.kubernetes.api.model.GenericKubernetesResource;
+import io.fabric8.kubernetes.api.model.GenericKubernetesResourceBuilder;
+import io.fabric8.kubernetes.api.model.HasMetadata;
 import io.fabric8.kubernetes.api.model.Pod;
 import io.fabric8.kubernetes.api.model.PodBuilder;
 import io.fabric8.kubernetes.api.model.NamespaceBuilder;
 import io.fabric8.kubernetes.api.model.ServiceAccountBuilder;
 import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.dsl.base.PatchContext;
+import io.fabric8.kubernetes.client.dsl.base.PatchType;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.LongHistogram;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 public class KubernetesComputeService implements ComputeService {
     private static final Logger logger = Logger.getLogger(KubernetesComputeService.class.getName());
+    static final int AGENT_PORT = 9011;
+    static final String OUTPUT_BASE_MOUNT = "/var/cache/rbs/output-base";
+    static final String LOCAL_CACHE_MOUNT = "/var/cache/rbs/local";
+    /** The pod's own workspace volume; the agent syncs the workspace into {@code src/} under it. */
+    static final String WORKSPACE_MOUNT = "/var/lib/rbs/workspace";
+    private static final int MAX_REMEMBERED_WORKSPACES = 100_000;
+    private static final String SNAPSHOT_API = "snapshot.storage.k8s.io/v1";
     private final KubernetesClient k8sClient;
+    private final AgentImageCatalog imageCatalog;
+    private final java.util.Map<String, String> buildPoolNodeSelector;
+    private static final AttributeKey<String> PHASE = AttributeKey.stringKey("rbs.provisioning.phase");
+    // Keyed by namespace; kept until the session's container is deleted.
+    private final java.util.Map<String, ProvisioningTimeline> timelines = new ConcurrentHashMap<>();
+    private volatile LongHistogram phaseDuration;
+    private volatile LongHistogram totalDuration;
+    static final String FIELD_MANAGER = "rbs-orchestrator";
+    private static final int MAX_APPLY_ATTEMPTS = 6;
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 2000;
+    // Fingerprint of the last bundle applied per namespace, so duplicate requests cost no API calls.
+    private final java.util.Map<String, Integer> appliedBundles = new ConcurrentHashMap<>();
+    // Present while a thread holds or waits for the namespace's lock; removed by the last one out.
+    private final java.util.Map<String, NamespaceLock> namespaceLocks = new ConcurrentHashMap<>();
+    private final ExecutorService applyExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "k8s-apply");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile String remoteCacheAddress;
+    private volatile String remoteExecutorAddress;
+    private volatile String remoteDownloaderAddress;
+    private volatile VerticalScaler verticalScaler;
+    private volatile OutputBaseVolumes outputBaseVolumes = new OutputBaseVolumes();
+    // Golden snapshots by snapshot ID once ready, and the one each repo's new sessions clone.
+    private final java.util.Map<String, GoldenSnapshot> snapshots = new ConcurrentHashMap<>();
+    private final java.util.Map<String, GoldenSnapshot> goldenByRepo = new ConcurrentHashMap<>();
+    private volatile String localCacheRoot;
+    private volatile String priorityClassName;
+    // Node each workspace (user and repo) last ran on, least recently used first.
+    private final java.util.Map<String, String> lastNodes = java.util.Collections.synchronizedMap(
+            new java.util.LinkedHashMap<String, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(java.util.Map.Entry<String, String> eldest) {
+                    return size() > MAX_REMEMBERED_WORKSPACES;
+                }
+            });
+
+    /** Volumes holding golden builds' output bases and the sessions' clones of them. */
+    public static class OutputBaseVolumes {
+        /** Storage class of the volumes; its CSI driver must support snapshots. Null uses the default. */
+        public String storageClass;
+        /**
+         * VolumeSnapshotClass of golden snapshots. Its deletionPolicy must be
+         * Retain, so a snapshot outlives the namespace of the build it was
+         * taken from. Null uses the default.
+         */
+        public String snapshotClass;
+        public String size = "100Gi";
+    }
+
+    /** A ready golden snapshot, by its storage-level handle, which any namespace can bind to. */
+    private static final class GoldenSnapshot {
+        final String contentName;
+        final String driver;
+        final String handle;
+
+        GoldenSnapshot(String contentName, String driver, String handle) {
+            this.contentName = contentName;
+            this.driver = driver;
+            this.handle = handle;
+        }
+    }
 
     public KubernetesComputeService(KubernetesClient k8sClient) {
+        this(k8sClient, AgentImageCatalog.localDefault(), java.util.Collections.emptyMap());
+    }
+
+    /**
+     * @param imageCatalog          Resolves the agent image for each repo.
+     * @param buildPoolNodeSelector Node labels of the build pool; session pods are
+     *                              confined to the nodes the catalog is pre-pulled on.
+     */
+    public KubernetesComputeService(KubernetesClient k8sClient, AgentImageCatalog imageCatalog,
+            java.util.Map<String, String> buildPoolNodeSelector) {
         this.k8sClient = k8sClient;
+        this.imageCatalog = imageCatalog;
+        this.buildPoolNodeSelector = buildPoolNodeSelector;
+    }
+
+    /** Remote cache (e.g. {@code grpc://orchestrator:50051}) the agent points every build at. */
+    public void setRemoteCacheAddress(String remoteCacheAddress) {
+        this.remoteCacheAddress = remoteCacheAddress;
+    }
+
+    /** Remote executor (see {@link ExecutionScheduler}) the agent points every build at. */
+    public void setRemoteExecutorAddress(String remoteExecutorAddress) {
+        this.remoteExecutorAddress = remoteExecutorAddress;
+    }
+
+    /** Remote downloader (see {@link RemoteDownloader}) sessions and golden builds fetch external archives from. */
+    public void setRemoteDownloaderAddress(String remoteDownloaderAddress) {
+        this.remoteDownloaderAddress = remoteDownloaderAddress;
+    }
+
+    /**
+     * Sizes session pods: they start at the scaler's initial size and are
+     * resized in place as their heartbeats report usage. Without a scaler,
+     * pods have no resource requests or limits.
+     */
+    public void setVerticalScaler(VerticalScaler verticalScaler) {
+        this.verticalScaler = verticalScaler;
+    }
+
+    /** PriorityClass of all pods; see {@link HeadroomBalloons}. */
+    public void setPriorityClassName(String priorityClassName) {
+        this.priorityClassName = priorityClassName;
+    }
+
+    public void setOutputBaseVolumes(OutputBaseVolumes outputBaseVolumes) {
+        this.outputBaseVolumes = outputBaseVolumes;
+    }
+
+    /**
+     * Keeps each workspace's Bazel disk and repository caches on the node, in
+     * a hostPath under this root (e.g. a local SSD mount), and prefers the node
+     * the workspace last ran on when placing its next session. The preference
+     * is soft: if that node is full, the session starts elsewhere with a cold
+     * cache, and that node is preferred from then on. The placements are
+     * remembered in memory, so each replica only knows its own sessions'.
+     */
+    public void setLocalCacheRoot(String localCacheRoot) {
+        this.localCacheRoot = localCacheRoot;
     }
 
     @Override
     public String createContainer(String userId, String repoHash, String sessionId, String sourcePath,
             java.util.List<String> startupOptions, String region) {
-        // TODO: Implement startupOptions for Kubernetes
-        // For now, ignoring them in K8s implementation until next phase
+        return createPod(userId, repoHash, sessionId, sourcePath, startupOptions, region, false, null);
+    }
+
+    @Override
+    public String createWorker(String pool, String workerId) {
+        return createPod(WORKER_USER, pool, workerId, null, null, null, true, null);
+    }
+
+    @Override
+    public String createGoldenBuild(String repoHash, String buildId, String sourcePath,
+            java.util.List<String> startupOptions, String command) {
+        return createPod(GOLDEN_USER, repoHash, buildId, sourcePath, startupOptions, null, false, command);
+    }
+
+    /**
+     * Snapshots the golden build's output-base volume. The snapshot class must
+     * retain the snapshot's content, since the build's namespace (and with it
+     * the VolumeSnapshot object) is deleted once the snapshot is ready.
+     */
+    @Override
+    public void snapshotOutputBase(String repoHash, String buildId, String snapshotId) {
+        String namespace = getNamespaceName(GOLDEN_USER, repoHash, buildId);
+        java.util.Map<String, Object> spec = new java.util.HashMap<>();
+        spec.put("source", java.util.Collections.singletonMap("persistentVolumeClaimName", "output-base"));
+        if (outputBaseVolumes.snapshotClass != null) {
+            spec.put("volumeSnapshotClassName", outputBaseVolumes.snapshotClass);
+        }
+        GenericKubernetesResource snapshot = snapshotObject("VolumeSnapshot", snapshotId, namespace, spec);
+        logger.info("Snapshotting the output base of golden build " + buildId + " as " + snapshotId);
+        applyWithRetry("volume snapshot " + snapshotId, () -> k8sClient.resource(snapshot)
+                .fieldManager(FIELD_MANAGER).forceConflicts().serverSideApply());
+    }
+
+    @Override
+    public boolean isSnapshotReady(String repoHash, String snapshotId) {
+        if (snapshots.containsKey(snapshotId)) {
+            return true;
+        }
+        GenericKubernetesResource snapshot = k8sClient
+                .genericKubernetesResources(SNAPSHOT_API, "VolumeSnapshot")
+                .inAnyNamespace().withLabel("rbs/snapshot", snapshotId).list().getItems().stream()
+                .findFirst().orElse(null);
+        if (snapshot == null) {
+            throw new IllegalStateException("Volume snapshot " + snapshotId + " is gone");
+        }
+        Object error = field(snapshot, "status", "error", "message");
+        if (error != null) {
+            throw new IllegalStateException("Volume snapshot " + snapshotId + " failed: " + error);
+        }
+        Object contentName = field(snapshot, "status", "boundVolumeSnapshotContentName");
+        if (!Boolean.TRUE.equals(field(snapshot, "status", "readyToUse")) || contentName == null) {
+            return false;
+        }
+        GenericKubernetesResource content = k8sClient
+                .genericKubernetesResources(SNAPSHOT_API, "VolumeSnapshotContent")
+                .withName(contentName.toString()).get();
+        Object handle = content != null ? field(content, "status", "snapshotHandle") : null;
+        if (handle == null) {
+            return false;
+        }
+        snapshots.put(snapshotId, new GoldenSnapshot(contentName.toString(),
+                String.valueOf(field(content, "spec", "driver")), handle.toString()));
+        return true;
+    }
+
+    @Override
+    public void useSnapshot(String repoHash, String snapshotId) {
+        if (snapshotId == null) {
+            goldenByRepo.remove(repoHash);
+            return;
+        }
+        GoldenSnapshot snapshot = snapshots.get(snapshotId);
+        if (snapshot == null) {
+            throw new IllegalStateException("Volume snapshot " + snapshotId + " is not ready");
+        }
+        goldenByRepo.put(repoHash, snapshot);
+    }
+
+    /** Lets the snapshot controller delete the storage snapshot along with its retained content. */
+    @Override
+    public void deleteSnapshot(String repoHash, String snapshotId) {
+        GoldenSnapshot snapshot = snapshots.remove(snapshotId);
+        if (snapshot == null) {
+            return;
+        }
+        goldenByRepo.remove(repoHash, snapshot);
+        logger.info("Deleting golden snapshot " + snapshotId + " (" + snapshot.contentName + ")");
+        try {
+            k8sClient.genericKubernetesResources(SNAPSHOT_API, "VolumeSnapshotContent")
+                    .withName(snapshot.contentName).edit(content -> {
+                        @SuppressWarnings("unchecked")
+                        java.util.Map<String, Object> spec = (java.util.Map<String, Object>) content
+                                .getAdditionalProperties().get("spec");
+                        spec.put("deletionPolicy", "Delete");
+                        return content;
+                    });
+            k8sClient.genericKubernetesResources(SNAPSHOT_API, "VolumeSnapshotContent")
+                    .withName(snapshot.contentName).delete();
+        } catch (KubernetesClientException e) {
+            logger.warning("Failed to delete golden snapshot " + snapshotId + ": " + e.getMessage());
+        }
+    }
+
+    private static GenericKubernetesResource snapshotObject(String kind, String name, String namespace,
+            java.util.Map<String, Object> spec) {
+        GenericKubernetesResource object = new GenericKubernetesResourceBuilder()
+                .withApiVersion(SNAPSHOT_API)
+                .withKind(kind)
+                .withNewMetadata()
+                .withName(name)
+                .withNamespace(namespace)
+                .addToLabels("rbs/snapshot", name)
+                .endMetadata()
+                .build();
+        object.setAdditionalProperty("spec", spec);
+        return object;
+    }
+
+    private static Object field(GenericKubernetesResource object, String... path) {
+        Object value = object.getAdditionalProperties();
+        for (String key : path) {
+            if (!(value instanceof java.util.Map)) {
+                return null;
+            }
+            value = ((java.util.Map<?, ?>) value).get(key);
+        }
+        return value;
+    }
+
+    /** @param goldenCommand The warm build of a golden build; null for sessions and workers. */
+    private String createPod(String userId, String repoHash, String sessionId, String sourcePath,
+            java.util.List<String> startupOptions, String region, boolean worker, String goldenCommand) {
         String namespace = getNamespaceName(userId, repoHash, sessionId);
         String serviceAccountName = "sa-" + userId.toLowerCase().replaceAll("[^a-z0-9]", "");
         String podName = "bazel-server"; // Fixed name since we are in a unique namespace
 
-        logger.info("Ensuring namespace: " + namespace);
-        createNamespace(namespace);
-        createServiceAccount(namespace, serviceAccountName);
-
-        logger.info("Creating pod: " + podName + " in namespace " + namespace + " (source: " + sourcePath
-                + ") in region: " + region);
-
         // Define Pod
         java.util.Map<String, String> annotations = new java.util.HashMap<>();
         if (region != null && !region.isEmpty()) {
             annotations.put("rbs.region", region);
         }
 
+        AgentImageCatalog.AgentImage image = imageCatalog.resolve(repoHash);
+        if (image.getBazelVersion() != null) {
+            annotations.put("rbs.bazel-version", image.getBazelVersion());
+        }
+        boolean golden = goldenCommand != null;
+        // Golden builds write their output base to a volume to snapshot; sessions start from a clone of it.
+        GoldenSnapshot clone = worker || golden ? null : goldenByRepo.get(repoHash);
+        boolean hasOutputBaseVolume = golden || clone != null;
+        java.util.List<String> effectiveOptions = startupOptions != null ? new java.util.ArrayList<>(startupOptions)
+                : new java.util.ArrayList<>();
+        if (hasOutputBaseVolume && effectiveOptions.stream().noneMatch(o -> o.startsWith("--output_base"))) {
+            effectiveOptions.add("--output_base=" + OUTPUT_BASE_MOUNT + "/base");
+        }
+        java.util.List<io.fabric8.kubernetes.api.model.EnvVar> env = new java.util.ArrayList<>();
+        env.add(new io.fabric8.kubernetes.api.model.EnvVar("PORT", String.valueOf(AGENT_PORT), null));
+        env.add(new io.fabric8.kubernetes.api.model.EnvVar("BAZEL_STARTUP_OPTIONS",
+                String.join("|||", effectiveOptions), null));
+        String warmupCommand = worker ? null : golden ? goldenCommand : imageCatalog.warmupCommand(repoHash);
+        if (warmupCommand != null) {
+            // The agent reports NOT_SERVING on gRPC health until this has run.
+            env.add(new io.fabric8.kubernetes.api.model.EnvVar("RBS_WARMUP_COMMAND", warmupCommand, null));
+        }
+        if (remoteCacheAddress != null) {
+            env.add(new io.fabric8.kubernetes.api.model.EnvVar("RBS_REMOTE_CACHE", remoteCacheAddress, null));
+        }
+        if (remoteDownloaderAddress != null && !worker) {
+            env.add(new io.fabric8.kubernetes.api.model.EnvVar("RBS_REMOTE_DOWNLOADER", remoteDownloaderAddress,
+                    null));
+        }
+        String cacheRoot = worker || golden ? null : localCacheRoot;
+        if (cacheRoot != null) {
+            env.add(new io.fabric8.kubernetes.api.model.EnvVar("RBS_LOCAL_CACHE", LOCAL_CACHE_MOUNT, null));
+        }
+        if (worker) {
+            env.add(new io.fabric8.kubernetes.api.model.EnvVar("RBS_WORKER", "1", null));
+        } else if (golden) {
+            env.add(new io.fabric8.kubernetes.api.model.EnvVar("RBS_GOLDEN", "1", null));
+        } else {
+            if (remoteExecutorAddress != null) {
+                env.add(new io.fabric8.kubernetes.api.model.EnvVar("RBS_REMOTE_EXECUTOR", remoteExecutorAddress,
+                        null));
+            }
+            env.add(new io.fabric8.kubernetes.api.model.EnvVar("RBS_SESSION_ID", sessionId, null));
+        }
+        // Workers have no workspace: their inputs come from the remote cache.
+        boolean hasWorkspace = sourcePath != null && !sourcePath.isEmpty();
+        java.util.List<io.fabric8.kubernetes.api.model.Volume> volumes = new java.util.ArrayList<>();
+        java.util.List<io.fabric8.kubernetes.api.model.VolumeMount> volumeMounts = new java.util.ArrayList<>();
+        String workingDir = hasWorkspace ? sourcePath : null;
+        if (hasWorkspace && sourcePath.startsWith(WorkspaceSync.CAS_SOURCE_PREFIX)) {
+            // A synced tree: the agent fetches it from the remote cache into the pod's own volume.
+            workingDir = WORKSPACE_MOUNT + "/src";
+            env.add(new io.fabric8.kubernetes.api.model.EnvVar("RBS_WORKSPACE_DIR", workingDir, null));
+            env.add(new io.fabric8.kubernetes.api.model.EnvVar("RBS_WORKSPACE_DIGEST",
+                    sourcePath.substring(WorkspaceSync.CAS_SOURCE_PREFIX.length()), null));
+            volumes.add(new io.fabric8.kubernetes.api.model.VolumeBuilder()
+                    .withName("workspace-volume")
+                    .withNewEmptyDir()
+                    .endEmptyDir()
+                    .build());
+            volumeMounts.add(new io.fabric8.kubernetes.api.model.VolumeMountBuilder()
+                    .withName("workspace-volume")
+                    .withMountPath(WORKSPACE_MOUNT)
+                    .build());
+        } else if (hasWorkspace) {
+            volumes.add(new io.fabric8.kubernetes.api.model.VolumeBuilder()
+                    .withName("workspace-volume")
+                    .withNewHostPath()
+                    .withPath(sourcePath)
+                    .endHostPath()
+                    .build());
+            volumeMounts.add(new io.fabric8.kubernetes.api.model.VolumeMountBuilder()
+                    .withName("workspace-volume")
+                    .withMountPath(sourcePath) // Mount at same path as host
+                    .build());
+        }
+        io.fabric8.kubernetes.api.model.Affinity affinity = null;
+        if (cacheRoot != null) {
+            volumes.add(new io.fabric8.kubernetes.api.model.VolumeBuilder()
+                    .withName("local-cache")
+                    .withNewHostPath()
+                    .withPath(cacheRoot + "/" + workspaceKey(userId, repoHash))
+                    .withType("DirectoryOrCreate")
+                    .endHostPath()
+                    .build());
+            volumeMounts.add(new io.fabric8.kubernetes.api.model.VolumeMountBuilder()
+                    .withName("local-cache")
+                    .withMountPath(LOCAL_CACHE_MOUNT)
+                    .build());
+            String lastNode = lastNodes.get(workspaceKey(userId, repoHash));
+            if (lastNode != null) {
+                affinity = new io.fabric8.kubernetes.api.model.AffinityBuilder()
+                        .withNewNodeAffinity()
+                        .addNewPreferredDuringSchedulingIgnoredDuringExecution()
+                        .withWeight(100)
+                        .withNewPreference()
+                        .addNewMatchField()
+                        .withKey("metadata.name")
+                        .withOperator("In")
+                        .withValues(lastNode)
+                        .endMatchField()
+                        .endPreference()
+                        .endPreferredDuringSchedulingIgnoredDuringExecution()
+                        .endNodeAffinity()
+                        .build();
+            }
+        }
+        java.util.List<HasMetadata> volumeObjects = new java.util.ArrayList<>();
+        if (hasOutputBaseVolume) {
+            volumeObjects.addAll(outputBaseObjects(namespace, clone));
+            volumes.add(new io.fabric8.kubernetes.api.model.VolumeBuilder()
+                    .withName("output-base")
+                    .withNewPersistentVolumeClaim()
+                    .withClaimName("output-base")
+                    .endPersistentVolumeClaim()
+                    .build());
+            volumeMounts.add(new io.fabric8.kubernetes.api.model.VolumeMountBuilder()
+                    .withName("output-base")
+                    .withMountPath(OUTPUT_BASE_MOUNT)
+                    .build());
+        }
+
+        VerticalScaler scaler = worker ? null : verticalScaler;
+        io.fabric8.kubernetes.api.model.ResourceRequirements resources = scaler != null
+                ? resources(scaler.initialSize()) : null;
+        java.util.List<io.fabric8.kubernetes.api.model.ContainerResizePolicy> resizePolicy =
+                new java.util.ArrayList<>();
+        if (scaler != null) {
+            // The Bazel server keeps running (and its JVM warm) while the pod is resized.
+            resizePolicy.add(new io.fabric8.kubernetes.api.model.ContainerResizePolicy("cpu", "NotRequired"));
+            resizePolicy.add(new io.fabric8.kubernetes.api.model.ContainerResizePolicy("memory", "NotRequired"));
+        }
+
         Pod pod = new PodBuilder()
                 .withNewMetadata()
                 .withName(podName)
                 .withNamespace(namespace)
-                .addToLabels("app", "bazel-build")
+                .addToLabels("app", worker ? "rbs-worker" : golden ? "rbs-golden" : "bazel-build")
                 .addToLabels("user", userId)
                 .addToLabels("session", sessionId)
                 .addToAnnotations(annotations)
                 .endMetadata()
                 .withNewSpec()
                 .withServiceAccountName(serviceAccountName)
-                .addNewVolume()
-                .withName("workspace-volume")
-                .withNewHostPath()
-                .withPath(sourcePath)
-                .endHostPath()
-                .endVolume()
+                .withNodeSelector(buildPoolNodeSelector.isEmpty() ? null : buildPoolNodeSelector)
+                // Preempts headroom balloons when the pool is full.
+                .withPriorityClassName(priorityClassName)
+                // Preferably next to the workspace's warm local cache.
+                .withAffinity(affinity)
+                // A golden build exits when done; its volume is snapshotted after that.
+                .withRestartPolicy(golden ? "Never" : null)
+                .withVolumes(volumes)
                 .addNewContainer()
                 .withName("bazel-server")
-                .withImage("localhost/agent:latest")
-                .withImagePullPolicy("Never") // Use local image for Kind/Minikube
-                .addNewVolumeMount()
-                .withName("workspace-volume")
-                .withMountPath(sourcePath) // Mount at same path as host
-                .endVolumeMount()
-                .addNewEnv()
-                .withName("PORT")
-                .withValue("9011") // Standard agent port
-                .endEnv()
-                .addNewEnv()
-                .withName("BAZEL_STARTUP_OPTIONS")
-                .withValue(startupOptions != null ? String.join("|||", startupOptions) : "")
-                .endEnv()
+                .withImage(image.getReference())
+                .withImagePullPolicy(image.getPullPolicy())
+                // Bazel (server start, warm-up) runs in the workspace.
+                .withWorkingDir(workingDir)
+                .withVolumeMounts(volumeMounts)
+                .withEnv(env)
+                .withResources(resources)
+                .withResizePolicy(resizePolicy.isEmpty() ? null : resizePolicy)
+                .addNewPort()
+                .withContainerPort(AGENT_PORT)
+                .endPort()
+                // Ready once the agent serves gRPC health, i.e. listens and has finished warm-up.
+                .withNewReadinessProbe()
+                .withNewGrpc()
+                .withPort(AGENT_PORT)
+                .endGrpc()
+                .withPeriodSeconds(1)
+                .withFailureThreshold(1)
+                .endReadinessProbe()
                 // .withCommand("sh", "-c", "while true; do echo 'Bazel Server Running'; sleep
                 // 10; done") // Debug
                 .endContainer()
                 .endSpec()
                 .build();
 
-        // Create Pod
+        io.fabric8.kubernetes.api.model.Namespace namespaceObject = new NamespaceBuilder()
+                .withNewMetadata().withName(namespace).endMetadata().build();
+        io.fabric8.kubernetes.api.model.ServiceAccount serviceAccount = new ServiceAccountBuilder()
+                .withNewMetadata().withName(serviceAccountName).withNamespace(namespace).endMetadata().build();
+        int fingerprint = java.util.Objects.hash(namespaceObject, serviceAccount, pod, volumeObjects);
+
+        // A retried or duplicate request for the same bundle waits for, or reuses, the first apply.
+        NamespaceLock lock = namespaceLocks.compute(namespace, (ns, held) -> {
+            NamespaceLock l = held != null ? held : new NamespaceLock();
+            l.holders++;
+            return l;
+        });
         try {
-            k8sClient.pods().inNamespace(namespace).resource(pod).create();
-            logger.info("Pod creation requested for: " + podName);
-        } catch (Exception e) {
-            logger.severe("Failed to create pod: " + e.getMessage());
-            throw new RuntimeException("Failed to create pod: " + e.getMessage(), e);
+            synchronized (lock) {
+                if (Integer.valueOf(fingerprint).equals(appliedBundles.get(namespace))) {
+                    logger.info("Bundle for " + namespace + " already applied");
+                    return podName;
+                }
+                logger.info("Applying namespace, service account and pod " + podName + " in " + namespace
+                        + " (source: " + sourcePath + ") in region: " + region);
+                applyBundle(namespace, namespaceObject, serviceAccount, pod, volumeObjects);
+                appliedBundles.put(namespace, fingerprint);
+            }
+        } finally {
+            namespaceLocks.computeIfPresent(namespace, (ns, held) -> --held.holders == 0 ? null : held);
         }
         return podName;
     }
 
+    /**
+     * The output-base claim of a golden build or session, and for a session the
+     * objects binding its namespace to the golden snapshot it is cloned from: a
+     * pre-provisioned VolumeSnapshotContent with the snapshot's handle, and a
+     * VolumeSnapshot bound to it. A snapshot can only be restored in its own
+     * namespace, so each session gets this binding to the same storage snapshot.
+     */
+    private java.util.List<HasMetadata> outputBaseObjects(String namespace, GoldenSnapshot clone) {
+        java.util.List<HasMetadata> objects = new java.util.ArrayList<>();
+        OutputBaseVolumes settings = outputBaseVolumes;
+        io.fabric8.kubernetes.api.model.TypedLocalObjectReference dataSource = null;
+        if (clone != null) {
+            java.util.Map<String, Object> contentSpec = new java.util.HashMap<>();
+            // Retain: deleting the session's binding must not delete the shared snapshot.
+            contentSpec.put("deletionPolicy", "Retain");
+            contentSpec.put("driver", clone.driver);
+            contentSpec.put("source", java.util.Collections.singletonMap("snapshotHandle", clone.handle));
+            java.util.Map<String, Object> ref = new java.util.HashMap<>();
+            ref.put("namespace", namespace);
+            ref.put("name", "golden");
+            contentSpec.put("volumeSnapshotRef", ref);
+            objects.add(snapshotObject("VolumeSnapshotContent", namespace + "-golden", null, contentSpec));
+            objects.add(snapshotObject("VolumeSnapshot", "golden", namespace, java.util.Collections.singletonMap(
+                    "source", java.util.Collections.singletonMap("volumeSnapshotContentName", namespace + "-golden"))));
+            dataSource = new io.fabric8.kubernetes.api.model.TypedLocalObjectReference("snapshot.storage.k8s.io",
+                    "VolumeSnapshot", "golden");
+        }
+        objects.add(new io.fabric8.kubernetes.api.model.PersistentVolumeClaimBuilder()
+                .withNewMetadata()
+                .withName("output-base")
+                .withNamespace(namespace)
+                .endMetadata()
+                .withNewSpec()
+                .withAccessModes("ReadWriteOnce")
+                .withStorageClassName(settings.storageClass)
+                .withNewResources()
+                .addToRequests("storage", new io.fabric8.kubernetes.api.model.Quantity(settings.size))
+                .endResources()
+                .withDataSource(dataSource)
+                .endSpec()
+                .build());
+        return objects;
+    }
+
+    /**
+     * Server-side applies the session's objects: the namespace first, then the
+     * service account, volumes and pod concurrently. Applying is idempotent, so
+     * a retry after a partial failure converges instead of failing on
+     * AlreadyExists.
+     */
+    private void applyBundle(String namespace, io.fabric8.kubernetes.api.model.Namespace namespaceObject,
+            io.fabric8.kubernetes.api.model.ServiceAccount serviceAccount, Pod pod,
+            java.util.List<HasMetadata> volumeObjects) {
+        ProvisioningTimeline timeline = new ProvisioningTimeline();
+        timeline.mark(ProvisioningTimeline.Milestone.REQUESTED, System.currentTimeMillis());
+        timelines.put(namespace, timeline);
+
+        try {
+            applyWithRetry("namespace " + namespace, () -> k8sClient.namespaces().resource(namespaceObject)
+                    .fieldManager(FIELD_MANAGER).forceConflicts().serverSideApply());
+            timeline.mark(ProvisioningTimeline.Milestone.NAMESPACE_CREATED, System.currentTimeMillis());
+
+            CompletableFuture<Void> serviceAccountApplied = CompletableFuture.runAsync(() -> {
+                applyWithRetry("service account in " + namespace, () -> k8sClient.serviceAccounts()
+                        .inNamespace(namespace).resource(serviceAccount)
+                        .fieldManager(FIELD_MANAGER).forceConflicts().serverSideApply());
+                timeline.mark(ProvisioningTimeline.Milestone.SERVICE_ACCOUNT_CREATED, System.currentTimeMillis());
+            }, applyExecutor);
+            // In order: the claim's data source must exist before the claim is provisioned.
+            CompletableFuture<Void> volumesApplied = CompletableFuture.runAsync(() -> {
+                for (HasMetadata object : volumeObjects) {
+                    applyWithRetry(object.getKind() + " in " + namespace, () -> k8sClient.resource(object)
+                            .fieldManager(FIELD_MANAGER).forceConflicts().serverSideApply());
+                }
+            }, applyExecutor);
+            CompletableFuture<Void> podApplied = CompletableFuture.runAsync(() -> {
+                applyWithRetry("pod in " + namespace, () -> k8sClient.pods().inNamespace(namespace).resource(pod)
+                        .fieldManager(FIELD_MANAGER).forceConflicts().serverSideApply());
+                timeline.mark(ProvisioningTimeline.Milestone.POD_CREATED, System.currentTimeMillis());
+            }, applyExecutor);
+            CompletableFuture.allOf(serviceAccountApplied, volumesApplied, podApplied).join();
+        } catch (Exception e) {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            logger.severe("Failed to create pod: " + cause.getMessage());
+            throw new RuntimeException("Failed to create pod: " + cause.getMessage(), cause);
+        }
+    }
+
+    private void applyWithRetry(String what, Runnable apply) {
+        long backoffMillis = INITIAL_BACKOFF_MILLIS;
+        for (int attempt = 1;; attempt++) {
+            try {
+                apply.run();
+                return;
+            } catch (KubernetesClientException e) {
+                if (attempt >= MAX_APPLY_ATTEMPTS || !isRetryable(e)) {
+                    throw e;
+                }
+                logger.warning("Applying " + what + " failed (attempt " + attempt + ", code " + e.getCode()
+                        + "), retrying in " + backoffMillis + "ms: " + e.getMessage());
+            }
+            try {
+                Thread.sleep(backoffMillis + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while applying " + what);
+            }
+            backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    static boolean isRetryable(KubernetesClientException e) {
+        int code = e.getCode();
+        if (code == 0 || code == 409 || code == 429 || code >= 500) {
+            // No response, conflicting writer, throttled, or a transient server error.
+            return true;
+        }
+        // The pod raced ahead of its service account, which admission requires to exist. Admission
+        // forbids the named pod; an RBAC denial forbids the resource and names no object.
+        io.fabric8.kubernetes.api.model.Status status = e.getStatus();
+        return code == 403 && status != null && "Forbidden".equals(status.getReason())
+                && status.getDetails() != null && "pods".equals(status.getDetails().getKind())
+                && status.getDetails().getName() != null;
+    }
+
+    /** Requests and limits alike, so a resize never changes the pod's QoS class. */
+    private static io.fabric8.kubernetes.api.model.ResourceRequirements resources(VerticalScaler.Size size) {
+        java.util.Map<String, io.fabric8.kubernetes.api.model.Quantity> amounts = new java.util.HashMap<>();
+        amounts.put("memory", new io.fabric8.kubernetes.api.model.Quantity((size.memoryBytes >> 20) + "Mi"));
+        amounts.put("cpu", new io.fabric8.kubernetes.api.model.Quantity(size.cpuMillis + "m"));
+        return new io.fabric8.kubernetes.api.model.ResourceRequirementsBuilder()
+                .withRequests(amounts)
+                .withLimits(new java.util.HashMap<>(amounts))
+                .build();
+    }
+
+    /**
+     * Resizes the session's pod in place when the scaler asks for it. The
+     * container's resources are patched without a restart (InPlacePodVerticalScaling);
+     * the cooldown keeps a resize the kubelet has not applied yet from being re-issued,
+     * and a rejected resize backs off before it is tried again.
+     */
+    @Override
+    public void reportUsage(String userId, String repoHash, String sessionId,
+            com.example.rbs.proto.ResourceUsage usage) {
+        VerticalScaler scaler = verticalScaler;
+        if (scaler == null || WORKER_USER.equals(userId)) {
+            return;
+        }
+        String namespace = getNamespaceName(userId, repoHash, sessionId);
+        VerticalScaler.Size target = scaler.target(namespace, usage);
+        if (target == null) {
+            return;
+        }
+        VerticalScaler.Size current = scaler.currentSize(namespace, usage);
+        logger.info("Resizing pod in " + namespace + " from " + current + " to " + target + " (rss "
+                + (usage.getRssBytes() >> 20) + "Mi, cpu " + usage.getCpuMillicores() + "m, command '"
+                + usage.getActiveCommand() + "')");
+        try {
+            resizePod(namespace, target);
+        } catch (KubernetesClientException e) {
+            logger.warning("Resizing pod in " + namespace + " failed: " + e.getMessage());
+            scaler.resizeFailed(namespace);
+            return;
+        }
+        scaler.resized(namespace, current, target);
+    }
+
+    /**
+     * Patches the session container's resources through the pod's
+     * {@code resize} subresource, the only write that may change them in place.
+     */
+    void resizePod(String namespace, VerticalScaler.Size size) {
+        Pod patch = new PodBuilder()
+                .withNewSpec()
+                .addNewContainer()
+                .withName("bazel-server")
+                .withResources(resources(size))
+                .endContainer()
+                .endSpec()
+                .build();
+        k8sClient.pods().inNamespace(namespace).withName("bazel-server").subresource("resize")
+                .patch(PatchContext.of(PatchType.STRATEGIC_MERGE), patch);
+    }
+
     @Override
     public void deleteContainer(String userId, String repoHash, String sessionId) {
         String namespace = getNamespaceName(userId, repoHash, sessionId);
         logger.info("Deleting namespace: " + namespace);
+        timelines.remove(namespace);
+        VerticalScaler scaler = verticalScaler;
+        if (scaler != null) {
+            scaler.forget(namespace);
+        }
+        forgetBundle(namespace);
+        try {
+            // Cluster-scoped, so not deleted with the namespace; retained, so the golden snapshot stays.
+            k8sClient.genericKubernetesResources(SNAPSHOT_API, "VolumeSnapshotContent")
+                    .withName(namespace + "-golden").delete();
+        } catch (KubernetesClientException e) {
+            logger.warning("Error deleting the golden snapshot binding of " + namespace + ": " + e.getMessage());
+        }
         try {
             k8sClient.namespaces().withName(namespace).withGracePeriod(0).delete();
 
@@ -121,18 +749,42 @@ public class KubernetesComputeService implements ComputeService {
         Pod pod = k8sClient.pods().inNamespace(namespace).withName(podName).get();
 
         if (pod == null) {
+            // Deleted behind our back; the next createContainer must apply again.
+            forgetBundle(namespace);
             return null;
         }
 
-        String phase = pod.getStatus().getPhase();
-        String ip = pod.getStatus().getPodIP();
+        if (GOLDEN_USER.equals(userId)) {
+            // A golden build is done, not dead, when its agent exits successfully.
+            String phase = pod.getStatus() != null ? pod.getStatus().getPhase() : null;
+            return new ContainerStatus("Succeeded".equals(phase) ? "READY"
+                    : "Failed".equals(phase) ? "TERMINATED" : "PENDING", null);
+        }
+        ContainerStatus status = statusOf(pod);
+        if ("READY".equals(status.getStatus())) {
+            completeTimeline(namespace, pod);
+            String node = pod.getSpec() != null ? pod.getSpec().getNodeName() : null;
+            if (localCacheRoot != null && !WORKER_USER.equals(userId) && node != null) {
+                lastNodes.put(workspaceKey(userId, repoHash), node);
+            }
+        }
+        return status;
+    }
+
+    /** Names a workspace's local cache directory and its entry in {@code lastNodes}. */
+    private static String workspaceKey(String userId, String repoHash) {
+        return userId.toLowerCase().replaceAll("[^a-z0-9]", "") + "-" + repoHash;
+    }
+
+    private static ContainerStatus statusOf(Pod pod) {
+        String phase = pod.getStatus() != null ? pod.getStatus().getPhase() : null;
+        String ip = pod.getStatus() != null ? pod.getStatus().getPodIP() : null;
 
         String status = "PENDING";
         if ("Running".equals(phase)) {
-            // Check readiness (e.g. ready condition). For now assuming Running is enough or
-            // use 'Ready' condition.
-            // Simple logic: if Running and IP assigned -> READY
-            if (ip != null && !ip.isEmpty()) {
+            // Running only means the container started; the Ready condition follows the agent's
+            // readiness probe, which passes once it listens and the Bazel warm-up is done.
+            if (ip != null && !ip.isEmpty() && isPodReady(pod)) {
                 status = "READY";
             }
         } else if ("Succeeded".equals(phase) || "Failed".equals(phase)) {
@@ -142,26 +794,196 @@ public class KubernetesComputeService implements ComputeService {
         return new ContainerStatus(status, ip);
     }
 
-    private String getNamespaceName(String userId, String repoHash, String sessionId) {
-        String sanitizedUser = userId.toLowerCase().replaceAll("[^a-z0-9]", "");
-        // Use hash of SessionID to keep it short if needed, or substring
-        String sessionSuffix = sessionId.substring(0, Math.min(sessionId.length(), 8));
-        return sanitizedUser + "-rbs-" + repoHash + "-" + sessionSuffix;
+    /** Watches all session pods with one informer, keyed by their {@code session} label. */
+    @Override
+    public void watchContainers(ContainerListener listener) {
+        k8sClient.pods().inAnyNamespace().withLabel("app", "bazel-build")
+                .inform(new io.fabric8.kubernetes.client.informers.ResourceEventHandler<Pod>() {
+                    @Override
+                    public void onAdd(Pod pod) {
+                        listener.onContainerChanged(sessionOf(pod), statusOf(pod));
+                    }
+
+                    @Override
+                    public void onUpdate(Pod oldPod, Pod pod) {
+                        listener.onContainerChanged(sessionOf(pod), statusOf(pod));
+                    }
+
+                    @Override
+                    public void onDelete(Pod pod, boolean deletedFinalStateUnknown) {
+                        listener.onContainerChanged(sessionOf(pod), null);
+                    }
+                });
+    }
+
+    private static String sessionOf(Pod pod) {
+        return pod.getMetadata().getLabels().get("session");
+    }
+
+    private void forgetBundle(String namespace) {
+        // The namespace's lock is left to its holders: dropping it here would let a second apply start.
+        appliedBundles.remove(namespace);
+    }
+
+    /** Serializes applies to one namespace; {@code holders} is only changed inside {@code namespaceLocks.compute}. */
+    private static class NamespaceLock {
+        int holders;
+    }
+
+    /**
+     * Provisioning milestones of the session, or null if it was not created
+     * by this orchestrator and has not been seen ready yet.
+     */
+    public ProvisioningTimeline getProvisioningTimeline(String userId, String repoHash, String sessionId) {
+        return timelines.get(getNamespaceName(userId, repoHash, sessionId));
+    }
+
+    /**
+     * Fills in the node-side milestones once the pod is first seen ready, and
+     * exports the phases as histograms and as a trace.
+     */
+    private void completeTimeline(String namespace, Pod pod) {
+        ProvisioningTimeline timeline = timelines.computeIfAbsent(namespace, ns -> new ProvisioningTimeline());
+        if (timeline.has(ProvisioningTimeline.Milestone.READY)) {
+            return;
+        }
+        // Created by another replica or before a restart: start from the pod's own creation time.
+        Long created = parseTime(pod.getMetadata().getCreationTimestamp());
+        if (created != null) {
+            timeline.mark(ProvisioningTimeline.Milestone.POD_CREATED, created);
+        }
+        Long scheduled = conditionTime(pod, "PodScheduled");
+        if (scheduled != null) {
+            timeline.mark(ProvisioningTimeline.Milestone.SCHEDULED, scheduled);
+        }
+        try {
+            java.util.List<io.fabric8.kubernetes.api.model.Event> events = k8sClient.v1().events()
+                    .inNamespace(namespace).list().getItems();
+            java.util.Map<String, Long> firstByReason = new java.util.HashMap<>();
+            for (io.fabric8.kubernetes.api.model.Event event : events) {
+                if (event.getInvolvedObject() == null
+                        || !pod.getMetadata().getName().equals(event.getInvolvedObject().getName())) {
+                    continue;
+                }
+                Long at = eventTime(event);
+                if (at != null) {
+                    firstByReason.merge(event.getReason(), at, Math::min);
+                }
+            }
+            markEvent(timeline, ProvisioningTimeline.Milestone.SCHEDULED, firstByReason.get("Scheduled"));
+            markEvent(timeline, ProvisioningTimeline.Milestone.IMAGE_PULL_STARTED, firstByReason.get("Pulling"));
+            markEvent(timeline, ProvisioningTimeline.Milestone.IMAGE_PULLED, firstByReason.get("Pulled"));
+            markEvent(timeline, ProvisioningTimeline.Milestone.CONTAINER_STARTED, firstByReason.get("Started"));
+        } catch (Exception e) {
+            // Events are best-effort (RBAC, TTL); the conditions still give a coarse breakdown.
+            logger.fine("Could not list events in " + namespace + ": " + e.getMessage());
+        }
+        if (pod.getStatus().getContainerStatuses() != null) {
+            for (io.fabric8.kubernetes.api.model.ContainerStatus container : pod.getStatus().getContainerStatuses()) {
+                if (container.getState() != null && container.getState().getRunning() != null) {
+                    markEvent(timeline, ProvisioningTimeline.Milestone.CONTAINER_STARTED,
+                            parseTime(container.getState().getRunning().getStartedAt()));
+                }
+            }
+        }
+        Long ready = conditionTime(pod, "Ready");
+        timeline.mark(ProvisioningTimeline.Milestone.READY, ready != null ? ready : System.currentTimeMillis());
+        export(namespace, timeline);
+    }
+
+    private void export(String namespace, ProvisioningTimeline timeline) {
+        java.util.List<ProvisioningTimeline.Phase> phases = timeline.getPhases();
+        if (phases.isEmpty()) {
+            return;
+        }
+        if (phaseDuration == null) {
+            // Looked up lazily so the global OpenTelemetry is initialized by then.
+            Meter meter = Telemetry.getMeter();
+            phaseDuration = meter.histogramBuilder("rbs.provisioning.phase.duration")
+                    .setDescription("Time spent in each session provisioning phase").setUnit("ms").ofLongs().build();
+            totalDuration = meter.histogramBuilder("rbs.provisioning.duration")
+                    .setDescription("Time from session request to a ready agent").setUnit("ms").ofLongs().build();
+        }
+
+        Tracer tracer = Telemetry.getTracer();
+        ProvisioningTimeline.Phase first = phases.get(0);
+        ProvisioningTimeline.Phase last = phases.get(phases.size() - 1);
+        Span root = tracer.spanBuilder("provision")
+                .setNoParent()
+                .setStartTimestamp(first.startMillis, TimeUnit.MILLISECONDS)
+                .setAttribute("k8s.namespace.name", namespace)
+                .startSpan();
+        Context parent = Context.root().with(root);
+        StringBuilder summary = new StringBuilder();
+        for (ProvisioningTimeline.Phase phase : phases) {
+            phaseDuration.record(phase.getDurationMillis(), Attributes.of(PHASE, phase.name));
+            tracer.spanBuilder(phase.name)
+                    .setParent(parent)
+                    .setStartTimestamp(phase.startMillis, TimeUnit.MILLISECONDS)
+                    .startSpan()
+                    .end(phase.endMillis, TimeUnit.MILLISECONDS);
+            summary.append(' ').append(phase.name).append('=').append(phase.getDurationMillis()).append("ms");
+        }
+        root.end(last.endMillis, TimeUnit.MILLISECONDS);
+        totalDuration.record(timeline.getTotalMillis());
+        logger.info("Provisioned " + namespace + " in " + timeline.getTotalMillis() + "ms:" + summary);
     }
 
-    private void createNamespace(String namespace) {
-        if (k8sClient.namespaces().withName(namespace).get() == null) {
-            k8sClient.namespaces().resource(new io.fabric8.kubernetes.api.model.NamespaceBuilder()
-                    .withNewMetadata().withName(namespace).endMetadata().build()).create();
+    private static void markEvent(ProvisioningTimeline timeline, ProvisioningTimeline.Milestone milestone,
+            Long at) {
+        if (at != null) {
+            timeline.mark(milestone, at);
         }
     }
 
-    private void createServiceAccount(String namespace, String saName) {
-        if (k8sClient.serviceAccounts().inNamespace(namespace).withName(saName).get() == null) {
-            k8sClient.serviceAccounts().inNamespace(namespace)
-                    .resource(new io.fabric8.kubernetes.api.model.ServiceAccountBuilder()
-                            .withNewMetadata().withName(saName).endMetadata().build())
-                    .create();
+    private static Long conditionTime(Pod pod, String type) {
+        if (pod.getStatus().getConditions() == null) {
+            return null;
+        }
+        for (io.fabric8.kubernetes.api.model.PodCondition condition : pod.getStatus().getConditions()) {
+            if (type.equals(condition.getType()) && "True".equals(condition.getStatus())) {
+                return parseTime(condition.getLastTransitionTime());
+            }
+        }
+        return null;
+    }
+
+    private static Long eventTime(io.fabric8.kubernetes.api.model.Event event) {
+        // Scheduler events only carry the newer eventTime; kubelet events carry firstTimestamp.
+        Long at = parseTime(event.getFirstTimestamp());
+        if (at == null && event.getEventTime() != null) {
+            at = parseTime(event.getEventTime().getTime());
+        }
+        return at;
+    }
+
+    private static Long parseTime(String timestamp) {
+        if (timestamp == null || timestamp.isEmpty()) {
+            return null;
+        }
+        try {
+            return Instant.parse(timestamp).toEpochMilli();
+        } catch (java.time.format.DateTimeParseException e) {
+            return null;
         }
     }
+
+    private static boolean isPodReady(Pod pod) {
+        if (pod.getStatus().getConditions() == null) {
+            return false;
+        }
+        for (io.fabric8.kubernetes.api.model.PodCondition condition : pod.getStatus().getConditions()) {
+            if ("Ready".equals(condition.getType())) {
+                return "True".equals(condition.getStatus());
+            }
+        }
+        return false;
+    }
+
+    private String getNamespaceName(String userId, String repoHash, String sessionId) {
+        String sanitizedUser = userId.toLowerCase().replaceAll("[^a-z0-9]", "");
+        // Use hash of SessionID to keep it short if needed, or substring
+        String sessionSuffix = sessionId.substring(0, Math.min(sessionId.length(), 8));
+        return sanitizedUser + "-rbs-" + repoHash + "-" + sessionSuffix;
+    }
 }
@@ -1,5 +1,8 @@
 package com.example.rbs;
 
+import com.example.rbs.proto.GetServerRequest;
+import com.example.rbs.proto.HeartbeatRequest;
+import com.example.rbs.proto.OrchestratorGrpc;
 import com.google.cloud.spanner.DatabaseClient;
 import com.google.cloud.spanner.DatabaseId;
 import com.google.cloud.spanner.Spanner;
@@ -16,80 +19,344 @@ import java.util.logging.Logger;
 public class OrchestratorServer {
     private static final Logger logger = Logger.getLogger(OrchestratorServer.class.getName());
 
+    /** Session starts and ends that {@link PreProvisioner} rebuilds its arrival history from. */
+    private static final String SESSION_EVENTS_DDL =
+            "CREATE TABLE SessionEvents (" +
+                    "    UserId STRING(MAX) NOT NULL," +
+                    "    RepoHash STRING(MAX) NOT NULL," +
+                    "    AtMillis INT64 NOT NULL," +
+                    "    EventId STRING(36) NOT NULL," +
+                    "    Kind STRING(8) NOT NULL," +
+                    "    SourcePath STRING(MAX)," +
+                    "    StartupOptions ARRAY<STRING(MAX)>," +
+                    "    Region STRING(MAX)" +
+                    ") PRIMARY KEY (UserId, RepoHash, AtMillis, EventId)";
+
+    /** BuildSessions columns added after its first release, with their types. */
+    private static final String[][] BUILD_SESSIONS_ADDED_COLUMNS = {
+            {"ComputeSessionId", "STRING(MAX)"},
+            {"LastHeartbeat", "INT64"},
+            {"StartupOptionsHash", "STRING(64)"},
+    };
+
     private Server server;
+    private ReplicaMembership membership;
+    private ShardRouter shardRouter;
+    private WalSessionRepository walRepository;
+    private ExecutionScheduler executionScheduler;
+    private SessionGateway gateway;
+    private Server gatewayServer;
+    private StartupGate gate;
 
-    private void start(int port, boolean localMode) throws IOException {
+    private void start(Options options) throws IOException {
         SessionRepository sessionRepo;
         ComputeService computeService;
+        KubernetesClient k8sClient = null;
+        HeadroomBalloons balloons = null;
+        gate = new StartupGate(Clock.systemUTC(), java.time.Duration.ofSeconds(5));
 
-        if (localMode) {
-            logger.info("Starting in LOCAL MODE (InMemory DB + Process Compute)");
-            sessionRepo = new InMemorySessionRepository(Clock.systemUTC());
-            computeService = new ProcessComputeService();
+        if (options.localMode) {
+            if (options.stateDir != null) {
+                walRepository = new WalSessionRepository(java.nio.file.Paths.get(options.stateDir),
+                        Clock.systemUTC());
+                sessionRepo = walRepository;
+            } else {
+                sessionRepo = new InMemorySessionRepository(Clock.systemUTC());
+            }
+            String db = walRepository != null ? "WAL DB in " + options.stateDir : "InMemory DB";
+            if (options.fakeCompute) {
+                logger.info("Starting in LOCAL MODE (" + db + " + Fake Compute, median start "
+                        + options.fakeStartMedianMillis + "ms)");
+                computeService = new FakeComputeService(Clock.systemUTC(),
+                        FakeComputeService.logNormal(options.fakeStartMedianMillis, 0.5, new java.util.Random()),
+                        options.fakeApiLatencyMillis);
+            } else {
+                logger.info("Starting in LOCAL MODE (" + db + " + Process Compute)");
+                computeService = new ProcessComputeService();
+            }
         } else {
             // Initialize Spanner Client
-            SpannerOptions options = SpannerOptions.newBuilder().setEmulatorHost("localhost:9010").build();
-            Spanner spanner = options.getService();
-            String projectId = options.getProjectId();
+            SpannerOptions spannerOptions = SpannerOptions.newBuilder().setEmulatorHost("localhost:9010").build();
+            Spanner spanner = spannerOptions.getService();
+            String projectId = spannerOptions.getProjectId();
             String instanceId = "test-instance";
             String databaseId = "test-database";
 
-            // Create Instance if not exists (for Emulator)
-            try {
-                com.google.cloud.spanner.InstanceConfigId configId = com.google.cloud.spanner.InstanceConfigId.of(
-                        projectId,
-                        "emulator-config");
-                com.google.cloud.spanner.InstanceId instanceIdObj = com.google.cloud.spanner.InstanceId.of(projectId,
-                        instanceId);
-                com.google.cloud.spanner.InstanceInfo instanceInfo = com.google.cloud.spanner.InstanceInfo
-                        .newBuilder(instanceIdObj)
-                        .setInstanceConfigId(configId)
-                        .setDisplayName("Test Instance")
-                        .setNodeCount(1)
-                        .build();
-
-                spanner.getInstanceAdminClient().createInstance(instanceInfo).get();
-            } catch (Exception e) {
-                // Ignore if already exists (or other errors, assuming check later)
-                // Real usage would check existence first
-                logger.info("Instance creation failed (may already exist): " + e.getMessage());
-            }
-
-            // Create Database if not exists
-            try {
-                spanner.getDatabaseAdminClient().createDatabase(
-                        instanceId,
-                        databaseId,
-                        java.util.Collections.singletonList(
-                                "CREATE TABLE BuildSessions (" +
-                                        "    UserId STRING(MAX) NOT NULL," +
-                                        "    RepoHash STRING(MAX) NOT NULL," +
-                                        "    SessionId STRING(MAX)," +
-                                        "    PodIP STRING(MAX)," +
-                                        "    Status STRING(MAX)" +
-                                        ") PRIMARY KEY (UserId, RepoHash)"))
-                        .get();
-            } catch (Exception e) {
-                logger.info("Database creation failed (may already exist): " + e.getMessage());
-            }
+            // Creating the schema waits on long-running operations; serve (not ready) meanwhile.
+            gate.add("Spanner schema", () -> createSpannerSchema(spanner, projectId, instanceId, databaseId));
 
             DatabaseId dbId = DatabaseId.of(projectId, instanceId, databaseId);
             DatabaseClient dbClient = spanner.getDatabaseClient(dbId);
             sessionRepo = new SpannerSessionRepository(dbClient, Clock.systemUTC());
 
             // Initialize Kubernetes Client
-            KubernetesClient k8sClient = new KubernetesClientBuilder().build();
-            computeService = new KubernetesComputeService(k8sClient);
+            k8sClient = new KubernetesClientBuilder().build();
+            if (options.balloons) {
+                if (options.replicaId != null) {
+                    // Each replica only sees the sessions it starts, and all would scale the same Deployment.
+                    throw new IllegalArgumentException("--balloons is not supported with --replica-id");
+                }
+                if (!options.verticalScaling) {
+                    // Session pods without requests fit anywhere, so they never preempt a balloon.
+                    throw new IllegalArgumentException("--balloons requires --vertical-scaling");
+                }
+                options.balloonSettings.namespace = options.prepullNamespace;
+                VerticalScaler.Settings sizing = options.verticalScalingSettings;
+                balloons = new HeadroomBalloons(k8sClient, options.buildPoolNodeSelector,
+                        new VerticalScaler.Size(sizing.initialMemoryBytes, sizing.initialCpuMillis),
+                        Clock.systemUTC(), java.time.ZoneId.systemDefault(), options.balloonSettings);
+                // With --prewarm the pre-provisioner already keeps the session history.
+                balloons.setSessionRepository(sessionRepo, !options.prewarm);
+                gate.add("balloon history", balloons::loadHistory);
+                // Pods naming the session PriorityClass are rejected until it exists.
+                gate.add("headroom balloons", balloons::sync);
+            }
+            AgentImageCatalog imageCatalog = AgentImageCatalog.localDefault();
+            if (options.imageCatalog != null) {
+                imageCatalog = AgentImageCatalog.load(java.nio.file.Paths.get(options.imageCatalog));
+                ImagePrePuller prePuller = new ImagePrePuller(k8sClient, imageCatalog, options.prepullNamespace,
+                        options.buildPoolNodeSelector);
+                if (balloons != null) {
+                    prePuller.setPriorityClassName(HeadroomBalloons.SESSION_PRIORITY_CLASS);
+                }
+                gate.add("image pre-pull", prePuller::sync);
+            }
+            computeService = new KubernetesComputeService(k8sClient, imageCatalog, options.buildPoolNodeSelector);
+            if (balloons != null) {
+                ((KubernetesComputeService) computeService).setPriorityClassName(
+                        HeadroomBalloons.SESSION_PRIORITY_CLASS);
+            }
         }
 
         Telemetry.init();
 
-        server = ServerBuilder.forPort(port)
-                .addService(new OrchestratorService(sessionRepo, computeService))
+        if (options.verticalScaling) {
+            if (!(computeService instanceof KubernetesComputeService)) {
+                throw new IllegalArgumentException("--vertical-scaling requires Kubernetes (not --local-mode)");
+            }
+            VerticalScaler verticalScaler = new VerticalScaler(Clock.systemUTC(), options.verticalScalingSettings);
+            verticalScaler.registerMetrics(Telemetry.getMeter());
+            ((KubernetesComputeService) computeService).setVerticalScaler(verticalScaler);
+            logger.info("In-place vertical scaling of session pods enabled");
+        }
+
+        if (options.localCacheRoot != null) {
+            if (!(computeService instanceof KubernetesComputeService)) {
+                throw new IllegalArgumentException("--local-cache-root requires Kubernetes (not --local-mode)");
+            }
+            ((KubernetesComputeService) computeService).setLocalCacheRoot(options.localCacheRoot);
+            logger.info("Node-local caches under " + options.localCacheRoot + " with sticky placement");
+        }
+        if (options.cgroupRoot != null) {
+            if (!(computeService instanceof ProcessComputeService)) {
+                throw new IllegalArgumentException("--cgroup-root requires --local-mode without --fake-compute");
+            }
+            CgroupManager cgroups = CgroupManager.open(java.nio.file.Paths.get(options.cgroupRoot),
+                    options.cgroupSettings);
+            cgroups.registerMetrics(Telemetry.getMeter());
+            ((ProcessComputeService) computeService).setCgroupManager(cgroups);
+            logger.info("Local agents run in their own cgroups under " + options.cgroupRoot);
+        }
+        if (walRepository != null && computeService instanceof ProcessComputeService) {
+            reconcileRecoveredSessions(walRepository, (ProcessComputeService) computeService,
+                    java.nio.file.Paths.get(options.stateDir, "agents"));
+        }
+
+        OrchestratorService service = new OrchestratorService(sessionRepo, computeService,
+                java.util.concurrent.Executors.newSingleThreadScheduledExecutor(),
+                java.time.Duration.ofSeconds(options.reapIntervalSeconds),
+                java.time.Duration.ofSeconds(options.staleThresholdSeconds));
+        ServerBuilder<?> builder = ServerBuilder.forPort(options.port).addService(service)
+                .addService(gate.healthService());
+        if (options.maxSessions > 0) {
+            if (options.replicaId != null) {
+                // Each replica would admit up to the cap on its own, so the pool could take several times it.
+                throw new IllegalArgumentException("--max-sessions is not supported with --replica-id");
+            }
+            options.admissionSettings.maxSessions = options.maxSessions;
+            AdmissionController admission = new AdmissionController(Clock.systemUTC(), options.admissionSettings);
+            admission.registerMetrics(Telemetry.getMeter());
+            service.setAdmissionController(admission);
+            logger.info("Admission control enabled (max " + options.maxSessions + " sessions)");
+        }
+        if (balloons != null) {
+            balloons.registerMetrics(Telemetry.getMeter());
+            balloons.start(java.util.concurrent.Executors.newSingleThreadScheduledExecutor());
+            service.setHeadroomBalloons(balloons);
+            logger.info("Headroom balloons enabled (" + options.balloonSettings.minPods + "-"
+                    + options.balloonSettings.maxPods + " pods of " + options.balloonSettings.namespace + "/"
+                    + HeadroomBalloons.DEPLOYMENT_NAME + ")");
+        } else if (options.balloons) {
+            throw new IllegalArgumentException("--balloons requires Kubernetes (not --local-mode)");
+        }
+        if (options.prewarm) {
+            if (options.replicaId != null) {
+                // Each replica only sees the sessions it owns, so per-user history would be partial.
+                throw new IllegalArgumentException("--prewarm is not supported with --replica-id");
+            }
+            PreProvisioner preProvisioner = new PreProvisioner(sessionRepo, computeService,
+                    new SessionHistory(java.time.ZoneId.systemDefault()), Clock.systemUTC(), options.prewarmSettings);
+            // After the Spanner schema; sessions are not served before the history is back.
+            gate.add("session history", preProvisioner::loadHistory);
+            preProvisioner.registerMetrics(Telemetry.getMeter());
+            preProvisioner.start(java.util.concurrent.Executors.newSingleThreadScheduledExecutor());
+            service.setPreProvisioner(preProvisioner);
+            logger.info("Predictive pre-provisioning enabled (max " + options.prewarmSettings.maxSessions
+                    + " servers)");
+        }
+        if (options.goldenSnapshots) {
+            if (computeService instanceof KubernetesComputeService) {
+                ((KubernetesComputeService) computeService).setOutputBaseVolumes(options.outputBaseVolumes);
+            } else if (computeService instanceof ProcessComputeService) {
+                java.nio.file.Path root = options.stateDir != null
+                        ? java.nio.file.Paths.get(options.stateDir, "output-bases")
+                        : java.nio.file.Files.createTempDirectory("rbs-output-bases");
+                ((ProcessComputeService) computeService).setOutputBaseRoot(root);
+            }
+            GoldenSnapshots goldenSnapshots = new GoldenSnapshots(computeService, Clock.systemUTC(),
+                    options.goldenSettings);
+            goldenSnapshots.registerMetrics(Telemetry.getMeter());
+            goldenSnapshots.start(java.util.concurrent.Executors.newSingleThreadScheduledExecutor());
+            service.setGoldenSnapshots(goldenSnapshots);
+            logger.info("Golden output-base snapshots enabled (refresh every "
+                    + options.goldenSettings.refreshInterval + ")");
+        }
+        if (options.remoteCacheDir != null) {
+            RemoteCache remoteCache = RemoteCache.open(java.nio.file.Paths.get(options.remoteCacheDir),
+                    options.remoteCacheMaxBytes);
+            if (options.remoteCacheMaxBlobBytes > 0) {
+                remoteCache.setMaxBlobBytes(options.remoteCacheMaxBlobBytes);
+            }
+            remoteCache.registerMetrics(Telemetry.getMeter());
+            for (io.grpc.BindableService cacheService : remoteCache.services()) {
+                builder.addService(cacheService);
+            }
+            String address = options.remoteCacheAddress;
+            if (address == null) {
+                if (k8sClient != null) {
+                    // Session pods cannot reach the orchestrator through localhost.
+                    throw new IllegalArgumentException(
+                            "--remote-cache-dir requires --remote-cache-address with Kubernetes");
+                }
+                address = "grpc://localhost:" + options.port;
+            }
+            if (computeService instanceof KubernetesComputeService) {
+                ((KubernetesComputeService) computeService).setRemoteCacheAddress(address);
+            } else if (computeService instanceof ProcessComputeService) {
+                ((ProcessComputeService) computeService).setRemoteCacheAddress(address);
+            }
+            logger.info("Remote cache in " + options.remoteCacheDir + " (max " + options.remoteCacheMaxBytes
+                    + " bytes), advertised to agents as " + address);
+            if (options.executionSettings.maxWorkers > 0) {
+                executionScheduler = new ExecutionScheduler(computeService, remoteCache, Clock.systemUTC(),
+                        options.executionSettings);
+                executionScheduler.registerMetrics(Telemetry.getMeter());
+                executionScheduler.start(java.util.concurrent.Executors.newSingleThreadScheduledExecutor());
+                builder.addService(executionScheduler.service());
+                remoteCache.setExecutionEnabled(true);
+                if (computeService instanceof KubernetesComputeService) {
+                    ((KubernetesComputeService) computeService).setRemoteExecutorAddress(address);
+                } else if (computeService instanceof ProcessComputeService) {
+                    ((ProcessComputeService) computeService).setRemoteExecutorAddress(address);
+                }
+                logger.info("Remote execution enabled (up to " + options.executionSettings.maxWorkers + " workers)");
+            }
+            if (options.workspaceRoot != null && computeService instanceof KubernetesComputeService) {
+                // Pods cannot see the orchestrator's disk; they materialise their own workspace.
+                throw new IllegalArgumentException("--workspace-root requires --local-mode");
+            }
+            if (options.workspaceRoot != null || computeService instanceof KubernetesComputeService) {
+                WorkspaceSync workspaceSync = new WorkspaceSync(remoteCache,
+                        options.workspaceRoot != null ? java.nio.file.Paths.get(options.workspaceRoot) : null);
+                workspaceSync.registerMetrics(Telemetry.getMeter());
+                builder.addService(workspaceSync.service());
+                service.setWorkspaceSync(workspaceSync);
+                logger.info("Workspace sync " + (options.workspaceRoot != null ? "into " + options.workspaceRoot
+                        : "in session pods"));
+            }
+            if (options.remoteDownloader) {
+                RemoteDownloader downloader = new RemoteDownloader(remoteCache, sessionRepo, Clock.systemUTC(),
+                        options.downloaderSettings);
+                downloader.registerMetrics(Telemetry.getMeter());
+                downloader.start(java.util.concurrent.Executors.newSingleThreadScheduledExecutor());
+                builder.addService(downloader.service());
+                service.setRemoteDownloader(downloader);
+                if (computeService instanceof KubernetesComputeService) {
+                    ((KubernetesComputeService) computeService).setRemoteDownloaderAddress(address);
+                } else if (computeService instanceof ProcessComputeService) {
+                    ((ProcessComputeService) computeService).setRemoteDownloaderAddress(address);
+                }
+                logger.info("Remote downloader enabled");
+            }
+        } else if (options.executionSettings.maxWorkers > 0) {
+            throw new IllegalArgumentException("--execution-max-workers requires --remote-cache-dir");
+        } else if (options.workspaceRoot != null) {
+            throw new IllegalArgumentException("--workspace-root requires --remote-cache-dir");
+        } else if (options.remoteDownloader) {
+            throw new IllegalArgumentException("--remote-downloader requires --remote-cache-dir");
+        }
+        if (options.xds) {
+            XdsServer xds = new XdsServer(sessionRepo, KubernetesComputeService.AGENT_PORT);
+            xds.registerMetrics(Telemetry.getMeter());
+            builder.addService(xds.service());
+            service.setXdsServer(xds);
+            computeService.watchContainers(xds::onContainerChanged);
+            logger.info("xDS control plane for session endpoints enabled");
+        }
+        SessionTokens tokens;
+        if (options.gatewayKeyFile != null) {
+            tokens = new SessionTokens(java.nio.file.Files.readAllBytes(
+                    java.nio.file.Paths.get(options.gatewayKeyFile)));
+        } else if (options.replicaId != null) {
+            // Each replica must accept the tokens and the forwarded calls of the others.
+            throw new IllegalArgumentException("--replica-id requires --gateway-key-file");
+        } else {
+            tokens = SessionTokens.random();
+        }
+        if (options.gatewayPort > 0) {
+            if (options.gatewayKeyFile == null) {
+                logger.warning("No --gateway-key-file; session tokens stop working when this process restarts");
+            }
+            service.setSessionTokens(tokens);
+            gateway = new SessionGateway(sessionRepo, tokens, KubernetesComputeService.AGENT_PORT, Clock.systemUTC(),
+                    options.gatewaySettings);
+            gateway.registerMetrics(Telemetry.getMeter());
+            gateway.start(java.util.concurrent.Executors.newSingleThreadScheduledExecutor());
+            // Its own server: every method name is relayed, and only the startup gate intercepts.
+            gatewayServer = io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder.forPort(options.gatewayPort)
+                    .fallbackHandlerRegistry(gateway.registry())
+                    .intercept(gate)
+                    .flowControlWindow(gateway.getFlowControlWindowBytes())
+                    .build()
+                    .start();
+            logger.info("Session gateway listening on " + options.gatewayPort);
+        }
+        if (options.resumeSessions) {
+            service.setSessionResumption(true);
+            logger.info("Session resumption enabled");
+        }
+        if (options.replicaId != null) {
+            if (k8sClient == null) {
+                throw new IllegalArgumentException("--replica-id requires Kubernetes (not --local-mode)");
+            }
+            String advertiseAddress = options.advertiseAddress != null ? options.advertiseAddress
+                    : "localhost:" + options.port;
+            membership = new ReplicaMembership(k8sClient, options.shardNamespace, options.replicaId,
+                    advertiseAddress, options.leaseDurationSeconds, Clock.systemUTC());
+            // Calls are held back until the first refresh has filled the ring.
+            gate.add("replica membership", membership::start);
+            shardRouter = new ShardRouter(membership, options.replicaId, tokens);
+            service.setShardRouter(shardRouter);
+            builder.intercept(shardRouter);
+            logger.info("Sharding enabled: replica " + options.replicaId + " advertising " + advertiseAddress);
+        }
+        server = builder
                 .intercept(new TracingInterceptor())
+                .intercept(gate)
                 .build()
                 .start();
-        logger.info("Server started, listening on " + port);
+        logger.info("Server started, listening on " + options.port);
+        gate.start(java.util.concurrent.Executors.newSingleThreadScheduledExecutor());
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
@@ -106,10 +373,179 @@ public class OrchestratorServer {
         });
     }
 
+    /**
+     * Agents outlive the orchestrator process: takes over those of the
+     * recovered sessions, and deletes the sessions whose agent is gone so
+     * their next GetServer starts a new one instead of polling PENDING forever.
+     */
+    private static void reconcileRecoveredSessions(WalSessionRepository sessionRepo,
+            ProcessComputeService computeService, java.nio.file.Path agentsDir) throws IOException {
+        java.util.List<SessionRepository.BuildSession> recovered = sessionRepo.getSessions();
+        computeService.adoptAgents(agentsDir, recovered);
+        for (SessionRepository.BuildSession session : recovered) {
+            if (OrchestratorService.QUEUED.equals(session.status)) {
+                continue; // Has no server yet.
+            }
+            ComputeService.ContainerStatus status = computeService.getContainerStatus(session.userId,
+                    session.repoHash, session.computeSessionId);
+            if (status == null || "TERMINATED".equals(status.getStatus())) {
+                logger.info("Dropping recovered session " + session.sessionId + ": its agent is gone");
+                computeService.deleteContainer(session.userId, session.repoHash, session.computeSessionId);
+                sessionRepo.deleteSession(session.sessionId);
+            }
+        }
+    }
+
+    /** Creates the emulator instance and the sessions table unless they exist. */
+    private static void createSpannerSchema(Spanner spanner, String projectId, String instanceId,
+            String databaseId) {
+        // Create Instance if not exists (for Emulator)
+        try {
+            com.google.cloud.spanner.InstanceConfigId configId = com.google.cloud.spanner.InstanceConfigId.of(
+                    projectId,
+                    "emulator-config");
+            com.google.cloud.spanner.InstanceId instanceIdObj = com.google.cloud.spanner.InstanceId.of(projectId,
+                    instanceId);
+            com.google.cloud.spanner.InstanceInfo instanceInfo = com.google.cloud.spanner.InstanceInfo
+                    .newBuilder(instanceIdObj)
+                    .setInstanceConfigId(configId)
+                    .setDisplayName("Test Instance")
+                    .setNodeCount(1)
+                    .build();
+
+            spanner.getInstanceAdminClient().createInstance(instanceInfo).get();
+        } catch (Exception e) {
+            // Ignore if already exists (or other errors, assuming check later)
+            // Real usage would check existence first
+            logger.info("Instance creation failed (may already exist): " + e.getMessage());
+        }
+
+        // Create Database if not exists
+        try {
+            spanner.getDatabaseAdminClient().createDatabase(
+                    instanceId,
+                    databaseId,
+                    java.util.Arrays.asList(
+                            "CREATE TABLE BuildSessions (" +
+                                    "    UserId STRING(MAX) NOT NULL," +
+                                    "    RepoHash STRING(MAX) NOT NULL," +
+                                    "    SessionId STRING(MAX)," +
+                                    "    ComputeSessionId STRING(MAX)," +
+                                    "    PodIP STRING(MAX)," +
+                                    "    Status STRING(MAX)," +
+                                    "    LastHeartbeat INT64," +
+                                    "    StartupOptionsHash STRING(64)" +
+                                    ") PRIMARY KEY (UserId, RepoHash)",
+                            SESSION_EVENTS_DDL))
+                    .get();
+        } catch (Exception e) {
+            logger.info("Database creation failed (may already exist): " + e.getMessage());
+            // Databases created before the session history was persisted lack its table.
+            try {
+                spanner.getDatabaseAdminClient().updateDatabaseDdl(instanceId, databaseId,
+                        java.util.Collections.singletonList(SESSION_EVENTS_DDL), null).get();
+            } catch (Exception ddlError) {
+                logger.info("SessionEvents creation failed (may already exist): " + ddlError.getMessage());
+            }
+            addMissingColumns(spanner, DatabaseId.of(projectId, instanceId, databaseId));
+        }
+    }
+
+    /**
+     * Adds the BuildSessions columns that later releases introduced to a table
+     * created before them. Spanner has no ADD COLUMN IF NOT EXISTS, so the
+     * existing columns are looked up first.
+     */
+    private static void addMissingColumns(Spanner spanner, DatabaseId dbId) {
+        java.util.Set<String> existing = new java.util.HashSet<>();
+        try (com.google.cloud.spanner.ResultSet rs = spanner.getDatabaseClient(dbId).singleUse().executeQuery(
+                com.google.cloud.spanner.Statement.of("SELECT COLUMN_NAME FROM INFORMATION_SCHEMA.COLUMNS"
+                        + " WHERE TABLE_SCHEMA = '' AND TABLE_NAME = 'BuildSessions'"))) {
+            while (rs.next()) {
+                existing.add(rs.getString(0));
+            }
+        }
+        java.util.List<String> ddl = new java.util.ArrayList<>();
+        for (String[] column : BUILD_SESSIONS_ADDED_COLUMNS) {
+            if (!existing.contains(column[0])) {
+                ddl.add("ALTER TABLE BuildSessions ADD COLUMN " + column[0] + " " + column[1]);
+            }
+        }
+        if (ddl.isEmpty()) {
+            return;
+        }
+        logger.info("Migrating BuildSessions: " + ddl);
+        try {
+            spanner.getDatabaseAdminClient().updateDatabaseDdl(dbId.getInstanceId().getInstance(),
+                    dbId.getDatabase(), ddl, null).get();
+        } catch (Exception e) {
+            throw new IllegalStateException("BuildSessions migration failed: " + e.getMessage(), e);
+        }
+    }
+
     private void stop() throws InterruptedException {
+        if (gate != null) {
+            gate.shutdown();
+        }
+        if (membership != null) {
+            // Release our sessions to the other replicas before draining.
+            membership.stop();
+        }
         if (server != null) {
             server.shutdown().awaitTermination(30, TimeUnit.SECONDS);
         }
+        if (gatewayServer != null) {
+            gatewayServer.shutdown().awaitTermination(30, TimeUnit.SECONDS);
+            gateway.shutdown();
+        }
+        if (shardRouter != null) {
+            shardRouter.shutdown();
+        }
+        if (executionScheduler != null) {
+            executionScheduler.shutdown();
+        }
+        if (walRepository != null) {
+            walRepository.close();
+        }
+    }
+
+    /**
+     * Runs startup and the request path once in local mode with fake compute,
+     * so that a JVM started with {@code -XX:ArchiveClassesAtExit} archives the
+     * classes they load (the {@code server_cds} target). The Kubernetes and
+     * Spanner clients are only built, which does not connect.
+     */
+    private static void train() throws IOException, InterruptedException {
+        Options options = new Options();
+        options.localMode = true;
+        options.fakeCompute = true;
+        options.fakeStartMedianMillis = 10;
+        options.port = 0;
+        OrchestratorServer server = new OrchestratorServer();
+        server.start(options);
+        io.grpc.ManagedChannel channel = io.grpc.ManagedChannelBuilder
+                .forAddress("localhost", server.server.getPort()).usePlaintext().build();
+        try {
+            io.grpc.health.v1.HealthGrpc.newBlockingStub(channel)
+                    .check(io.grpc.health.v1.HealthCheckRequest.getDefaultInstance());
+            OrchestratorGrpc.OrchestratorBlockingStub stub = OrchestratorGrpc.newBlockingStub(channel);
+            GetServerRequest request = GetServerRequest.newBuilder().setUserId("cds").setRepoHash("training")
+                    .setSessionId("cds-training").build();
+            for (int i = 0; i < 50 && !"READY".equals(stub.getServer(request).getStatus()); i++) {
+                Thread.sleep(20);
+            }
+            stub.heartbeat(HeartbeatRequest.newBuilder().setSessionId("cds-training").build());
+        } catch (io.grpc.StatusRuntimeException e) {
+            logger.warning("Training call failed: " + e.getStatus());
+        } finally {
+            channel.shutdownNow();
+        }
+        try {
+            new KubernetesClientBuilder().build().close();
+            SpannerOptions.newBuilder().setEmulatorHost("localhost:9010").build().getService().close();
+        } catch (RuntimeException e) {
+            logger.warning("Building backend clients failed: " + e.getMessage());
+        }
     }
 
     /**
@@ -122,19 +558,244 @@ public class OrchestratorServer {
         }
     }
 
-    public static void main(String[] args) throws IOException, InterruptedException {
+    /** Command line options. */
+    static class Options {
         boolean localMode = false;
+        /** In local mode, persist sessions to a write-ahead log in this directory instead of memory. */
+        String stateDir;
         int port = 50051;
-        for (String arg : args) {
-            if (arg.equals("--local-mode")) {
-                localMode = true;
-            } else if (arg.startsWith("--port=")) {
-                port = Integer.parseInt(arg.substring("--port=".length()));
+        /** Path to the agent image catalog; null uses the side-loaded local image. */
+        String imageCatalog;
+        /** Namespace holding the image pre-pull DaemonSet. */
+        String prepullNamespace = "default";
+        /** Node labels selecting the build pool, e.g. {@code rbs/pool=build}. */
+        java.util.Map<String, String> buildPoolNodeSelector = new java.util.HashMap<>();
+        /** Node directory (e.g. local SSD) for per-workspace Bazel caches; sessions prefer their last node. */
+        String localCacheRoot;
+        /** Run each local agent in its own cgroup v2 under this delegated cgroup. */
+        String cgroupRoot;
+        CgroupManager.Settings cgroupSettings = new CgroupManager.Settings();
+        /** In local mode, replace agent processes with latency-only fakes (load testing). */
+        boolean fakeCompute = false;
+        long fakeStartMedianMillis = 20000;
+        long fakeApiLatencyMillis = 0;
+        long reapIntervalSeconds = 60;
+        long staleThresholdSeconds = 300;
+        /** Enables sharding across orchestrator replicas; must be unique per replica (e.g. the pod name). */
+        String replicaId;
+        /** Address other replicas use to forward calls here; defaults to {@code localhost:<port>}. */
+        String advertiseAddress;
+        /** Namespace holding the replica membership Leases. */
+        String shardNamespace = "default";
+        int leaseDurationSeconds = 15;
+        /** Keep headroom in the build pool as low-priority placeholder pods that sessions preempt. */
+        boolean balloons = false;
+        HeadroomBalloons.Settings balloonSettings = new HeadroomBalloons.Settings();
+        /** Start servers shortly before each user's predicted first session of the day. */
+        boolean prewarm = false;
+        PreProvisioner.Settings prewarmSettings = new PreProvisioner.Settings();
+        /** Start new sessions of busy repos from a snapshot of a periodic warm build's output base. */
+        boolean goldenSnapshots = false;
+        GoldenSnapshots.Settings goldenSettings = new GoldenSnapshots.Settings();
+        KubernetesComputeService.OutputBaseVolumes outputBaseVolumes = new KubernetesComputeService.OutputBaseVolumes();
+        /** Serve session endpoints to proxyless gRPC clients over xDS (ADS). */
+        boolean xds = false;
+        /** Port of the gateway relaying proxies' streams to agents they cannot reach; 0 is off. */
+        int gatewayPort = 0;
+        SessionGateway.Settings gatewaySettings = new SessionGateway.Settings();
+        /** Key (at least 32 bytes) for the gateway's session tokens; shared by all replicas. */
+        String gatewayKeyFile;
+        /** Rebind a new session to a live server of the same user, repo and startup options. */
+        boolean resumeSessions = false;
+        /** Serve a Bazel remote cache shared by all sessions from this directory. */
+        String remoteCacheDir;
+        long remoteCacheMaxBytes = 10L * 1024 * 1024 * 1024;
+        /** Largest blob the cache accepts; 0 allows anything that fits its disk budget. */
+        long remoteCacheMaxBlobBytes;
+        /** Cache address handed to agents; defaults to {@code grpc://localhost:<port>} in local mode. */
+        String remoteCacheAddress;
+        /** Materialise workspaces synced through the remote cache under this directory. */
+        String workspaceRoot;
+        /** Fetch sessions' external archives once into the remote cache and prefetch busy repos' ones. */
+        boolean remoteDownloader = false;
+        RemoteDownloader.Settings downloaderSettings = new RemoteDownloader.Settings();
+        /** Admission control: sessions beyond this many servers wait in a fair-share queue; 0 is off. */
+        int maxSessions = 0;
+        AdmissionController.Settings admissionSettings = new AdmissionController.Settings();
+        /** Size session pods and resize them in place from heartbeat telemetry. */
+        boolean verticalScaling = false;
+        VerticalScaler.Settings verticalScalingSettings = new VerticalScaler.Settings();
+        /** Remote execution on a worker pool; off while {@code maxWorkers} is 0. */
+        ExecutionScheduler.Settings executionSettings = defaultExecutionSettings();
+
+        private static ExecutionScheduler.Settings defaultExecutionSettings() {
+            ExecutionScheduler.Settings settings = new ExecutionScheduler.Settings();
+            settings.maxWorkers = 0;
+            return settings;
+        }
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                if (arg.equals("--local-mode")) {
+                    options.localMode = true;
+                } else if (arg.startsWith("--state-dir=")) {
+                    options.stateDir = arg.substring("--state-dir=".length());
+                } else if (arg.startsWith("--port=")) {
+                    options.port = Integer.parseInt(arg.substring("--port=".length()));
+                } else if (arg.startsWith("--image-catalog=")) {
+                    options.imageCatalog = arg.substring("--image-catalog=".length());
+                } else if (arg.startsWith("--prepull-namespace=")) {
+                    options.prepullNamespace = arg.substring("--prepull-namespace=".length());
+                } else if (arg.startsWith("--reap-interval-seconds=")) {
+                    options.reapIntervalSeconds = Long.parseLong(arg.substring("--reap-interval-seconds=".length()));
+                } else if (arg.startsWith("--stale-threshold-seconds=")) {
+                    options.staleThresholdSeconds = Long.parseLong(
+                            arg.substring("--stale-threshold-seconds=".length()));
+                } else if (arg.startsWith("--replica-id=")) {
+                    options.replicaId = arg.substring("--replica-id=".length());
+                } else if (arg.startsWith("--advertise-address=")) {
+                    options.advertiseAddress = arg.substring("--advertise-address=".length());
+                } else if (arg.startsWith("--shard-namespace=")) {
+                    options.shardNamespace = arg.substring("--shard-namespace=".length());
+                } else if (arg.startsWith("--lease-duration-seconds=")) {
+                    options.leaseDurationSeconds = Integer.parseInt(
+                            arg.substring("--lease-duration-seconds=".length()));
+                } else if (arg.startsWith("--remote-cache-dir=")) {
+                    options.remoteCacheDir = arg.substring("--remote-cache-dir=".length());
+                } else if (arg.startsWith("--remote-cache-max-bytes=")) {
+                    options.remoteCacheMaxBytes = Long.parseLong(arg.substring("--remote-cache-max-bytes=".length()));
+                } else if (arg.startsWith("--remote-cache-max-blob-bytes=")) {
+                    options.remoteCacheMaxBlobBytes = Long.parseLong(
+                            arg.substring("--remote-cache-max-blob-bytes=".length()));
+                } else if (arg.startsWith("--remote-cache-address=")) {
+                    options.remoteCacheAddress = arg.substring("--remote-cache-address=".length());
+                } else if (arg.startsWith("--workspace-root=")) {
+                    options.workspaceRoot = arg.substring("--workspace-root=".length());
+                } else if (arg.startsWith("--execution-max-workers=")) {
+                    options.executionSettings.maxWorkers = Integer.parseInt(
+                            arg.substring("--execution-max-workers=".length()));
+                } else if (arg.startsWith("--execution-slots-per-worker=")) {
+                    options.executionSettings.slotsPerWorker = Integer.parseInt(
+                            arg.substring("--execution-slots-per-worker=".length()));
+                } else if (arg.startsWith("--execution-idle-seconds=")) {
+                    options.executionSettings.idleTimeout = java.time.Duration.ofSeconds(
+                            Long.parseLong(arg.substring("--execution-idle-seconds=".length())));
+                } else if (arg.startsWith("--max-sessions=")) {
+                    options.maxSessions = Integer.parseInt(arg.substring("--max-sessions=".length()));
+                } else if (arg.startsWith("--preempt-idle-minutes=")) {
+                    options.admissionSettings.preemptIdleAfter = java.time.Duration.ofMinutes(
+                            Long.parseLong(arg.substring("--preempt-idle-minutes=".length())));
+                } else if (arg.equals("--vertical-scaling")) {
+                    options.verticalScaling = true;
+                } else if (arg.startsWith("--pod-max-memory-mib=")) {
+                    options.verticalScalingSettings.maxMemoryBytes = Long.parseLong(
+                            arg.substring("--pod-max-memory-mib=".length())) << 20;
+                } else if (arg.startsWith("--pod-max-cpu-millis=")) {
+                    options.verticalScalingSettings.maxCpuMillis = Long.parseLong(
+                            arg.substring("--pod-max-cpu-millis=".length()));
+                } else if (arg.startsWith("--gateway-port=")) {
+                    options.gatewayPort = Integer.parseInt(arg.substring("--gateway-port=".length()));
+                } else if (arg.startsWith("--gateway-key-file=")) {
+                    options.gatewayKeyFile = arg.substring("--gateway-key-file=".length());
+                } else if (arg.startsWith("--gateway-window-kib=")) {
+                    options.gatewaySettings.flowControlWindowBytes = Integer.parseInt(
+                            arg.substring("--gateway-window-kib=".length())) << 10;
+                } else if (arg.equals("--xds")) {
+                    options.xds = true;
+                } else if (arg.equals("--resume-sessions")) {
+                    options.resumeSessions = true;
+                } else if (arg.equals("--balloons")) {
+                    options.balloons = true;
+                } else if (arg.startsWith("--balloon-min-pods=")) {
+                    options.balloonSettings.minPods = Integer.parseInt(arg.substring("--balloon-min-pods=".length()));
+                } else if (arg.startsWith("--balloon-max-pods=")) {
+                    options.balloonSettings.maxPods = Integer.parseInt(arg.substring("--balloon-max-pods=".length()));
+                } else if (arg.startsWith("--balloon-node-provision-minutes=")) {
+                    options.balloonSettings.nodeProvisionTime = java.time.Duration.ofMinutes(
+                            Long.parseLong(arg.substring("--balloon-node-provision-minutes=".length())));
+                } else if (arg.equals("--prewarm")) {
+                    options.prewarm = true;
+                } else if (arg.startsWith("--prewarm-lead-minutes=")) {
+                    options.prewarmSettings.leadTime = java.time.Duration.ofMinutes(
+                            Long.parseLong(arg.substring("--prewarm-lead-minutes=".length())));
+                } else if (arg.startsWith("--prewarm-hold-minutes=")) {
+                    options.prewarmSettings.holdTime = java.time.Duration.ofMinutes(
+                            Long.parseLong(arg.substring("--prewarm-hold-minutes=".length())));
+                } else if (arg.startsWith("--prewarm-max-sessions=")) {
+                    options.prewarmSettings.maxSessions = Integer.parseInt(
+                            arg.substring("--prewarm-max-sessions=".length()));
+                } else if (arg.equals("--golden-snapshots")) {
+                    options.goldenSnapshots = true;
+                } else if (arg.startsWith("--golden-command=")) {
+                    options.goldenSettings.command = arg.substring("--golden-command=".length());
+                } else if (arg.startsWith("--golden-refresh-hours=")) {
+                    options.goldenSettings.refreshInterval = java.time.Duration.ofHours(
+                            Long.parseLong(arg.substring("--golden-refresh-hours=".length())));
+                } else if (arg.startsWith("--golden-min-sessions=")) {
+                    options.goldenSettings.minSessions = Integer.parseInt(
+                            arg.substring("--golden-min-sessions=".length()));
+                } else if (arg.startsWith("--golden-storage-class=")) {
+                    options.outputBaseVolumes.storageClass = arg.substring("--golden-storage-class=".length());
+                } else if (arg.startsWith("--golden-snapshot-class=")) {
+                    options.outputBaseVolumes.snapshotClass = arg.substring("--golden-snapshot-class=".length());
+                } else if (arg.startsWith("--golden-volume-size=")) {
+                    options.outputBaseVolumes.size = arg.substring("--golden-volume-size=".length());
+                } else if (arg.equals("--fake-compute")) {
+                    options.fakeCompute = true;
+                } else if (arg.startsWith("--fake-start-median-ms=")) {
+                    options.fakeStartMedianMillis = Long.parseLong(arg.substring("--fake-start-median-ms=".length()));
+                } else if (arg.startsWith("--fake-api-latency-ms=")) {
+                    options.fakeApiLatencyMillis = Long.parseLong(arg.substring("--fake-api-latency-ms=".length()));
+                } else if (arg.equals("--remote-downloader")) {
+                    options.remoteDownloader = true;
+                } else if (arg.equals("--remote-downloader-allow-private")) {
+                    options.downloaderSettings.allowPrivateAddresses = true;
+                } else if (arg.startsWith("--remote-downloader-prefetch-min-sessions=")) {
+                    options.downloaderSettings.prefetchMinSessions = Integer.parseInt(
+                            arg.substring("--remote-downloader-prefetch-min-sessions=".length()));
+                } else if (arg.startsWith("--cgroup-root=")) {
+                    options.cgroupRoot = arg.substring("--cgroup-root=".length());
+                } else if (arg.startsWith("--cgroup-cpu-weight=")) {
+                    options.cgroupSettings.cpuWeight = Integer.parseInt(arg.substring("--cgroup-cpu-weight=".length()));
+                } else if (arg.startsWith("--cgroup-cpu-max-millis=")) {
+                    options.cgroupSettings.cpuMaxMillicores = Long.parseLong(
+                            arg.substring("--cgroup-cpu-max-millis=".length()));
+                } else if (arg.startsWith("--cgroup-memory-high-mib=")) {
+                    options.cgroupSettings.memoryHighBytes = Long.parseLong(
+                            arg.substring("--cgroup-memory-high-mib=".length())) << 20;
+                } else if (arg.startsWith("--cgroup-memory-max-mib=")) {
+                    options.cgroupSettings.memoryMaxBytes = Long.parseLong(
+                            arg.substring("--cgroup-memory-max-mib=".length())) << 20;
+                } else if (arg.startsWith("--cgroup-io-weight=")) {
+                    options.cgroupSettings.ioWeight = Integer.parseInt(arg.substring("--cgroup-io-weight=".length()));
+                } else if (arg.startsWith("--cgroup-io-max=")) {
+                    options.cgroupSettings.ioMax.add(arg.substring("--cgroup-io-max=".length()));
+                } else if (arg.startsWith("--local-cache-root=")) {
+                    options.localCacheRoot = arg.substring("--local-cache-root=".length());
+                } else if (arg.startsWith("--build-pool-node-selector=")) {
+                    String selector = arg.substring("--build-pool-node-selector=".length());
+                    for (String pair : selector.split(",")) {
+                        String[] kv = pair.split("=", 2);
+                        if (kv.length != 2) {
+                            throw new IllegalArgumentException("Invalid node selector: " + pair);
+                        }
+                        options.buildPoolNodeSelector.put(kv[0], kv[1]);
+                    }
+                }
             }
+            return options;
         }
+    }
 
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (java.util.Arrays.asList(args).contains("--cds-training")) {
+            train();
+            // Exiting runs the shutdown hook, and then the JVM writes the class archive.
+            System.exit(0);
+        }
         final OrchestratorServer server = new OrchestratorServer();
-        server.start(port, localMode);
+        server.start(Options.parse(args));
         server.blockUntilShutdown();
     }
 }
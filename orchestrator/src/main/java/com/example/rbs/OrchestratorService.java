@@ -5,12 +5,16 @@ import com.example.rbs.proto.GetServerResponse;
 import com.example.rbs.proto.HeartbeatRequest;
 import com.example.rbs.proto.HeartbeatResponse;
 import com.example.rbs.proto.OrchestratorGrpc;
+import com.example.rbs.proto.ResourceUsage;
 import com.google.cloud.spanner.DatabaseClient;
 import com.google.cloud.spanner.ResultSet;
 import com.google.cloud.spanner.Statement;
 import com.google.cloud.spanner.TransactionContext;
 import com.google.cloud.spanner.TransactionRunner;
 import io.grpc.stub.StreamObserver;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -18,16 +22,113 @@ import java.util.logging.Logger;
 
 public class OrchestratorService extends OrchestratorGrpc.OrchestratorImplBase {
   private static final Logger logger = Logger.getLogger(OrchestratorService.class.getName());
+  /** Status of a session waiting for admission; it has no container yet. */
+  static final String QUEUED = "QUEUED";
 
   private final SessionRepository sessionRepo;
   private final ComputeService computeService;
   private final ScheduledExecutorService reaperExecutor;
+  private final long staleThresholdMillis;
+  private ShardRouter shardRouter;
+  private PreProvisioner preProvisioner;
+  private boolean resumeSessions;
+  private AdmissionController admission;
+  private XdsServer xds;
+  private WorkspaceSync workspaceSync;
+  private GoldenSnapshots goldenSnapshots;
+  private RemoteDownloader remoteDownloader;
+  private HeadroomBalloons balloons;
+  private SessionTokens sessionTokens;
+  // Session creations in progress, keyed by session ID; concurrent calls for the same session join them.
+  private final java.util.Map<String, CompletableFuture<Void>> creations = new ConcurrentHashMap<>();
 
   public OrchestratorService(SessionRepository sessionRepo, ComputeService computeService) {
+    this(sessionRepo, computeService, Executors.newSingleThreadScheduledExecutor(), Duration.ofMinutes(1),
+        Duration.ofMinutes(5));
+  }
+
+  /**
+   * @param reaperExecutor Executor that runs the reaper every {@code reapInterval}, or null to leave
+   *                       reaping to the caller (the simulator drives {@link #reapStaleSessions()} on
+   *                       virtual time).
+   * @param staleThreshold Sessions without a heartbeat for this long are reaped.
+   */
+  public OrchestratorService(SessionRepository sessionRepo, ComputeService computeService,
+      ScheduledExecutorService reaperExecutor, Duration reapInterval, Duration staleThreshold) {
     this.sessionRepo = sessionRepo;
     this.computeService = computeService;
-    this.reaperExecutor = Executors.newSingleThreadScheduledExecutor();
-    this.reaperExecutor.scheduleAtFixedRate(this::reapStaleSessions, 1, 1, TimeUnit.MINUTES);
+    this.reaperExecutor = reaperExecutor;
+    this.staleThresholdMillis = staleThreshold.toMillis();
+    if (reaperExecutor != null) {
+      long intervalMillis = reapInterval.toMillis();
+      this.reaperExecutor.scheduleAtFixedRate(this::reapStaleSessions, intervalMillis, intervalMillis,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Enables multi-replica operation: RPCs for sessions owned by another replica are forwarded
+   * to it, and the reaper only reaps sessions this replica owns.
+   */
+  void setShardRouter(ShardRouter shardRouter) {
+    this.shardRouter = shardRouter;
+  }
+
+  /**
+   * Enables predictive pre-provisioning: session starts and ends feed the arrival model, and new
+   * sessions claim a matching pre-provisioned server instead of starting one.
+   */
+  void setPreProvisioner(PreProvisioner preProvisioner) {
+    this.preProvisioner = preProvisioner;
+  }
+
+  /**
+   * Enables session resumption: a new session of a (userId, repoHash) that already has a live server
+   * started with the same startup options is rebound to that server instead of starting another one.
+   */
+  void setSessionResumption(boolean resumeSessions) {
+    this.resumeSessions = resumeSessions;
+  }
+
+  /**
+   * Enables admission control: sessions beyond the capacity wait in a fair-share queue (status
+   * QUEUED) instead of creating a server, and idle sessions of over-quota users can be preempted.
+   */
+  void setAdmissionController(AdmissionController admission) {
+    this.admission = admission;
+  }
+
+  /** Publishes each session's server to xDS subscribers as the session's status changes. */
+  void setXdsServer(XdsServer xds) {
+    this.xds = xds;
+  }
+
+  /** Feeds session starts to the golden snapshots, which pick the repos worth a warm snapshot. */
+  void setGoldenSnapshots(GoldenSnapshots goldenSnapshots) {
+    this.goldenSnapshots = goldenSnapshots;
+  }
+
+  /** Feeds session starts to the downloader, which prefetches the dependencies of busy repos. */
+  void setRemoteDownloader(RemoteDownloader remoteDownloader) {
+    this.remoteDownloader = remoteDownloader;
+  }
+
+  /** Feeds the creation of session servers to the balloons, which size the pool's headroom by it. */
+  void setHeadroomBalloons(HeadroomBalloons balloons) {
+    this.balloons = balloons;
+  }
+
+  /** Hands ready sessions the token the session gateway asks their streams for. */
+  void setSessionTokens(SessionTokens sessionTokens) {
+    this.sessionTokens = sessionTokens;
+  }
+
+  /**
+   * Starts sessions that send no source path in their synced workspace: the one it materialised, or
+   * the tree they name if session pods materialise their own.
+   */
+  void setWorkspaceSync(WorkspaceSync workspaceSync) {
+    this.workspaceSync = workspaceSync;
   }
 
   @Override
@@ -36,6 +137,21 @@ public class OrchestratorService extends OrchestratorGrpc.OrchestratorImplBase {
     String repoHash = request.getRepoHash();
     String clientSessionId = request.getSessionId(); // From client (Proxy)
     String sourcePath = request.getSourcePath();
+    if (sourcePath.isEmpty() && workspaceSync != null) {
+      if (workspaceSync.materialises()) {
+        sourcePath = workspaceSync.workspacePath(userId, repoHash).toString();
+      } else if (!request.getWorkspaceDigest().isEmpty()) {
+        try {
+          WorkspaceSync.parseDigest(request.getWorkspaceDigest());
+        } catch (IllegalArgumentException e) {
+          responseObserver.onError(io.grpc.Status.INVALID_ARGUMENT.withDescription(e.getMessage())
+              .asRuntimeException());
+          return;
+        }
+        // The session's pod fetches the tree from the cache itself.
+        sourcePath = WorkspaceSync.CAS_SOURCE_PREFIX + request.getWorkspaceDigest();
+      }
+    }
     String region = request.getRegion();
 
     logger.info(
@@ -53,33 +169,153 @@ public class OrchestratorService extends OrchestratorGrpc.OrchestratorImplBase {
         return;
       }
 
-      SessionRepository.BuildSession session = sessionRepo.getSession(clientSessionId);
-
-      if (session != null) {
-        // Session exists. Update heartbeat to prevent reaping during long startup.
-        sessionRepo.updateHeartbeat(clientSessionId);
-        // Check actual status of pod.
-        checkAndUpdateStatus(userId, repoHash, session, responseObserver);
-        return;
-      } else {
-        // No session exists for this SessionID. Create new.
-        handleNewSession(userId, repoHash, clientSessionId, sourcePath,
-            request.getStartupOptionsList(), region, responseObserver);
+      if (shardRouter != null && !shardRouter.shouldHandleLocally(clientSessionId)) {
+        shardRouter.forwardGetServer(request, responseObserver);
         return;
       }
+
+      for (;;) {
+        SessionRepository.BuildSession session = sessionRepo.getSession(clientSessionId);
+        if (session != null && !QUEUED.equals(session.status)) {
+          // Session exists. Update heartbeat to prevent reaping during long startup.
+          sessionRepo.updateHeartbeat(clientSessionId);
+          if (admission != null) {
+            admission.track(session.userId, clientSessionId);
+          }
+          // Check actual status of pod.
+          checkAndUpdateStatus(userId, repoHash, session, responseObserver);
+          return;
+        }
+
+        // Creating (or admitting) the session's server: single-flight per session.
+        CompletableFuture<Void> flight = new CompletableFuture<>();
+        CompletableFuture<Void> inFlight = creations.putIfAbsent(clientSessionId, flight);
+        if (inFlight != null) {
+          // A concurrent call for the same session, e.g. a client retry after a timeout: wait for
+          // it, then report what it created.
+          inFlight.join();
+          continue;
+        }
+        try {
+          if (createOrAdmit(userId, repoHash, clientSessionId, sourcePath, request.getStartupOptionsList(), region,
+              responseObserver)) {
+            return;
+          }
+        } finally {
+          creations.remove(clientSessionId, flight);
+          flight.complete(null);
+        }
+      }
     } catch (Exception e) {
       logger.severe("Error handling GetServer: " + e.getMessage());
       responseObserver.onError(io.grpc.Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
     }
   }
 
+  /**
+   * Creates the session, or polls its admission if it is queued, while holding the session's flight.
+   * Returns false if another call created it between the caller's lookup and taking the flight.
+   */
+  private boolean createOrAdmit(String userId, String repoHash, String sessionId, String sourcePath,
+      java.util.List<String> startupOptions, String region, StreamObserver<GetServerResponse> responseObserver) {
+    SessionRepository.BuildSession session = sessionRepo.getSession(sessionId);
+    if (session == null) {
+      // No session exists for this SessionID. Create new.
+      handleNewSession(userId, repoHash, sessionId, sourcePath, startupOptions, region, responseObserver);
+      return true;
+    }
+    if (QUEUED.equals(session.status)) {
+      sessionRepo.updateHeartbeat(sessionId);
+      // Waiting for admission (or admission was turned off meanwhile).
+      admitOrQueue(userId, repoHash, sessionId, sourcePath, startupOptions, region, responseObserver);
+      return true;
+    }
+    return false;
+  }
+
   private void handleNewSession(String userId, String repoHash, String sessionId, String sourcePath,
       java.util.List<String> startupOptions, String region, StreamObserver<GetServerResponse> responseObserver) {
-    // Create Pod
-    computeService.createContainer(userId, repoHash, sessionId, sourcePath, startupOptions, region);
+    String optionsHash = startupOptionsHash(startupOptions);
+    if (resumeSessions) {
+      SessionRepository.BuildSession live = findResumableSession(userId, repoHash, optionsHash);
+      if (live != null) {
+        logger.info("Session " + sessionId + " resumes the server of session " + live.sessionId);
+        // The old session ID stops owning the server; its proxy is usually gone (restart, reboot).
+        sessionRepo.saveSession(userId, repoHash, sessionId, live.computeSessionId, live.serverAddress, live.status,
+            optionsHash);
+        sessionRepo.deleteSession(live.sessionId);
+        forgetEndpoint(live.sessionId);
+        if (admission != null) {
+          admission.release(live.sessionId);
+          admission.track(userId, sessionId);
+        }
+        checkAndUpdateStatus(userId, repoHash, sessionRepo.getSession(sessionId), responseObserver);
+        return;
+      }
+    }
 
-    // Save session 'PENDING'
-    sessionRepo.saveSession(userId, repoHash, sessionId, null, "PENDING");
+    if (goldenSnapshots != null) {
+      goldenSnapshots.onSessionStarted(repoHash, sourcePath, startupOptions);
+    }
+    if (remoteDownloader != null) {
+      remoteDownloader.onSessionStarted(repoHash);
+    }
+    if (balloons != null) {
+      balloons.onSessionStarted(userId, repoHash, sourcePath, startupOptions, region);
+    }
+    if (preProvisioner != null) {
+      preProvisioner.onSessionStarted(userId, repoHash, sourcePath, startupOptions, region);
+      SessionRepository.BuildSession prewarmed = preProvisioner.claim(userId, repoHash, startupOptions);
+      if (prewarmed != null) {
+        logger.info("Session " + sessionId + " claimed pre-provisioned server " + prewarmed.computeSessionId);
+        // Save before delete: with Spanner both rows share the (UserId, RepoHash) key.
+        sessionRepo.saveSession(userId, repoHash, sessionId, prewarmed.computeSessionId, prewarmed.serverAddress,
+            prewarmed.status, optionsHash);
+        sessionRepo.deleteSession(prewarmed.sessionId);
+        if (admission != null) {
+          admission.track(userId, sessionId);
+        }
+        checkAndUpdateStatus(userId, repoHash, sessionRepo.getSession(sessionId), responseObserver);
+        return;
+      }
+    }
+
+    admitOrQueue(userId, repoHash, sessionId, sourcePath, startupOptions, region, responseObserver);
+  }
+
+  private void startServer(String userId, String repoHash, String sessionId, String sourcePath,
+      java.util.List<String> startupOptions, String region, StreamObserver<GetServerResponse> responseObserver) {
+    String optionsHash = startupOptionsHash(startupOptions);
+    if (sessionRepo.getSession(sessionId) != null) {
+      // Admitted from the queue.
+      sessionRepo.saveSession(userId, repoHash, sessionId, sessionId, null, "PENDING", optionsHash);
+    } else if (!sessionRepo.claimSession(userId, repoHash, sessionId, "PENDING", optionsHash)) {
+      // Another replica claimed the session first (e.g. during a membership change) and creates its server.
+      logger.info("Session " + sessionId + " is already being created elsewhere");
+      SessionRepository.BuildSession claimed = sessionRepo.getSession(sessionId);
+      if (claimed != null) {
+        checkAndUpdateStatus(userId, repoHash, claimed, responseObserver);
+      } else {
+        responseObserver.onNext(GetServerResponse.newBuilder().setStatus("PENDING").build());
+        responseObserver.onCompleted();
+      }
+      return;
+    }
+
+    // Create Pod
+    if (balloons != null) {
+      balloons.onServerStarting();
+    }
+    try {
+      computeService.createContainer(userId, repoHash, sessionId, sourcePath, startupOptions, region);
+    } catch (RuntimeException e) {
+      // Let the client's retry start over instead of finding a session without a server.
+      sessionRepo.deleteSession(sessionId);
+      if (admission != null) {
+        admission.release(sessionId);
+      }
+      throw e;
+    }
 
     GetServerResponse response = GetServerResponse.newBuilder()
         .setStatus("PENDING")
@@ -88,10 +324,104 @@ public class OrchestratorService extends OrchestratorGrpc.OrchestratorImplBase {
     responseObserver.onCompleted();
   }
 
+  /**
+   * Starts the session's server if admission lets it, preempting an idle session first if asked to;
+   * otherwise keeps the session QUEUED and reports its position. Waiting sessions come back here on
+   * every poll. Without admission control every session is started at once.
+   */
+  private void admitOrQueue(String userId, String repoHash, String sessionId, String sourcePath,
+      java.util.List<String> startupOptions, String region, StreamObserver<GetServerResponse> responseObserver) {
+    if (admission == null) {
+      startServer(userId, repoHash, sessionId, sourcePath, startupOptions, region, responseObserver);
+      return;
+    }
+    AdmissionController.Decision decision = admission.poll(userId, sessionId);
+    if (!decision.admitted) {
+      // A no-op when the session is already queued.
+      sessionRepo.claimSession(userId, repoHash, sessionId, QUEUED, startupOptionsHash(startupOptions));
+      responseObserver.onNext(GetServerResponse.newBuilder()
+          .setStatus(QUEUED)
+          .setQueuePosition(decision.position)
+          .build());
+      responseObserver.onCompleted();
+      return;
+    }
+    if (decision.preempt != null) {
+      preempt(decision.preempt, sessionId);
+    }
+    logger.info("Session " + sessionId + " admitted");
+    startServer(userId, repoHash, sessionId, sourcePath, startupOptions, region, responseObserver);
+  }
+
+  private void preempt(String victimSessionId, String forSessionId) {
+    SessionRepository.BuildSession victim = sessionRepo.getSession(victimSessionId);
+    if (victim == null) {
+      return; // Already gone.
+    }
+    logger.info("Preempting idle session " + victimSessionId + " (User: " + victim.userId + ") for session "
+        + forSessionId);
+    computeService.deleteContainer(victim.userId, victim.repoHash, victim.computeSessionId);
+    sessionRepo.deleteSession(victimSessionId);
+    forgetEndpoint(victimSessionId);
+    if (preProvisioner != null) {
+      preProvisioner.onSessionEnded(victim);
+    }
+  }
+
+  /**
+   * Returns the most recently active session of this user and repo whose server was started with the
+   * same startup options and still exists, or null.
+   */
+  private SessionRepository.BuildSession findResumableSession(String userId, String repoHash, String optionsHash) {
+    java.util.List<SessionRepository.BuildSession> candidates = new java.util.ArrayList<>();
+    for (SessionRepository.BuildSession session : sessionRepo.findSessions(userId, repoHash)) {
+      // Pre-provisioned servers are handed out by claim(), which keeps their hit/miss accounting.
+      if (optionsHash.equals(session.startupOptionsHash)
+          && !session.sessionId.startsWith(PreProvisioner.SESSION_PREFIX)) {
+        candidates.add(session);
+      }
+    }
+    candidates.sort((a, b) -> Long.compare(b.lastHeartbeat, a.lastHeartbeat));
+    for (SessionRepository.BuildSession candidate : candidates) {
+      ComputeService.ContainerStatus status = computeService.getContainerStatus(userId, repoHash,
+          candidate.computeSessionId);
+      if (status != null && !"TERMINATED".equals(status.getStatus())) {
+        return candidate;
+      }
+    }
+    return null;
+  }
+
+  /** Stable identifier of a list of Bazel startup options; order matters, as it does to Bazel. */
+  static String startupOptionsHash(java.util.List<String> startupOptions) {
+    try {
+      java.security.MessageDigest digest = java.security.MessageDigest.getInstance("SHA-256");
+      if (startupOptions != null) {
+        for (String option : startupOptions) {
+          digest.update(option.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+          digest.update((byte) 0);
+        }
+      }
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest.digest()) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (java.security.NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
   private void checkAndUpdateStatus(String userId, String repoHash, SessionRepository.BuildSession session,
       StreamObserver<GetServerResponse> responseObserver) {
     // Verify against Compute Service
-    ComputeService.ContainerStatus status = computeService.getContainerStatus(userId, repoHash, session.sessionId);
+    ComputeService.ContainerStatus status = computeService.getContainerStatus(userId, repoHash,
+        session.computeSessionId);
+
+    if (xds != null) {
+      xds.publish(session.sessionId, session.computeSessionId,
+          status != null && "READY".equals(status.getStatus()) ? status.getAddress() : null);
+    }
 
     if (status == null) {
       // Pod missing?
@@ -107,7 +437,8 @@ public class OrchestratorService extends OrchestratorGrpc.OrchestratorImplBase {
     // Update DB if changed
     if (!status.getStatus().equals(session.status)
         || (status.getAddress() != null && !status.getAddress().equals(session.serverAddress))) {
-      sessionRepo.saveSession(userId, repoHash, session.sessionId, status.getAddress(), status.getStatus());
+      sessionRepo.saveSession(userId, repoHash, session.sessionId, session.computeSessionId, status.getAddress(),
+          status.getStatus());
     }
 
     GetServerResponse.Builder responseBuilder = GetServerResponse.newBuilder()
@@ -115,6 +446,9 @@ public class OrchestratorService extends OrchestratorGrpc.OrchestratorImplBase {
     if (status.getAddress() != null) {
       responseBuilder.setServerAddress(status.getAddress());
     }
+    if (sessionTokens != null && "READY".equals(status.getStatus())) {
+      responseBuilder.setSessionToken(sessionTokens.issue(session.sessionId));
+    }
 
     responseObserver.onNext(responseBuilder.build());
     responseObserver.onCompleted();
@@ -123,20 +457,78 @@ public class OrchestratorService extends OrchestratorGrpc.OrchestratorImplBase {
   @Override
   public void heartbeat(HeartbeatRequest request, StreamObserver<HeartbeatResponse> responseObserver) {
     String sessionId = request.getSessionId();
+    if (shardRouter != null && !shardRouter.shouldHandleLocally(sessionId)) {
+      shardRouter.forwardHeartbeat(request, responseObserver);
+      return;
+    }
+    SessionRepository.BuildSession session = sessionRepo.getSession(sessionId);
+    if (session == null) {
+      // Reaped, preempted or never created: the proxy must ask for a server again.
+      responseObserver.onError(io.grpc.Status.NOT_FOUND
+          .withDescription("Unknown session " + sessionId).asRuntimeException());
+      return;
+    }
     sessionRepo.updateHeartbeat(sessionId);
+    if (request.hasUsage() || admission != null) {
+      onHeartbeat(session, request.hasUsage() ? request.getUsage() : null);
+    }
     responseObserver.onNext(HeartbeatResponse.newBuilder().build());
     responseObserver.onCompleted();
   }
 
+  /**
+   * Counts the session as running (admission state is rebuilt this way after a restart) and passes
+   * its usage sample on. Best-effort: resizing never fails the heartbeat.
+   */
+  private void onHeartbeat(SessionRepository.BuildSession session, ResourceUsage usage) {
+    String sessionId = session.sessionId;
+    try {
+      if (QUEUED.equals(session.status)) {
+        return;
+      }
+      if (admission != null) {
+        admission.track(session.userId, sessionId);
+        if (usage != null) {
+          admission.onUsage(sessionId, usage);
+        }
+      }
+      if (usage != null) {
+        computeService.reportUsage(session.userId, session.repoHash, session.computeSessionId, usage);
+      }
+    } catch (Exception e) {
+      logger.warning("Failed to process heartbeat usage of session " + sessionId + ": " + e.getMessage());
+    }
+  }
+
+  private void forgetEndpoint(String sessionId) {
+    if (xds != null) {
+      xds.remove(sessionId);
+    }
+  }
+
   void reapStaleSessions() {
     try {
-      // 5 minutes stale threshold
-      long staleThreshold = 5 * 60 * 1000;
-      java.util.List<SessionRepository.BuildSession> staleSessions = sessionRepo.getStaleSessions(staleThreshold);
+      java.util.List<SessionRepository.BuildSession> staleSessions = sessionRepo.getStaleSessions(
+          staleThresholdMillis);
       for (SessionRepository.BuildSession session : staleSessions) {
+        if (shardRouter != null && !shardRouter.ownsSession(session.sessionId)) {
+          continue; // Reaped by its owner.
+        }
         logger.info("Reaping stale session: " + session.sessionId + " (User: " + session.userId + ")");
-        computeService.deleteContainer(session.userId, session.repoHash, session.sessionId);
+        if (admission != null) {
+          admission.release(session.sessionId);
+        }
+        if (QUEUED.equals(session.status)) {
+          // Never got a server: the proxy gave up waiting.
+          sessionRepo.deleteSession(session.sessionId);
+          continue;
+        }
+        computeService.deleteContainer(session.userId, session.repoHash, session.computeSessionId);
         sessionRepo.deleteSession(session.sessionId);
+        forgetEndpoint(session.sessionId);
+        if (preProvisioner != null) {
+          preProvisioner.onSessionEnded(session);
+        }
       }
     } catch (Exception e) {
       logger.severe("Error in reaper task: " + e.getMessage());
@@ -0,0 +1,329 @@
+package com.example.rbs;
+
+import io.opentelemetry.api.metrics.Meter;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Starts a user's session shortly before they are predicted to arrive, so
+ * the first build of the day finds a warm server.
+ *
+ * <p>
+ * Every minute the provisioner asks the {@link SessionHistory} model for each
+ * (userId, repoHash) without a live session and starts a server
+ * {@code leadTime} before the predicted first start. The server is created
+ * like the user's last session (source path, startup options, region) under
+ * a {@code prewarm-} session ID and kept alive with heartbeats. The next new
+ * session of that user and repo with the same startup options claims it (a
+ * hit). Servers not claimed within {@code holdTime} of the predicted start
+ * are deleted (a miss).
+ *
+ * <p>
+ * Cost is capped by {@code maxSessions} concurrent pre-provisioned servers,
+ * one attempt per key per day, and by pausing a key for a week after
+ * {@code maxConsecutiveMisses} misses in a row.
+ *
+ * <p>
+ * Session starts and ends are also written to the {@link SessionRepository},
+ * and {@link #loadHistory} rebuilds the model from them at startup, so a
+ * restart does not forget the lookback window.
+ *
+ * <p>
+ * {@link #claim} runs on the {@code GetServer} path and takes no lock: a
+ * server it cannot hand over is deleted in the background, and only
+ * {@link #tick} makes compute calls, one tick at a time.
+ */
+public class PreProvisioner {
+    private static final Logger logger = Logger.getLogger(PreProvisioner.class.getName());
+
+    static final String SESSION_PREFIX = "prewarm-";
+    static final int SUPPRESS_DAYS = 7;
+
+    /** Tuning knobs; the defaults suit a team arriving over a morning. */
+    public static class Settings {
+        public Duration leadTime = Duration.ofMinutes(5);
+        public Duration holdTime = Duration.ofMinutes(30);
+        public int maxSessions = 20;
+        public int maxConsecutiveMisses = 3;
+    }
+
+    private final SessionRepository sessionRepo;
+    private final ComputeService computeService;
+    private final SessionHistory history;
+    private final Clock clock;
+    private final Settings settings;
+
+    private final Map<String, Prewarm> prewarmed = new ConcurrentHashMap<>();
+    private final Map<String, LocalDate> lastAttempt = new ConcurrentHashMap<>();
+    private final Map<String, Integer> consecutiveMisses = new ConcurrentHashMap<>();
+    private final Map<String, LocalDate> suppressedUntil = new ConcurrentHashMap<>();
+    private final Map<String, LocalDate> lastCapped = new ConcurrentHashMap<>();
+    private LocalDate lastPruned;
+
+    private final ExecutorService releaseExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "prewarm-release");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong capped = new AtomicLong();
+    private long sequence;
+
+    public PreProvisioner(SessionRepository sessionRepo, ComputeService computeService, SessionHistory history,
+            Clock clock, Settings settings) {
+        this.sessionRepo = sessionRepo;
+        this.computeService = computeService;
+        this.history = history;
+        this.clock = clock;
+        this.settings = settings;
+    }
+
+    public void start(ScheduledExecutorService executor) {
+        executor.scheduleAtFixedRate(this::tick, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /** Exports the hit/miss counters; hit rate is hits / (hits + misses). */
+    public void registerMetrics(Meter meter) {
+        meter.counterBuilder("rbs.prewarm.created").setDescription("Pre-provisioned servers started")
+                .buildWithCallback(m -> m.record(created.get()));
+        meter.counterBuilder("rbs.prewarm.hits").setDescription("Pre-provisioned servers claimed by a session")
+                .buildWithCallback(m -> m.record(hits.get()));
+        meter.counterBuilder("rbs.prewarm.misses").setDescription("Pre-provisioned servers deleted unclaimed")
+                .buildWithCallback(m -> m.record(misses.get()));
+        meter.counterBuilder("rbs.prewarm.capped").setDescription("Predicted arrivals skipped by the session cap")
+                .buildWithCallback(m -> m.record(capped.get()));
+        meter.upDownCounterBuilder("rbs.prewarm.live").setDescription("Pre-provisioned servers awaiting a session")
+                .buildWithCallback(m -> m.record(prewarmed.size()));
+    }
+
+    /**
+     * Replays the session starts and ends persisted within the model's
+     * lookback into the history. Runs once at startup, before sessions start.
+     */
+    public void loadHistory() {
+        long since = clock.millis() - Duration.ofDays(SessionHistory.LOOKBACK_DAYS + 1).toMillis();
+        List<SessionRepository.SessionEvent> events = sessionRepo.getSessionEvents(since);
+        // Read everything before touching the history, so a failed attempt can be retried as a whole.
+        Map<String, Integer> live = new java.util.HashMap<>();
+        for (SessionRepository.SessionEvent event : events) {
+            String key = SessionHistory.key(event.userId, event.repoHash);
+            if (!live.containsKey(key)) {
+                int sessions = 0;
+                for (SessionRepository.BuildSession session : sessionRepo.findSessions(event.userId,
+                        event.repoHash)) {
+                    if (!session.sessionId.startsWith(SESSION_PREFIX)) {
+                        sessions++;
+                    }
+                }
+                live.put(key, sessions);
+            }
+        }
+        for (SessionRepository.SessionEvent event : events) {
+            if (event.start) {
+                history.recordStart(event.userId, event.repoHash, event.atMillis, event.sourcePath,
+                        event.startupOptions, event.region);
+            } else {
+                history.recordEnd(event.userId, event.repoHash, event.atMillis);
+            }
+        }
+        // A start whose end was lost (e.g. a crash in between) would otherwise block its key for good.
+        for (SessionHistory.UserRepoHistory candidate : history.getHistories()) {
+            history.setActive(candidate.userId, candidate.repoHash,
+                    live.getOrDefault(SessionHistory.key(candidate.userId, candidate.repoHash), 0));
+        }
+        logger.info("Loaded " + events.size() + " session history events for " + live.size() + " users and repos");
+    }
+
+    void onSessionStarted(String userId, String repoHash, String sourcePath, List<String> startupOptions,
+            String region) {
+        long now = clock.millis();
+        history.recordStart(userId, repoHash, now, sourcePath, startupOptions, region);
+        persist(SessionRepository.SessionEvent.start(userId, repoHash, now, sourcePath, startupOptions, region));
+    }
+
+    void onSessionEnded(SessionRepository.BuildSession session) {
+        if (session.sessionId.startsWith(SESSION_PREFIX)) {
+            // Reaped behind our back (e.g. heartbeats stopped); nothing left to release.
+            prewarmed.remove(SessionHistory.key(session.userId, session.repoHash));
+            return;
+        }
+        history.recordEnd(session.userId, session.repoHash, session.lastHeartbeat);
+        persist(SessionRepository.SessionEvent.end(session.userId, session.repoHash, session.lastHeartbeat));
+    }
+
+    private void persist(SessionRepository.SessionEvent event) {
+        try {
+            sessionRepo.recordSessionEvent(event);
+        } catch (RuntimeException e) {
+            // Only the model after a restart loses this event; the session itself is unaffected.
+            logger.warning("Failed to persist session history event for "
+                    + SessionHistory.key(event.userId, event.repoHash) + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Hands the pre-provisioned server for this user and repo to a new
+     * session, or returns null if there is none with matching startup options.
+     */
+    SessionRepository.BuildSession claim(String userId, String repoHash, List<String> startupOptions) {
+        String key = SessionHistory.key(userId, repoHash);
+        Prewarm prewarm = prewarmed.remove(key);
+        if (prewarm == null) {
+            return null;
+        }
+        if (!prewarm.startupOptions.equals(startupOptions)) {
+            // The user started differently today; the server cannot be reused. Deleting it can take a
+            // minute, which the new session should not wait for.
+            releaseExecutor.execute(() -> {
+                try {
+                    release(key, prewarm);
+                } catch (RuntimeException e) {
+                    logger.warning("Failed to release pre-provisioned server " + prewarm.sessionId + ": "
+                            + e.getMessage());
+                }
+            });
+            return null;
+        }
+        SessionRepository.BuildSession session = sessionRepo.getSession(prewarm.sessionId);
+        if (session == null) {
+            return null;
+        }
+        hits.incrementAndGet();
+        consecutiveMisses.remove(key);
+        return session;
+    }
+
+    synchronized void tick() {
+        long now = clock.millis();
+        LocalDate today = Instant.ofEpochMilli(now).atZone(history.getZone()).toLocalDate();
+        if (!today.equals(lastPruned)) {
+            try {
+                sessionRepo.deleteSessionEvents(now - Duration.ofDays(SessionHistory.LOOKBACK_DAYS + 1).toMillis());
+                lastPruned = today;
+            } catch (RuntimeException e) {
+                logger.warning("Failed to prune session history events: " + e.getMessage());
+            }
+        }
+
+        for (Map.Entry<String, Prewarm> entry : new ArrayList<>(prewarmed.entrySet())) {
+            Prewarm prewarm = entry.getValue();
+            // A claim may have taken it meanwhile.
+            if (now >= prewarm.expiresAtMillis && prewarmed.remove(entry.getKey(), prewarm)) {
+                release(entry.getKey(), prewarm);
+            } else if (now < prewarm.expiresAtMillis) {
+                // Keep the reaper away until the user arrives.
+                sessionRepo.updateHeartbeat(prewarm.sessionId);
+            }
+        }
+
+        for (SessionHistory.UserRepoHistory candidate : history.getHistories()) {
+            String key = SessionHistory.key(candidate.userId, candidate.repoHash);
+            if (prewarmed.containsKey(key) || today.equals(lastAttempt.get(key))
+                    || history.isActive(candidate.userId, candidate.repoHash)
+                    || history.startedOn(candidate.userId, candidate.repoHash, today)) {
+                continue;
+            }
+            LocalDate suppressed = suppressedUntil.get(key);
+            if (suppressed != null && today.isBefore(suppressed)) {
+                continue;
+            }
+            SessionHistory.Prediction prediction = history.predict(candidate.userId, candidate.repoHash, today);
+            if (prediction == null || now < prediction.startMillis - settings.leadTime.toMillis()
+                    || now >= prediction.startMillis + settings.holdTime.toMillis()) {
+                continue;
+            }
+            if (prewarmed.size() >= settings.maxSessions) {
+                // Retried every tick while in the window, but counted once per day.
+                if (!today.equals(lastCapped.put(key, today))) {
+                    capped.incrementAndGet();
+                }
+                continue;
+            }
+            provision(key, candidate, prediction, today);
+        }
+    }
+
+    private void provision(String key, SessionHistory.UserRepoHistory candidate,
+            SessionHistory.Prediction prediction, LocalDate today) {
+        String sessionId = SESSION_PREFIX + clock.millis() + "-" + (sequence++);
+        lastAttempt.put(key, today);
+        try {
+            computeService.createContainer(candidate.userId, candidate.repoHash, sessionId,
+                    candidate.getSourcePath(), candidate.getStartupOptions(), candidate.getRegion());
+            sessionRepo.saveSession(candidate.userId, candidate.repoHash, sessionId, null, "PENDING");
+        } catch (Exception e) {
+            logger.warning("Failed to pre-provision " + key + ": " + e.getMessage());
+            return;
+        }
+        prewarmed.put(key, new Prewarm(candidate.userId, candidate.repoHash, sessionId, candidate.getStartupOptions(),
+                prediction.startMillis + settings.holdTime.toMillis()));
+        created.incrementAndGet();
+        logger.info("Pre-provisioned " + sessionId + " for " + key + " (predicted arrival "
+                + Instant.ofEpochMilli(prediction.startMillis) + ", p=" + prediction.probability + ")");
+    }
+
+    private void release(String key, Prewarm prewarm) {
+        SessionRepository.BuildSession session = sessionRepo.getSession(prewarm.sessionId);
+        logger.info("Releasing unclaimed pre-provisioned server " + prewarm.sessionId + " for " + key);
+        computeService.deleteContainer(prewarm.userId, prewarm.repoHash, prewarm.sessionId);
+        if (session != null) {
+            sessionRepo.deleteSession(prewarm.sessionId);
+        }
+        misses.incrementAndGet();
+        int streak = consecutiveMisses.merge(key, 1, Integer::sum);
+        if (streak >= settings.maxConsecutiveMisses) {
+            consecutiveMisses.remove(key);
+            suppressedUntil.put(key, Instant.ofEpochMilli(clock.millis()).atZone(history.getZone()).toLocalDate()
+                    .plusDays(SUPPRESS_DAYS));
+            logger.info("Pausing pre-provisioning for " + key + " after " + streak + " misses");
+        }
+    }
+
+    long getCreated() {
+        return created.get();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getCapped() {
+        return capped.get();
+    }
+
+    private static class Prewarm {
+        final String userId;
+        final String repoHash;
+        final String sessionId;
+        final List<String> startupOptions;
+        final long expiresAtMillis;
+
+        Prewarm(String userId, String repoHash, String sessionId, List<String> startupOptions,
+                long expiresAtMillis) {
+            this.userId = userId;
+            this.repoHash = repoHash;
+            this.sessionId = sessionId;
+            this.startupOptions = startupOptions;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+}
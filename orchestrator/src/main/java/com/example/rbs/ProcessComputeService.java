@@ -1,6 +1,9 @@
 package com.example.rbs;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
@@ -13,14 +16,170 @@ public class ProcessComputeService implements ComputeService {
     private static final Logger logger = Logger.getLogger(ProcessComputeService.class.getName());
     private final Map<String, Process> processes = new ConcurrentHashMap<>();
     private final Map<String, Integer> ports = new ConcurrentHashMap<>();
+    // Agents started by an earlier orchestrator process and taken over after a restart.
+    private final Map<String, ProcessHandle> adopted = new ConcurrentHashMap<>();
+    private volatile Path agentsDir;
+    private volatile String remoteCacheAddress;
+    private volatile String remoteExecutorAddress;
+    private volatile String remoteDownloaderAddress;
+    private volatile Path outputBaseRoot;
+    private volatile CgroupManager cgroups;
+    // Output base directories of golden builds and of sessions cloned from a snapshot, by container ID.
+    private final Map<String, Path> outputBases = new ConcurrentHashMap<>();
+    private final Map<String, Path> snapshots = new ConcurrentHashMap<>();
+    private final Map<String, String> goldenByRepo = new ConcurrentHashMap<>();
+
+    /** Remote cache (e.g. {@code grpc://localhost:50051}) the agent points every build at. */
+    public void setRemoteCacheAddress(String remoteCacheAddress) {
+        this.remoteCacheAddress = remoteCacheAddress;
+    }
+
+    /** Remote executor (see {@link ExecutionScheduler}) the agent points every build at. */
+    public void setRemoteExecutorAddress(String remoteExecutorAddress) {
+        this.remoteExecutorAddress = remoteExecutorAddress;
+    }
+
+    /** Remote downloader (see {@link RemoteDownloader}) sessions and golden builds fetch external archives from. */
+    public void setRemoteDownloaderAddress(String remoteDownloaderAddress) {
+        this.remoteDownloaderAddress = remoteDownloaderAddress;
+    }
+
+    /**
+     * Enables golden snapshots: golden builds' output bases, snapshots of them,
+     * and the sessions' clones live under this directory.
+     */
+    public void setOutputBaseRoot(Path outputBaseRoot) {
+        this.outputBaseRoot = outputBaseRoot;
+    }
+
+    /**
+     * Starts every agent in its own cgroup under the manager's root, limited
+     * by its settings; the agent reports usage from it in heartbeats.
+     */
+    public void setCgroupManager(CgroupManager cgroups) {
+        this.cgroups = cgroups;
+    }
+
+    /**
+     * Records each agent's PID and port under {@code dir}, and takes over the
+     * agents recorded there by an earlier orchestrator process that still run
+     * and belong to one of the recovered {@code sessions}. Other recorded
+     * agents (workers, golden builds, sessions that are gone) are killed.
+     */
+    public void adoptAgents(Path dir, java.util.Collection<SessionRepository.BuildSession> sessions)
+            throws IOException {
+        Files.createDirectories(dir);
+        java.util.Set<String> wanted = new java.util.HashSet<>();
+        for (SessionRepository.BuildSession session : sessions) {
+            wanted.add(getContainerId(session.userId, session.repoHash, session.computeSessionId));
+        }
+        try (java.util.stream.Stream<Path> records = Files.list(dir)) {
+            for (Path record : (Iterable<Path>) records::iterator) {
+                String containerId = record.getFileName().toString();
+                if (cgroups != null) {
+                    cgroups.adopt(containerId);
+                }
+                String[] fields = new String(Files.readAllBytes(record), StandardCharsets.UTF_8).trim().split(" ");
+                ProcessHandle agent = fields.length == 3 ? findAgent(Long.parseLong(fields[0]),
+                        Long.parseLong(fields[2])) : null;
+                if (agent != null && wanted.contains(containerId)) {
+                    adopted.put(containerId, agent);
+                    ports.put(containerId, Integer.parseInt(fields[1]));
+                    logger.info("Adopted agent for " + containerId + ", pid=" + agent.pid());
+                    continue;
+                }
+                if (agent != null) {
+                    logger.info("Killing agent left behind for " + containerId + ", pid=" + agent.pid());
+                    agent.destroyForcibly();
+                }
+                if (cgroups != null) {
+                    cgroups.delete(containerId);
+                }
+                Files.deleteIfExists(record);
+            }
+        }
+        agentsDir = dir;
+    }
+
+    /** The live process with this PID if it started when the record says, i.e. the PID was not reused. */
+    private static ProcessHandle findAgent(long pid, long startMillis) {
+        ProcessHandle handle = ProcessHandle.of(pid).orElse(null);
+        if (handle == null || !handle.isAlive()) {
+            return null;
+        }
+        long started = handle.info().startInstant().map(java.time.Instant::toEpochMilli).orElse(-1L);
+        return started == startMillis ? handle : null;
+    }
 
     @Override
     public String createContainer(String userId, String repoHash, String sessionId, String sourcePath,
             java.util.List<String> startupOptions, String region) {
+        return spawn(userId, repoHash, sessionId, sourcePath, startupOptions, false, null);
+    }
+
+    @Override
+    public String createWorker(String pool, String workerId) {
+        return spawn(WORKER_USER, pool, workerId, null, null, true, null);
+    }
+
+    @Override
+    public String createGoldenBuild(String repoHash, String buildId, String sourcePath,
+            java.util.List<String> startupOptions, String command) {
+        if (outputBaseRoot == null) {
+            throw new IllegalStateException("Golden builds need an output base root; call setOutputBaseRoot first");
+        }
+        return spawn(GOLDEN_USER, repoHash, buildId, sourcePath, startupOptions, false, command);
+    }
+
+    /**
+     * Copies the finished build's output base. Without volume snapshots, the
+     * copy is a reflink where the file system supports it (btrfs, XFS), so it
+     * costs no space until either side changes, and a plain copy elsewhere.
+     */
+    @Override
+    public void snapshotOutputBase(String repoHash, String buildId, String snapshotId) {
+        Path source = outputBases.get(getContainerId(GOLDEN_USER, repoHash, buildId));
+        if (source == null) {
+            throw new IllegalStateException("No golden build " + buildId);
+        }
+        Path snapshot = outputBaseRoot.resolve("snapshots").resolve(snapshotId);
+        copyTree(source, snapshot);
+        snapshots.put(snapshotId, snapshot);
+    }
+
+    @Override
+    public boolean isSnapshotReady(String repoHash, String snapshotId) {
+        if (!snapshots.containsKey(snapshotId)) {
+            throw new IllegalStateException("No snapshot " + snapshotId);
+        }
+        return true; // Taken synchronously.
+    }
+
+    @Override
+    public void useSnapshot(String repoHash, String snapshotId) {
+        if (snapshotId == null) {
+            goldenByRepo.remove(repoHash);
+        } else {
+            goldenByRepo.put(repoHash, snapshotId);
+        }
+    }
+
+    @Override
+    public void deleteSnapshot(String repoHash, String snapshotId) {
+        goldenByRepo.remove(repoHash, snapshotId);
+        Path snapshot = snapshots.remove(snapshotId);
+        if (snapshot != null) {
+            deleteTree(snapshot);
+        }
+    }
+
+    private String spawn(String userId, String repoHash, String sessionId, String sourcePath,
+            java.util.List<String> startupOptions, boolean worker, String goldenCommand) {
         String containerId = getContainerId(userId, repoHash, sessionId);
         logger.info("Process: Spawning process for " + containerId + " (source: " + sourcePath + ")");
 
-        if (processes.containsKey(containerId) && processes.get(containerId).isAlive()) {
+        if (processes.containsKey(containerId) && processes.get(containerId).isAlive()
+                || adopted.containsKey(containerId) && adopted.get(containerId).isAlive()) {
             logger.info("Process already running: " + containerId);
             return containerId;
         }
@@ -40,18 +199,62 @@ public class ProcessComputeService implements ComputeService {
 
             ProcessBuilder pb = new ProcessBuilder(agentPath);
             pb.environment().put("PORT", String.valueOf(port));
+            Path outputBase = prepareOutputBase(containerId, repoHash, worker, goldenCommand != null);
+            if (outputBase != null) {
+                startupOptions = new java.util.ArrayList<>(startupOptions != null ? startupOptions
+                        : java.util.Collections.emptyList());
+                startupOptions.add("--output_base=" + outputBase);
+            }
             if (startupOptions != null && !startupOptions.isEmpty()) {
                 String joinedOptions = String.join("|||", startupOptions);
                 pb.environment().put("BAZEL_STARTUP_OPTIONS", joinedOptions);
             }
+            if (remoteCacheAddress != null) {
+                pb.environment().put("RBS_REMOTE_CACHE", remoteCacheAddress);
+            }
+            if (remoteDownloaderAddress != null && !worker) {
+                pb.environment().put("RBS_REMOTE_DOWNLOADER", remoteDownloaderAddress);
+            }
+            if (worker) {
+                pb.environment().put("RBS_WORKER", "1");
+            } else if (goldenCommand != null) {
+                pb.environment().put("RBS_GOLDEN", "1");
+                pb.environment().put("RBS_WARMUP_COMMAND", goldenCommand);
+            } else {
+                if (remoteExecutorAddress != null) {
+                    pb.environment().put("RBS_REMOTE_EXECUTOR", remoteExecutorAddress);
+                }
+                pb.environment().put("RBS_SESSION_ID", sessionId);
+            }
+            CgroupManager cgroupManager = cgroups;
+            if (cgroupManager != null) {
+                Path cgroup = cgroupManager.create(containerId);
+                pb.command(CgroupManager.wrap(cgroup, pb.command()));
+                pb.environment().put("RBS_CGROUP_DIR", cgroup.toString());
+            }
             if (sourcePath != null && !sourcePath.isEmpty()) {
                 // If source path is provided, set it as working directory
                 pb.directory(new java.io.File(sourcePath));
             }
             pb.inheritIO(); // Useful for debugging test output
-            Process p = pb.start();
+            Process p;
+            try {
+                p = pb.start();
+            } catch (IOException | RuntimeException e) {
+                if (cgroupManager != null) {
+                    // Nothing joined it, and nothing else would ever remove it.
+                    cgroupManager.delete(containerId);
+                }
+                throw e;
+            }
             processes.put(containerId, p);
             ports.put(containerId, port);
+            Path dir = agentsDir;
+            if (dir != null) {
+                long started = p.info().startInstant().map(java.time.Instant::toEpochMilli).orElse(-1L);
+                Files.write(dir.resolve(containerId),
+                        (p.pid() + " " + port + " " + started + "\n").getBytes(StandardCharsets.UTF_8));
+            }
 
             logger.info("Agent process spawned for " + containerId + " on port " + port + ", pid=" + p.pid());
         } catch (IOException e) {
@@ -65,17 +268,37 @@ public class ProcessComputeService implements ComputeService {
     public void deleteContainer(String userId, String repoHash, String sessionId) {
         String containerId = getContainerId(userId, repoHash, sessionId);
         Process p = processes.remove(containerId);
-        if (p != null) {
-            logger.info("Process: Killing process for " + containerId + ", pid=" + p.pid());
-            p.destroyForcibly();
+        ProcessHandle handle = p != null ? p.toHandle() : adopted.remove(containerId);
+        if (handle != null) {
+            logger.info("Process: Killing process for " + containerId + ", pid=" + handle.pid());
+            handle.destroyForcibly();
             try {
-                p.waitFor();
+                handle.onExit().get();
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
+            } catch (java.util.concurrent.ExecutionException e) {
+                logger.warning("Waiting for " + containerId + " to exit failed: " + e.getMessage());
             }
         } else {
             logger.warning("Process not found for " + containerId);
         }
+        if (cgroups != null) {
+            // The Bazel server left the agent's process tree, but not its cgroup.
+            cgroups.delete(containerId);
+        }
+        ports.remove(containerId);
+        Path dir = agentsDir;
+        if (dir != null) {
+            try {
+                Files.deleteIfExists(dir.resolve(containerId));
+            } catch (IOException e) {
+                logger.warning("Failed to delete the agent record of " + containerId + ": " + e.getMessage());
+            }
+        }
+        Path outputBase = outputBases.remove(containerId);
+        if (outputBase != null) {
+            deleteTree(outputBase);
+        }
     }
 
     @Override
@@ -84,11 +307,20 @@ public class ProcessComputeService implements ComputeService {
         Process p = processes.get(containerId);
 
         Integer port = ports.get(containerId);
+        if (p != null && GOLDEN_USER.equals(userId)) {
+            // A golden build is done, not dead, when its agent exits successfully.
+            return new ContainerStatus(p.isAlive() ? "PENDING" : p.exitValue() == 0 ? "READY" : "TERMINATED", null);
+        }
         if (p != null && p.isAlive() && port != null) {
             return new ContainerStatus("READY", "127.0.0.1:" + port);
         } else if (p != null && !p.isAlive()) {
             return new ContainerStatus("TERMINATED", null);
         }
+        ProcessHandle agent = adopted.get(containerId);
+        if (agent != null && !GOLDEN_USER.equals(userId)) {
+            return agent.isAlive() && port != null ? new ContainerStatus("READY", "127.0.0.1:" + port)
+                    : new ContainerStatus("TERMINATED", null);
+        }
 
         return null;
     }
@@ -96,7 +328,63 @@ public class ProcessComputeService implements ComputeService {
     public long getPid(String userId, String repoHash, String sessionId) {
         String containerId = getContainerId(userId, repoHash, sessionId);
         Process p = processes.get(containerId);
-        return p != null ? p.pid() : -1;
+        ProcessHandle agent = adopted.get(containerId);
+        return p != null ? p.pid() : agent != null ? agent.pid() : -1;
+    }
+
+    /**
+     * The output base of a golden build (empty), or of a session of a repo
+     * with a golden snapshot (a clone of it); null to leave Bazel's default.
+     */
+    private Path prepareOutputBase(String containerId, String repoHash, boolean worker, boolean golden)
+            throws IOException {
+        Path root = outputBaseRoot;
+        String snapshotId = worker || golden || root == null ? null : goldenByRepo.get(repoHash);
+        Path snapshot = snapshotId != null ? snapshots.get(snapshotId) : null;
+        if (!golden && snapshot == null) {
+            return null;
+        }
+        Path outputBase = root.resolve(golden ? "builds" : "sessions").resolve(containerId);
+        deleteTree(outputBase); // Left over from an earlier container with the same ID.
+        if (golden) {
+            Files.createDirectories(outputBase);
+        } else {
+            copyTree(snapshot, outputBase);
+        }
+        outputBases.put(containerId, outputBase);
+        return outputBase;
+    }
+
+    private static void copyTree(Path from, Path to) {
+        try {
+            Files.createDirectories(to.getParent());
+        } catch (IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+        run("cp", "-a", "--reflink=auto", from.toString(), to.toString());
+    }
+
+    private static void deleteTree(Path path) {
+        if (Files.exists(path)) {
+            // Bazel makes parts of the output base read-only.
+            run("chmod", "-R", "u+w", path.toString());
+            run("rm", "-rf", path.toString());
+        }
+    }
+
+    private static void run(String... command) {
+        try {
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            if (process.waitFor() != 0) {
+                throw new IllegalStateException(String.join(" ", command) + " failed: " + output);
+            }
+        } catch (IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted: " + String.join(" ", command));
+        }
     }
 
     private String getContainerId(String userId, String repoHash, String sessionId) {
@@ -112,11 +400,21 @@ public class ProcessComputeService implements ComputeService {
     }
 
     public void cleanup() {
-        for (Process p : processes.values()) {
-            if (p.isAlive()) {
-                p.destroyForcibly();
+        for (Map.Entry<String, Process> entry : processes.entrySet()) {
+            if (entry.getValue().isAlive()) {
+                entry.getValue().destroyForcibly();
+            }
+            if (cgroups != null) {
+                cgroups.delete(entry.getKey());
             }
         }
         processes.clear();
+        for (Map.Entry<String, ProcessHandle> entry : adopted.entrySet()) {
+            entry.getValue().destroyForcibly();
+            if (cgroups != null) {
+                cgroups.delete(entry.getKey());
+            }
+        }
+        adopted.clear();
     }
 }
@@ -0,0 +1,99 @@
+package com.example.rbs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Timestamps of one session's provisioning milestones, and the phases
+ * between them.
+ *
+ * <p>
+ * The first milestones come from the orchestrator's own API calls. The rest
+ * come from the pod's conditions, container status and events, which the API
+ * server reports with one-second resolution. A phase runs from the previous
+ * recorded milestone to its own, so a missing milestone (e.g. no
+ * {@code Pulling} event because the image was cached) folds its time into
+ * the next phase instead of losing it.
+ */
+public class ProvisioningTimeline {
+    /** Provisioning milestones in order, each ending the phase it names. */
+    public enum Milestone {
+        REQUESTED(null),
+        NAMESPACE_CREATED("namespace"),
+        SERVICE_ACCOUNT_CREATED("service_account"),
+        POD_CREATED("pod_create"),
+        SCHEDULED("scheduling"),
+        IMAGE_PULL_STARTED("sandbox"),
+        IMAGE_PULLED("image_pull"),
+        CONTAINER_STARTED("container_start"),
+        READY("agent_ready");
+
+        private final String phase;
+
+        Milestone(String phase) {
+            this.phase = phase;
+        }
+
+        /** Name of the phase ending at this milestone. */
+        public String getPhase() {
+            return phase;
+        }
+    }
+
+    private final Map<Milestone, Long> marks = new EnumMap<>(Milestone.class);
+
+    /** Records a milestone; the first timestamp wins, so re-polling never moves it. */
+    public synchronized void mark(Milestone milestone, long epochMillis) {
+        marks.putIfAbsent(milestone, epochMillis);
+    }
+
+    public synchronized Long get(Milestone milestone) {
+        return marks.get(milestone);
+    }
+
+    public synchronized boolean has(Milestone milestone) {
+        return marks.containsKey(milestone);
+    }
+
+    /** Phases between consecutive recorded milestones, in order. */
+    public synchronized List<Phase> getPhases() {
+        List<Phase> phases = new ArrayList<>();
+        Long previous = null;
+        for (Map.Entry<Milestone, Long> mark : marks.entrySet()) {
+            if (previous == null) {
+                previous = mark.getValue();
+                continue;
+            }
+            // Orchestrator and API server clocks differ, and the server truncates to seconds.
+            long end = Math.max(mark.getValue(), previous);
+            phases.add(new Phase(mark.getKey().getPhase(), previous, end));
+            previous = end;
+        }
+        return Collections.unmodifiableList(phases);
+    }
+
+    /** Time from the first to the last recorded milestone. */
+    public synchronized long getTotalMillis() {
+        List<Phase> phases = getPhases();
+        return phases.isEmpty() ? 0 : phases.get(phases.size() - 1).endMillis - phases.get(0).startMillis;
+    }
+
+    public static class Phase {
+        public final String name;
+        public final long startMillis;
+        public final long endMillis;
+
+        Phase(String name, long startMillis, long endMillis) {
+            this.name = name;
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+        }
+
+        public long getDurationMillis() {
+            return endMillis - startMillis;
+        }
+    }
+}
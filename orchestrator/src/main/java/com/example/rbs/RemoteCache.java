@@ -0,0 +1,591 @@
+package com.example.rbs;
+
+import build.bazel.remote.execution.v2.ActionCacheGrpc;
+import build.bazel.remote.execution.v2.ActionCacheUpdateCapabilities;
+import build.bazel.remote.execution.v2.ActionResult;
+import build.bazel.remote.execution.v2.BatchReadBlobsRequest;
+import build.bazel.remote.execution.v2.BatchReadBlobsResponse;
+import build.bazel.remote.execution.v2.BatchUpdateBlobsRequest;
+import build.bazel.remote.execution.v2.BatchUpdateBlobsResponse;
+import build.bazel.remote.execution.v2.CacheCapabilities;
+import build.bazel.remote.execution.v2.CapabilitiesGrpc;
+import build.bazel.remote.execution.v2.Compressor;
+import build.bazel.remote.execution.v2.ContentAddressableStorageGrpc;
+import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.DigestFunction;
+import build.bazel.remote.execution.v2.ExecutionCapabilities;
+import build.bazel.remote.execution.v2.FindMissingBlobsRequest;
+import build.bazel.remote.execution.v2.FindMissingBlobsResponse;
+import build.bazel.remote.execution.v2.GetActionResultRequest;
+import build.bazel.remote.execution.v2.GetCapabilitiesRequest;
+import build.bazel.remote.execution.v2.OutputDirectory;
+import build.bazel.remote.execution.v2.OutputFile;
+import build.bazel.remote.execution.v2.ServerCapabilities;
+import build.bazel.remote.execution.v2.SymlinkAbsolutePathStrategy;
+import build.bazel.remote.execution.v2.UpdateActionResultRequest;
+import build.bazel.semver.SemVer;
+import com.google.bytestream.ByteStreamGrpc;
+import com.google.bytestream.ByteStreamProto.QueryWriteStatusRequest;
+import com.google.bytestream.ByteStreamProto.QueryWriteStatusResponse;
+import com.google.bytestream.ByteStreamProto.ReadRequest;
+import com.google.bytestream.ByteStreamProto.ReadResponse;
+import com.google.bytestream.ByteStreamProto.WriteRequest;
+import com.google.bytestream.ByteStreamProto.WriteResponse;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.BindableService;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import io.opentelemetry.api.metrics.Meter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Bazel remote cache (Remote Execution API v2 ActionCache,
+ * ContentAddressableStorage and Capabilities, plus ByteStream for large
+ * blobs) served from two {@link CasStore}s next to the orchestrator, so
+ * sessions share action results without extra infrastructure.
+ *
+ * <p>
+ * Only SHA-256 and uncompressed blobs are supported, and the instance name is
+ * ignored. Uploaded blobs are verified against their digest, and a streamed
+ * upload larger than {@link #setMaxBlobBytes} is refused before any of it is
+ * written. Streamed reads go through the file in chunks, so blobs of any size
+ * can be served. An action result
+ * is only returned while the blobs it references directly are still in the
+ * CAS, so eviction never hands Bazel a result it cannot download.
+ */
+public class RemoteCache {
+    private static final Logger logger = Logger.getLogger(RemoteCache.class.getName());
+
+    // Stays under gRPC's default 4 MiB message limit.
+    static final long MAX_BATCH_TOTAL_SIZE_BYTES = 3 * 1024 * 1024;
+    private static final int READ_CHUNK_BYTES = 64 * 1024;
+    // Action cache keys of asset entries; action digests are plain hashes, so they never collide.
+    private static final String ASSET_PREFIX = "asset_";
+
+    private final CasStore cas;
+    private final CasStore actionCache;
+    private final AtomicLong actionCacheHits = new AtomicLong();
+    private final AtomicLong actionCacheMisses = new AtomicLong();
+    private volatile boolean executionEnabled;
+    private volatile long maxBlobBytes = Long.MAX_VALUE;
+
+    RemoteCache(CasStore cas, CasStore actionCache) {
+        this.cas = cas;
+        this.actionCache = actionCache;
+    }
+
+    /**
+     * Opens (or creates) the cache in {@code dir}; action results get a
+     * sixteenth of {@code maxBytes}, blobs the rest.
+     */
+    public static RemoteCache open(Path dir, long maxBytes) throws IOException {
+        RemoteCache cache = new RemoteCache(new CasStore(dir.resolve("cas"), maxBytes - maxBytes / 16),
+                new CasStore(dir.resolve("ac"), maxBytes / 16));
+        // A larger blob would evict everything else and still not fit.
+        cache.setMaxBlobBytes(maxBytes - maxBytes / 16);
+        return cache;
+    }
+
+    public List<BindableService> services() {
+        return Arrays.asList(new CapabilitiesService(), new CasService(), new ActionCacheService(),
+                new ByteStreamService());
+    }
+
+    public void registerMetrics(Meter meter) {
+        meter.counterBuilder("rbs.cache.ac.hits").setDescription("Action cache lookups that found a result")
+                .buildWithCallback(m -> m.record(actionCacheHits.get()));
+        meter.counterBuilder("rbs.cache.ac.misses").setDescription("Action cache lookups that found nothing usable")
+                .buildWithCallback(m -> m.record(actionCacheMisses.get()));
+        meter.upDownCounterBuilder("rbs.cache.cas.bytes").setDescription("Bytes stored in the CAS").setUnit("By")
+                .buildWithCallback(m -> m.record(cas.getTotalBytes()));
+        meter.counterBuilder("rbs.cache.cas.evictions").setDescription("Blobs evicted from the CAS")
+                .buildWithCallback(m -> m.record(cas.getEvictions()));
+    }
+
+    /** Largest blob a ByteStream upload may declare. */
+    public void setMaxBlobBytes(long maxBlobBytes) {
+        this.maxBlobBytes = maxBlobBytes;
+    }
+
+    /** Advertises remote execution in the capabilities, for when an {@link ExecutionScheduler} is served too. */
+    public void setExecutionEnabled(boolean executionEnabled) {
+        this.executionEnabled = executionEnabled;
+    }
+
+    long getActionCacheHits() {
+        return actionCacheHits.get();
+    }
+
+    long getActionCacheMisses() {
+        return actionCacheMisses.get();
+    }
+
+    /**
+     * The cached result for an action, or null if there is none or any blob it
+     * references has been evicted. Counts as a hit or miss.
+     */
+    ActionResult lookupActionResult(Digest actionDigest) throws IOException {
+        ActionResult result = null;
+        ByteBuffer stored = actionCache.get(actionDigest.getHash());
+        if (stored != null) {
+            try {
+                result = ActionResult.parseFrom(stored);
+            } catch (InvalidProtocolBufferException e) {
+                logger.warning("Ignoring unreadable action result " + actionDigest.getHash());
+            }
+        }
+        if (result == null || !outputsPresent(result)) {
+            actionCacheMisses.incrementAndGet();
+            return null;
+        }
+        actionCacheHits.incrementAndGet();
+        return result;
+    }
+
+    void storeActionResult(Digest actionDigest, ActionResult result) throws IOException {
+        actionCache.put(actionDigest.getHash(), result.toByteArray());
+    }
+
+    /** The blob, or null if absent; for blobs under 2 GiB, such as messages. */
+    ByteBuffer getBlob(Digest digest) throws IOException {
+        return digest.getSizeBytes() == 0 ? ByteBuffer.allocate(0)
+                : cas.get(CasStore.key(digest.getHash(), digest.getSizeBytes()));
+    }
+
+    /**
+     * Opens a non-empty blob of any size for reading, or returns null if
+     * absent. The empty blob has no file; callers handle it themselves.
+     */
+    FileChannel openBlob(Digest digest) throws IOException {
+        return cas.open(CasStore.key(digest.getHash(), digest.getSizeBytes()));
+    }
+
+    private boolean outputsPresent(ActionResult result) {
+        for (OutputFile file : result.getOutputFilesList()) {
+            if (!hasBlob(file.getDigest())) {
+                return false;
+            }
+        }
+        for (OutputDirectory directory : result.getOutputDirectoriesList()) {
+            if (!hasBlob(directory.getTreeDigest())) {
+                return false;
+            }
+        }
+        return (!result.hasStdoutDigest() || hasBlob(result.getStdoutDigest()))
+                && (!result.hasStderrDigest() || hasBlob(result.getStderrDigest()));
+    }
+
+    /** A temporary file in the CAS to stream a blob into before {@link #commitBlob}. */
+    Path newBlobFile() throws IOException {
+        return cas.newTempFile();
+    }
+
+    /** Moves a fully written blob, already verified against {@code digest}, into the CAS. */
+    void commitBlob(Path tmp, Digest digest) throws IOException {
+        cas.commit(tmp, CasStore.key(digest.getHash(), digest.getSizeBytes()));
+    }
+
+    /**
+     * Remembers the size of a blob stored as a downloaded asset, so a later
+     * fetch that only knows its SHA-256 checksum can find it. Kept in the
+     * action cache, next to the results it may be evicted with.
+     */
+    void rememberAsset(Digest digest) throws IOException {
+        actionCache.put(ASSET_PREFIX + digest.getHash(), digest.toByteArray());
+    }
+
+    /** The digest of the asset with this SHA-256, or null if it is unknown or its blob was evicted. */
+    Digest lookupAsset(String sha256) throws IOException {
+        ByteBuffer stored = actionCache.get(ASSET_PREFIX + sha256);
+        if (stored == null) {
+            return null;
+        }
+        try {
+            Digest digest = Digest.parseFrom(stored);
+            return hasBlob(digest) ? digest : null;
+        } catch (InvalidProtocolBufferException e) {
+            logger.warning("Ignoring unreadable asset entry " + sha256);
+            return null;
+        }
+    }
+
+    boolean hasBlob(Digest digest) {
+        return digest.getSizeBytes() == 0 || cas.contains(CasStore.key(digest.getHash(), digest.getSizeBytes()));
+    }
+
+    /** Null if valid, else the reason. */
+    static String validate(Digest digest) {
+        if (digest.getHash().length() != 64 || !digest.getHash().matches("[0-9a-f]+")) {
+            return "Not a SHA-256 digest: " + digest.getHash();
+        }
+        if (digest.getSizeBytes() < 0) {
+            return "Negative size in digest " + digest.getHash();
+        }
+        return null;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private class CapabilitiesService extends CapabilitiesGrpc.CapabilitiesImplBase {
+        @Override
+        public void getCapabilities(GetCapabilitiesRequest request,
+                StreamObserver<ServerCapabilities> responseObserver) {
+            ServerCapabilities.Builder capabilities = ServerCapabilities.newBuilder()
+                    .setCacheCapabilities(CacheCapabilities.newBuilder()
+                            .addDigestFunctions(DigestFunction.Value.SHA256)
+                            .setActionCacheUpdateCapabilities(
+                                    ActionCacheUpdateCapabilities.newBuilder().setUpdateEnabled(true))
+                            .setMaxBatchTotalSizeBytes(MAX_BATCH_TOTAL_SIZE_BYTES)
+                            .setSymlinkAbsolutePathStrategy(SymlinkAbsolutePathStrategy.Value.ALLOWED)
+                            .addSupportedCompressors(Compressor.Value.IDENTITY))
+                    .setLowApiVersion(SemVer.newBuilder().setMajor(2))
+                    .setHighApiVersion(SemVer.newBuilder().setMajor(2).setMinor(3));
+            if (executionEnabled) {
+                capabilities.setExecutionCapabilities(ExecutionCapabilities.newBuilder()
+                        .setDigestFunction(DigestFunction.Value.SHA256)
+                        .setExecEnabled(true)
+                        .addDigestFunctions(DigestFunction.Value.SHA256));
+            }
+            responseObserver.onNext(capabilities.build());
+            responseObserver.onCompleted();
+        }
+    }
+
+    private class CasService extends ContentAddressableStorageGrpc.ContentAddressableStorageImplBase {
+        @Override
+        public void findMissingBlobs(FindMissingBlobsRequest request,
+                StreamObserver<FindMissingBlobsResponse> responseObserver) {
+            FindMissingBlobsResponse.Builder response = FindMissingBlobsResponse.newBuilder();
+            for (Digest digest : request.getBlobDigestsList()) {
+                String invalid = validate(digest);
+                if (invalid != null) {
+                    responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(invalid).asRuntimeException());
+                    return;
+                }
+                if (!hasBlob(digest)) {
+                    response.addMissingBlobDigests(digest);
+                }
+            }
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void batchUpdateBlobs(BatchUpdateBlobsRequest request,
+                StreamObserver<BatchUpdateBlobsResponse> responseObserver) {
+            BatchUpdateBlobsResponse.Builder response = BatchUpdateBlobsResponse.newBuilder();
+            for (BatchUpdateBlobsRequest.Request blob : request.getRequestsList()) {
+                response.addResponses(BatchUpdateBlobsResponse.Response.newBuilder()
+                        .setDigest(blob.getDigest())
+                        .setStatus(store(blob)));
+            }
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        }
+
+        private com.google.rpc.Status store(BatchUpdateBlobsRequest.Request blob) {
+            Digest digest = blob.getDigest();
+            String invalid = validate(digest);
+            if (invalid == null && blob.getCompressor() != Compressor.Value.IDENTITY) {
+                invalid = "Compressed blobs are not supported";
+            }
+            if (invalid == null) {
+                MessageDigest hash = sha256();
+                hash.update(blob.getData().asReadOnlyByteBuffer());
+                if (blob.getData().size() != digest.getSizeBytes() || !hex(hash.digest()).equals(digest.getHash())) {
+                    invalid = "Data does not match digest " + digest.getHash() + "/" + digest.getSizeBytes();
+                }
+            }
+            if (invalid != null) {
+                return rpcStatus(Status.Code.INVALID_ARGUMENT, invalid);
+            }
+            try {
+                cas.put(CasStore.key(digest.getHash(), digest.getSizeBytes()), blob.getData().toByteArray());
+                return rpcStatus(Status.Code.OK, "");
+            } catch (IOException e) {
+                logger.warning("Failed to store blob " + digest.getHash() + ": " + e.getMessage());
+                return rpcStatus(Status.Code.INTERNAL, e.getMessage());
+            }
+        }
+
+        @Override
+        public void batchReadBlobs(BatchReadBlobsRequest request,
+                StreamObserver<BatchReadBlobsResponse> responseObserver) {
+            BatchReadBlobsResponse.Builder response = BatchReadBlobsResponse.newBuilder();
+            for (Digest digest : request.getDigestsList()) {
+                BatchReadBlobsResponse.Response.Builder blob = BatchReadBlobsResponse.Response.newBuilder()
+                        .setDigest(digest);
+                String invalid = validate(digest);
+                if (invalid != null) {
+                    blob.setStatus(rpcStatus(Status.Code.INVALID_ARGUMENT, invalid));
+                } else if (digest.getSizeBytes() == 0) {
+                    blob.setStatus(rpcStatus(Status.Code.OK, ""));
+                } else {
+                    try {
+                        ByteBuffer data = cas.get(CasStore.key(digest.getHash(), digest.getSizeBytes()));
+                        if (data == null) {
+                            blob.setStatus(rpcStatus(Status.Code.NOT_FOUND, "Blob not found"));
+                        } else {
+                            blob.setData(ByteString.copyFrom(data)).setStatus(rpcStatus(Status.Code.OK, ""));
+                        }
+                    } catch (IOException e) {
+                        blob.setStatus(rpcStatus(Status.Code.INTERNAL, e.getMessage()));
+                    }
+                }
+                response.addResponses(blob);
+            }
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        }
+    }
+
+    private class ActionCacheService extends ActionCacheGrpc.ActionCacheImplBase {
+        @Override
+        public void getActionResult(GetActionResultRequest request, StreamObserver<ActionResult> responseObserver) {
+            String invalid = validate(request.getActionDigest());
+            if (invalid != null) {
+                responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(invalid).asRuntimeException());
+                return;
+            }
+            try {
+                ActionResult result = lookupActionResult(request.getActionDigest());
+                if (result == null) {
+                    responseObserver.onError(Status.NOT_FOUND.asRuntimeException());
+                    return;
+                }
+                responseObserver.onNext(result);
+                responseObserver.onCompleted();
+            } catch (IOException e) {
+                responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+            }
+        }
+
+        @Override
+        public void updateActionResult(UpdateActionResultRequest request,
+                StreamObserver<ActionResult> responseObserver) {
+            String invalid = validate(request.getActionDigest());
+            if (invalid != null) {
+                responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(invalid).asRuntimeException());
+                return;
+            }
+            try {
+                storeActionResult(request.getActionDigest(), request.getActionResult());
+                responseObserver.onNext(request.getActionResult());
+                responseObserver.onCompleted();
+            } catch (IOException e) {
+                responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+            }
+        }
+    }
+
+    /**
+     * Streams blobs too large for a batch. Resource names are
+     * {@code [instance/]blobs/<hash>/<size>} for reads and
+     * {@code [instance/]uploads/<uuid>/blobs/<hash>/<size>} for writes.
+     */
+    private class ByteStreamService extends ByteStreamGrpc.ByteStreamImplBase {
+        @Override
+        public void read(ReadRequest request, StreamObserver<ReadResponse> responseObserver) {
+            Digest digest = parseResourceName(request.getResourceName());
+            if (digest == null) {
+                responseObserver.onError(Status.INVALID_ARGUMENT
+                        .withDescription("Bad resource name: " + request.getResourceName()).asRuntimeException());
+                return;
+            }
+            long size = digest.getSizeBytes();
+            try (FileChannel blob = size == 0 ? null : openBlob(digest)) {
+                if (size > 0 && blob == null) {
+                    responseObserver.onError(Status.NOT_FOUND.asRuntimeException());
+                    return;
+                }
+                if (request.getReadOffset() < 0 || request.getReadOffset() > size) {
+                    responseObserver.onError(Status.OUT_OF_RANGE.asRuntimeException());
+                    return;
+                }
+                long end = request.getReadLimit() > 0
+                        ? Math.min(size, request.getReadOffset() + request.getReadLimit())
+                        : size;
+                // Chunk by chunk from the file, so no buffer ever holds the whole blob.
+                for (long offset = request.getReadOffset(); offset < end; offset += READ_CHUNK_BYTES) {
+                    ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(end - offset, READ_CHUNK_BYTES));
+                    while (chunk.hasRemaining()) {
+                        if (blob.read(chunk, offset + chunk.position()) < 0) {
+                            throw new IOException("Blob " + digest.getHash() + " is shorter than its digest");
+                        }
+                    }
+                    chunk.flip();
+                    responseObserver.onNext(ReadResponse.newBuilder()
+                            .setData(UnsafeByteOperations.unsafeWrap(chunk)).build());
+                }
+                responseObserver.onCompleted();
+            } catch (IOException e) {
+                responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+            }
+        }
+
+        @Override
+        public StreamObserver<WriteRequest> write(StreamObserver<WriteResponse> responseObserver) {
+            return new StreamObserver<WriteRequest>() {
+                private Digest digest;
+                private Path tmp;
+                private OutputStream out;
+                private final MessageDigest hash = sha256();
+                private long committed;
+                private boolean done;
+
+                @Override
+                public void onNext(WriteRequest request) {
+                    if (done) {
+                        return;
+                    }
+                    try {
+                        if (digest == null) {
+                            digest = parseResourceName(request.getResourceName());
+                            if (digest == null) {
+                                fail(Status.INVALID_ARGUMENT.withDescription(
+                                        "Bad resource name: " + request.getResourceName()));
+                                return;
+                            }
+                            if (digest.getSizeBytes() > maxBlobBytes) {
+                                fail(Status.RESOURCE_EXHAUSTED.withDescription("Blob of " + digest.getSizeBytes()
+                                        + " bytes exceeds the cache's limit of " + maxBlobBytes + " bytes"));
+                                return;
+                            }
+                            tmp = cas.newTempFile();
+                            out = Files.newOutputStream(tmp);
+                        }
+                        if (request.getWriteOffset() != committed) {
+                            fail(Status.INVALID_ARGUMENT.withDescription("Expected write offset " + committed
+                                    + ", got " + request.getWriteOffset()));
+                            return;
+                        }
+                        if (committed + request.getData().size() > digest.getSizeBytes()) {
+                            fail(Status.INVALID_ARGUMENT.withDescription("More data than the "
+                                    + digest.getSizeBytes() + " bytes of digest " + digest.getHash()));
+                            return;
+                        }
+                        request.getData().writeTo(out);
+                        hash.update(request.getData().asReadOnlyByteBuffer());
+                        committed += request.getData().size();
+                        if (request.getFinishWrite()) {
+                            finish();
+                        }
+                    } catch (IOException e) {
+                        fail(Status.INTERNAL.withDescription(e.getMessage()));
+                    }
+                }
+
+                private void finish() throws IOException {
+                    out.close();
+                    if (committed != digest.getSizeBytes() || !hex(hash.digest()).equals(digest.getHash())) {
+                        fail(Status.INVALID_ARGUMENT.withDescription("Data does not match digest "
+                                + digest.getHash() + "/" + digest.getSizeBytes()));
+                        return;
+                    }
+                    cas.commit(tmp, CasStore.key(digest.getHash(), digest.getSizeBytes()));
+                    done = true;
+                    responseObserver.onNext(WriteResponse.newBuilder().setCommittedSize(committed).build());
+                    responseObserver.onCompleted();
+                }
+
+                private void fail(Status status) {
+                    done = true;
+                    cleanUp();
+                    responseObserver.onError(status.asRuntimeException());
+                }
+
+                private void cleanUp() {
+                    try {
+                        if (out != null) {
+                            out.close();
+                        }
+                        if (tmp != null) {
+                            Files.deleteIfExists(tmp);
+                        }
+                    } catch (IOException e) {
+                        logger.fine("Failed to clean up upload: " + e.getMessage());
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    done = true;
+                    cleanUp();
+                }
+
+                @Override
+                public void onCompleted() {
+                    if (!done) {
+                        fail(Status.INVALID_ARGUMENT.withDescription("Upload ended without finish_write"));
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void queryWriteStatus(QueryWriteStatusRequest request,
+                StreamObserver<QueryWriteStatusResponse> responseObserver) {
+            Digest digest = parseResourceName(request.getResourceName());
+            if (digest == null || !hasBlob(digest)) {
+                // Partial uploads are not resumable; the client starts over.
+                responseObserver.onError(Status.NOT_FOUND.asRuntimeException());
+                return;
+            }
+            responseObserver.onNext(QueryWriteStatusResponse.newBuilder()
+                    .setCommittedSize(digest.getSizeBytes())
+                    .setComplete(true)
+                    .build());
+            responseObserver.onCompleted();
+        }
+    }
+
+    /** The digest in a ByteStream resource name, or null if it has none (or is compressed). */
+    static Digest parseResourceName(String resourceName) {
+        String[] parts = resourceName.split("/");
+        for (int i = 0; i + 2 < parts.length; i++) {
+            if (parts[i].equals("blobs")) {
+                try {
+                    Digest digest = Digest.newBuilder()
+                            .setHash(parts[i + 1])
+                            .setSizeBytes(Long.parseLong(parts[i + 2]))
+                            .build();
+                    return validate(digest) == null ? digest : null;
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static com.google.rpc.Status rpcStatus(Status.Code code, String message) {
+        return com.google.rpc.Status.newBuilder().setCode(code.value()).setMessage(message).build();
+    }
+}
@@ -0,0 +1,604 @@
+package com.example.rbs;
+
+import build.bazel.remote.asset.v1.FetchBlobRequest;
+import build.bazel.remote.asset.v1.FetchBlobResponse;
+import build.bazel.remote.asset.v1.FetchGrpc;
+import build.bazel.remote.asset.v1.Qualifier;
+import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.DigestFunction;
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import io.opentelemetry.api.metrics.Meter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Remote Asset API {@code Fetch} service behind Bazel's
+ * {@code --experimental_remote_downloader}. With it, each external archive
+ * (toolchains, Maven jars, npm tarballs) is downloaded once for all sessions
+ * and read from the {@link RemoteCache}'s CAS instead of the internet.
+ *
+ * <p>
+ * {@code FetchBlob} is answered from the cache when it holds an asset with the
+ * request's SHA-256 ({@code checksum.sri}). Otherwise the first URI that works
+ * is streamed into the CAS, hashed on the way, and checked against the
+ * checksum. Concurrent requests for the same asset share one download. A
+ * request with HTTP headers, such as credentials for a private mirror, is
+ * downloaded with them and shares nothing with other requests. Only
+ * {@code http} and {@code https} URIs on public addresses are fetched, unless
+ * {@code allowPrivateAddresses} is set. Each hop connects to the addresses
+ * that were checked, not to a second lookup of the host, so a DNS answer that
+ * changes in between cannot point the download elsewhere. Redirects are
+ * followed here rather than by the HTTP client, so every hop's address is
+ * checked as well. A download that outlives its timeout is aborted even while
+ * a read is blocked, so requests for the same asset can start a new one.
+ *
+ * <p>
+ * The prefetcher keeps busy repos' dependencies in the cache. It records the
+ * checksummed assets each repo's sessions fetch (by the
+ * {@code x-rbs-session-id} header). Every minute, for each repo with at least
+ * {@code prefetchMinSessions} session starts within {@code activeWindow}, it
+ * looks up every recorded asset. The lookup counts as a use, so eviction
+ * passes those assets over. Assets that were evicted anyway are downloaded
+ * again in the background. The records are kept in memory.
+ */
+public class RemoteDownloader {
+    private static final Logger logger = Logger.getLogger(RemoteDownloader.class.getName());
+
+    private static final Context.Key<String> SESSION = Context.key("rbs-download-session");
+    static final String CHECKSUM_QUALIFIER = "checksum.sri";
+    static final String HEADER_QUALIFIER_PREFIX = "http_header:";
+    private static final int COPY_BUFFER_BYTES = 64 * 1024;
+    private static final int MAX_REDIRECTS = 5;
+
+    /** Tuning knobs. */
+    public static class Settings {
+        /** Download timeout of requests that set none. */
+        public Duration defaultTimeout = Duration.ofMinutes(10);
+        /** Also fetch from loopback, link-local and private addresses, e.g. an internal mirror. */
+        public boolean allowPrivateAddresses = false;
+        public int prefetchMinSessions = 3;
+        public Duration activeWindow = Duration.ofDays(1);
+        public int maxConcurrentPrefetches = 4;
+        /** Assets recorded per repo; the least recently fetched are forgotten first. */
+        public int maxAssetsPerRepo = 10_000;
+    }
+
+    /** Opens a URI for download; the caller closes the stream. */
+    interface Transport {
+        InputStream open(URI uri, Map<String, String> headers, Duration timeout) throws IOException;
+    }
+
+    private static final class Fetched {
+        final String uri;
+        final Digest digest;
+
+        Fetched(String uri, Digest digest) {
+            this.uri = uri;
+            this.digest = digest;
+        }
+    }
+
+    private static final class Repo {
+        final Deque<Long> starts = new ArrayDeque<>();
+        // URIs of each recorded asset by SHA-256, least recently fetched first.
+        final LinkedHashMap<String, List<String>> assets = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    private final RemoteCache cache;
+    private final SessionRepository sessionRepo;
+    private final Clock clock;
+    private final Settings settings;
+    private final Transport transport;
+    private final OkHttpClient http = new OkHttpClient.Builder()
+            // Redirects are followed in httpOpen, which checks every hop's address.
+            .followRedirects(false)
+            .followSslRedirects(false)
+            .connectTimeout(Duration.ofSeconds(30))
+            .build();
+    // Downloads in progress by asset; requests for the same asset join them.
+    private final Map<String, CompletableFuture<Fetched>> inflight = new ConcurrentHashMap<>();
+    private final ExecutorService downloadExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "asset-download");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "asset-download-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, Repo> repos = new HashMap<>(); // guarded by this
+    private final AtomicInteger prefetching = new AtomicInteger();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong downloads = new AtomicLong();
+    private final AtomicLong downloadedBytes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong prefetched = new AtomicLong();
+
+    public RemoteDownloader(RemoteCache cache, SessionRepository sessionRepo, Clock clock, Settings settings) {
+        this.cache = cache;
+        this.sessionRepo = sessionRepo;
+        this.clock = clock;
+        this.settings = settings;
+        this.transport = this::httpOpen;
+    }
+
+    RemoteDownloader(RemoteCache cache, SessionRepository sessionRepo, Clock clock, Settings settings,
+            Transport transport) {
+        this.cache = cache;
+        this.sessionRepo = sessionRepo;
+        this.clock = clock;
+        this.settings = settings;
+        this.transport = transport;
+    }
+
+    /** The Fetch service, reading the session from {@code x-rbs-session-id}. */
+    public ServerServiceDefinition service() {
+        ServerInterceptor sessionInterceptor = new ServerInterceptor() {
+            @Override
+            public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                    Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+                Context context = Context.current().withValue(SESSION,
+                        headers.get(ExecutionScheduler.SESSION_HEADER));
+                return Contexts.interceptCall(context, call, headers, next);
+            }
+        };
+        return ServerInterceptors.intercept(new FetchService(), sessionInterceptor);
+    }
+
+    public void start(ScheduledExecutorService executor) {
+        executor.scheduleAtFixedRate(() -> {
+            try {
+                tick();
+            } catch (RuntimeException e) {
+                logger.warning("Prefetch tick failed: " + e.getMessage());
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+    }
+
+    public void registerMetrics(Meter meter) {
+        meter.counterBuilder("rbs.downloads.hits").setDescription("Asset fetches answered from the cache")
+                .buildWithCallback(m -> m.record(hits.get()));
+        meter.counterBuilder("rbs.downloads.fetched").setDescription("Assets downloaded into the cache")
+                .buildWithCallback(m -> m.record(downloads.get()));
+        meter.counterBuilder("rbs.downloads.bytes").setDescription("Bytes downloaded into the cache").setUnit("By")
+                .buildWithCallback(m -> m.record(downloadedBytes.get()));
+        meter.counterBuilder("rbs.downloads.failures").setDescription("Asset downloads that failed on every URI")
+                .buildWithCallback(m -> m.record(failures.get()));
+        meter.counterBuilder("rbs.downloads.prefetched").setDescription("Evicted assets downloaded again ahead of use")
+                .buildWithCallback(m -> m.record(prefetched.get()));
+    }
+
+    synchronized void onSessionStarted(String repoHash) {
+        repos.computeIfAbsent(repoHash, r -> new Repo()).starts.add(clock.millis());
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getDownloads() {
+        return downloads.get();
+    }
+
+    long getPrefetched() {
+        return prefetched.get();
+    }
+
+    int getInflight() {
+        return inflight.size();
+    }
+
+    /** Answers a FetchBlob request; failures are reported in the response's status. */
+    CompletableFuture<FetchBlobResponse> fetchBlob(FetchBlobRequest request, String sessionId) {
+        if (request.getUrisCount() == 0) {
+            return CompletableFuture.completedFuture(failure(Status.Code.INVALID_ARGUMENT, "No URIs to fetch"));
+        }
+        String sha256 = null;
+        Map<String, String> headers = new TreeMap<>();
+        for (Qualifier qualifier : request.getQualifiersList()) {
+            if (CHECKSUM_QUALIFIER.equals(qualifier.getName())) {
+                // Other algorithms are not checked here; Bazel checks the blob it gets.
+                sha256 = sha256FromSri(qualifier.getValue());
+            } else if (qualifier.getName().startsWith(HEADER_QUALIFIER_PREFIX)) {
+                headers.put(qualifier.getName().substring(HEADER_QUALIFIER_PREFIX.length()), qualifier.getValue());
+            }
+        }
+        Duration timeout = request.hasTimeout()
+                ? Duration.ofSeconds(request.getTimeout().getSeconds(), request.getTimeout().getNanos())
+                : Duration.ZERO;
+        return fetch(request.getUrisList(), sha256, headers, timeout.isZero() ? settings.defaultTimeout : timeout,
+                sessionId);
+    }
+
+    void tick() {
+        long now = clock.millis();
+        Map<String, List<String>> wanted = new LinkedHashMap<>();
+        synchronized (this) {
+            for (Iterator<Repo> it = repos.values().iterator(); it.hasNext();) {
+                Repo repo = it.next();
+                while (!repo.starts.isEmpty() && now - repo.starts.peek() > settings.activeWindow.toMillis()) {
+                    repo.starts.poll();
+                }
+                if (repo.starts.isEmpty()) {
+                    it.remove();
+                } else if (repo.starts.size() >= settings.prefetchMinSessions) {
+                    wanted.putAll(repo.assets);
+                }
+            }
+        }
+        for (Map.Entry<String, List<String>> asset : wanted.entrySet()) {
+            try {
+                if (cache.lookupAsset(asset.getKey()) != null || inflight.containsKey(asset.getKey())) {
+                    continue;
+                }
+            } catch (IOException e) {
+                continue;
+            }
+            if (prefetching.get() >= settings.maxConcurrentPrefetches) {
+                break;
+            }
+            prefetching.incrementAndGet();
+            fetch(asset.getValue(), asset.getKey(), Collections.emptyMap(), settings.defaultTimeout, null)
+                    .whenComplete((response, error) -> {
+                        prefetching.decrementAndGet();
+                        if (response != null && response.getStatus().getCode() == Status.Code.OK.value()) {
+                            prefetched.incrementAndGet();
+                        }
+                    });
+        }
+    }
+
+    private CompletableFuture<FetchBlobResponse> fetch(List<String> uris, String sha256, Map<String, String> headers,
+            Duration timeout, String sessionId) {
+        // Downloads with headers may hold credentials, so only identical requests share them.
+        boolean shared = sha256 != null && headers.isEmpty();
+        if (shared) {
+            try {
+                Digest cached = cache.lookupAsset(sha256);
+                if (cached != null) {
+                    hits.incrementAndGet();
+                    record(sessionId, sha256, uris);
+                    return CompletableFuture.completedFuture(success(uris.get(0), cached));
+                }
+            } catch (IOException e) {
+                logger.warning("Asset lookup of " + sha256 + " failed: " + e.getMessage());
+            }
+        }
+        String key = shared ? sha256 : sha256 + " " + uris + " " + headers;
+        CompletableFuture<Fetched> created = new CompletableFuture<>();
+        CompletableFuture<Fetched> download = inflight.putIfAbsent(key, created);
+        if (download == null) {
+            download = created;
+            downloadExecutor.execute(() -> {
+                try {
+                    created.complete(download(uris, sha256, headers, timeout, shared));
+                } catch (IOException | RuntimeException e) {
+                    created.completeExceptionally(e);
+                } finally {
+                    inflight.remove(key, created);
+                }
+            });
+        }
+        // A waiter that gives up leaves the download running for the others.
+        return download.copy().orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS).handle((fetched, error) -> {
+            if (error == null) {
+                if (shared) {
+                    record(sessionId, sha256, uris);
+                }
+                return success(fetched.uri, fetched.digest);
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause()
+                    : error;
+            if (cause instanceof TimeoutException) {
+                return failure(Status.Code.DEADLINE_EXCEEDED, "Download did not finish within " + timeout);
+            }
+            return failure(Status.Code.NOT_FOUND, "Download failed: " + cause.getMessage());
+        });
+    }
+
+    private Fetched download(List<String> uris, String sha256, Map<String, String> headers, Duration timeout,
+            boolean shared) throws IOException {
+        IOException last = null;
+        for (String uri : uris) {
+            Path tmp = cache.newBlobFile();
+            Abort abort = new Abort(Thread.currentThread());
+            ScheduledFuture<?> timer = watchdog.schedule(abort::fire, timeout.toMillis(), TimeUnit.MILLISECONDS);
+            try {
+                MessageDigest hash = sha256();
+                long size = 0;
+                long deadline = clock.millis() + timeout.toMillis();
+                try (InputStream in = abort.watch(transport.open(URI.create(uri), headers, timeout));
+                        OutputStream out = Files.newOutputStream(tmp)) {
+                    byte[] buffer = new byte[COPY_BUFFER_BYTES];
+                    for (int n; (n = in.read(buffer)) >= 0;) {
+                        hash.update(buffer, 0, n);
+                        out.write(buffer, 0, n);
+                        size += n;
+                        if (clock.millis() > deadline) {
+                            throw new IOException("not finished within " + timeout);
+                        }
+                    }
+                }
+                String actual = hex(hash.digest());
+                if (sha256 != null && !sha256.equals(actual)) {
+                    throw new IOException("checksum mismatch: expected sha256 " + sha256 + ", got " + actual);
+                }
+                Digest digest = Digest.newBuilder().setHash(actual).setSizeBytes(size).build();
+                cache.commitBlob(tmp, digest);
+                if (shared) {
+                    cache.rememberAsset(digest);
+                }
+                downloads.incrementAndGet();
+                downloadedBytes.addAndGet(size);
+                logger.info("Downloaded " + uri + " (" + size + " bytes) into the cache");
+                return new Fetched(uri, digest);
+            } catch (IOException | IllegalArgumentException e) {
+                // IllegalArgumentException: a malformed URI or a header the HTTP client refuses.
+                Exception error = abort.finish() ? new IOException("not finished within " + timeout, e) : e;
+                logger.warning("Download of " + uri + " failed: " + error.getMessage());
+                last = error instanceof IOException ? (IOException) error : new IOException(error.getMessage(), e);
+            } finally {
+                timer.cancel(false);
+                abort.finish();
+                Files.deleteIfExists(tmp);
+            }
+        }
+        failures.incrementAndGet();
+        throw last;
+    }
+
+    private void record(String sessionId, String sha256, List<String> uris) {
+        if (sessionId == null) {
+            return;
+        }
+        SessionRepository.BuildSession session = sessionRepo.getSession(sessionId);
+        if (session == null) {
+            return;
+        }
+        synchronized (this) {
+            Repo repo = repos.computeIfAbsent(session.repoHash, r -> new Repo());
+            repo.assets.put(sha256, new ArrayList<>(uris));
+            if (repo.assets.size() > settings.maxAssetsPerRepo) {
+                Iterator<String> eldest = repo.assets.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+    }
+
+    private InputStream httpOpen(URI uri, Map<String, String> headers, Duration timeout) throws IOException {
+        for (int hops = 0;; hops++) {
+            if (!"http".equals(uri.getScheme()) && !"https".equals(uri.getScheme())) {
+                throw new IOException("unsupported scheme");
+            }
+            HttpUrl url = HttpUrl.get(uri.toString());
+            List<InetAddress> addresses = checkAddress(uri);
+            OkHttpClient client = http.newBuilder()
+                    // Connect to the checked addresses; Host, SNI and the certificate check keep the name.
+                    .dns(hostname -> {
+                        if (!hostname.equals(url.host())) {
+                            throw new UnknownHostException("unexpected lookup of " + hostname);
+                        }
+                        return addresses;
+                    })
+                    // Spans the whole call, including reading the body.
+                    .callTimeout(timeout)
+                    .build();
+            Request.Builder request = new Request.Builder().url(url).get();
+            headers.forEach(request::header);
+            Response response = client.newCall(request.build()).execute();
+            int status = response.code();
+            if (status == 200) {
+                return response.body().byteStream();
+            }
+            response.close();
+            String location = response.header("Location");
+            if (!isRedirect(status) || location == null) {
+                throw new IOException("HTTP " + status);
+            }
+            if (hops == MAX_REDIRECTS) {
+                throw new IOException("more than " + MAX_REDIRECTS + " redirects");
+            }
+            URI next = uri.resolve(location);
+            if ("https".equals(uri.getScheme()) && !"https".equals(next.getScheme())) {
+                throw new IOException("refusing redirect from https to " + next.getScheme());
+            }
+            if (!Objects.equals(uri.getRawAuthority(), next.getRawAuthority())) {
+                // Headers may hold credentials for the original host only.
+                headers = Collections.emptyMap();
+            }
+            uri = next;
+        }
+    }
+
+    /**
+     * Resolves a URI's host, refusing it if any address is private unless those
+     * are allowed; the download connects to the returned addresses only.
+     */
+    List<InetAddress> checkAddress(URI uri) throws IOException {
+        List<InetAddress> addresses = Arrays.asList(InetAddress.getAllByName(uri.getHost()));
+        if (!settings.allowPrivateAddresses) {
+            for (InetAddress address : addresses) {
+                if (isPrivate(address)) {
+                    throw new IOException("refusing private address " + address.getHostAddress());
+                }
+            }
+        }
+        return addresses;
+    }
+
+    static boolean isPrivate(InetAddress address) {
+        if (address.isLoopbackAddress() || address.isLinkLocalAddress() || address.isSiteLocalAddress()
+                || address.isAnyLocalAddress()) {
+            return true;
+        }
+        byte[] bytes = address.getAddress();
+        if (bytes.length == 4) {
+            // Carrier-grade NAT, 100.64.0.0/10.
+            return (bytes[0] & 0xff) == 100 && (bytes[1] & 0xc0) == 64;
+        }
+        // IPv6 unique local addresses, fc00::/7.
+        return (bytes[0] & 0xfe) == 0xfc;
+    }
+
+    private static boolean isRedirect(int status) {
+        return status == 301 || status == 302 || status == 303 || status == 307 || status == 308;
+    }
+
+    /** The hex SHA-256 in a Subresource Integrity value, or null if it has none. */
+    static String sha256FromSri(String sri) {
+        for (String token : sri.trim().split("\\s+")) {
+            if (token.startsWith("sha256-")) {
+                try {
+                    byte[] hash = Base64.getDecoder().decode(token.substring("sha256-".length()));
+                    return hash.length == 32 ? hex(hash) : null;
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Aborts one download at its timeout: closes its stream and interrupts its
+     * thread, which unblocks a read that a stalled server would hold forever.
+     */
+    private static final class Abort {
+        private final Thread worker;
+        private InputStream in; // guarded by this
+        private boolean fired; // guarded by this
+        private boolean finished; // guarded by this
+
+        Abort(Thread worker) {
+            this.worker = worker;
+        }
+
+        synchronized InputStream watch(InputStream in) throws IOException {
+            if (fired) {
+                in.close();
+                throw new IOException("timed out while opening");
+            }
+            this.in = in;
+            return in;
+        }
+
+        synchronized void fire() {
+            if (finished) {
+                return;
+            }
+            fired = true;
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // The interrupt still unblocks the read.
+                }
+            }
+            worker.interrupt();
+        }
+
+        /** Stops the abort from firing and clears its interrupt; returns whether it fired. */
+        boolean finish() {
+            boolean interrupted;
+            synchronized (this) {
+                finished = true;
+                interrupted = fired;
+            }
+            // Past the block above fire cannot interrupt, so this clears the last one.
+            Thread.interrupted();
+            return interrupted;
+        }
+    }
+
+    private static FetchBlobResponse success(String uri, Digest digest) {
+        return FetchBlobResponse.newBuilder()
+                .setStatus(com.google.rpc.Status.newBuilder().setCode(Status.Code.OK.value()))
+                .setUri(uri)
+                .setBlobDigest(digest)
+                .setDigestFunction(DigestFunction.Value.SHA256)
+                .build();
+    }
+
+    private static FetchBlobResponse failure(Status.Code code, String message) {
+        return FetchBlobResponse.newBuilder()
+                .setStatus(com.google.rpc.Status.newBuilder().setCode(code.value()).setMessage(message))
+                .build();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private class FetchService extends FetchGrpc.FetchImplBase {
+        @Override
+        public void fetchBlob(FetchBlobRequest request, StreamObserver<FetchBlobResponse> responseObserver) {
+            RemoteDownloader.this.fetchBlob(request, SESSION.get()).thenAccept(response -> {
+                responseObserver.onNext(response);
+                responseObserver.onCompleted();
+            });
+        }
+    }
+}
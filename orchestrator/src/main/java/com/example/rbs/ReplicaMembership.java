@@ -0,0 +1,188 @@
+package com.example.rbs;
+
+import io.fabric8.kubernetes.api.model.MicroTime;
+import io.fabric8.kubernetes.api.model.coordination.v1.Lease;
+import io.fabric8.kubernetes.api.model.coordination.v1.LeaseBuilder;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import java.time.Clock;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Orchestrator replica discovery through Kubernetes Leases.
+ *
+ * <p>
+ * Each replica holds a Lease named {@code rbs-orchestrator-<replicaId>} and
+ * renews it every third of the lease duration by bumping
+ * {@code spec.renewTime}. The live members are the Leases whose renewTime
+ * this replica has seen change within their {@code leaseDurationSeconds};
+ * like client-go's leader election, expiry is timed on the observer's own
+ * clock, so clock skew between replicas does not matter. Sessions are
+ * assigned to the live members with a {@link ConsistentHashRing} on
+ * {@code sessionId}. A replica that stops renewing drops out of every other
+ * replica's ring within one lease duration (two after a restart of the
+ * observer), and its sessions move to their next owner.
+ */
+public class ReplicaMembership implements SessionOwnership {
+    private static final Logger logger = Logger.getLogger(ReplicaMembership.class.getName());
+
+    static final String LEASE_PREFIX = "rbs-orchestrator-";
+    static final String REPLICA_LABEL = "rbs.replica";
+    static final String ADDRESS_ANNOTATION = "rbs.address";
+    private static final DateTimeFormatter MICRO_TIME = DateTimeFormatter
+            .ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSSSSXXX").withZone(ZoneOffset.UTC);
+
+    private final KubernetesClient k8sClient;
+    private final String namespace;
+    private final String replicaId;
+    private final String advertiseAddress;
+    private final int leaseDurationSeconds;
+    private final Clock clock;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    private volatile ConsistentHashRing ring;
+    private volatile Map<String, String> addresses = Collections.emptyMap();
+    // Last renewTime seen per member, and when (on our clock) it was first seen.
+    private final Map<String, Observation> observations = new HashMap<>();
+
+    public ReplicaMembership(KubernetesClient k8sClient, String namespace, String replicaId, String advertiseAddress,
+            int leaseDurationSeconds, Clock clock) {
+        this.k8sClient = k8sClient;
+        this.namespace = namespace;
+        this.replicaId = replicaId;
+        this.advertiseAddress = advertiseAddress;
+        this.leaseDurationSeconds = leaseDurationSeconds;
+        this.clock = clock;
+        // Until the first refresh we only know ourselves.
+        this.ring = new ConsistentHashRing(Collections.singletonList(replicaId));
+    }
+
+    /** Registers this replica and keeps its Lease and the member ring up to date. */
+    public void start() {
+        renewAndRefresh();
+        long periodMillis = leaseDurationSeconds * 1000L / 3;
+        executor.scheduleAtFixedRate(this::renewAndRefresh, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Releases this replica's Lease so its sessions move immediately. */
+    public void stop() {
+        executor.shutdownNow();
+        try {
+            k8sClient.resources(Lease.class).inNamespace(namespace).withName(LEASE_PREFIX + replicaId).delete();
+        } catch (Exception e) {
+            logger.warning("Failed to release lease for " + replicaId + ": " + e.getMessage());
+        }
+    }
+
+    void renewAndRefresh() {
+        try {
+            renew();
+            refresh();
+        } catch (Exception e) {
+            // Keep the last known ring; a missed renewal is tolerated for a lease duration.
+            logger.warning("Membership refresh failed: " + e.getMessage());
+        }
+    }
+
+    void renew() {
+        Lease lease = new LeaseBuilder()
+                .withNewMetadata()
+                .withName(LEASE_PREFIX + replicaId)
+                .withNamespace(namespace)
+                .addToLabels(REPLICA_LABEL, "true")
+                .addToAnnotations(ADDRESS_ANNOTATION, advertiseAddress)
+                .endMetadata()
+                .withNewSpec()
+                .withHolderIdentity(replicaId)
+                .withLeaseDurationSeconds(leaseDurationSeconds)
+                .withRenewTime(new MicroTime(MICRO_TIME.format(clock.instant())))
+                .endSpec()
+                .build();
+        k8sClient.resources(Lease.class).inNamespace(namespace).resource(lease)
+                .fieldManager(KubernetesComputeService.FIELD_MANAGER).forceConflicts().serverSideApply();
+    }
+
+    synchronized void refresh() {
+        long now = clock.millis();
+        List<String> live = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        Map<String, String> liveAddresses = new HashMap<>();
+        for (Lease lease : k8sClient.resources(Lease.class).inNamespace(namespace)
+                .withLabel(REPLICA_LABEL, "true").list().getItems()) {
+            Map<String, String> annotations = lease.getMetadata().getAnnotations();
+            if (annotations == null || lease.getSpec() == null || lease.getSpec().getHolderIdentity() == null) {
+                continue;
+            }
+            String member = lease.getSpec().getHolderIdentity();
+            MicroTime renewTime = lease.getSpec().getRenewTime();
+            Integer duration = lease.getSpec().getLeaseDurationSeconds();
+            if (renewTime == null || duration == null) {
+                continue;
+            }
+            Observation last = observations.get(member);
+            if (last == null || !last.renewTime.equals(renewTime.getTime())) {
+                last = new Observation(renewTime.getTime(), now);
+                observations.put(member, last);
+            }
+            seen.add(member);
+            if (now > last.observedAtMillis + duration * 1000L) {
+                continue;
+            }
+            live.add(member);
+            liveAddresses.put(member, annotations.get(ADDRESS_ANNOTATION));
+        }
+        observations.keySet().retainAll(seen);
+        if (!live.contains(replicaId)) {
+            // Our own renewal may not be visible yet; never drop ourselves.
+            live.add(replicaId);
+            liveAddresses.put(replicaId, advertiseAddress);
+        }
+
+        ConsistentHashRing updated = new ConsistentHashRing(live);
+        if (!updated.getMembers().equals(ring.getMembers())) {
+            logger.info("Orchestrator replicas changed: " + ring.getMembers() + " -> " + updated.getMembers());
+        }
+        addresses = liveAddresses;
+        ring = updated;
+    }
+
+    @Override
+    public boolean isLocal(String sessionId) {
+        return replicaId.equals(ring.ownerOf(sessionId));
+    }
+
+    @Override
+    public String ownerAddress(String sessionId) {
+        String owner = ring.ownerOf(sessionId);
+        return replicaId.equals(owner) ? null : addresses.get(owner);
+    }
+
+    public String getReplicaId() {
+        return replicaId;
+    }
+
+    java.util.SortedSet<String> getMembers() {
+        return ring.getMembers();
+    }
+
+    private static final class Observation {
+        final String renewTime;
+        final long observedAtMillis;
+
+        Observation(String renewTime, long observedAtMillis) {
+            this.renewTime = renewTime;
+            this.observedAtMillis = observedAtMillis;
+        }
+    }
+}
@@ -11,6 +11,7 @@ import java.util.concurrent.ConcurrentHashMap;
 
 class InMemorySessionRepository implements SessionRepository {
     private final Map<String, BuildSession> store = new ConcurrentHashMap<>();
+    private final java.util.List<SessionEvent> events = new java.util.ArrayList<>();
     private final Clock clock;
 
     public InMemorySessionRepository(Clock clock) {
@@ -25,17 +26,25 @@ class InMemorySessionRepository implements SessionRepository {
     }
 
     @Override
-    public void saveSession(String userId, String repoHash, String sessionId, String serverAddress, String status) {
-        store.put(sessionId,
-                new BuildSession(userId, repoHash, sessionId, serverAddress, status, clock.millis()));
+    public void saveSession(String userId, String repoHash, String sessionId, String computeSessionId,
+            String serverAddress, String status, String startupOptionsHash) {
+        store.compute(sessionId, (id, old) -> new BuildSession(userId, repoHash, sessionId, computeSessionId,
+                serverAddress, status, clock.millis(),
+                startupOptionsHash == null && old != null ? old.startupOptionsHash : startupOptionsHash));
+    }
+
+    @Override
+    public boolean claimSession(String userId, String repoHash, String sessionId, String status,
+            String startupOptionsHash) {
+        return store.putIfAbsent(sessionId, new BuildSession(userId, repoHash, sessionId, sessionId, null, status,
+                clock.millis(), startupOptionsHash)) == null;
     }
 
     @Override
     public void updateHeartbeat(String sessionId) {
         BuildSession old = store.get(sessionId);
         if (old != null) {
-            store.put(sessionId, new BuildSession(old.userId, old.repoHash, old.sessionId, old.serverAddress,
-                    old.status, clock.millis()));
+            store.put(sessionId, old.withHeartbeat(clock.millis()));
         }
     }
 
@@ -55,12 +64,54 @@ class InMemorySessionRepository implements SessionRepository {
         }
         return stale;
     }
+
+    @Override
+    public java.util.List<BuildSession> findSessions(String userId, String repoHash) {
+        java.util.List<BuildSession> sessions = new java.util.ArrayList<>();
+        for (BuildSession s : store.values()) {
+            if (s.userId.equals(userId) && s.repoHash.equals(repoHash)) {
+                sessions.add(s);
+            }
+        }
+        return sessions;
+    }
+
+    @Override
+    public void recordSessionEvent(SessionEvent event) {
+        synchronized (events) {
+            events.add(event);
+        }
+    }
+
+    @Override
+    public java.util.List<SessionEvent> getSessionEvents(long sinceMillis) {
+        java.util.List<SessionEvent> since = new java.util.ArrayList<>();
+        synchronized (events) {
+            for (SessionEvent event : events) {
+                if (event.atMillis >= sinceMillis) {
+                    since.add(event);
+                }
+            }
+        }
+        since.sort(java.util.Comparator.comparingLong(e -> e.atMillis));
+        return since;
+    }
+
+    @Override
+    public void deleteSessionEvents(long beforeMillis) {
+        synchronized (events) {
+            events.removeIf(e -> e.atMillis < beforeMillis);
+        }
+    }
 }
 
 class SpannerSessionRepository implements SessionRepository {
     private final DatabaseClient dbClient;
     private final Clock clock;
 
+    private static final String SELECT_SESSIONS = "SELECT UserId, RepoHash, SessionId, ComputeSessionId, PodIP, "
+            + "Status, LastHeartbeat, StartupOptionsHash FROM BuildSessions";
+
     public SpannerSessionRepository(DatabaseClient dbClient, Clock clock) {
         this.dbClient = dbClient;
         this.clock = clock;
@@ -69,43 +120,73 @@ class SpannerSessionRepository implements SessionRepository {
     @Override
     public BuildSession getSession(String sessionId) {
         try (ResultSet resultSet = dbClient.singleUse().executeQuery(
-                Statement
-                        .newBuilder(
-                                "SELECT UserId, RepoHash, SessionId, PodIP, Status, LastHeartbeat FROM BuildSessions WHERE SessionId = @sessionId")
+                Statement.newBuilder(SELECT_SESSIONS + " WHERE SessionId = @sessionId")
                         .bind("sessionId").to(sessionId)
                         .build())) {
             if (resultSet.next()) {
-                return new BuildSession(
-                        resultSet.getString("UserId"),
-                        resultSet.getString("RepoHash"),
-                        resultSet.getString("SessionId"),
-                        resultSet.isNull("PodIP") ? null : resultSet.getString("PodIP"),
-                        resultSet.isNull("Status") ? "UNKNOWN" : resultSet.getString("Status"),
-                        resultSet.isNull("LastHeartbeat") ? 0 : resultSet.getLong("LastHeartbeat"));
+                return readSession(resultSet);
             }
             return null;
         }
     }
 
     @Override
-    public void saveSession(String userId, String repoHash, String sessionId, String serverAddress, String status) {
+    public void saveSession(String userId, String repoHash, String sessionId, String computeSessionId,
+            String serverAddress, String status, String startupOptionsHash) {
         dbClient.readWriteTransaction().run(new TransactionRunner.TransactionCallable<Void>() {
             @Override
             public Void run(TransactionContext transaction) throws Exception {
-                transaction.buffer(
-                        com.google.cloud.spanner.Mutation.newInsertOrUpdateBuilder("BuildSessions")
-                                .set("UserId").to(userId)
-                                .set("RepoHash").to(repoHash)
-                                .set("SessionId").to(sessionId)
-                                .set("PodIP").to(serverAddress) // Mapped to PodIP col for now
-                                .set("Status").to(status)
-                                .set("LastHeartbeat").to(clock.millis())
-                                .build());
+                com.google.cloud.spanner.Mutation.WriteBuilder mutation = com.google.cloud.spanner.Mutation
+                        .newInsertOrUpdateBuilder("BuildSessions")
+                        .set("UserId").to(userId)
+                        .set("RepoHash").to(repoHash)
+                        .set("SessionId").to(sessionId)
+                        .set("ComputeSessionId").to(computeSessionId)
+                        .set("PodIP").to(serverAddress) // Mapped to PodIP col for now
+                        .set("Status").to(status)
+                        .set("LastHeartbeat").to(clock.millis());
+                if (startupOptionsHash != null) {
+                    // Left out otherwise, so status updates keep the stored value.
+                    mutation.set("StartupOptionsHash").to(startupOptionsHash);
+                }
+                transaction.buffer(mutation.build());
                 return null;
             }
         });
     }
 
+    @Override
+    public boolean claimSession(String userId, String repoHash, String sessionId, String status,
+            String startupOptionsHash) {
+        return dbClient.readWriteTransaction().run(new TransactionRunner.TransactionCallable<Boolean>() {
+            @Override
+            public Boolean run(TransactionContext transaction) throws Exception {
+                // The row is keyed by (UserId, RepoHash); the read locks it until commit, so two
+                // replicas claiming the same session serialize here and the second sees the first.
+                com.google.cloud.spanner.Struct row = transaction.readRow("BuildSessions",
+                        com.google.cloud.spanner.Key.of(userId, repoHash),
+                        java.util.Collections.singletonList("SessionId"));
+                if (row != null && sessionId.equals(row.getString("SessionId"))) {
+                    return false;
+                }
+                // Insert if absent; a row left by an earlier session of the user and repo is replaced,
+                // as saveSession would.
+                transaction.buffer((row == null
+                        ? com.google.cloud.spanner.Mutation.newInsertBuilder("BuildSessions")
+                        : com.google.cloud.spanner.Mutation.newReplaceBuilder("BuildSessions"))
+                        .set("UserId").to(userId)
+                        .set("RepoHash").to(repoHash)
+                        .set("SessionId").to(sessionId)
+                        .set("ComputeSessionId").to(sessionId)
+                        .set("Status").to(status)
+                        .set("LastHeartbeat").to(clock.millis())
+                        .set("StartupOptionsHash").to(startupOptionsHash)
+                        .build());
+                return true;
+            }
+        });
+    }
+
     @Override
     public void updateHeartbeat(String sessionId) {
         dbClient.readWriteTransaction().run(new TransactionRunner.TransactionCallable<Void>() {
@@ -168,19 +249,83 @@ class SpannerSessionRepository implements SessionRepository {
         long cutoff = clock.millis() - inactiveMillis;
         java.util.List<BuildSession> stale = new java.util.ArrayList<>();
         try (ResultSet resultSet = dbClient.singleUse().executeQuery(
-                Statement.newBuilder(
-                        "SELECT UserId, RepoHash, SessionId, PodIP, Status, LastHeartbeat FROM BuildSessions WHERE LastHeartbeat < @cutoff")
+                Statement.newBuilder(SELECT_SESSIONS + " WHERE LastHeartbeat < @cutoff")
                         .bind("cutoff").to(cutoff).build())) {
             while (resultSet.next()) {
-                stale.add(new BuildSession(
+                stale.add(readSession(resultSet));
+            }
+        }
+        return stale;
+    }
+
+    @Override
+    public java.util.List<BuildSession> findSessions(String userId, String repoHash) {
+        java.util.List<BuildSession> sessions = new java.util.ArrayList<>();
+        try (ResultSet resultSet = dbClient.singleUse().executeQuery(
+                Statement.newBuilder(SELECT_SESSIONS + " WHERE UserId = @userId AND RepoHash = @repoHash")
+                        .bind("userId").to(userId)
+                        .bind("repoHash").to(repoHash)
+                        .build())) {
+            while (resultSet.next()) {
+                sessions.add(readSession(resultSet));
+            }
+        }
+        return sessions;
+    }
+
+    @Override
+    public void recordSessionEvent(SessionEvent event) {
+        dbClient.write(java.util.Collections.singletonList(com.google.cloud.spanner.Mutation
+                .newInsertBuilder("SessionEvents")
+                .set("UserId").to(event.userId)
+                .set("RepoHash").to(event.repoHash)
+                .set("AtMillis").to(event.atMillis)
+                // Two events of a key can share a millisecond.
+                .set("EventId").to(java.util.UUID.randomUUID().toString())
+                .set("Kind").to(event.start ? "START" : "END")
+                .set("SourcePath").to(event.sourcePath)
+                .set("StartupOptions").toStringArray(event.startupOptions)
+                .set("Region").to(event.region)
+                .build()));
+    }
+
+    @Override
+    public java.util.List<SessionEvent> getSessionEvents(long sinceMillis) {
+        java.util.List<SessionEvent> events = new java.util.ArrayList<>();
+        try (ResultSet resultSet = dbClient.singleUse().executeQuery(
+                Statement.newBuilder("SELECT UserId, RepoHash, AtMillis, Kind, SourcePath, StartupOptions, Region "
+                        + "FROM SessionEvents WHERE AtMillis >= @since ORDER BY AtMillis")
+                        .bind("since").to(sinceMillis).build())) {
+            while (resultSet.next()) {
+                events.add(new SessionEvent(
                         resultSet.getString("UserId"),
                         resultSet.getString("RepoHash"),
-                        resultSet.getString("SessionId"),
-                        resultSet.isNull("PodIP") ? null : resultSet.getString("PodIP"),
-                        resultSet.isNull("Status") ? "UNKNOWN" : resultSet.getString("Status"),
-                        resultSet.isNull("LastHeartbeat") ? 0 : resultSet.getLong("LastHeartbeat")));
+                        "START".equals(resultSet.getString("Kind")),
+                        resultSet.getLong("AtMillis"),
+                        resultSet.isNull("SourcePath") ? null : resultSet.getString("SourcePath"),
+                        resultSet.isNull("StartupOptions") ? null : resultSet.getStringList("StartupOptions"),
+                        resultSet.isNull("Region") ? null : resultSet.getString("Region")));
             }
         }
-        return stale;
+        return events;
+    }
+
+    @Override
+    public void deleteSessionEvents(long beforeMillis) {
+        dbClient.executePartitionedUpdate(Statement.newBuilder("DELETE FROM SessionEvents WHERE AtMillis < @before")
+                .bind("before").to(beforeMillis).build());
+    }
+
+    private static BuildSession readSession(ResultSet resultSet) {
+        return new BuildSession(
+                resultSet.getString("UserId"),
+                resultSet.getString("RepoHash"),
+                resultSet.getString("SessionId"),
+                resultSet.isNull("ComputeSessionId") ? resultSet.getString("SessionId")
+                        : resultSet.getString("ComputeSessionId"),
+                resultSet.isNull("PodIP") ? null : resultSet.getString("PodIP"),
+                resultSet.isNull("Status") ? "UNKNOWN" : resultSet.getString("Status"),
+                resultSet.isNull("LastHeartbeat") ? 0 : resultSet.getLong("LastHeartbeat"),
+                resultSet.isNull("StartupOptionsHash") ? null : resultSet.getString("StartupOptionsHash"));
     }
 }
@@ -0,0 +1,446 @@
+package com.example.rbs;
+
+import io.grpc.CallOptions;
+import io.grpc.ClientCall;
+import io.grpc.Detachable;
+import io.grpc.HandlerRegistry;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.Status;
+import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.LongHistogram;
+import io.opentelemetry.api.metrics.Meter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Relays proxies' tunnelled agent streams ({@code CommandServer},
+ * {@code Runner}) for developers whose network cannot reach pod IPs.
+ *
+ * <p>
+ * Any method is accepted and routed by the {@code x-rbs-session-id} header to
+ * the session's server, provided the stream also carries the session's
+ * {@link SessionTokens token} in {@code x-rbs-session-token}; the token is
+ * not passed on to the agent. Messages are never decoded: they pass through as the
+ * transport's buffers, detached rather than copied on the way in, so the only
+ * copy is into the outgoing frame. Each relayed stream only reads a message
+ * from one side once the other side can take it, so a slow client pushes back
+ * on its agent (and the other way round) through HTTP/2 flow control instead
+ * of buffering in the gateway, and one session's stream never holds up
+ * another's. Channels to agents are shared by the streams of a session and
+ * closed once idle.
+ */
+public class SessionGateway {
+    private static final Logger logger = Logger.getLogger(SessionGateway.class.getName());
+    private static final AttributeKey<String> DIRECTION = AttributeKey.stringKey("rbs.gateway.direction");
+    private static final Attributes UPSTREAM = Attributes.of(DIRECTION, "upstream");
+    private static final Attributes DOWNSTREAM = Attributes.of(DIRECTION, "downstream");
+
+    /** Tuning knobs. */
+    public static class Settings {
+        /** HTTP/2 flow-control window per stream; a build's output streams at most this far ahead of the client. */
+        public int flowControlWindowBytes = 4 << 20;
+        /** A channel to an agent without streams for this long is closed. */
+        public Duration channelIdleTimeout = Duration.ofMinutes(10);
+    }
+
+    /** Hands messages through as the transport's buffers, never decoding them. */
+    static final class PassThroughMarshaller implements MethodDescriptor.Marshaller<InputStream> {
+        @Override
+        public InputStream stream(InputStream value) {
+            return value;
+        }
+
+        @Override
+        public InputStream parse(InputStream stream) {
+            if (stream instanceof Detachable) {
+                // The transport closes the stream it parsed; the detached one keeps its buffer.
+                return ((Detachable) stream).detach();
+            }
+            try {
+                return new ByteArrayInputStream(stream.readAllBytes());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    static final PassThroughMarshaller PASS_THROUGH = new PassThroughMarshaller();
+
+    static final Metadata.Key<String> TOKEN_HEADER = Metadata.Key.of("x-rbs-session-token",
+            Metadata.ASCII_STRING_MARSHALLER);
+
+    private static final class AgentChannel {
+        final ManagedChannel channel;
+        int streams; // guarded by SessionGateway.this
+        long idleSinceMillis; // guarded by SessionGateway.this
+
+        AgentChannel(ManagedChannel channel, long now) {
+            this.channel = channel;
+            this.idleSinceMillis = now;
+        }
+    }
+
+    private final SessionRepository sessionRepo;
+    private final SessionTokens tokens;
+    private final int defaultPort;
+    private final Clock clock;
+    private final Settings settings;
+    private final Function<String, ManagedChannel> channelFactory;
+    // Keyed by agent address.
+    private final Map<String, AgentChannel> channels = new HashMap<>(); // guarded by this
+
+    private final AtomicLong activeStreams = new AtomicLong();
+    private final AtomicLong upstreamBytes = new AtomicLong();
+    private final AtomicLong downstreamBytes = new AtomicLong();
+    private volatile LongHistogram streamThroughput;
+
+    /**
+     * @param tokens      Checks the token each stream presents for its
+     *                    session; shared with the orchestrator service.
+     * @param defaultPort Port of agents whose address is a bare host, e.g. a
+     *                    pod IP.
+     */
+    public SessionGateway(SessionRepository sessionRepo, SessionTokens tokens, int defaultPort, Clock clock,
+            Settings settings) {
+        this(sessionRepo, tokens, defaultPort, clock, settings,
+                address -> NettyChannelBuilder.forTarget(address).usePlaintext()
+                        .flowControlWindow(settings.flowControlWindowBytes)
+                        .keepAliveTime(30, TimeUnit.SECONDS).build());
+    }
+
+    SessionGateway(SessionRepository sessionRepo, SessionTokens tokens, int defaultPort, Clock clock,
+            Settings settings, Function<String, ManagedChannel> channelFactory) {
+        this.sessionRepo = sessionRepo;
+        this.tokens = tokens;
+        this.defaultPort = defaultPort;
+        this.clock = clock;
+        this.settings = settings;
+        this.channelFactory = channelFactory;
+    }
+
+    /** Resolves every method to the relay; install as the gateway server's fallback registry. */
+    public HandlerRegistry registry() {
+        return new HandlerRegistry() {
+            @Override
+            public ServerMethodDefinition<?, ?> lookupMethod(String methodName, String authority) {
+                MethodDescriptor<InputStream, InputStream> method = MethodDescriptor
+                        .newBuilder(PASS_THROUGH, PASS_THROUGH)
+                        .setFullMethodName(methodName)
+                        .setType(MethodDescriptor.MethodType.UNKNOWN)
+                        .build();
+                return ServerMethodDefinition.create(method, new RelayHandler());
+            }
+        };
+    }
+
+    public void registerMetrics(Meter meter) {
+        meter.upDownCounterBuilder("rbs.gateway.streams").setDescription("Streams relayed right now")
+                .buildWithCallback(m -> m.record(activeStreams.get()));
+        meter.counterBuilder("rbs.gateway.bytes").setDescription("Message bytes relayed").setUnit("By")
+                .buildWithCallback(m -> {
+                    m.record(upstreamBytes.get(), UPSTREAM);
+                    m.record(downstreamBytes.get(), DOWNSTREAM);
+                });
+        streamThroughput = meter.histogramBuilder("rbs.gateway.stream.throughput")
+                .setDescription("Bytes per second agents sent down each relayed stream").setUnit("By/s")
+                .ofLongs().build();
+    }
+
+    public int getFlowControlWindowBytes() {
+        return settings.flowControlWindowBytes;
+    }
+
+    public void start(ScheduledExecutorService executor) {
+        executor.scheduleAtFixedRate(() -> {
+            try {
+                closeIdleChannels();
+            } catch (RuntimeException e) {
+                logger.warning("Gateway channel cleanup failed: " + e.getMessage());
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+    }
+
+    public void shutdown() {
+        List<AgentChannel> all;
+        synchronized (this) {
+            all = new ArrayList<>(channels.values());
+            channels.clear();
+        }
+        for (AgentChannel agent : all) {
+            agent.channel.shutdown();
+        }
+    }
+
+    void closeIdleChannels() {
+        long now = clock.millis();
+        List<AgentChannel> idle = new ArrayList<>();
+        synchronized (this) {
+            channels.values().removeIf(agent -> {
+                if (agent.streams == 0 && now - agent.idleSinceMillis >= settings.channelIdleTimeout.toMillis()) {
+                    idle.add(agent);
+                    return true;
+                }
+                return false;
+            });
+        }
+        for (AgentChannel agent : idle) {
+            agent.channel.shutdown();
+        }
+    }
+
+    synchronized int getChannelCount() {
+        return channels.size();
+    }
+
+    private synchronized AgentChannel acquire(String address) {
+        AgentChannel agent = channels.computeIfAbsent(address,
+                a -> new AgentChannel(channelFactory.apply(a), clock.millis()));
+        agent.streams++;
+        return agent;
+    }
+
+    private synchronized void release(AgentChannel agent) {
+        if (--agent.streams == 0) {
+            agent.idleSinceMillis = clock.millis();
+        }
+    }
+
+    /**
+     * The session's agent as a channel target, or null if it has none that is
+     * ready.
+     *
+     * @throws IllegalArgumentException if the recorded address is malformed
+     */
+    private String agentAddress(String sessionId) {
+        SessionRepository.BuildSession session = sessionRepo.getSession(sessionId);
+        if (session == null || !"READY".equals(session.status) || session.serverAddress == null) {
+            return null;
+        }
+        return target(session.serverAddress, defaultPort);
+    }
+
+    /**
+     * Turns {@code host}, {@code host:port} or {@code [v6]:port} into a
+     * channel target; a bare host or IPv6 address gets the default port.
+     *
+     * @throws IllegalArgumentException if the address is none of these
+     */
+    static String target(String address, int defaultPort) {
+        String host = address;
+        int port = defaultPort;
+        if (address.startsWith("[")) {
+            int end = address.indexOf(']');
+            if (end < 0) {
+                throw new IllegalArgumentException("unterminated IPv6 address in " + address);
+            }
+            host = address.substring(1, end);
+            if (address.startsWith(":", end + 1)) {
+                port = port(address.substring(end + 2), address);
+            } else if (end + 1 < address.length()) {
+                throw new IllegalArgumentException("unexpected text after the IPv6 address in " + address);
+            }
+        } else if (address.indexOf(':') >= 0 && address.indexOf(':') == address.lastIndexOf(':')) {
+            host = address.substring(0, address.indexOf(':'));
+            port = port(address.substring(address.indexOf(':') + 1), address);
+        }
+        if (host.isEmpty()) {
+            throw new IllegalArgumentException("no host in " + address);
+        }
+        return (host.indexOf(':') >= 0 ? "[" + host + "]" : host) + ":" + port;
+    }
+
+    private static int port(String port, String address) {
+        try {
+            int parsed = Integer.parseInt(port);
+            if (parsed > 0 && parsed <= 65535) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below.
+        }
+        throw new IllegalArgumentException("bad port in " + address);
+    }
+
+    private static long size(InputStream message) {
+        try {
+            return message.available(); // Exact for both the transport's buffers and byte arrays.
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private final class RelayHandler implements ServerCallHandler<InputStream, InputStream> {
+        @Override
+        public ServerCall.Listener<InputStream> startCall(ServerCall<InputStream, InputStream> serverCall,
+                Metadata headers) {
+            String sessionId = headers.get(ExecutionScheduler.SESSION_HEADER);
+            if (sessionId != null && !tokens.verify(sessionId, headers.get(TOKEN_HEADER))) {
+                // Same answer whether or not the session exists, so IDs cannot be probed.
+                serverCall.close(Status.PERMISSION_DENIED.withDescription("missing or wrong "
+                        + TOKEN_HEADER.name() + " for session " + sessionId), new Metadata());
+                return new ServerCall.Listener<InputStream>() {
+                };
+            }
+            headers.discardAll(TOKEN_HEADER);
+            String address;
+            try {
+                address = sessionId != null ? agentAddress(sessionId) : null;
+            } catch (IllegalArgumentException e) {
+                logger.warning("Session " + sessionId + " has a malformed server address: " + e.getMessage());
+                serverCall.close(Status.UNAVAILABLE.withDescription("session " + sessionId
+                        + " has no reachable server"), new Metadata());
+                return new ServerCall.Listener<InputStream>() {
+                };
+            }
+            if (address == null) {
+                serverCall.close(Status.UNAVAILABLE.withDescription(sessionId == null
+                        ? "missing " + ExecutionScheduler.SESSION_HEADER.name() + " header"
+                        : "session " + sessionId + " has no ready server"), new Metadata());
+                return new ServerCall.Listener<InputStream>() {
+                };
+            }
+            AgentChannel agent = acquire(address);
+            ClientCall<InputStream, InputStream> clientCall = agent.channel.newCall(serverCall.getMethodDescriptor(),
+                    CallOptions.DEFAULT);
+            Relay relay = new Relay(serverCall, clientCall, agent);
+            clientCall.start(relay.agentListener, headers);
+            // One message at a time each way; more is requested as the other side drains.
+            serverCall.request(1);
+            clientCall.request(1);
+            return relay.clientListener;
+        }
+    }
+
+    /** One relayed stream: client (the proxy) on the server side, agent on the client side. */
+    private final class Relay {
+        final ServerCall<InputStream, InputStream> serverCall;
+        final ClientCall<InputStream, InputStream> clientCall;
+        final AgentChannel agent;
+        final long startMillis = clock.millis();
+        final AtomicLong downstream = new AtomicLong();
+        // Set when a read was deferred because the other side was not ready.
+        boolean clientReadPending; // guarded by this
+        boolean agentReadPending; // guarded by this
+        boolean closed; // guarded by this
+
+        final ServerCall.Listener<InputStream> clientListener = new ServerCall.Listener<InputStream>() {
+            @Override
+            public void onMessage(InputStream message) {
+                upstreamBytes.addAndGet(size(message));
+                clientCall.sendMessage(message);
+                synchronized (Relay.this) {
+                    if (clientCall.isReady()) {
+                        serverCall.request(1);
+                    } else {
+                        clientReadPending = true;
+                    }
+                }
+            }
+
+            @Override
+            public void onHalfClose() {
+                clientCall.halfClose();
+            }
+
+            @Override
+            public void onCancel() {
+                clientCall.cancel("Client cancelled", null);
+                finish();
+            }
+
+            @Override
+            public void onReady() {
+                // The client can take more: resume reading from the agent.
+                synchronized (Relay.this) {
+                    if (agentReadPending) {
+                        agentReadPending = false;
+                        clientCall.request(1);
+                    }
+                }
+            }
+        };
+
+        final ClientCall.Listener<InputStream> agentListener = new ClientCall.Listener<InputStream>() {
+            @Override
+            public void onHeaders(Metadata headers) {
+                serverCall.sendHeaders(headers);
+            }
+
+            @Override
+            public void onMessage(InputStream message) {
+                long bytes = size(message);
+                downstream.addAndGet(bytes);
+                downstreamBytes.addAndGet(bytes);
+                serverCall.sendMessage(message);
+                synchronized (Relay.this) {
+                    if (serverCall.isReady()) {
+                        clientCall.request(1);
+                    } else {
+                        agentReadPending = true;
+                    }
+                }
+            }
+
+            @Override
+            public void onClose(Status status, Metadata trailers) {
+                serverCall.close(status, trailers);
+                finish();
+            }
+
+            @Override
+            public void onReady() {
+                // The agent can take more: resume reading from the client.
+                synchronized (Relay.this) {
+                    if (clientReadPending) {
+                        clientReadPending = false;
+                        serverCall.request(1);
+                    }
+                }
+            }
+        };
+
+        Relay(ServerCall<InputStream, InputStream> serverCall, ClientCall<InputStream, InputStream> clientCall,
+                AgentChannel agent) {
+            this.serverCall = serverCall;
+            this.clientCall = clientCall;
+            this.agent = agent;
+            activeStreams.incrementAndGet();
+        }
+
+        private void finish() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            activeStreams.decrementAndGet();
+            release(agent);
+            long elapsedMillis = clock.millis() - startMillis;
+            LongHistogram histogram = streamThroughput;
+            if (histogram != null && elapsedMillis > 0) {
+                histogram.record(downstream.get() * 1000 / elapsedMillis);
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.example.rbs;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-(userId, repoHash) record of when sessions start and end, with a simple
+ * arrival model fitted to it.
+ *
+ * <p>
+ * For each key and local day the history keeps the first session start and
+ * the last session end, in minutes since midnight. The model predicts a day's
+ * first start from days of the same kind (weekday or weekend) in the last
+ * {@link #LOOKBACK_DAYS} days. It needs at least {@link #MIN_OBSERVATIONS}
+ * such days, the user must have started a session on at least
+ * {@link #MIN_ARRIVAL_PROBABILITY} of the eligible days, and the first starts
+ * must be consistent (interquartile range of at most
+ * {@link #MAX_SPREAD_MINUTES}). The prediction is the 25th percentile of the
+ * first starts, so a server started shortly before it is warm for most
+ * arrivals.
+ *
+ * <p>
+ * The history itself is kept in memory; {@link PreProvisioner} persists the
+ * starts and ends it records and replays them after a restart.
+ */
+class SessionHistory {
+    static final int LOOKBACK_DAYS = 28;
+    static final int MIN_OBSERVATIONS = 3;
+    static final double MIN_ARRIVAL_PROBABILITY = 0.5;
+    static final int MAX_SPREAD_MINUTES = 90;
+
+    private final ZoneId zone;
+    private final Map<String, UserRepoHistory> histories = new ConcurrentHashMap<>();
+
+    SessionHistory(ZoneId zone) {
+        this.zone = zone;
+    }
+
+    ZoneId getZone() {
+        return zone;
+    }
+
+    void recordStart(String userId, String repoHash, long atMillis, String sourcePath, List<String> startupOptions,
+            String region) {
+        UserRepoHistory history = histories.computeIfAbsent(key(userId, repoHash),
+                k -> new UserRepoHistory(userId, repoHash));
+        ZonedDateTime at = Instant.ofEpochMilli(atMillis).atZone(zone);
+        int minute = at.getHour() * 60 + at.getMinute();
+        synchronized (history) {
+            Day day = history.days.computeIfAbsent(at.toLocalDate(), d -> new Day());
+            if (day.firstStartMinute < 0 || minute < day.firstStartMinute) {
+                day.firstStartMinute = minute;
+            }
+            day.sessions++;
+            history.active++;
+            history.sourcePath = sourcePath;
+            history.startupOptions = startupOptions != null ? new ArrayList<>(startupOptions)
+                    : Collections.emptyList();
+            history.region = region;
+            if (history.firstDay == null) {
+                history.firstDay = at.toLocalDate();
+            }
+            // Keep one extra day so the full lookback window is always available.
+            history.days.headMap(at.toLocalDate().minusDays(LOOKBACK_DAYS + 1)).clear();
+        }
+    }
+
+    void recordEnd(String userId, String repoHash, long atMillis) {
+        UserRepoHistory history = histories.get(key(userId, repoHash));
+        if (history == null) {
+            return;
+        }
+        ZonedDateTime at = Instant.ofEpochMilli(atMillis).atZone(zone);
+        synchronized (history) {
+            history.active = Math.max(0, history.active - 1);
+            Day day = history.days.get(at.toLocalDate());
+            if (day != null) {
+                day.lastEndMinute = Math.max(day.lastEndMinute, at.getHour() * 60 + at.getMinute());
+            }
+        }
+    }
+
+    /** Corrects the number of live sessions of a key, e.g. after replaying persisted events. */
+    void setActive(String userId, String repoHash, int sessions) {
+        UserRepoHistory history = histories.get(key(userId, repoHash));
+        if (history == null) {
+            return;
+        }
+        synchronized (history) {
+            history.active = sessions;
+        }
+    }
+
+    /** True if the key has a session that has started and not yet ended. */
+    boolean isActive(String userId, String repoHash) {
+        UserRepoHistory history = histories.get(key(userId, repoHash));
+        if (history == null) {
+            return false;
+        }
+        synchronized (history) {
+            return history.active > 0;
+        }
+    }
+
+    boolean startedOn(String userId, String repoHash, LocalDate date) {
+        UserRepoHistory history = histories.get(key(userId, repoHash));
+        if (history == null) {
+            return false;
+        }
+        synchronized (history) {
+            return history.days.containsKey(date);
+        }
+    }
+
+    /** Predicts the key's first session start on {@code date}, or null if the model is not confident. */
+    Prediction predict(String userId, String repoHash, LocalDate date) {
+        UserRepoHistory history = histories.get(key(userId, repoHash));
+        if (history == null) {
+            return null;
+        }
+        List<Integer> starts = new ArrayList<>();
+        int eligibleDays = 0;
+        synchronized (history) {
+            LocalDate from = date.minusDays(LOOKBACK_DAYS);
+            if (history.firstDay.isAfter(from)) {
+                from = history.firstDay;
+            }
+            for (LocalDate d = from; d.isBefore(date); d = d.plusDays(1)) {
+                if (isWeekend(d) != isWeekend(date)) {
+                    continue;
+                }
+                eligibleDays++;
+                Day day = history.days.get(d);
+                if (day != null && day.firstStartMinute >= 0) {
+                    starts.add(day.firstStartMinute);
+                }
+            }
+        }
+        if (starts.size() < MIN_OBSERVATIONS) {
+            return null;
+        }
+        double probability = (double) starts.size() / eligibleDays;
+        if (probability < MIN_ARRIVAL_PROBABILITY) {
+            return null;
+        }
+        Collections.sort(starts);
+        int q25 = percentile(starts, 0.25);
+        if (percentile(starts, 0.75) - q25 > MAX_SPREAD_MINUTES) {
+            return null;
+        }
+        return new Prediction(date.atStartOfDay(zone).plusMinutes(q25).toInstant().toEpochMilli(), probability);
+    }
+
+    Collection<UserRepoHistory> getHistories() {
+        return histories.values();
+    }
+
+    private static int percentile(List<Integer> sorted, double p) {
+        return sorted.get((int) Math.floor(p * (sorted.size() - 1)));
+    }
+
+    private static boolean isWeekend(LocalDate date) {
+        return date.getDayOfWeek() == DayOfWeek.SATURDAY || date.getDayOfWeek() == DayOfWeek.SUNDAY;
+    }
+
+    static String key(String userId, String repoHash) {
+        return userId + "/" + repoHash;
+    }
+
+    static class Prediction {
+        final long startMillis;
+        final double probability;
+
+        Prediction(long startMillis, double probability) {
+            this.startMillis = startMillis;
+            this.probability = probability;
+        }
+    }
+
+    /** History of one (userId, repoHash), plus how its last session was started (to start the next one alike). */
+    static class UserRepoHistory {
+        final String userId;
+        final String repoHash;
+        private final TreeMap<LocalDate, Day> days = new TreeMap<>();
+        private LocalDate firstDay;
+        private int active;
+        private String sourcePath;
+        private List<String> startupOptions = Collections.emptyList();
+        private String region;
+
+        UserRepoHistory(String userId, String repoHash) {
+            this.userId = userId;
+            this.repoHash = repoHash;
+        }
+
+        synchronized String getSourcePath() {
+            return sourcePath;
+        }
+
+        synchronized List<String> getStartupOptions() {
+            return startupOptions;
+        }
+
+        synchronized String getRegion() {
+            return region;
+        }
+    }
+
+    private static class Day {
+        int firstStartMinute = -1;
+        int lastEndMinute = -1;
+        int sessions;
+    }
+}
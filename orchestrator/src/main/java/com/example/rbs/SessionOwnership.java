@@ -0,0 +1,28 @@
+package com.example.rbs;
+
+/**
+ * Decides which orchestrator replica owns a session. The owner is the only
+ * replica that provisions, polls and reaps it; other replicas forward.
+ */
+public interface SessionOwnership {
+    /** Ownership for a single replica: every session is local. */
+    SessionOwnership SINGLE_REPLICA = new SessionOwnership() {
+        @Override
+        public boolean isLocal(String sessionId) {
+            return true;
+        }
+
+        @Override
+        public String ownerAddress(String sessionId) {
+            return null;
+        }
+    };
+
+    boolean isLocal(String sessionId);
+
+    /**
+     * Returns the gRPC address ({@code host:port}) of the replica owning the
+     * session, or null if it is owned locally or no owner is known.
+     */
+    String ownerAddress(String sessionId);
+}
@@ -3,7 +3,34 @@ package com.example.rbs;
 public interface SessionRepository {
     BuildSession getSession(String sessionId);
 
-    void saveSession(String userId, String repoHash, String sessionId, String serverAddress, String status);
+    default void saveSession(String userId, String repoHash, String sessionId, String serverAddress, String status) {
+        saveSession(userId, repoHash, sessionId, sessionId, serverAddress, status);
+    }
+
+    /**
+     * Saves a session served by a container provisioned under
+     * {@code computeSessionId}, e.g. a pre-provisioned server handed to a new
+     * session. Keeps the session's startup options hash, if any.
+     */
+    default void saveSession(String userId, String repoHash, String sessionId, String computeSessionId,
+            String serverAddress, String status) {
+        saveSession(userId, repoHash, sessionId, computeSessionId, serverAddress, status, null);
+    }
+
+    /**
+     * Saves a session together with the hash of the startup options its
+     * server was started with; a null hash keeps the stored one.
+     */
+    void saveSession(String userId, String repoHash, String sessionId, String computeSessionId,
+            String serverAddress, String status, String startupOptionsHash);
+
+    /**
+     * Creates the session's row only if no row for {@code sessionId} exists yet,
+     * atomically across orchestrator replicas. Returns false if one exists,
+     * i.e. another call got there first and creates the session's server.
+     */
+    boolean claimSession(String userId, String repoHash, String sessionId, String status,
+            String startupOptionsHash);
 
     void updateHeartbeat(String sessionId);
 
@@ -11,22 +38,93 @@ public interface SessionRepository {
 
     java.util.List<BuildSession> getStaleSessions(long inactiveMillis);
 
+    /** All sessions of a user and repo, e.g. to find a live server a new session can resume. */
+    java.util.List<BuildSession> findSessions(String userId, String repoHash);
+
+    /**
+     * Appends a session start or end to the arrival history, so
+     * {@link SessionHistory} can be rebuilt after a restart.
+     */
+    void recordSessionEvent(SessionEvent event);
+
+    /** History events at or after {@code sinceMillis}, oldest first. */
+    java.util.List<SessionEvent> getSessionEvents(long sinceMillis);
+
+    /** Drops history events before {@code beforeMillis}, once they are out of the model's lookback. */
+    void deleteSessionEvents(long beforeMillis);
+
     class BuildSession {
         public final String userId;
         public final String repoHash;
         public final String sessionId;
+        /** Session ID the container was created under; ComputeService calls use this. */
+        public final String computeSessionId;
         public final String serverAddress;
         public final String status;
         public final long lastHeartbeat;
+        /** Identifies the server's Bazel startup options; null if unknown. */
+        public final String startupOptionsHash;
 
         public BuildSession(String userId, String repoHash, String sessionId, String serverAddress, String status,
                 long lastHeartbeat) {
+            this(userId, repoHash, sessionId, sessionId, serverAddress, status, lastHeartbeat);
+        }
+
+        public BuildSession(String userId, String repoHash, String sessionId, String computeSessionId,
+                String serverAddress, String status, long lastHeartbeat) {
+            this(userId, repoHash, sessionId, computeSessionId, serverAddress, status, lastHeartbeat, null);
+        }
+
+        public BuildSession(String userId, String repoHash, String sessionId, String computeSessionId,
+                String serverAddress, String status, long lastHeartbeat, String startupOptionsHash) {
             this.userId = userId;
             this.repoHash = repoHash;
             this.sessionId = sessionId;
+            this.computeSessionId = computeSessionId;
             this.serverAddress = serverAddress;
             this.status = status;
             this.lastHeartbeat = lastHeartbeat;
+            this.startupOptionsHash = startupOptionsHash;
+        }
+
+        /** Copy with a new heartbeat time. */
+        BuildSession withHeartbeat(long heartbeat) {
+            return new BuildSession(userId, repoHash, sessionId, computeSessionId, serverAddress, status, heartbeat,
+                    startupOptionsHash);
+        }
+    }
+
+    /** A session start or end, as recorded by {@link PreProvisioner}. */
+    class SessionEvent {
+        public final String userId;
+        public final String repoHash;
+        /** True for a start, false for an end. */
+        public final boolean start;
+        public final long atMillis;
+        /** How the session was started; null for an end. */
+        public final String sourcePath;
+        public final java.util.List<String> startupOptions;
+        public final String region;
+
+        public SessionEvent(String userId, String repoHash, boolean start, long atMillis, String sourcePath,
+                java.util.List<String> startupOptions, String region) {
+            this.userId = userId;
+            this.repoHash = repoHash;
+            this.start = start;
+            this.atMillis = atMillis;
+            this.sourcePath = sourcePath;
+            this.startupOptions = startupOptions != null ? java.util.Collections.unmodifiableList(
+                    new java.util.ArrayList<>(startupOptions)) : java.util.Collections.emptyList();
+            this.region = region;
+        }
+
+        static SessionEvent start(String userId, String repoHash, long atMillis, String sourcePath,
+                java.util.List<String> startupOptions, String region) {
+            return new SessionEvent(userId, repoHash, true, atMillis, sourcePath, startupOptions, region);
+        }
+
+        static SessionEvent end(String userId, String repoHash, long atMillis) {
+            return new SessionEvent(userId, repoHash, false, atMillis, null, null, null);
         }
     }
 }
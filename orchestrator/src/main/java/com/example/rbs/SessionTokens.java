@@ -0,0 +1,94 @@
+package com.example.rbs;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Per-session secrets that let the {@link SessionGateway} tell a session's
+ * own proxy from anyone who merely knows (or guesses) its session ID.
+ *
+ * <p>
+ * A token is the HMAC-SHA256 of the session ID under a key shared by all
+ * replicas, so any replica can check a token another one issued without
+ * storing it. {@code GetServer} hands the token to the proxy with the
+ * server's address; the proxy sends it with every relayed stream.
+ *
+ * <p>
+ * The same key signs the calls one replica forwards to another (see
+ * {@link ShardRouter}). Those MACs are over a 0xFF byte and the replica ID;
+ * no UTF-8 session ID starts with that byte, so no session token is ever a
+ * forwarding token.
+ */
+public class SessionTokens {
+    static final int KEY_BYTES = 32;
+
+    private final byte[] key;
+
+    public SessionTokens(byte[] key) {
+        if (key.length < KEY_BYTES) {
+            throw new IllegalArgumentException("Session token key needs at least " + KEY_BYTES + " bytes, got "
+                    + key.length);
+        }
+        this.key = key.clone();
+    }
+
+    /** A key that only this process knows; tokens die with it. */
+    public static SessionTokens random() {
+        byte[] key = new byte[KEY_BYTES];
+        new SecureRandom().nextBytes(key);
+        return new SessionTokens(key);
+    }
+
+    public String issue(String sessionId) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(mac(sessionId.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public boolean verify(String sessionId, String token) {
+        return sessionId != null && matches(sessionId.getBytes(StandardCharsets.UTF_8), token);
+    }
+
+    /** The token a replica sends with the calls it forwards. */
+    String issueForwarding(String replicaId) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(mac(forwarding(replicaId)));
+    }
+
+    boolean verifyForwarding(String replicaId, String token) {
+        return replicaId != null && matches(forwarding(replicaId), token);
+    }
+
+    private static byte[] forwarding(String replicaId) {
+        byte[] id = replicaId.getBytes(StandardCharsets.UTF_8);
+        byte[] input = new byte[id.length + 1];
+        input[0] = (byte) 0xFF;
+        System.arraycopy(id, 0, input, 1, id.length);
+        return input;
+    }
+
+    private boolean matches(byte[] input, String token) {
+        if (token == null) {
+            return false;
+        }
+        byte[] presented;
+        try {
+            presented = Base64.getUrlDecoder().decode(token);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return MessageDigest.isEqual(mac(input), presented);
+    }
+
+    private byte[] mac(byte[] input) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(input);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is unavailable", e);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.rbs;
+
+import com.example.rbs.proto.GetServerRequest;
+import com.example.rbs.proto.GetServerResponse;
+import com.example.rbs.proto.HeartbeatRequest;
+import com.example.rbs.proto.HeartbeatResponse;
+import com.example.rbs.proto.OrchestratorGrpc;
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.StreamObserver;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Routes RPCs for sessions owned by another replica to that replica.
+ *
+ * <p>
+ * Forwarded calls carry an {@code x-rbs-forwarded-by} header; a replica that
+ * receives one handles it locally even if its own view of the ring disagrees,
+ * so a call is forwarded at most once while membership converges. The header
+ * comes with an {@code x-rbs-forward-token} signed with the replicas' shared
+ * key. Without a valid token both headers are stripped and the call is routed
+ * like any client's, so a client cannot make a replica serve a session it
+ * does not own.
+ */
+public class ShardRouter implements ServerInterceptor {
+    private static final Logger logger = Logger.getLogger(ShardRouter.class.getName());
+
+    static final Metadata.Key<String> FORWARDED_BY = Metadata.Key.of("x-rbs-forwarded-by",
+            Metadata.ASCII_STRING_MARSHALLER);
+    static final Metadata.Key<String> FORWARD_TOKEN = Metadata.Key.of("x-rbs-forward-token",
+            Metadata.ASCII_STRING_MARSHALLER);
+    private static final Context.Key<String> FORWARDED_BY_CONTEXT = Context.key("rbs-forwarded-by");
+
+    private final SessionOwnership ownership;
+    private final String replicaId;
+    private final SessionTokens tokens;
+    private final Map<String, ManagedChannel> channels = new ConcurrentHashMap<>();
+
+    public ShardRouter(SessionOwnership ownership, String replicaId, SessionTokens tokens) {
+        this.ownership = ownership;
+        this.replicaId = replicaId;
+        this.tokens = tokens;
+    }
+
+    /** True if this replica should serve the session: it owns it, or the call was already forwarded. */
+    boolean shouldHandleLocally(String sessionId) {
+        return FORWARDED_BY_CONTEXT.get() != null || ownership.isLocal(sessionId);
+    }
+
+    /** True if this replica is responsible for reaping the session. */
+    boolean ownsSession(String sessionId) {
+        return ownership.isLocal(sessionId);
+    }
+
+    void forwardGetServer(GetServerRequest request, StreamObserver<GetServerResponse> responseObserver) {
+        OrchestratorGrpc.OrchestratorBlockingStub stub = ownerStub(request.getSessionId(), responseObserver);
+        if (stub == null) {
+            return;
+        }
+        try {
+            responseObserver.onNext(stub.getServer(request));
+            responseObserver.onCompleted();
+        } catch (StatusRuntimeException e) {
+            responseObserver.onError(e);
+        }
+    }
+
+    void forwardHeartbeat(HeartbeatRequest request, StreamObserver<HeartbeatResponse> responseObserver) {
+        OrchestratorGrpc.OrchestratorBlockingStub stub = ownerStub(request.getSessionId(), responseObserver);
+        if (stub == null) {
+            return;
+        }
+        try {
+            responseObserver.onNext(stub.heartbeat(request));
+            responseObserver.onCompleted();
+        } catch (StatusRuntimeException e) {
+            responseObserver.onError(e);
+        }
+    }
+
+    private OrchestratorGrpc.OrchestratorBlockingStub ownerStub(String sessionId, StreamObserver<?> responseObserver) {
+        String address = ownership.ownerAddress(sessionId);
+        if (address == null) {
+            // Owner unknown (e.g. it just left the ring): let the client retry once membership settles.
+            responseObserver.onError(Status.UNAVAILABLE
+                    .withDescription("No owner available for session " + sessionId).asRuntimeException());
+            return null;
+        }
+        logger.fine("Forwarding session " + sessionId + " to " + address);
+        ManagedChannel channel = channels.computeIfAbsent(address,
+                a -> ManagedChannelBuilder.forTarget(a).usePlaintext().build());
+        Metadata headers = new Metadata();
+        headers.put(FORWARDED_BY, replicaId);
+        headers.put(FORWARD_TOKEN, tokens.issueForwarding(replicaId));
+        return OrchestratorGrpc.newBlockingStub(channel)
+                .withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers))
+                .withDeadlineAfter(10, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+            ServerCallHandler<ReqT, RespT> next) {
+        String forwardedBy = headers.get(FORWARDED_BY);
+        if (forwardedBy == null) {
+            return next.startCall(call, headers);
+        }
+        if (!tokens.verifyForwarding(forwardedBy, headers.get(FORWARD_TOKEN))) {
+            logger.warning("Ignoring unsigned " + FORWARDED_BY.name() + " header naming " + forwardedBy);
+            headers.removeAll(FORWARDED_BY);
+            headers.removeAll(FORWARD_TOKEN);
+            return next.startCall(call, headers);
+        }
+        Context context = Context.current().withValue(FORWARDED_BY_CONTEXT, forwardedBy);
+        return Contexts.interceptCall(context, call, headers, next);
+    }
+
+    public void shutdown() {
+        for (ManagedChannel channel : channels.values()) {
+            channel.shutdown();
+        }
+    }
+}
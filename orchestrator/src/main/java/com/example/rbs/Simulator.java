@@ -0,0 +1,472 @@
+package com.example.rbs;
+
+import com.example.rbs.proto.GetServerRequest;
+import com.example.rbs.proto.GetServerResponse;
+import com.example.rbs.proto.HeartbeatRequest;
+import com.example.rbs.proto.HeartbeatResponse;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Discrete-event simulation of the orchestrator on virtual time.
+ *
+ * <p>
+ * Replays a trace of session arrivals, heartbeats and departures against a
+ * real {@link OrchestratorService} backed by {@link InMemorySessionRepository}
+ * and a {@link FakeComputeService}, all reading a {@link VirtualClock}. Proxies
+ * are modelled the way the real proxy behaves: poll {@code GetServer} every
+ * second until READY, heartbeat every 30 seconds, ask for a server again (and
+ * poll until READY) when a heartbeat finds the session gone, and go silent on
+ * departure.
+ * The reaper runs as a simulation event, so a recorded day replays in seconds
+ * and pool sizes, TTLs and reaper settings can be compared offline.
+ *
+ * <p>
+ * Trace lines are {@code <offsetMillis>,<start|heartbeat|end>,<userId>,<repoHash>,<sessionId>}.
+ * If the trace has no heartbeat lines, heartbeats are synthesised.
+ */
+public class Simulator {
+    private static final Logger logger = Logger.getLogger(Simulator.class.getName());
+
+    static class Settings {
+        Duration reapInterval = Duration.ofMinutes(1);
+        Duration staleThreshold = Duration.ofMinutes(5);
+        int warmPoolSize = 0;
+        long warmStartMillis = 2000;
+        long startMedianMillis = 45000;
+        double startSigma = 0.5;
+        long pollIntervalMillis = 1000;
+        long heartbeatIntervalMillis = 30000;
+        long seed = 1;
+    }
+
+    static class TraceEvent {
+        final long atMillis;
+        final String type;
+        final String userId;
+        final String repoHash;
+        final String sessionId;
+
+        TraceEvent(long atMillis, String type, String userId, String repoHash, String sessionId) {
+            this.atMillis = atMillis;
+            this.type = type;
+            this.userId = userId;
+            this.repoHash = repoHash;
+            this.sessionId = sessionId;
+        }
+    }
+
+    static class Report {
+        int sessions;
+        int readySessions;
+        long warmPoolHits;
+        int reapedContainers;
+        /** Sessions whose container was reaped while the proxy was still using it. */
+        int lostSessions;
+        /** Times a proxy asked for a new server after its heartbeat found the session gone. */
+        int reacquiredServers;
+        int peakContainers;
+        double containerHours;
+        /** Container time spent after the proxy departed, i.e. the cost of the TTL. */
+        double idleContainerHours;
+        List<Long> timeToReadyMillis = new ArrayList<>();
+
+        long timeToReadyPercentile(double percentile) {
+            if (timeToReadyMillis.isEmpty()) {
+                return 0;
+            }
+            List<Long> sorted = new ArrayList<>(timeToReadyMillis);
+            Collections.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+            return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("sessions=%d ready=%d warm_pool_hits=%d lost=%d reacquired=%d reaped=%d"
+                    + " peak_containers=%d%n"
+                    + "container_hours=%.1f idle_container_hours=%.1f%n"
+                    + "time_to_ready_ms p50=%d p90=%d p99=%d max=%d",
+                    sessions, readySessions, warmPoolHits, lostSessions, reacquiredServers, reapedContainers,
+                    peakContainers,
+                    containerHours, idleContainerHours, timeToReadyPercentile(50), timeToReadyPercentile(90),
+                    timeToReadyPercentile(99), timeToReadyPercentile(100));
+        }
+    }
+
+    private final Settings settings;
+    private final VirtualClock clock = new VirtualClock(0);
+    private final PriorityQueue<Event> queue = new PriorityQueue<>();
+    private final Map<String, SimProxy> proxies = new HashMap<>();
+    private final Map<String, Long> containerCreatedAt = new HashMap<>();
+    private final Report report = new Report();
+    private long nextSeq;
+
+    private InMemorySessionRepository sessionRepo;
+    private FakeComputeService computeService;
+    private OrchestratorService service;
+
+    Simulator(Settings settings) {
+        this.settings = settings;
+    }
+
+    Report run(List<TraceEvent> trace) {
+        Random random = new Random(settings.seed);
+        sessionRepo = new InMemorySessionRepository(clock);
+        computeService = new FakeComputeService(clock,
+                FakeComputeService.logNormal(settings.startMedianMillis, settings.startSigma, random), 0)
+                .withWarmPool(settings.warmPoolSize, settings.warmStartMillis);
+        service = new OrchestratorService(sessionRepo, new MeteredComputeService(), null,
+                settings.reapInterval, settings.staleThreshold);
+
+        boolean synthesiseHeartbeats = trace.stream().noneMatch(e -> "heartbeat".equals(e.type));
+        long lastEvent = 0;
+        for (TraceEvent e : trace) {
+            lastEvent = Math.max(lastEvent, e.atMillis);
+            switch (e.type) {
+                case "start":
+                    schedule(e.atMillis, () -> arrive(e, synthesiseHeartbeats));
+                    break;
+                case "heartbeat":
+                    schedule(e.atMillis, () -> heartbeat(e.sessionId, false));
+                    break;
+                case "end":
+                    schedule(e.atMillis, () -> depart(e.sessionId));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown trace event type: " + e.type);
+            }
+        }
+        // Run long enough for every departed session to be reaped.
+        long horizon = lastEvent + settings.staleThreshold.toMillis() + 2 * settings.reapInterval.toMillis();
+        schedule(settings.reapInterval.toMillis(), this::reap);
+
+        while (!queue.isEmpty()) {
+            Event event = queue.poll();
+            if (event.atMillis > horizon) {
+                break;
+            }
+            clock.advanceTo(event.atMillis);
+            event.action.run();
+        }
+
+        for (Map.Entry<String, Long> live : containerCreatedAt.entrySet()) {
+            accountContainer(live.getKey(), live.getValue(), clock.millis());
+        }
+        report.sessions = proxies.size();
+        report.warmPoolHits = computeService.getWarmPoolHits();
+        return report;
+    }
+
+    private void arrive(TraceEvent e, boolean synthesiseHeartbeats) {
+        SimProxy proxy = new SimProxy(e, clock.millis(), synthesiseHeartbeats);
+        proxies.put(e.sessionId, proxy);
+        poll(proxy);
+    }
+
+    private void poll(SimProxy proxy) {
+        if (proxy.departed) {
+            return;
+        }
+        GetServerResponse response = call(observer -> service.getServer(proxy.request, observer));
+        if (response != null && "READY".equals(response.getStatus())) {
+            proxy.ready = true;
+            if (!proxy.lost) {
+                report.readySessions++;
+                report.timeToReadyMillis.add(clock.millis() - proxy.arrivedAt);
+            }
+            if (proxy.synthesiseHeartbeats) {
+                schedule(clock.millis() + settings.heartbeatIntervalMillis, () -> heartbeat(proxy.sessionId, true));
+            }
+        } else {
+            schedule(clock.millis() + settings.pollIntervalMillis, () -> poll(proxy));
+        }
+    }
+
+    private void heartbeat(String sessionId, boolean reschedule) {
+        SimProxy proxy = proxies.get(sessionId);
+        if (proxy == null || proxy.departed || !proxy.ready) {
+            return;
+        }
+        AtomicReference<io.grpc.Status> error = new AtomicReference<>();
+        service.heartbeat(HeartbeatRequest.newBuilder().setSessionId(sessionId).build(),
+                new StreamObserver<HeartbeatResponse>() {
+                    @Override
+                    public void onNext(HeartbeatResponse value) {
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        error.set(io.grpc.Status.fromThrowable(t));
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                    }
+                });
+        if (error.get() != null && error.get().getCode() == io.grpc.Status.Code.NOT_FOUND) {
+            // Reaped under the proxy: like the real one, it asks for a server again under the
+            // same session ID and polls until READY, which resumes the heartbeats. The work
+            // the server held is lost either way.
+            if (!proxy.lost) {
+                proxy.lost = true;
+                report.lostSessions++;
+            }
+            report.reacquiredServers++;
+            proxy.ready = false;
+            poll(proxy);
+            return;
+        }
+        if (reschedule) {
+            schedule(clock.millis() + settings.heartbeatIntervalMillis, () -> heartbeat(sessionId, true));
+        }
+    }
+
+    private void depart(String sessionId) {
+        SimProxy proxy = proxies.get(sessionId);
+        if (proxy != null) {
+            proxy.departed = true;
+            proxy.departedAt = clock.millis();
+        }
+    }
+
+    private void reap() {
+        service.reapStaleSessions();
+        schedule(clock.millis() + settings.reapInterval.toMillis(), this::reap);
+    }
+
+    private void schedule(long atMillis, Runnable action) {
+        queue.add(new Event(atMillis, nextSeq++, action));
+    }
+
+    private void accountContainer(String sessionId, long createdAt, long deletedAt) {
+        report.containerHours += (deletedAt - createdAt) / 3_600_000.0;
+        SimProxy proxy = proxies.get(sessionId);
+        if (proxy != null && proxy.departed) {
+            report.idleContainerHours += Math.max(0, deletedAt - proxy.departedAt) / 3_600_000.0;
+        }
+    }
+
+    private static <T> T call(java.util.function.Consumer<StreamObserver<T>> rpc) {
+        AtomicReference<T> result = new AtomicReference<>();
+        rpc.accept(new StreamObserver<T>() {
+            @Override
+            public void onNext(T value) {
+                result.set(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                logger.warning("Simulated RPC failed: " + t.getMessage());
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+        return result.get();
+    }
+
+    /** Records container lifetimes on virtual time around the fake compute service. */
+    private class MeteredComputeService implements ComputeService {
+        @Override
+        public String createContainer(String userId, String repoHash, String sessionId, String sourcePath,
+                List<String> startupOptions, String region) {
+            containerCreatedAt.putIfAbsent(sessionId, clock.millis());
+            report.peakContainers = Math.max(report.peakContainers, containerCreatedAt.size());
+            return computeService.createContainer(userId, repoHash, sessionId, sourcePath, startupOptions, region);
+        }
+
+        @Override
+        public String createWorker(String pool, String workerId) {
+            return computeService.createWorker(pool, workerId);
+        }
+
+        @Override
+        public String createGoldenBuild(String repoHash, String buildId, String sourcePath,
+                List<String> startupOptions, String command) {
+            return computeService.createGoldenBuild(repoHash, buildId, sourcePath, startupOptions, command);
+        }
+
+        @Override
+        public void snapshotOutputBase(String repoHash, String buildId, String snapshotId) {
+            computeService.snapshotOutputBase(repoHash, buildId, snapshotId);
+        }
+
+        @Override
+        public boolean isSnapshotReady(String repoHash, String snapshotId) {
+            return computeService.isSnapshotReady(repoHash, snapshotId);
+        }
+
+        @Override
+        public void useSnapshot(String repoHash, String snapshotId) {
+            computeService.useSnapshot(repoHash, snapshotId);
+        }
+
+        @Override
+        public void deleteSnapshot(String repoHash, String snapshotId) {
+            computeService.deleteSnapshot(repoHash, snapshotId);
+        }
+
+        @Override
+        public void deleteContainer(String userId, String repoHash, String sessionId) {
+            Long createdAt = containerCreatedAt.remove(sessionId);
+            if (createdAt != null) {
+                report.reapedContainers++;
+                accountContainer(sessionId, createdAt, clock.millis());
+            }
+            computeService.deleteContainer(userId, repoHash, sessionId);
+        }
+
+        @Override
+        public ContainerStatus getContainerStatus(String userId, String repoHash, String sessionId) {
+            return computeService.getContainerStatus(userId, repoHash, sessionId);
+        }
+    }
+
+    private static class SimProxy {
+        final String sessionId;
+        final GetServerRequest request;
+        final long arrivedAt;
+        final boolean synthesiseHeartbeats;
+        boolean ready;
+        boolean departed;
+        boolean lost;
+        long departedAt;
+
+        SimProxy(TraceEvent e, long arrivedAt, boolean synthesiseHeartbeats) {
+            this.sessionId = e.sessionId;
+            this.request = GetServerRequest.newBuilder()
+                    .setUserId(e.userId)
+                    .setRepoHash(e.repoHash)
+                    .setSessionId(e.sessionId)
+                    .build();
+            this.arrivedAt = arrivedAt;
+            this.synthesiseHeartbeats = synthesiseHeartbeats;
+        }
+    }
+
+    private static class Event implements Comparable<Event> {
+        final long atMillis;
+        final long seq;
+        final Runnable action;
+
+        Event(long atMillis, long seq, Runnable action) {
+            this.atMillis = atMillis;
+            this.seq = seq;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            int byTime = Long.compare(atMillis, other.atMillis);
+            return byTime != 0 ? byTime : Long.compare(seq, other.seq);
+        }
+    }
+
+    static List<TraceEvent> loadTrace(java.nio.file.Path path) throws IOException {
+        List<TraceEvent> events = new ArrayList<>();
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] f = line.split(",");
+            if (f.length != 5) {
+                throw new IllegalArgumentException("Malformed trace line: " + line);
+            }
+            events.add(new TraceEvent(Long.parseLong(f[0]), f[1], f[2], f[3], f[4]));
+        }
+        return events;
+    }
+
+    /**
+     * A synthetic working day: each user arrives around 9am, works for a few
+     * hours, and restarts Bazel once or twice (a new session each time).
+     */
+    static List<TraceEvent> syntheticDay(int users, Random random) {
+        List<TraceEvent> events = new ArrayList<>();
+        long hour = 3_600_000;
+        for (int u = 0; u < users; u++) {
+            String userId = "user" + u;
+            String repoHash = "repo" + (u % 20);
+            long t = (long) (9 * hour + random.nextGaussian() * 0.75 * hour);
+            int restarts = 1 + random.nextInt(2);
+            for (int s = 0; s <= restarts; s++) {
+                long length = (long) (hour + random.nextDouble() * 3 * hour);
+                String sessionId = userId + "-s" + s;
+                events.add(new TraceEvent(Math.max(0, t), "start", userId, repoHash, sessionId));
+                events.add(new TraceEvent(Math.max(0, t + length), "end", userId, repoHash, sessionId));
+                t += length + (long) (random.nextDouble() * 0.5 * hour);
+            }
+        }
+        events.sort((a, b) -> Long.compare(a.atMillis, b.atMillis));
+        return events;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Settings settings = new Settings();
+        String tracePath = null;
+        int syntheticUsers = 1000;
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            String value = kv.length == 2 ? kv[1] : "";
+            switch (kv[0]) {
+                case "--trace":
+                    tracePath = value;
+                    break;
+                case "--synthetic-users":
+                    syntheticUsers = Integer.parseInt(value);
+                    break;
+                case "--reap-interval-seconds":
+                    settings.reapInterval = Duration.ofSeconds(Long.parseLong(value));
+                    break;
+                case "--stale-threshold-seconds":
+                    settings.staleThreshold = Duration.ofSeconds(Long.parseLong(value));
+                    break;
+                case "--warm-pool":
+                    settings.warmPoolSize = Integer.parseInt(value);
+                    break;
+                case "--warm-start-ms":
+                    settings.warmStartMillis = Long.parseLong(value);
+                    break;
+                case "--start-median-ms":
+                    settings.startMedianMillis = Long.parseLong(value);
+                    break;
+                case "--start-sigma":
+                    settings.startSigma = Double.parseDouble(value);
+                    break;
+                case "--seed":
+                    settings.seed = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown flag " + kv[0]);
+            }
+        }
+
+        // Per-RPC INFO logging would dominate the run time.
+        Logger.getLogger("com.example.rbs").setLevel(Level.WARNING);
+
+        List<TraceEvent> trace = tracePath != null
+                ? loadTrace(Paths.get(tracePath))
+                : syntheticDay(syntheticUsers, new Random(settings.seed));
+        long started = System.nanoTime();
+        Report report = new Simulator(settings).run(trace);
+        System.out.println(report);
+        System.out.printf("simulated %d events in %.2fs%n", trace.size(), (System.nanoTime() - started) / 1e9);
+    }
+}
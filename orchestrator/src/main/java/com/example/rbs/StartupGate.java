@@ -0,0 +1,125 @@
+package com.example.rbs;
+
+import io.grpc.BindableService;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import io.grpc.health.v1.HealthCheckResponse.ServingStatus;
+import io.grpc.health.v1.HealthGrpc;
+import io.grpc.protobuf.services.HealthStatusManager;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Lets a replica listen before its backends are bootstrapped.
+ *
+ * <p>
+ * Slow startup work, such as creating the Spanner schema or syncing the image
+ * pre-pull DaemonSet, is registered with {@link #add} instead of blocking
+ * {@code start}. The tasks run in order on the executor passed to
+ * {@link #start}, and a task that throws is retried after
+ * {@code retryDelay}. Until all of them have succeeded, the gRPC health
+ * service reports NOT_SERVING, which keeps the replica out of the Service
+ * through its readiness probe, and every other call fails with UNAVAILABLE.
+ */
+public class StartupGate implements ServerInterceptor {
+    private static final Logger logger = Logger.getLogger(StartupGate.class.getName());
+
+    /** A bootstrap step; it may block on the network. */
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    private static final class NamedTask {
+        final String name;
+        final Task task;
+
+        NamedTask(String name, Task task) {
+            this.name = name;
+            this.task = task;
+        }
+    }
+
+    private final HealthStatusManager health = new HealthStatusManager();
+    private final List<NamedTask> tasks = new ArrayList<>();
+    private final Clock clock;
+    private final Duration retryDelay;
+    private final long createdMillis;
+    private volatile boolean ready;
+    private volatile boolean stopped;
+
+    public StartupGate(Clock clock, Duration retryDelay) {
+        this.clock = clock;
+        this.retryDelay = retryDelay;
+        this.createdMillis = clock.millis();
+        health.setStatus(HealthStatusManager.SERVICE_NAME_ALL_SERVICES, ServingStatus.NOT_SERVING);
+    }
+
+    /** Registers a task; must be called before {@link #start}. */
+    public void add(String name, Task task) {
+        tasks.add(new NamedTask(name, task));
+    }
+
+    public BindableService healthService() {
+        return health.getHealthService();
+    }
+
+    public void start(ScheduledExecutorService executor) {
+        executor.execute(() -> runFrom(0, executor));
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /** Reports NOT_SERVING for good, so the replica leaves the Service while it drains. */
+    public void shutdown() {
+        stopped = true;
+        ready = false;
+        health.enterTerminalState();
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+            ServerCallHandler<ReqT, RespT> next) {
+        if (ready || HealthGrpc.SERVICE_NAME.equals(call.getMethodDescriptor().getServiceName())) {
+            return next.startCall(call, headers);
+        }
+        call.close(Status.UNAVAILABLE.withDescription("Orchestrator replica is still starting"), new Metadata());
+        return new ServerCall.Listener<ReqT>() {
+        };
+    }
+
+    private void runFrom(int index, ScheduledExecutorService executor) {
+        for (int i = index; i < tasks.size(); i++) {
+            if (stopped) {
+                return;
+            }
+            NamedTask task = tasks.get(i);
+            long startMillis = clock.millis();
+            try {
+                task.task.run();
+            } catch (Exception e) {
+                logger.warning("Startup task " + task.name + " failed, retrying in " + retryDelay + ": "
+                        + e.getMessage());
+                int failed = i;
+                executor.schedule(() -> runFrom(failed, executor), retryDelay.toMillis(), TimeUnit.MILLISECONDS);
+                return;
+            }
+            logger.info("Startup task " + task.name + " done in " + (clock.millis() - startMillis) + "ms");
+        }
+        if (stopped) {
+            return;
+        }
+        ready = true;
+        health.setStatus(HealthStatusManager.SERVICE_NAME_ALL_SERVICES, ServingStatus.SERVING);
+        logger.info("Ready to serve " + (clock.millis() - createdMillis) + "ms after startup");
+    }
+}
@@ -3,14 +3,19 @@ package com.example.rbs;
 import io.opentelemetry.api.GlobalOpenTelemetry;
 import io.opentelemetry.api.common.AttributeKey;
 import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.metrics.Meter;
 import io.opentelemetry.api.trace.Tracer;
 import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
 import io.opentelemetry.context.propagation.ContextPropagators;
+import io.opentelemetry.exporter.logging.LoggingMetricExporter;
 import io.opentelemetry.exporter.logging.LoggingSpanExporter;
 import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.metrics.SdkMeterProvider;
+import io.opentelemetry.sdk.metrics.export.PeriodicMetricReader;
 import io.opentelemetry.sdk.resources.Resource;
 import io.opentelemetry.sdk.trace.SdkTracerProvider;
 import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+import java.time.Duration;
 
 public class Telemetry {
     public static OpenTelemetry init() {
@@ -22,8 +27,16 @@ public class Telemetry {
                 .addSpanProcessor(SimpleSpanProcessor.create(LoggingSpanExporter.create()))
                 .build();
 
+        SdkMeterProvider meterProvider = SdkMeterProvider.builder()
+                .setResource(resource)
+                .registerMetricReader(PeriodicMetricReader.builder(LoggingMetricExporter.create())
+                        .setInterval(Duration.ofMinutes(1))
+                        .build())
+                .build();
+
         OpenTelemetrySdk sdk = OpenTelemetrySdk.builder()
                 .setTracerProvider(tracerProvider)
+                .setMeterProvider(meterProvider)
                 .setPropagators(ContextPropagators.create(W3CTraceContextPropagator.getInstance()))
                 .buildAndRegisterGlobal();
 
@@ -33,4 +46,8 @@ public class Telemetry {
     public static Tracer getTracer() {
         return GlobalOpenTelemetry.getTracer("orchestrator");
     }
+
+    public static Meter getMeter() {
+        return GlobalOpenTelemetry.getMeter("orchestrator");
+    }
 }
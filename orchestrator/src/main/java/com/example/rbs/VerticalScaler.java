@@ -0,0 +1,197 @@
+package com.example.rbs;
+
+import com.example.rbs.proto.ResourceUsage;
+import io.opentelemetry.api.metrics.Meter;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sizes session containers from the resource usage their heartbeats carry.
+ *
+ * <p>Memory grows once the container's usage nears its limit, before the
+ * kernel OOM-kills the Bazel server, and CPU grows once the container uses most
+ * of its quota. Sessions that have run no command for a while shrink back to
+ * their usage plus headroom. The JVM's maximum heap is fixed when the server
+ * starts, so heap usage is not a reason to grow; an idle container is just
+ * never shrunk below what the heap may still grow to.
+ */
+public class VerticalScaler {
+    public static class Settings {
+        public long initialMemoryBytes = 4L << 30;
+        public long minMemoryBytes = 2L << 30;
+        public long maxMemoryBytes = 32L << 30;
+        public long initialCpuMillis = 2000;
+        public long minCpuMillis = 1000;
+        public long maxCpuMillis = 8000;
+        /** Grow once usage reaches this fraction of the limit. */
+        public double growThreshold = 0.8;
+        public double growFactor = 1.5;
+        /** Shrink sessions that have run no command for this long. */
+        public Duration shrinkAfterIdle = Duration.ofMinutes(10);
+        /** An idle container keeps this fraction on top of its usage. */
+        public double idleHeadroom = 0.5;
+        /** Minimum time between two resizes of a container, so a resize in progress is not re-issued. */
+        public Duration cooldown = Duration.ofMinutes(1);
+        /** A failed resize waits the cooldown, doubled per consecutive failure up to this. */
+        public Duration maxFailureBackoff = Duration.ofMinutes(30);
+    }
+
+    /** Memory and CPU of a container; requests and limits are set alike. */
+    public static final class Size {
+        public final long memoryBytes;
+        public final long cpuMillis;
+
+        public Size(long memoryBytes, long cpuMillis) {
+            this.memoryBytes = memoryBytes;
+            this.cpuMillis = cpuMillis;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Size)) {
+                return false;
+            }
+            Size other = (Size) o;
+            return memoryBytes == other.memoryBytes && cpuMillis == other.cpuMillis;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(memoryBytes) * 31 + Long.hashCode(cpuMillis);
+        }
+
+        @Override
+        public String toString() {
+            return (memoryBytes >> 20) + "Mi/" + cpuMillis + "m";
+        }
+    }
+
+    private static final long MIB = 1L << 20;
+
+    private final Clock clock;
+    private final Settings settings;
+    // Keyed by container (e.g. namespace): the size last applied, and when.
+    private final Map<String, Size> sizes = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastResized = new ConcurrentHashMap<>();
+    // Consecutive failed resizes, and when the next may be tried.
+    private final Map<String, Integer> failedResizes = new ConcurrentHashMap<>();
+    private final Map<String, Long> retryAt = new ConcurrentHashMap<>();
+    private final AtomicLong grown = new AtomicLong();
+    private final AtomicLong shrunk = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public VerticalScaler(Clock clock, Settings settings) {
+        this.clock = clock;
+        this.settings = settings;
+    }
+
+    public void registerMetrics(Meter meter) {
+        meter.counterBuilder("rbs.resize.grown").setDescription("Session containers resized up")
+                .buildWithCallback(m -> m.record(grown.get()));
+        meter.counterBuilder("rbs.resize.shrunk").setDescription("Idle session containers resized down")
+                .buildWithCallback(m -> m.record(shrunk.get()));
+        meter.counterBuilder("rbs.resize.failures").setDescription("Session container resizes that were rejected")
+                .buildWithCallback(m -> m.record(failures.get()));
+    }
+
+    public Size initialSize() {
+        return new Size(settings.initialMemoryBytes, settings.initialCpuMillis);
+    }
+
+    /** Stops tracking a deleted container. */
+    public void forget(String container) {
+        sizes.remove(container);
+        lastResized.remove(container);
+        failedResizes.remove(container);
+        retryAt.remove(container);
+    }
+
+    /**
+     * Returns the size the container should be resized to, or null to leave it.
+     * The caller applies the size and reports back with {@link #resized}.
+     */
+    public Size target(String container, ResourceUsage usage) {
+        Long last = lastResized.get(container);
+        if (last != null && clock.millis() - last < settings.cooldown.toMillis()) {
+            return null;
+        }
+        Long retry = retryAt.get(container);
+        if (retry != null && clock.millis() < retry) {
+            return null;
+        }
+        Size current = currentSize(container, usage);
+        long memory = current.memoryBytes;
+        long cpu = current.cpuMillis;
+
+        long targetMemory = memory;
+        long targetCpu = cpu;
+        if (usage.getRssBytes() >= settings.growThreshold * memory) {
+            targetMemory = Math.min(settings.maxMemoryBytes, roundUpToMib((long) (memory * settings.growFactor)));
+        }
+        if (usage.getCpuMillicores() >= settings.growThreshold * cpu) {
+            targetCpu = Math.min(settings.maxCpuMillis, (long) Math.ceil(cpu * settings.growFactor));
+        }
+        boolean grows = targetMemory > memory || targetCpu > cpu;
+        if (!grows && isIdle(usage)) {
+            long needed = Math.max(usage.getRssBytes(), usage.getHeapMaxBytes());
+            long idleMemory = Math.max(settings.minMemoryBytes,
+                    roundUpToMib((long) (needed * (1 + settings.idleHeadroom))));
+            // Only shrink by a margin worth a resize; small savings are not worth the churn.
+            if (idleMemory <= memory * settings.growThreshold) {
+                targetMemory = idleMemory;
+            }
+            targetCpu = Math.min(cpu, settings.minCpuMillis);
+        }
+        if (targetMemory == memory && targetCpu == cpu) {
+            return null;
+        }
+        return new Size(targetMemory, targetCpu);
+    }
+
+    /**
+     * The container's size as of the usage sample. The limits the agent sees
+     * win over the tracked size: the container may predate this replica.
+     */
+    public Size currentSize(String container, ResourceUsage usage) {
+        Size tracked = sizes.getOrDefault(container, initialSize());
+        return new Size(
+                usage.getMemoryLimitBytes() > 0 ? usage.getMemoryLimitBytes() : tracked.memoryBytes,
+                usage.getCpuLimitMillicores() > 0 ? usage.getCpuLimitMillicores() : tracked.cpuMillis);
+    }
+
+    /** Records that the container was resized from {@code from} to {@code to}. */
+    public void resized(String container, Size from, Size to) {
+        sizes.put(container, to);
+        lastResized.put(container, clock.millis());
+        failedResizes.remove(container);
+        retryAt.remove(container);
+        if (to.memoryBytes > from.memoryBytes || to.cpuMillis > from.cpuMillis) {
+            grown.incrementAndGet();
+        } else {
+            shrunk.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records that resizing the container failed, e.g. because the node has no
+     * room, so it is not retried on every heartbeat.
+     */
+    public void resizeFailed(String container) {
+        failures.incrementAndGet();
+        int failed = failedResizes.merge(container, 1, Integer::sum);
+        long backoff = Math.min(settings.maxFailureBackoff.toMillis(),
+                settings.cooldown.toMillis() << Math.min(failed - 1, 20));
+        retryAt.put(container, clock.millis() + backoff);
+    }
+
+    private boolean isIdle(ResourceUsage usage) {
+        return usage.getActiveCommand().isEmpty() && usage.getIdleMillis() >= settings.shrinkAfterIdle.toMillis();
+    }
+
+    private static long roundUpToMib(long bytes) {
+        return (bytes + MIB - 1) / MIB * MIB;
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.rbs;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Clock that only moves when told to. Drives the simulator (and anything
+ * that takes a {@link Clock}) on virtual time.
+ */
+class VirtualClock extends Clock {
+    // Shared with the clock's views in other zones.
+    private final AtomicLong millis;
+    private final ZoneId zone;
+
+    VirtualClock(long startMillis) {
+        this(new AtomicLong(startMillis), ZoneOffset.UTC);
+    }
+
+    private VirtualClock(AtomicLong millis, ZoneId zone) {
+        this.millis = millis;
+        this.zone = zone;
+    }
+
+    void advanceTo(long targetMillis) {
+        long current = millis.get();
+        if (targetMillis < current) {
+            throw new IllegalArgumentException("Virtual time cannot go backwards: " + targetMillis + " < " + current);
+        }
+        millis.set(targetMillis);
+    }
+
+    @Override
+    public long millis() {
+        return millis.get();
+    }
+
+    @Override
+    public Instant instant() {
+        return Instant.ofEpochMilli(millis.get());
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return zone;
+    }
+
+    /** A view of the same virtual time in another zone; advancing either advances both. */
+    @Override
+    public Clock withZone(ZoneId zone) {
+        return zone.equals(this.zone) ? this : new VirtualClock(millis, zone);
+    }
+}
@@ -0,0 +1,666 @@
+package com.example.rbs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * File-backed SessionRepository for single-node ({@code --local-mode})
+ * deployments that must survive an orchestrator restart.
+ *
+ * <p>
+ * Sessions are served from memory, as in {@link InMemorySessionRepository}.
+ * Saves and deletes are appended to a write-ahead log and return once the
+ * record is fsynced; a single writer thread drains all appends queued while the
+ * previous fsync ran and commits them with one fsync (group commit).
+ * Heartbeats only touch memory: they are the hot path, and every recovered
+ * session gets a fresh heartbeat anyway so its proxy can reconnect before the
+ * reaper runs.
+ *
+ * <p>
+ * Every {@code snapshotEveryRecords} records the writer starts a new log
+ * segment, writes a memory-mapped snapshot of the state and atomically renames
+ * it into place, then deletes the segments the snapshot covers. Recovery maps
+ * the snapshot and replays the segments after it; a torn or corrupt record at
+ * the end of a segment (a crash mid-append) is truncated away.
+ *
+ * <p>
+ * Directory layout: {@code snapshot} and {@code wal-<generation>.log}. A
+ * snapshot of generation G holds everything written to segments before G.
+ *
+ * <p>
+ * Session history events are logged and snapshotted the same way; they are
+ * only appended, and dropped in bulk by {@link #deleteSessionEvents}.
+ */
+class WalSessionRepository implements SessionRepository, AutoCloseable {
+    private static final Logger logger = Logger.getLogger(WalSessionRepository.class.getName());
+
+    static final int DEFAULT_SNAPSHOT_EVERY_RECORDS = 10_000;
+    static final String SNAPSHOT_FILE = "snapshot";
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int SNAPSHOT_MAGIC_V1 = 0x52425353; // "RBSS"
+    private static final int SNAPSHOT_MAGIC_V2 = 0x52425332; // "RBS2": sessions carry a startup options hash
+    private static final int SNAPSHOT_MAGIC = 0x52425333; // "RBS3": followed by the session history events
+    private static final byte RECORD_PUT_V1 = 1;
+    private static final byte RECORD_DELETE = 2;
+    private static final byte RECORD_PUT = 3;
+    private static final byte RECORD_EVENT = 4;
+    private static final byte RECORD_DELETE_EVENTS = 5;
+
+    private final Map<String, BuildSession> store = new ConcurrentHashMap<>();
+    private final List<SessionEvent> events = new ArrayList<>(); // guarded by itself
+    // Sessions being claimed: the store only has them once their record is durable.
+    private final Set<String> claiming = ConcurrentHashMap.newKeySet();
+    private final Path dir;
+    private final Clock clock;
+    private final int snapshotEveryRecords;
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private final Object appendLock = new Object();
+    private final Thread writer;
+    private boolean closed; // guarded by appendLock
+
+    // Owned by the writer thread after construction.
+    private FileChannel segment;
+    private long generation;
+    private long recordsSinceSnapshot;
+    private IOException failure;
+    private volatile long fsyncCount;
+
+    WalSessionRepository(Path dir, Clock clock) throws IOException {
+        this(dir, clock, DEFAULT_SNAPSHOT_EVERY_RECORDS);
+    }
+
+    WalSessionRepository(Path dir, Clock clock, int snapshotEveryRecords) throws IOException {
+        this.dir = dir;
+        this.clock = clock;
+        this.snapshotEveryRecords = snapshotEveryRecords;
+        Files.createDirectories(dir);
+        recover();
+        this.writer = new Thread(this::runWriter, "wal-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @Override
+    public BuildSession getSession(String sessionId) {
+        return store.get(sessionId);
+    }
+
+    @Override
+    public void saveSession(String userId, String repoHash, String sessionId, String computeSessionId,
+            String serverAddress, String status, String startupOptionsHash) {
+        if (startupOptionsHash == null) {
+            BuildSession old = store.get(sessionId);
+            startupOptionsHash = old != null ? old.startupOptionsHash : null;
+        }
+        BuildSession session = new BuildSession(userId, repoHash, sessionId, computeSessionId, serverAddress, status,
+                clock.millis(), startupOptionsHash);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(RECORD_PUT);
+            writeSession(out, session);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        append(new PendingWrite(bytes.toByteArray(), () -> store.put(sessionId, session)));
+    }
+
+    @Override
+    public boolean claimSession(String userId, String repoHash, String sessionId, String status,
+            String startupOptionsHash) {
+        if (store.containsKey(sessionId) || !claiming.add(sessionId)) {
+            return false;
+        }
+        try {
+            if (store.containsKey(sessionId)) {
+                return false;
+            }
+            saveSession(userId, repoHash, sessionId, sessionId, null, status, startupOptionsHash);
+            return true;
+        } finally {
+            claiming.remove(sessionId);
+        }
+    }
+
+    @Override
+    public void updateHeartbeat(String sessionId) {
+        // Not logged: heartbeats are reset on recovery.
+        store.computeIfPresent(sessionId, (id, old) -> old.withHeartbeat(clock.millis()));
+    }
+
+    @Override
+    public void deleteSession(String sessionId) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(RECORD_DELETE);
+            writeString(out, sessionId);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        append(new PendingWrite(bytes.toByteArray(), () -> store.remove(sessionId)));
+    }
+
+    @Override
+    public List<BuildSession> getStaleSessions(long inactiveMillis) {
+        List<BuildSession> stale = new ArrayList<>();
+        long now = clock.millis();
+        for (BuildSession s : store.values()) {
+            if (now - s.lastHeartbeat > inactiveMillis) {
+                stale.add(s);
+            }
+        }
+        return stale;
+    }
+
+    @Override
+    public List<BuildSession> findSessions(String userId, String repoHash) {
+        List<BuildSession> sessions = new ArrayList<>();
+        for (BuildSession s : store.values()) {
+            if (s.userId.equals(userId) && s.repoHash.equals(repoHash)) {
+                sessions.add(s);
+            }
+        }
+        return sessions;
+    }
+
+    @Override
+    public void recordSessionEvent(SessionEvent event) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(RECORD_EVENT);
+            writeEvent(out, event);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        append(new PendingWrite(bytes.toByteArray(), () -> addEvent(event)));
+    }
+
+    @Override
+    public List<SessionEvent> getSessionEvents(long sinceMillis) {
+        List<SessionEvent> since = new ArrayList<>();
+        synchronized (events) {
+            for (SessionEvent event : events) {
+                if (event.atMillis >= sinceMillis) {
+                    since.add(event);
+                }
+            }
+        }
+        since.sort(java.util.Comparator.comparingLong(e -> e.atMillis));
+        return since;
+    }
+
+    @Override
+    public void deleteSessionEvents(long beforeMillis) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(RECORD_DELETE_EVENTS);
+            out.writeLong(beforeMillis);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        append(new PendingWrite(bytes.toByteArray(), () -> removeEvents(beforeMillis)));
+    }
+
+    private void addEvent(SessionEvent event) {
+        synchronized (events) {
+            events.add(event);
+        }
+    }
+
+    private void removeEvents(long beforeMillis) {
+        synchronized (events) {
+            events.removeIf(e -> e.atMillis < beforeMillis);
+        }
+    }
+
+    /** All sessions, e.g. to reconcile the recovered ones with their servers. */
+    List<BuildSession> getSessions() {
+        return new ArrayList<>(store.values());
+    }
+
+    /** Number of fsyncs issued for log appends; lower than the number of appends under concurrency. */
+    long getFsyncCount() {
+        return fsyncCount;
+    }
+
+    /** Flushes pending appends, writes a final snapshot and stops the writer. */
+    @Override
+    public void close() {
+        synchronized (appendLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void append(PendingWrite write) {
+        synchronized (appendLock) {
+            if (closed) {
+                throw new IllegalStateException("Session repository is closed");
+            }
+            queue.add(write);
+        }
+        try {
+            write.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for session log commit", e);
+        } catch (ExecutionException e) {
+            throw new UncheckedIOException("Session log commit failed", (IOException) e.getCause());
+        }
+    }
+
+    // --- Writer thread ---
+
+    private void runWriter() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while (true) {
+            boolean stopping;
+            synchronized (appendLock) {
+                stopping = closed;
+            }
+            PendingWrite first;
+            try {
+                first = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                first = null;
+            }
+            if (first == null) {
+                if (stopping && queue.isEmpty()) {
+                    break;
+                }
+                continue;
+            }
+            batch.add(first);
+            queue.drainTo(batch);
+            commit(batch);
+            batch.clear();
+        }
+
+        try {
+            if (failure == null && recordsSinceSnapshot > 0) {
+                checkpoint();
+            }
+            segment.close();
+        } catch (IOException e) {
+            logger.warning("Failed to close session log cleanly: " + e.getMessage());
+        }
+    }
+
+    private void commit(List<PendingWrite> batch) {
+        if (failure == null) {
+            try {
+                ByteBuffer[] frames = new ByteBuffer[batch.size()];
+                for (int i = 0; i < frames.length; i++) {
+                    frames[i] = frame(batch.get(i).payload);
+                }
+                while (frames[frames.length - 1].hasRemaining()) {
+                    segment.write(frames);
+                }
+                segment.force(false);
+                fsyncCount++;
+            } catch (IOException e) {
+                // The segment may now end in a partial record; refuse further writes rather than
+                // append after it.
+                logger.severe("Session log append failed, rejecting further writes: " + e.getMessage());
+                failure = e;
+            }
+        }
+        for (PendingWrite write : batch) {
+            if (failure != null) {
+                write.done.completeExceptionally(failure);
+                continue;
+            }
+            write.apply.run();
+            write.done.complete(null);
+        }
+        if (failure != null) {
+            return;
+        }
+        recordsSinceSnapshot += batch.size();
+        if (recordsSinceSnapshot >= snapshotEveryRecords) {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                // The log still holds everything; retry at the next threshold.
+                logger.warning("Session snapshot failed: " + e.getMessage());
+                recordsSinceSnapshot = 0;
+            }
+        }
+    }
+
+    private void checkpoint() throws IOException {
+        // Everything up to here is in the store, so the snapshot covers all segments before next.
+        long next = generation + 1;
+        FileChannel nextSegment = openSegment(next);
+        segment.close();
+        segment = nextSegment;
+        generation = next;
+        recordsSinceSnapshot = 0;
+
+        List<SessionEvent> history;
+        synchronized (events) {
+            history = new ArrayList<>(events);
+        }
+        writeSnapshot(next, new ArrayList<>(store.values()), history);
+        for (long old : listSegments().keySet()) {
+            if (old < next) {
+                Files.deleteIfExists(segmentPath(old));
+            }
+        }
+    }
+
+    private void writeSnapshot(long snapshotGeneration, List<BuildSession> sessions, List<SessionEvent> history)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(snapshotGeneration);
+            out.writeInt(sessions.size());
+            for (BuildSession session : sessions) {
+                writeSession(out, session);
+            }
+            out.writeInt(history.size());
+            for (SessionEvent event : history) {
+                writeEvent(out, event);
+            }
+        }
+        byte[] body = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        Path tmp = dir.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, body.length + 4);
+            buffer.put(body);
+            buffer.putInt((int) crc.getValue());
+            buffer.force();
+        }
+        Files.move(tmp, dir.resolve(SNAPSHOT_FILE), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+        logger.fine("Wrote session snapshot " + snapshotGeneration + " (" + sessions.size() + " sessions, "
+                + history.size() + " history events)");
+    }
+
+    // --- Recovery ---
+
+    private void recover() throws IOException {
+        long snapshotGeneration = 0;
+        Path snapshot = dir.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshot)) {
+            snapshotGeneration = loadSnapshot(snapshot);
+        }
+
+        long last = snapshotGeneration;
+        int replayed = 0;
+        for (long segmentGeneration : listSegments().keySet()) {
+            if (segmentGeneration < snapshotGeneration) {
+                // Covered by the snapshot; left behind by a crash during checkpoint.
+                Files.deleteIfExists(segmentPath(segmentGeneration));
+                continue;
+            }
+            replayed += replay(segmentPath(segmentGeneration));
+            last = Math.max(last, segmentGeneration);
+        }
+
+        // Heartbeats are not logged: give every recovered session a full stale window.
+        long now = clock.millis();
+        store.replaceAll((id, s) -> s.withHeartbeat(now));
+
+        generation = last + 1;
+        segment = openSegment(generation);
+        logger.info("Recovered " + store.size() + " sessions from " + dir + " (snapshot " + snapshotGeneration
+                + ", " + replayed + " log records)");
+    }
+
+    private long loadSnapshot(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            int size = (int) channel.size();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (size < 20) {
+                throw new IOException("Truncated session snapshot " + path);
+            }
+            CRC32 crc = new CRC32();
+            ByteBuffer body = buffer.duplicate();
+            body.limit(size - 4);
+            crc.update(body);
+            if ((int) crc.getValue() != buffer.getInt(size - 4)) {
+                // Snapshots are renamed into place complete, so this is real corruption.
+                throw new IOException("Corrupt session snapshot " + path);
+            }
+            buffer.limit(size - 4);
+            int magic = buffer.getInt();
+            if (magic != SNAPSHOT_MAGIC && magic != SNAPSHOT_MAGIC_V2 && magic != SNAPSHOT_MAGIC_V1) {
+                throw new IOException("Not a session snapshot: " + path);
+            }
+            long snapshotGeneration = buffer.getLong();
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                BuildSession session = readSession(buffer, magic != SNAPSHOT_MAGIC_V1);
+                store.put(session.sessionId, session);
+            }
+            if (magic == SNAPSHOT_MAGIC) {
+                int eventCount = buffer.getInt();
+                for (int i = 0; i < eventCount; i++) {
+                    addEvent(readEvent(buffer));
+                }
+            }
+            return snapshotGeneration;
+        }
+    }
+
+    private int replay(Path path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        int records = 0;
+        int valid = 0;
+        while (buffer.remaining() >= 8) {
+            int length = buffer.getInt();
+            int expectedCrc = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != expectedCrc) {
+                break;
+            }
+            applyRecord(ByteBuffer.wrap(payload));
+            records++;
+            valid = buffer.position();
+        }
+        if (valid < buffer.capacity()) {
+            logger.warning("Discarding torn tail of " + path + ": " + (buffer.capacity() - valid) + " bytes");
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+                channel.force(true);
+            }
+        }
+        return records;
+    }
+
+    private void applyRecord(ByteBuffer record) throws IOException {
+        byte type = record.get();
+        if (type == RECORD_PUT || type == RECORD_PUT_V1) {
+            BuildSession session = readSession(record, type == RECORD_PUT);
+            store.put(session.sessionId, session);
+        } else if (type == RECORD_DELETE) {
+            store.remove(readString(record));
+        } else if (type == RECORD_EVENT) {
+            addEvent(readEvent(record));
+        } else if (type == RECORD_DELETE_EVENTS) {
+            removeEvents(record.getLong());
+        } else {
+            throw new IOException("Unknown session log record type " + type);
+        }
+    }
+
+    // --- Files and encoding ---
+
+    private TreeMap<Long, Path> listSegments() throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String number = name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length());
+                try {
+                    segments.put(Long.parseLong(number), file);
+                } catch (NumberFormatException e) {
+                    logger.warning("Ignoring unexpected file in state directory: " + file);
+                }
+            }
+        }
+        return segments;
+    }
+
+    private Path segmentPath(long segmentGeneration) {
+        return dir.resolve(SEGMENT_PREFIX + segmentGeneration + SEGMENT_SUFFIX);
+    }
+
+    private FileChannel openSegment(long segmentGeneration) throws IOException {
+        FileChannel channel = FileChannel.open(segmentPath(segmentGeneration), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        syncDirectory();
+        return channel;
+    }
+
+    private void syncDirectory() {
+        // Makes creates and renames durable; not supported on every platform.
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            logger.fine("Directory fsync not supported: " + e.getMessage());
+        }
+    }
+
+    /** Log frame: payload length, CRC32 of the payload, payload. */
+    private static ByteBuffer frame(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer frame = ByteBuffer.allocate(8 + payload.length);
+        frame.putInt(payload.length);
+        frame.putInt((int) crc.getValue());
+        frame.put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    private static void writeSession(DataOutputStream out, BuildSession session) throws IOException {
+        writeString(out, session.sessionId);
+        writeString(out, session.userId);
+        writeString(out, session.repoHash);
+        writeString(out, session.computeSessionId);
+        writeString(out, session.serverAddress);
+        writeString(out, session.status);
+        out.writeLong(session.lastHeartbeat);
+        writeString(out, session.startupOptionsHash);
+    }
+
+    private static BuildSession readSession(ByteBuffer in, boolean hasStartupOptionsHash) {
+        String sessionId = readString(in);
+        String userId = readString(in);
+        String repoHash = readString(in);
+        String computeSessionId = readString(in);
+        String serverAddress = readString(in);
+        String status = readString(in);
+        long lastHeartbeat = in.getLong();
+        String startupOptionsHash = hasStartupOptionsHash ? readString(in) : null;
+        return new BuildSession(userId, repoHash, sessionId, computeSessionId, serverAddress, status, lastHeartbeat,
+                startupOptionsHash);
+    }
+
+    private static void writeEvent(DataOutputStream out, SessionEvent event) throws IOException {
+        writeString(out, event.userId);
+        writeString(out, event.repoHash);
+        out.writeBoolean(event.start);
+        out.writeLong(event.atMillis);
+        writeString(out, event.sourcePath);
+        out.writeInt(event.startupOptions.size());
+        for (String option : event.startupOptions) {
+            writeString(out, option);
+        }
+        writeString(out, event.region);
+    }
+
+    private static SessionEvent readEvent(ByteBuffer in) {
+        String userId = readString(in);
+        String repoHash = readString(in);
+        boolean start = in.get() != 0;
+        long atMillis = in.getLong();
+        String sourcePath = readString(in);
+        int optionCount = in.getInt();
+        List<String> startupOptions = new ArrayList<>(optionCount);
+        for (int i = 0; i < optionCount; i++) {
+            startupOptions.add(readString(in));
+        }
+        String region = readString(in);
+        return new SessionEvent(userId, repoHash, start, atMillis, sourcePath, startupOptions, region);
+    }
+
+    /** Length-prefixed UTF-8; length -1 encodes null. */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class PendingWrite {
+        final byte[] payload;
+        /** Applies the record to memory once it is durable. */
+        final Runnable apply;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingWrite(byte[] payload, Runnable apply) {
+            this.payload = payload;
+            this.apply = apply;
+        }
+    }
+}
@@ -0,0 +1,466 @@
+package com.example.rbs;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.Directory;
+import build.bazel.remote.execution.v2.DirectoryNode;
+import build.bazel.remote.execution.v2.FileNode;
+import build.bazel.remote.execution.v2.SymlinkNode;
+import com.example.rbs.proto.SyncWorkspaceRequest;
+import com.example.rbs.proto.SyncWorkspaceResponse;
+import com.example.rbs.proto.WorkspaceSyncGrpc;
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.grpc.BindableService;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import io.opentelemetry.api.metrics.Meter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Materialises clients' workspaces from the remote cache, so session servers
+ * get their sources without a shared network file system.
+ *
+ * <p>
+ * The client uploads its workspace as a Merkle tree of remote execution
+ * {@code Directory} messages through the cache's CAS, which after
+ * {@code FindMissingBlobs} only receives content it does not have yet, then
+ * asks for the workspace of its (user, repo) to be made to match the tree.
+ * Each workspace is one directory under the root; its sessions are started in
+ * it. The last tree applied is remembered next to it, so a sync only walks the
+ * subtrees whose digest changed and only writes the files that did. Files are
+ * streamed from the CAS's memory maps into a temporary file and renamed into
+ * place, so a build running meanwhile sees each file either old or new.
+ *
+ * <p>
+ * The workspace is assumed to change only through syncs, apart from Bazel's
+ * {@code bazel-*} convenience symlinks at its top. If the last tree is unknown
+ * (first sync into an existing directory, or its directories were evicted),
+ * the tree is compared against the files on disk instead, which reads every
+ * file once.
+ *
+ * <p>
+ * Only the process compute service runs sessions on this host. Session pods
+ * materialise their workspace themselves: without a root a sync only checks
+ * that the tree is complete, the session's pod is started with the tree's
+ * digest as its {@link #CAS_SOURCE_PREFIX source}, and its agent fetches the
+ * tree into the pod and serves later syncs of it.
+ */
+public class WorkspaceSync {
+    private static final Logger logger = Logger.getLogger(WorkspaceSync.class.getName());
+    private static final String TREE_SUFFIX = ".tree";
+    /** Marks a source path that is a tree in the CAS ({@code cas:<hash>/<size>}) rather than a directory. */
+    static final String CAS_SOURCE_PREFIX = "cas:";
+
+    private final RemoteCache cache;
+    private final Path root;
+    private final Path tmpDir;
+    // Keyed by workspace directory; syncs of one workspace run one at a time.
+    private final Map<Path, Object> locks = new ConcurrentHashMap<>();
+
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong filesWritten = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /** @param root Where workspaces are materialised, or null if session pods materialise their own. */
+    public WorkspaceSync(RemoteCache cache, Path root) throws IOException {
+        this.cache = cache;
+        this.root = root;
+        // On the same file system as the workspaces, so files can be renamed into them.
+        this.tmpDir = root != null ? root.resolve(".tmp") : null;
+        if (tmpDir != null) {
+            Files.createDirectories(tmpDir);
+        }
+    }
+
+    /** Whether workspaces are materialised on this host rather than in session pods. */
+    public boolean materialises() {
+        return root != null;
+    }
+
+    public BindableService service() {
+        return new WorkspaceSyncService();
+    }
+
+    public void registerMetrics(Meter meter) {
+        meter.counterBuilder("rbs.workspace.syncs").setDescription("Workspace syncs applied")
+                .buildWithCallback(m -> m.record(syncs.get()));
+        meter.counterBuilder("rbs.workspace.files_written").setDescription("Files written by workspace syncs")
+                .buildWithCallback(m -> m.record(filesWritten.get()));
+        meter.counterBuilder("rbs.workspace.bytes_written").setDescription("Bytes written by workspace syncs")
+                .setUnit("By").buildWithCallback(m -> m.record(bytesWritten.get()));
+    }
+
+    /** The directory the workspace of this (user, repo) is materialised in; needs a root. */
+    public Path workspacePath(String userId, String repoHash) {
+        return root.resolve(safeName(userId)).resolve(safeName(repoHash));
+    }
+
+    /**
+     * Makes the workspace match the tree, or returns the digests the client
+     * still has to upload without changing anything.
+     */
+    SyncWorkspaceResponse sync(String userId, String repoHash, Digest rootDigest) throws IOException {
+        Map<Digest, Directory> tree = new HashMap<>();
+        List<Digest> missing = collect(rootDigest, tree, true);
+        if (root == null) {
+            // The session's agent materialises it; an empty workspace path tells the client to sync there.
+            return SyncWorkspaceResponse.newBuilder().addAllMissingDigests(missing).build();
+        }
+        Path workspace = workspacePath(userId, repoHash);
+        SyncWorkspaceResponse.Builder response = SyncWorkspaceResponse.newBuilder()
+                .setWorkspacePath(workspace.toString());
+        if (!missing.isEmpty()) {
+            return response.addAllMissingDigests(missing).build();
+        }
+        synchronized (locks.computeIfAbsent(workspace, w -> new Object())) {
+            Path marker = workspace.resolveSibling(workspace.getFileName() + TREE_SUFFIX);
+            Map<Digest, Directory> previous = new HashMap<>();
+            Directory had = Files.exists(workspace) ? loadPrevious(marker, previous) : Directory.getDefaultInstance();
+            // Until this sync completes the workspace matches neither tree.
+            Files.deleteIfExists(marker);
+            Files.createDirectories(workspace);
+            Stats stats = new Stats();
+            apply(workspace, tree.get(rootDigest), had, tree, previous, true, stats);
+            writeMarker(marker, rootDigest);
+
+            syncs.incrementAndGet();
+            filesWritten.addAndGet(stats.filesWritten);
+            bytesWritten.addAndGet(stats.bytesWritten);
+            logger.info("Synced " + workspace + " to " + rootDigest.getHash() + ": " + stats.filesWritten
+                    + " files (" + stats.bytesWritten + " bytes) written, " + stats.entriesDeleted + " deleted"
+                    + (had == null ? ", compared against disk" : ""));
+            return response.setFilesWritten(stats.filesWritten)
+                    .setBytesWritten(stats.bytesWritten)
+                    .setEntriesDeleted(stats.entriesDeleted)
+                    .build();
+        }
+    }
+
+    /**
+     * Reads the directories of the tree into {@code into} and returns the
+     * digests not in the CAS: directories, and files if {@code withFiles}.
+     */
+    private List<Digest> collect(Digest rootDigest, Map<Digest, Directory> into, boolean withFiles)
+            throws IOException {
+        List<Digest> missing = new ArrayList<>();
+        Set<Digest> seen = new HashSet<>();
+        Deque<Digest> pending = new ArrayDeque<>();
+        pending.add(rootDigest);
+        while (!pending.isEmpty()) {
+            Digest digest = pending.poll();
+            if (!seen.add(digest)) {
+                continue;
+            }
+            checkDigest(digest);
+            ByteBuffer blob = cache.getBlob(digest);
+            if (blob == null) {
+                missing.add(digest);
+                continue;
+            }
+            Directory directory = Directory.parseFrom(blob);
+            into.put(digest, directory);
+            for (DirectoryNode child : directory.getDirectoriesList()) {
+                pending.add(child.getDigest());
+            }
+            for (FileNode file : directory.getFilesList()) {
+                checkDigest(file.getDigest());
+                if (withFiles && seen.add(file.getDigest()) && !cache.hasBlob(file.getDigest())) {
+                    missing.add(file.getDigest());
+                }
+            }
+        }
+        return missing;
+    }
+
+    /** The root of the tree last applied, with its directories in {@code into}; null if unknown. */
+    private Directory loadPrevious(Path marker, Map<Digest, Directory> into) throws IOException {
+        if (!Files.exists(marker)) {
+            return null;
+        }
+        Digest rootDigest;
+        try {
+            rootDigest = parseDigest(new String(Files.readAllBytes(marker), StandardCharsets.UTF_8).trim());
+        } catch (RuntimeException e) {
+            logger.warning("Ignoring unreadable tree marker " + marker + ": " + e.getMessage());
+            return null;
+        }
+        if (!collect(rootDigest, into, false).isEmpty()) {
+            return null; // Evicted.
+        }
+        return into.get(rootDigest);
+    }
+
+    private void writeMarker(Path marker, Digest rootDigest) throws IOException {
+        Path tmp = tmpDir.resolve(UUID.randomUUID().toString());
+        Files.write(tmp, (rootDigest.getHash() + "/" + rootDigest.getSizeBytes() + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+        move(tmp, marker);
+    }
+
+    /**
+     * Makes {@code dir} match {@code want}. {@code had} is what was applied to
+     * it last time, or null if unknown, in which case the disk is compared.
+     */
+    private void apply(Path dir, Directory want, Directory had, Map<Digest, Directory> tree,
+            Map<Digest, Directory> previous, boolean top, Stats stats) throws IOException {
+        Set<String> names = new HashSet<>();
+        for (FileNode file : want.getFilesList()) {
+            names.add(checkName(file.getName()));
+        }
+        for (DirectoryNode child : want.getDirectoriesList()) {
+            names.add(checkName(child.getName()));
+        }
+        for (SymlinkNode symlink : want.getSymlinksList()) {
+            names.add(checkName(symlink.getName()));
+        }
+
+        // Deletions first, so the disk never holds both trees' files at once.
+        if (had != null) {
+            for (String name : entryNames(had)) {
+                if (!names.contains(name)) {
+                    deleteRecursively(dir.resolve(name), stats);
+                }
+            }
+        } else {
+            List<Path> stale = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    if (!names.contains(name) && !(top && name.startsWith("bazel-"))) {
+                        stale.add(entry);
+                    }
+                }
+            }
+            for (Path entry : stale) {
+                deleteRecursively(entry, stats);
+            }
+        }
+
+        for (FileNode file : want.getFilesList()) {
+            Path path = dir.resolve(file.getName());
+            FileNode old = had != null ? findFile(had, file.getName()) : null;
+            boolean unchanged = had != null
+                    ? old != null && old.getDigest().equals(file.getDigest())
+                            && old.getIsExecutable() == file.getIsExecutable()
+                    : matchesDisk(path, file);
+            if (!unchanged) {
+                writeFile(path, file, stats);
+            }
+        }
+        for (SymlinkNode symlink : want.getSymlinksList()) {
+            Path path = dir.resolve(symlink.getName());
+            if (Files.isSymbolicLink(path) && Files.readSymbolicLink(path).toString().equals(symlink.getTarget())) {
+                continue;
+            }
+            deleteRecursively(path, stats);
+            Files.createSymbolicLink(path, dir.getFileSystem().getPath(symlink.getTarget()));
+        }
+        for (DirectoryNode child : want.getDirectoriesList()) {
+            Path path = dir.resolve(child.getName());
+            DirectoryNode old = had != null ? findDirectory(had, child.getName()) : null;
+            if (old != null && old.getDigest().equals(child.getDigest())) {
+                continue;
+            }
+            Directory childHad = had == null ? null
+                    : old != null ? previous.get(old.getDigest()) : Directory.getDefaultInstance();
+            if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                deleteRecursively(path, stats);
+                Files.createDirectory(path);
+                childHad = Directory.getDefaultInstance();
+            }
+            apply(path, tree.get(child.getDigest()), childHad, tree, previous, false, stats);
+        }
+    }
+
+    private void writeFile(Path path, FileNode file, Stats stats) throws IOException {
+        long size = file.getDigest().getSizeBytes();
+        FileChannel blob = size == 0 ? null : cache.openBlob(file.getDigest());
+        if (size > 0 && blob == null) {
+            throw new NoSuchFileException("Blob " + file.getDigest().getHash() + " was evicted during the sync");
+        }
+        Path tmp = tmpDir.resolve(UUID.randomUUID().toString());
+        try {
+            // Copied through the channels, so files of any size are written without mapping them.
+            try (FileChannel in = blob;
+                    FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                for (long copied = 0; copied < size;) {
+                    long n = in.transferTo(copied, size - copied, out);
+                    if (n <= 0) {
+                        throw new IOException("Blob " + file.getDigest().getHash() + " is shorter than its digest");
+                    }
+                    copied += n;
+                }
+            }
+            if (file.getIsExecutable()) {
+                tmp.toFile().setExecutable(true, false);
+            }
+            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                deleteRecursively(path, stats);
+            }
+            move(tmp, path);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        stats.filesWritten++;
+        stats.bytesWritten += file.getDigest().getSizeBytes();
+    }
+
+    private static boolean matchesDisk(Path path, FileNode file) throws IOException {
+        if (!Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)
+                || Files.size(path) != file.getDigest().getSizeBytes()
+                || Files.isExecutable(path) != file.getIsExecutable()) {
+            return false;
+        }
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (in.size() > 0) {
+                sha256.update(in.map(FileChannel.MapMode.READ_ONLY, 0, in.size()));
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : sha256.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString().equals(file.getDigest().getHash());
+    }
+
+    private static void deleteRecursively(Path path, Stats stats) throws IOException {
+        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+                for (Path entry : entries) {
+                    deleteRecursively(entry, stats);
+                }
+            }
+        }
+        if (Files.deleteIfExists(path)) {
+            stats.entriesDeleted++;
+        }
+    }
+
+    private static void move(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static List<String> entryNames(Directory directory) {
+        List<String> names = new ArrayList<>();
+        directory.getFilesList().forEach(f -> names.add(f.getName()));
+        directory.getDirectoriesList().forEach(d -> names.add(d.getName()));
+        directory.getSymlinksList().forEach(s -> names.add(s.getName()));
+        return names;
+    }
+
+    private static FileNode findFile(Directory directory, String name) {
+        for (FileNode file : directory.getFilesList()) {
+            if (file.getName().equals(name)) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    private static DirectoryNode findDirectory(Directory directory, String name) {
+        for (DirectoryNode child : directory.getDirectoriesList()) {
+            if (child.getName().equals(name)) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    /** Parses {@code <hash>/<size>}, the form of tree markers and CAS sources. */
+    static Digest parseDigest(String text) {
+        String[] parts = text.split("/");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Not a <hash>/<size> digest: " + text);
+        }
+        Digest digest = Digest.newBuilder().setHash(parts[0]).setSizeBytes(Long.parseLong(parts[1])).build();
+        checkDigest(digest);
+        return digest;
+    }
+
+    private static void checkDigest(Digest digest) {
+        String invalid = RemoteCache.validate(digest);
+        if (invalid != null) {
+            throw new IllegalArgumentException(invalid);
+        }
+    }
+
+    /** Rejects names that would leave the directory they are in. */
+    private static String checkName(String name) {
+        if (name.isEmpty() || name.equals(".") || name.equals("..") || name.indexOf('/') >= 0
+                || name.indexOf('\0') >= 0) {
+            throw new IllegalArgumentException("Invalid entry name: " + name);
+        }
+        return name;
+    }
+
+    private static String safeName(String name) {
+        String safe = name.replaceAll("[^A-Za-z0-9._-]", "_");
+        // Also keeps workspaces apart from the root's temporary directory.
+        return safe.isEmpty() || safe.startsWith(".") ? "_" + safe : safe;
+    }
+
+    private static final class Stats {
+        long filesWritten;
+        long bytesWritten;
+        long entriesDeleted;
+    }
+
+    private class WorkspaceSyncService extends WorkspaceSyncGrpc.WorkspaceSyncImplBase {
+        @Override
+        public void syncWorkspace(SyncWorkspaceRequest request,
+                StreamObserver<SyncWorkspaceResponse> responseObserver) {
+            if (request.getUserId().isEmpty() || request.getRepoHash().isEmpty()) {
+                responseObserver.onError(Status.INVALID_ARGUMENT
+                        .withDescription("user_id and repo_hash are required").asRuntimeException());
+                return;
+            }
+            try {
+                responseObserver.onNext(sync(request.getUserId(), request.getRepoHash(), request.getRootDigest()));
+                responseObserver.onCompleted();
+            } catch (IllegalArgumentException | InvalidProtocolBufferException e) {
+                responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+            } catch (NoSuchFileException e) {
+                // The workspace is left without a marker, so the retry compares against disk.
+                responseObserver.onError(Status.FAILED_PRECONDITION.withDescription(e.getMessage())
+                        .asRuntimeException());
+            } catch (IOException e) {
+                logger.warning("Workspace sync failed: " + e.getMessage());
+                responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+            }
+        }
+    }
+}
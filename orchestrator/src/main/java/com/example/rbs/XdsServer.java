@@ -0,0 +1,520 @@
+package com.example.rbs;
+
+import com.google.protobuf.Any;
+import com.google.protobuf.Message;
+import com.google.protobuf.UInt32Value;
+import io.envoyproxy.envoy.config.cluster.v3.Cluster;
+import io.envoyproxy.envoy.config.core.v3.AggregatedConfigSource;
+import io.envoyproxy.envoy.config.core.v3.ApiVersion;
+import io.envoyproxy.envoy.config.core.v3.ConfigSource;
+import io.envoyproxy.envoy.config.core.v3.HealthStatus;
+import io.envoyproxy.envoy.config.core.v3.SocketAddress;
+import io.envoyproxy.envoy.config.endpoint.v3.ClusterLoadAssignment;
+import io.envoyproxy.envoy.config.endpoint.v3.LbEndpoint;
+import io.envoyproxy.envoy.config.endpoint.v3.LocalityLbEndpoints;
+import io.envoyproxy.envoy.config.listener.v3.ApiListener;
+import io.envoyproxy.envoy.config.listener.v3.Listener;
+import io.envoyproxy.envoy.config.route.v3.Route;
+import io.envoyproxy.envoy.config.route.v3.RouteAction;
+import io.envoyproxy.envoy.config.route.v3.RouteConfiguration;
+import io.envoyproxy.envoy.config.route.v3.RouteMatch;
+import io.envoyproxy.envoy.config.route.v3.VirtualHost;
+import io.envoyproxy.envoy.extensions.filters.http.router.v3.Router;
+import io.envoyproxy.envoy.extensions.filters.network.http_connection_manager.v3.HttpConnectionManager;
+import io.envoyproxy.envoy.extensions.filters.network.http_connection_manager.v3.HttpFilter;
+import io.envoyproxy.envoy.extensions.filters.network.http_connection_manager.v3.Rds;
+import io.envoyproxy.envoy.service.discovery.v3.AggregatedDiscoveryServiceGrpc;
+import io.envoyproxy.envoy.service.discovery.v3.DeltaDiscoveryRequest;
+import io.envoyproxy.envoy.service.discovery.v3.DeltaDiscoveryResponse;
+import io.envoyproxy.envoy.service.discovery.v3.DiscoveryRequest;
+import io.envoyproxy.envoy.service.discovery.v3.DiscoveryResponse;
+import io.envoyproxy.envoy.service.discovery.v3.Resource;
+import io.grpc.BindableService;
+import io.grpc.stub.StreamObserver;
+import io.opentelemetry.api.metrics.Meter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * xDS control plane (ADS) for session endpoints, so proxies dial
+ * {@code xds:///<sessionId>} and follow their server when its pod moves.
+ *
+ * <p>
+ * Every session ID names one resource of each type: a listener routing to a
+ * route configuration, a route configuration sending everything to a cluster,
+ * and an EDS cluster whose load assignment holds the session's server while it
+ * is ready, and nothing otherwise. Only load assignments ever change. They are
+ * published from the session state the orchestrator already keeps, from
+ * {@code GetServer} polls and from {@link ComputeService#watchContainers}, and
+ * pushed at once to the streams subscribed to that session, and to no others.
+ * Both state-of-the-world and incremental (delta) ADS are served; delta
+ * streams only get the resources that changed. A session nobody has published
+ * yet is looked up in the {@link SessionRepository} when first subscribed to,
+ * e.g. after a restart or on another replica. Wildcard subscriptions are not
+ * supported: subscribing to every session is not something a proxy needs.
+ */
+public class XdsServer {
+    private static final Logger logger = Logger.getLogger(XdsServer.class.getName());
+
+    static final String LISTENER_TYPE = "type.googleapis.com/envoy.config.listener.v3.Listener";
+    static final String ROUTE_TYPE = "type.googleapis.com/envoy.config.route.v3.RouteConfiguration";
+    static final String CLUSTER_TYPE = "type.googleapis.com/envoy.config.cluster.v3.Cluster";
+    static final String ENDPOINT_TYPE = "type.googleapis.com/envoy.config.endpoint.v3.ClusterLoadAssignment";
+    private static final String ROUTER_FILTER = "envoy.filters.http.router";
+    // Listeners, routes and clusters depend on nothing but their name.
+    private static final String STATIC_VERSION = "1";
+
+    private static final class Endpoint {
+        final String computeSessionId;
+        final String address; // null while the server is not ready
+        final long version;
+
+        Endpoint(String computeSessionId, String address, long version) {
+            this.computeSessionId = computeSessionId;
+            this.address = address;
+            this.version = version;
+        }
+    }
+
+    /** A resource and its version, read together. */
+    private static final class Snapshot {
+        final String version;
+        final Message resource;
+
+        Snapshot(String version, Message resource) {
+            this.version = version;
+            this.resource = resource;
+        }
+    }
+
+    private final SessionRepository sessionRepo;
+    private final int defaultPort;
+    // Keyed by session ID, which is also the resource name.
+    private final Map<String, Endpoint> endpoints = new HashMap<>(); // guarded by this
+    // Session IDs by the session ID their container was created under.
+    private final Map<String, Set<String>> byContainer = new HashMap<>(); // guarded by this
+    // Streams subscribed to a session's load assignment.
+    private final Map<String, Set<Stream>> watchers = new HashMap<>(); // guarded by this
+    private long version; // guarded by this
+
+    private final Set<Stream> streams = ConcurrentHashMap.newKeySet();
+    private final AtomicLong pushes = new AtomicLong();
+
+    /**
+     * @param defaultPort Port of servers whose address is a bare host, e.g. a
+     *                    pod IP.
+     */
+    public XdsServer(SessionRepository sessionRepo, int defaultPort) {
+        this.sessionRepo = sessionRepo;
+        this.defaultPort = defaultPort;
+    }
+
+    public BindableService service() {
+        return new AggregatedDiscoveryServiceGrpc.AggregatedDiscoveryServiceImplBase() {
+            @Override
+            public StreamObserver<DiscoveryRequest> streamAggregatedResources(
+                    StreamObserver<DiscoveryResponse> responseObserver) {
+                return new SotwStream(responseObserver);
+            }
+
+            @Override
+            public StreamObserver<DeltaDiscoveryRequest> deltaAggregatedResources(
+                    StreamObserver<DeltaDiscoveryResponse> responseObserver) {
+                return new DeltaStream(responseObserver);
+            }
+        };
+    }
+
+    public void registerMetrics(Meter meter) {
+        meter.upDownCounterBuilder("rbs.xds.streams").setDescription("Open ADS streams")
+                .buildWithCallback(m -> m.record(streams.size()));
+        meter.counterBuilder("rbs.xds.pushes").setDescription("Endpoint updates pushed to ADS streams")
+                .buildWithCallback(m -> m.record(pushes.get()));
+    }
+
+    /**
+     * Sets a session's server, or null while it has none that is ready, and
+     * pushes the change to the session's subscribers.
+     */
+    public void publish(String sessionId, String computeSessionId, String address) {
+        if (update(sessionId, computeSessionId, address)) {
+            notifyWatchers(sessionId);
+        }
+    }
+
+    /** Drops an ended session; its subscribers see no endpoints. */
+    public void remove(String sessionId) {
+        synchronized (this) {
+            Endpoint old = endpoints.remove(sessionId);
+            if (old == null) {
+                return;
+            }
+            unbind(sessionId, old.computeSessionId);
+            version++;
+        }
+        notifyWatchers(sessionId);
+    }
+
+    /** A {@link ComputeService.ContainerListener} feeding container changes to the sessions they serve. */
+    public void onContainerChanged(String computeSessionId, ComputeService.ContainerStatus status) {
+        String address = status != null && "READY".equals(status.getStatus()) ? status.getAddress() : null;
+        List<String> sessions;
+        synchronized (this) {
+            sessions = new ArrayList<>(byContainer.getOrDefault(computeSessionId, Collections.emptySet()));
+        }
+        for (String sessionId : sessions) {
+            publish(sessionId, computeSessionId, address);
+        }
+    }
+
+    int getStreamCount() {
+        return streams.size();
+    }
+
+    private synchronized boolean update(String sessionId, String computeSessionId, String address) {
+        Endpoint old = endpoints.get(sessionId);
+        if (old != null && old.computeSessionId.equals(computeSessionId) && Objects.equals(old.address, address)) {
+            return false;
+        }
+        if (old != null) {
+            unbind(sessionId, old.computeSessionId);
+        }
+        endpoints.put(sessionId, new Endpoint(computeSessionId, address, ++version));
+        byContainer.computeIfAbsent(computeSessionId, id -> new HashSet<>()).add(sessionId);
+        return true;
+    }
+
+    private void unbind(String sessionId, String computeSessionId) {
+        Set<String> sessions = byContainer.get(computeSessionId);
+        if (sessions != null && sessions.remove(sessionId) && sessions.isEmpty()) {
+            byContainer.remove(computeSessionId);
+        }
+    }
+
+    private void notifyWatchers(String sessionId) {
+        List<Stream> subscribed;
+        synchronized (this) {
+            subscribed = new ArrayList<>(watchers.getOrDefault(sessionId, Collections.emptySet()));
+        }
+        // Outside the lock: a stream locks itself, then reads the latest state, so a late push is never stale.
+        for (Stream stream : subscribed) {
+            stream.pushEndpoint(sessionId);
+            pushes.incrementAndGet();
+        }
+    }
+
+    /** Moves a stream's load assignment subscriptions. */
+    private void watch(Stream stream, Collection<String> removed, Collection<String> added) {
+        for (String sessionId : added) {
+            lookUp(sessionId);
+        }
+        synchronized (this) {
+            for (String sessionId : removed) {
+                Set<Stream> subscribed = watchers.get(sessionId);
+                if (subscribed != null && subscribed.remove(stream) && subscribed.isEmpty()) {
+                    watchers.remove(sessionId);
+                }
+            }
+            for (String sessionId : added) {
+                watchers.computeIfAbsent(sessionId, id -> new HashSet<>()).add(stream);
+            }
+        }
+    }
+
+    /** Loads a session this server has not heard of from the repository. */
+    private void lookUp(String sessionId) {
+        synchronized (this) {
+            if (endpoints.containsKey(sessionId)) {
+                return;
+            }
+        }
+        SessionRepository.BuildSession session = sessionRepo.getSession(sessionId);
+        if (session != null) {
+            update(sessionId, session.computeSessionId, "READY".equals(session.status) ? session.serverAddress : null);
+        }
+    }
+
+    private synchronized Snapshot snapshot(String typeUrl, String name) {
+        switch (typeUrl) {
+            case LISTENER_TYPE:
+                return new Snapshot(STATIC_VERSION, listener(name));
+            case ROUTE_TYPE:
+                return new Snapshot(STATIC_VERSION, route(name));
+            case CLUSTER_TYPE:
+                return new Snapshot(STATIC_VERSION, cluster(name));
+            case ENDPOINT_TYPE:
+                Endpoint endpoint = endpoints.get(name);
+                return new Snapshot(endpoint != null ? Long.toString(endpoint.version) : "0",
+                        loadAssignment(name, endpoint != null ? endpoint.address : null));
+            default:
+                return null;
+        }
+    }
+
+    private synchronized String currentVersion() {
+        return Long.toString(version);
+    }
+
+    private static Listener listener(String name) {
+        HttpConnectionManager manager = HttpConnectionManager.newBuilder()
+                .setRds(Rds.newBuilder().setConfigSource(ads()).setRouteConfigName(name))
+                .addHttpFilters(HttpFilter.newBuilder()
+                        .setName(ROUTER_FILTER)
+                        .setTypedConfig(Any.pack(Router.getDefaultInstance())))
+                .build();
+        return Listener.newBuilder()
+                .setName(name)
+                .setApiListener(ApiListener.newBuilder().setApiListener(Any.pack(manager)))
+                .build();
+    }
+
+    private static RouteConfiguration route(String name) {
+        return RouteConfiguration.newBuilder()
+                .setName(name)
+                .addVirtualHosts(VirtualHost.newBuilder()
+                        .setName(name)
+                        .addDomains("*")
+                        .addRoutes(Route.newBuilder()
+                                .setMatch(RouteMatch.newBuilder().setPrefix(""))
+                                .setRoute(RouteAction.newBuilder().setCluster(name))))
+                .build();
+    }
+
+    private static Cluster cluster(String name) {
+        return Cluster.newBuilder()
+                .setName(name)
+                .setType(Cluster.DiscoveryType.EDS)
+                .setEdsClusterConfig(Cluster.EdsClusterConfig.newBuilder()
+                        .setEdsConfig(ads())
+                        .setServiceName(name))
+                .setLbPolicy(Cluster.LbPolicy.ROUND_ROBIN)
+                .build();
+    }
+
+    private ClusterLoadAssignment loadAssignment(String name, String address) {
+        ClusterLoadAssignment.Builder assignment = ClusterLoadAssignment.newBuilder().setClusterName(name);
+        if (address != null) {
+            assignment.addEndpoints(LocalityLbEndpoints.newBuilder()
+                    .setLoadBalancingWeight(UInt32Value.of(1))
+                    .addLbEndpoints(LbEndpoint.newBuilder()
+                            .setEndpoint(io.envoyproxy.envoy.config.endpoint.v3.Endpoint.newBuilder()
+                                    .setAddress(io.envoyproxy.envoy.config.core.v3.Address.newBuilder()
+                                            .setSocketAddress(socketAddress(address, defaultPort))))
+                            .setHealthStatus(HealthStatus.HEALTHY)));
+        }
+        return assignment.build();
+    }
+
+    private static ConfigSource ads() {
+        return ConfigSource.newBuilder()
+                .setAds(AggregatedConfigSource.getDefaultInstance())
+                .setResourceApiVersion(ApiVersion.V3)
+                .build();
+    }
+
+    /**
+     * Parses {@code host}, {@code host:port} or {@code [v6]:port}; a bare host
+     * or IPv6 address gets the default port.
+     */
+    static SocketAddress socketAddress(String address, int defaultPort) {
+        String host = address;
+        int port = defaultPort;
+        if (address.startsWith("[")) {
+            int end = address.indexOf(']');
+            host = address.substring(1, end);
+            if (address.startsWith(":", end + 1)) {
+                port = Integer.parseInt(address.substring(end + 2));
+            }
+        } else if (address.indexOf(':') >= 0 && address.indexOf(':') == address.lastIndexOf(':')) {
+            host = address.substring(0, address.indexOf(':'));
+            port = Integer.parseInt(address.substring(address.indexOf(':') + 1));
+        }
+        return SocketAddress.newBuilder().setAddress(host).setPortValue(port).build();
+    }
+
+    /** One ADS stream: its subscriptions and how to push to it. */
+    private abstract class Stream {
+        // Subscribed resource names by type URL.
+        final Map<String, Set<String>> subscribed = new HashMap<>(); // guarded by this
+        long nonce; // guarded by this
+
+        abstract void pushEndpoint(String sessionId);
+
+        void opened() {
+            streams.add(this);
+        }
+
+        void closed() {
+            Set<String> sessions;
+            synchronized (this) {
+                sessions = subscribed.getOrDefault(ENDPOINT_TYPE, Collections.emptySet());
+                subscribed.clear();
+            }
+            watch(this, sessions, Collections.emptySet());
+            streams.remove(this);
+        }
+    }
+
+    /** State-of-the-world ADS: every response carries all subscribed resources of its type. */
+    private final class SotwStream extends Stream implements StreamObserver<DiscoveryRequest> {
+        private final StreamObserver<DiscoveryResponse> responses;
+
+        SotwStream(StreamObserver<DiscoveryResponse> responses) {
+            this.responses = responses;
+            opened();
+        }
+
+        @Override
+        public void onNext(DiscoveryRequest request) {
+            String typeUrl = request.getTypeUrl();
+            if (request.hasErrorDetail()) {
+                logger.warning("xDS client " + request.getNode().getId() + " rejected " + typeUrl + " version "
+                        + request.getVersionInfo() + ": " + request.getErrorDetail().getMessage());
+            }
+            Set<String> names = new LinkedHashSet<>(request.getResourceNamesList());
+            Set<String> old;
+            synchronized (this) {
+                old = subscribed.put(typeUrl, names);
+            }
+            if (names.equals(old)) {
+                return; // An ACK or NACK of what was sent.
+            }
+            if (ENDPOINT_TYPE.equals(typeUrl)) {
+                Set<String> removed = new HashSet<>(old != null ? old : Collections.emptySet());
+                removed.removeAll(names);
+                Set<String> added = new HashSet<>(names);
+                if (old != null) {
+                    added.removeAll(old);
+                }
+                watch(this, removed, added);
+            }
+            send(typeUrl);
+        }
+
+        @Override
+        void pushEndpoint(String sessionId) {
+            send(ENDPOINT_TYPE);
+        }
+
+        private synchronized void send(String typeUrl) {
+            Set<String> names = subscribed.get(typeUrl);
+            if (names == null) {
+                return;
+            }
+            DiscoveryResponse.Builder response = DiscoveryResponse.newBuilder()
+                    .setTypeUrl(typeUrl)
+                    .setVersionInfo(ENDPOINT_TYPE.equals(typeUrl) ? currentVersion() : STATIC_VERSION)
+                    .setNonce(Long.toString(++nonce));
+            for (String name : names) {
+                Snapshot snapshot = snapshot(typeUrl, name);
+                if (snapshot != null) {
+                    response.addResources(Any.pack(snapshot.resource));
+                }
+            }
+            responses.onNext(response.build());
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            closed();
+        }
+
+        @Override
+        public void onCompleted() {
+            closed();
+            synchronized (this) {
+                responses.onCompleted();
+            }
+        }
+    }
+
+    /** Incremental ADS: responses only carry resources the client does not have at their current version. */
+    private final class DeltaStream extends Stream implements StreamObserver<DeltaDiscoveryRequest> {
+        private final StreamObserver<DeltaDiscoveryResponse> responses;
+        // Versions the client has, by type URL and name.
+        private final Map<String, Map<String, String>> known = new HashMap<>(); // guarded by this
+
+        DeltaStream(StreamObserver<DeltaDiscoveryResponse> responses) {
+            this.responses = responses;
+            opened();
+        }
+
+        @Override
+        public void onNext(DeltaDiscoveryRequest request) {
+            String typeUrl = request.getTypeUrl();
+            if (request.hasErrorDetail()) {
+                logger.warning("xDS client " + request.getNode().getId() + " rejected " + typeUrl + ": "
+                        + request.getErrorDetail().getMessage());
+            }
+            synchronized (this) {
+                Set<String> names = subscribed.computeIfAbsent(typeUrl, type -> new LinkedHashSet<>());
+                Map<String, String> versions = known.get(typeUrl);
+                if (versions == null) {
+                    // A reconnecting client says what it already has.
+                    versions = new HashMap<>(request.getInitialResourceVersionsMap());
+                    known.put(typeUrl, versions);
+                }
+                names.addAll(request.getResourceNamesSubscribeList());
+                names.removeAll(request.getResourceNamesUnsubscribeList());
+                versions.keySet().removeAll(request.getResourceNamesUnsubscribeList());
+            }
+            if (ENDPOINT_TYPE.equals(typeUrl)) {
+                watch(this, request.getResourceNamesUnsubscribeList(), request.getResourceNamesSubscribeList());
+            }
+            send(typeUrl, request.getResourceNamesSubscribeList());
+        }
+
+        @Override
+        void pushEndpoint(String sessionId) {
+            send(ENDPOINT_TYPE, Collections.singletonList(sessionId));
+        }
+
+        private synchronized void send(String typeUrl, Collection<String> names) {
+            Set<String> subscribedNames = subscribed.getOrDefault(typeUrl, Collections.emptySet());
+            Map<String, String> versions = known.computeIfAbsent(typeUrl, type -> new HashMap<>());
+            DeltaDiscoveryResponse.Builder response = DeltaDiscoveryResponse.newBuilder().setTypeUrl(typeUrl);
+            for (String name : names) {
+                Snapshot snapshot = subscribedNames.contains(name) ? snapshot(typeUrl, name) : null;
+                if (snapshot == null || snapshot.version.equals(versions.get(name))) {
+                    continue;
+                }
+                response.addResources(Resource.newBuilder()
+                        .setName(name)
+                        .setVersion(snapshot.version)
+                        .setResource(Any.pack(snapshot.resource)));
+                versions.put(name, snapshot.version);
+            }
+            if (response.getResourcesCount() == 0) {
+                return;
+            }
+            responses.onNext(response
+                    .setSystemVersionInfo(currentVersion())
+                    .setNonce(Long.toString(++nonce))
+                    .build());
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            closed();
+        }
+
+        @Override
+        public void onCompleted() {
+            closed();
+            synchronized (this) {
+                responses.onCompleted();
+            }
+        }
+    }
+}
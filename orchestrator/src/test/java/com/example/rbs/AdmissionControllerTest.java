@@ -0,0 +1,83 @@
+package com.example.rbs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.example.rbs.proto.ResourceUsage;
+import java.time.Duration;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class AdmissionControllerTest {
+    private final VirtualClock clock = new VirtualClock(1_000_000);
+
+    private AdmissionController controller(int maxSessions) {
+        AdmissionController.Settings settings = new AdmissionController.Settings();
+        settings.maxSessions = maxSessions;
+        settings.preemptIdleAfter = Duration.ofMinutes(10);
+        settings.pollTimeout = Duration.ofSeconds(10);
+        return new AdmissionController(clock, settings);
+    }
+
+    @Test
+    public void testQueuesBeyondCapacityAndPrefersUsersWithFewerServers() {
+        AdmissionController admission = controller(2);
+        assertThat(admission.poll("alice", "a1").admitted).isTrue();
+        assertThat(admission.poll("alice", "a2").admitted).isTrue();
+
+        AdmissionController.Decision a3 = admission.poll("alice", "a3");
+        assertThat(a3.admitted).isFalse();
+        assertThat(a3.position).isEqualTo(1);
+        // Bob arrives later but has no server yet, so he goes ahead of Alice's third workspace.
+        assertThat(admission.poll("bob", "b1").position).isEqualTo(1);
+        assertThat(admission.poll("alice", "a3").position).isEqualTo(2);
+
+        admission.release("a1");
+        assertThat(admission.poll("alice", "a3").admitted).isFalse();
+        assertThat(admission.poll("bob", "b1").admitted).isTrue();
+        assertThat(admission.getRunningCount()).isEqualTo(2);
+        assertThat(admission.getQueuedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testPreemptsLongestIdleSessionOfOverQuotaUser() {
+        AdmissionController admission = controller(3);
+        admission.poll("alice", "a1");
+        admission.poll("alice", "a2");
+        admission.poll("alice", "a3");
+        admission.onUsage("a1", ResourceUsage.newBuilder().setIdleMillis(Duration.ofMinutes(30).toMillis()).build());
+        admission.onUsage("a2", ResourceUsage.newBuilder().setIdleMillis(Duration.ofMinutes(12).toMillis()).build());
+        admission.onUsage("a3", ResourceUsage.newBuilder().setActiveCommand("build").build());
+
+        AdmissionController.Decision b1 = admission.poll("bob", "b1");
+        assertThat(b1.admitted).isTrue();
+        assertThat(b1.preempt).isEqualTo("a1");
+
+        // With three users the fair share is one slot each, so Alice's idle a2 goes too.
+        AdmissionController.Decision c1 = admission.poll("carol", "c1");
+        assertThat(c1.admitted).isTrue();
+        assertThat(c1.preempt).isEqualTo("a2");
+        AdmissionController.Decision d1 = admission.poll("dave", "d1");
+        // Nobody is over their share any more.
+        assertThat(d1.admitted).isFalse();
+        assertThat(d1.preempt).isNull();
+    }
+
+    @Test
+    public void testDoesNotPreemptRecentlyActiveSessions() {
+        AdmissionController admission = controller(2);
+        admission.poll("alice", "a1");
+        admission.poll("alice", "a2");
+        admission.onUsage("a1", ResourceUsage.newBuilder().setIdleMillis(Duration.ofMinutes(5).toMillis()).build());
+        // The pool is full and Alice already has her share, so her third workspace just waits.
+        assertThat(admission.poll("alice", "a3").admitted).isFalse();
+
+        assertThat(admission.poll("bob", "b1").admitted).isFalse();
+        clock.advanceTo(clock.millis() + Duration.ofMinutes(5).toMillis());
+        // a1 has now been idle for 10 minutes.
+        AdmissionController.Decision b1 = admission.poll("bob", "b1");
+        assertThat(b1.admitted).isTrue();
+        assertThat(b1.preempt).isEqualTo("a1");
+    }
+}
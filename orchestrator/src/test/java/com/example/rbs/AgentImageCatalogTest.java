@@ -0,0 +1,53 @@
+package com.example.rbs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+
+import java.util.Arrays;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class AgentImageCatalogTest {
+    private static final String DIGEST_A = "sha256:" + "a".repeat(64);
+    private static final String DIGEST_B = "sha256:" + "b".repeat(64);
+
+    @Test
+    public void testResolvesRepoPinThenDefault() {
+        AgentImageCatalog catalog = AgentImageCatalog.parse(Arrays.asList(
+                "# agent images",
+                "image 7.1.0 registry.example.com/agent@" + DIGEST_A,
+                "image 8.0.0 registry.example.com/agent@" + DIGEST_B,
+                "repo monorepo 8.0.0",
+                "default 7.1.0"));
+
+        assertEquals("registry.example.com/agent@" + DIGEST_B, catalog.resolve("monorepo").getReference());
+        assertEquals("8.0.0", catalog.resolve("monorepo").getBazelVersion());
+        assertEquals("registry.example.com/agent@" + DIGEST_A, catalog.resolve("other").getReference());
+        assertEquals("IfNotPresent", catalog.resolve("other").getPullPolicy());
+        assertEquals(2, catalog.getImages().size());
+    }
+
+    @Test
+    public void testEmptyCatalogFallsBackToLocalImage() {
+        AgentImageCatalog.AgentImage image = AgentImageCatalog.localDefault().resolve("anything");
+        assertEquals("localhost/agent:latest", image.getReference());
+        assertEquals("Never", image.getPullPolicy());
+        assertNull(image.getBazelVersion());
+    }
+
+    @Test
+    public void testRejectsTagOnlyImages() {
+        assertThrows(IllegalArgumentException.class, () -> AgentImageCatalog.parse(Arrays.asList(
+                "image 7.1.0 registry.example.com/agent:7.1.0")));
+    }
+
+    @Test
+    public void testRejectsRepoPinWithoutImage() {
+        assertThrows(IllegalArgumentException.class, () -> AgentImageCatalog.parse(Arrays.asList(
+                "image 7.1.0 registry.example.com/agent@" + DIGEST_A,
+                "repo monorepo 9.0.0")));
+    }
+}
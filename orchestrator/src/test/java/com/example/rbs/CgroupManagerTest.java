@@ -0,0 +1,102 @@
+package com.example.rbs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Runs against a plain directory laid out like a delegated cgroup v2 root. */
+@RunWith(JUnit4.class)
+public class CgroupManagerTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path root;
+    private CgroupManager.Settings settings;
+
+    @Before
+    public void setUp() throws Exception {
+        root = tmp.getRoot().toPath();
+        write(root.resolve("cgroup.controllers"), "cpuset cpu io memory pids");
+        write(root.resolve("cgroup.subtree_control"), "");
+        settings = new CgroupManager.Settings();
+    }
+
+    @Test
+    public void testCreatesCgroupWithLimits() throws Exception {
+        settings.cpuWeight = 50;
+        settings.cpuMaxMillicores = 4000;
+        settings.memoryHighBytes = 6L << 30;
+        settings.memoryMaxBytes = 8L << 30;
+        settings.ioMax = Arrays.asList("259:0 rbps=209715200 wbps=104857600");
+        CgroupManager cgroups = CgroupManager.open(root, settings);
+
+        Path cgroup = cgroups.create("proc-alice/x-repo1-s1");
+        assertThat(cgroup).isEqualTo(root.resolve("proc-alice_x-repo1-s1"));
+        assertThat(read(cgroup.resolve("cpu.weight"))).isEqualTo("50");
+        assertThat(read(cgroup.resolve("cpu.max"))).isEqualTo("400000 100000");
+        assertThat(read(cgroup.resolve("memory.high"))).isEqualTo(Long.toString(6L << 30));
+        assertThat(read(cgroup.resolve("memory.max"))).isEqualTo(Long.toString(8L << 30));
+        assertThat(read(cgroup.resolve("io.weight"))).isEqualTo("default 100");
+        assertThat(read(cgroup.resolve("io.max"))).isEqualTo("259:0 rbps=209715200 wbps=104857600");
+    }
+
+    @Test
+    public void testReadsUsageFromCgroupFiles() throws Exception {
+        CgroupManager cgroups = CgroupManager.open(root, settings);
+        Path cgroup = cgroups.create("proc-alice-repo1-s1");
+        write(cgroup.resolve("memory.current"), "1073741824");
+        write(cgroup.resolve("memory.peak"), "2147483648");
+        write(cgroup.resolve("cpu.stat"), "usage_usec 90000000\nuser_usec 80000000\nthrottled_usec 2500000");
+        write(cgroup.resolve("memory.events"), "low 0\nhigh 12\nmax 3\noom 1\noom_kill 1");
+        write(cgroup.resolve("io.stat"), "259:0 rbytes=1000 wbytes=2000 rios=1 wios=2\n8:0 rbytes=30 wbytes=40");
+
+        CgroupManager.Usage usage = cgroups.usage("proc-alice-repo1-s1");
+        assertThat(usage.memoryBytes).isEqualTo(1L << 30);
+        assertThat(usage.memoryPeakBytes).isEqualTo(2L << 30);
+        assertThat(usage.cpuMicros).isEqualTo(90_000_000);
+        assertThat(usage.cpuThrottledMicros).isEqualTo(2_500_000);
+        assertThat(usage.ioReadBytes).isEqualTo(1030);
+        assertThat(usage.ioWriteBytes).isEqualTo(2040);
+        assertThat(usage.oomKills).isEqualTo(1);
+        assertThat(cgroups.usage("proc-bob-repo1-s2")).isNull();
+    }
+
+    @Test
+    public void testWrappedCommandJoinsCgroupAndKeepsPid() throws Exception {
+        Path cgroup = CgroupManager.open(root, settings).create("proc-alice-repo1-s1");
+        Process process = new ProcessBuilder(CgroupManager.wrap(cgroup, Arrays.asList("/bin/sh", "-c", "echo $$")))
+                .start();
+        String printed = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+        assertThat(process.waitFor()).isZero();
+
+        assertThat(printed).isEqualTo(Long.toString(process.pid()));
+        assertThat(read(cgroup.resolve("cgroup.procs"))).isEqualTo(printed);
+    }
+
+    @Test
+    public void testRefusesLimitsWithoutTheirController() throws Exception {
+        write(root.resolve("cgroup.controllers"), "cpu memory pids");
+        settings.ioWeight = 200;
+        assertThatThrownBy(() -> CgroupManager.open(root, settings))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("io controller");
+    }
+
+    private static void write(Path file, String content) throws Exception {
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(Path file) throws Exception {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+    }
+}
@@ -0,0 +1,255 @@
+package com.example.rbs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import build.bazel.remote.execution.v2.Action;
+import build.bazel.remote.execution.v2.ActionResult;
+import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.ExecuteRequest;
+import build.bazel.remote.execution.v2.ExecuteResponse;
+import build.bazel.remote.execution.v2.ExecutionGrpc;
+import com.example.rbs.proto.RunActionRequest;
+import com.example.rbs.proto.RunActionResponse;
+import com.example.rbs.proto.WorkerGrpc;
+import com.google.longrunning.Operation;
+import com.google.protobuf.Any;
+import com.google.rpc.PreconditionFailure;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.protobuf.StatusProto;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.StreamObserver;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ExecutionSchedulerTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final List<Server> servers = new ArrayList<>();
+    private final List<ManagedChannel> channels = new ArrayList<>();
+    private final VirtualClock clock = new VirtualClock(1_000_000);
+    private final AtomicBoolean workerReady = new AtomicBoolean();
+    private final List<String> ran = new ArrayList<>();
+    private final List<StreamObserver<RunActionResponse>> running = new ArrayList<>();
+    private boolean holdActions;
+    private com.google.rpc.Status failure;
+
+    private ComputeService computeService;
+    private CasStore cas;
+    private ExecutionScheduler scheduler;
+    private ManagedChannel client;
+
+    @Before
+    public void setUp() throws Exception {
+        computeService = mock(ComputeService.class);
+        when(computeService.getContainerStatus(eq(ComputeService.WORKER_USER), eq("default"), anyString()))
+                .thenAnswer(invocation -> workerReady.get()
+                        ? new ComputeService.ContainerStatus("READY", "worker")
+                        : new ComputeService.ContainerStatus("PENDING", null));
+
+        String workerName = InProcessServerBuilder.generateName();
+        servers.add(InProcessServerBuilder.forName(workerName).directExecutor()
+                .addService(new WorkerGrpc.WorkerImplBase() {
+                    @Override
+                    public void runAction(RunActionRequest request,
+                            StreamObserver<RunActionResponse> responseObserver) {
+                        ran.add(request.getActionDigest().getHash().substring(0, 2));
+                        if (failure != null) {
+                            responseObserver.onError(StatusProto.toStatusRuntimeException(failure));
+                        } else if (holdActions) {
+                            running.add(responseObserver);
+                        } else {
+                            finish(responseObserver);
+                        }
+                    }
+                }).build().start());
+
+        cas = new CasStore(tmp.getRoot().toPath().resolve("cas"), 1 << 20);
+        RemoteCache cache = new RemoteCache(cas, new CasStore(tmp.getRoot().toPath().resolve("ac"), 1 << 20));
+        ExecutionScheduler.Settings settings = new ExecutionScheduler.Settings();
+        settings.maxWorkers = 1;
+        settings.slotsPerWorker = 1;
+        settings.idleTimeout = Duration.ofMinutes(2);
+        scheduler = new ExecutionScheduler(computeService, cache, clock, settings, address -> {
+            ManagedChannel channel = InProcessChannelBuilder.forName(workerName).directExecutor().build();
+            channels.add(channel);
+            return channel;
+        });
+
+        String schedulerName = InProcessServerBuilder.generateName();
+        servers.add(InProcessServerBuilder.forName(schedulerName).directExecutor()
+                .addService(scheduler.service()).build().start());
+        client = InProcessChannelBuilder.forName(schedulerName).directExecutor().build();
+        channels.add(client);
+    }
+
+    @After
+    public void tearDown() {
+        for (ManagedChannel channel : channels) {
+            channel.shutdownNow();
+        }
+        for (Server server : servers) {
+            server.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testDispatchesRoundRobinAcrossSessions() {
+        holdActions = true;
+        List<Operation> a1 = execute("session-a", digest("a1"));
+        execute("session-a", digest("a2"));
+        execute("session-a", digest("a3"));
+        List<Operation> b1 = execute("session-b", digest("b1"));
+        assertThat(scheduler.getQueuedCount()).isEqualTo(4);
+
+        scheduler.tick(); // Creates the worker.
+        verify(computeService).createWorker(eq("default"), anyString());
+        workerReady.set(true);
+        scheduler.tick(); // Sees it ready and starts the first action.
+
+        while (!running.isEmpty()) {
+            finish(running.remove(0));
+        }
+        // Session b's single action does not wait behind session a's backlog.
+        assertThat(ran).containsExactly("a1", "b1", "a2", "a3");
+        assertThat(last(a1).getDone()).isTrue();
+        assertThat(last(b1).getDone()).isTrue();
+        assertThat(scheduler.getQueuedCount()).isZero();
+    }
+
+    @Test
+    public void testSuccessfulResultsAreCachedForLaterExecutions() throws Exception {
+        workerReady.set(true);
+        Digest action = uploadAction("c1");
+        List<Operation> first = execute("session-a", action);
+        scheduler.tick();
+        scheduler.tick();
+        assertThat(last(first).getDone()).isTrue();
+        assertThat(response(last(first)).getCachedResult()).isFalse();
+        List<Operation> second = execute("session-b", action);
+
+        assertThat(ran).containsExactly("c1");
+        assertThat(last(second).getDone()).isTrue();
+        assertThat(response(last(second)).getCachedResult()).isTrue();
+    }
+
+    @Test
+    public void testIdleWorkersScaleToZero() {
+        workerReady.set(true);
+        List<Operation> operations = execute("session-a", digest("d1"));
+        scheduler.tick();
+        scheduler.tick();
+        assertThat(last(operations).getDone()).isTrue();
+        assertThat(scheduler.getWorkerCount()).isEqualTo(1);
+
+        clock.advanceTo(clock.millis() + Duration.ofMinutes(1).toMillis());
+        scheduler.tick();
+        verify(computeService, never()).deleteContainer(eq(ComputeService.WORKER_USER), eq("default"), anyString());
+
+        clock.advanceTo(clock.millis() + Duration.ofMinutes(2).toMillis());
+        scheduler.tick();
+        verify(computeService).deleteContainer(eq(ComputeService.WORKER_USER), eq("default"), anyString());
+        assertThat(scheduler.getWorkerCount()).isZero();
+    }
+
+    @Test
+    public void testPassesOnTheMissingBlobsOfAFailedPrecondition() throws Exception {
+        workerReady.set(true);
+        PreconditionFailure missing = PreconditionFailure.newBuilder()
+                .addViolations(PreconditionFailure.Violation.newBuilder()
+                        .setType("MISSING")
+                        .setSubject("blobs/" + digest("e1").getHash() + "/0"))
+                .build();
+        failure = com.google.rpc.Status.newBuilder()
+                .setCode(Status.Code.FAILED_PRECONDITION.value())
+                .setMessage("missing blob")
+                .addDetails(Any.pack(missing))
+                .build();
+        List<Operation> operations = execute("session-a", digest("e1"));
+        scheduler.tick();
+        scheduler.tick();
+
+        // The client reads the missing blobs from the details, uploads them and retries.
+        com.google.rpc.Status status = response(last(operations)).getStatus();
+        assertThat(status.getCode()).isEqualTo(Status.Code.FAILED_PRECONDITION.value());
+        assertThat(status.getDetailsList()).hasSize(1);
+        assertThat(status.getDetails(0).unpack(PreconditionFailure.class)).isEqualTo(missing);
+    }
+
+    private List<Operation> execute(String session, Digest action) {
+        Metadata headers = new Metadata();
+        headers.put(ExecutionScheduler.SESSION_HEADER, session);
+        List<Operation> operations = new ArrayList<>();
+        ExecutionGrpc.newStub(client)
+                .withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers))
+                .execute(ExecuteRequest.newBuilder().setActionDigest(action).build(),
+                        new StreamObserver<Operation>() {
+                            @Override
+                            public void onNext(Operation value) {
+                                operations.add(value);
+                            }
+
+                            @Override
+                            public void onError(Throwable t) {
+                                throw new AssertionError(t);
+                            }
+
+                            @Override
+                            public void onCompleted() {
+                            }
+                        });
+        return operations;
+    }
+
+    private Digest uploadAction(String name) throws Exception {
+        Digest digest = digest(name);
+        cas.put(CasStore.key(digest.getHash(), digest.getSizeBytes()), Action.getDefaultInstance().toByteArray());
+        return digest;
+    }
+
+    /** A well-formed digest whose hash starts with {@code name}, so the worker can report what it ran. */
+    private static Digest digest(String name) {
+        StringBuilder hash = new StringBuilder(name);
+        while (hash.length() < 64) {
+            hash.append('0');
+        }
+        return Digest.newBuilder().setHash(hash.toString()).setSizeBytes(0).build();
+    }
+
+    private static void finish(StreamObserver<RunActionResponse> responseObserver) {
+        responseObserver.onNext(RunActionResponse.newBuilder()
+                .setResult(ActionResult.newBuilder().setExitCode(0))
+                .build());
+        responseObserver.onCompleted();
+    }
+
+    private static Operation last(List<Operation> operations) {
+        assertThat(operations).isNotEmpty();
+        return operations.get(operations.size() - 1);
+    }
+
+    private static ExecuteResponse response(Operation operation) throws Exception {
+        return operation.getResponse().unpack(ExecuteResponse.class);
+    }
+}
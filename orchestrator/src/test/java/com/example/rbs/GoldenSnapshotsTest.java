@@ -0,0 +1,152 @@
+package com.example.rbs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class GoldenSnapshotsTest {
+    private VirtualClock clock;
+    private FakeComputeService computeService;
+    private GoldenSnapshots.Settings settings;
+    private GoldenSnapshots golden;
+
+    @Before
+    public void setUp() {
+        clock = new VirtualClock(1_000_000);
+        computeService = new FakeComputeService(clock, () -> 60_000, 0);
+        settings = new GoldenSnapshots.Settings();
+        golden = new GoldenSnapshots(computeService, clock, settings);
+    }
+
+    @Test
+    public void testBusyRepoStartsFromSnapshot() {
+        sessionStarted("repo1");
+        sessionStarted("repo1");
+        golden.tick();
+        assertThat(computeService.size()).isZero();
+
+        sessionStarted("repo1");
+        golden.tick();
+        assertThat(computeService.size()).isEqualTo(1);
+        // Still building: new sessions start as before.
+        golden.tick();
+        assertThat(computeService.getGoldenSnapshot("repo1")).isNull();
+
+        advance(Duration.ofMinutes(2));
+        golden.tick();
+        golden.tick();
+        assertThat(computeService.getGoldenSnapshot("repo1")).isNotNull();
+        assertThat(golden.getRepoCount()).isEqualTo(1);
+        assertThat(golden.getRefreshed()).isEqualTo(1);
+        // The build itself is gone; only its snapshot remains.
+        assertThat(computeService.size()).isZero();
+    }
+
+    @Test
+    public void testRefreshKeepsOnlyPreviousSnapshot() {
+        String first = buildSnapshot();
+        for (int refresh = 0; refresh < 2; refresh++) {
+            advance(settings.refreshInterval);
+            sessionStarted("repo1");
+            golden.tick();
+            advance(Duration.ofMinutes(2));
+            golden.tick();
+            golden.tick();
+        }
+
+        assertThat(golden.getRefreshed()).isEqualTo(3);
+        assertThat(computeService.getGoldenSnapshot("repo1")).isNotEqualTo(first);
+        assertThat(computeService.getSnapshotCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testIdleRepoLosesSnapshots() {
+        buildSnapshot();
+
+        advance(settings.activeWindow.plusMinutes(1));
+        golden.tick();
+
+        assertThat(computeService.getGoldenSnapshot("repo1")).isNull();
+        assertThat(computeService.getSnapshotCount()).isZero();
+        assertThat(golden.getRepoCount()).isZero();
+    }
+
+    @Test
+    public void testSlowBuildIsAbandoned() {
+        computeService = new FakeComputeService(clock, () -> Duration.ofHours(3).toMillis(), 0);
+        golden = new GoldenSnapshots(computeService, clock, settings);
+        for (int i = 0; i < settings.minSessions; i++) {
+            sessionStarted("repo1");
+        }
+        golden.tick();
+
+        advance(settings.buildTimeout.plusMinutes(1));
+        golden.tick();
+
+        assertThat(golden.getFailures()).isEqualTo(1);
+        assertThat(computeService.size()).isZero();
+        assertThat(computeService.getGoldenSnapshot("repo1")).isNull();
+    }
+
+    @Test
+    public void testSessionStartsDoNotWaitForCompute() throws Exception {
+        CountDownLatch creating = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        computeService = new FakeComputeService(clock, () -> 60_000, 0) {
+            @Override
+            public String createGoldenBuild(String repoHash, String buildId, String sourcePath,
+                    List<String> startupOptions, String command) {
+                creating.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.createGoldenBuild(repoHash, buildId, sourcePath, startupOptions, command);
+            }
+        };
+        golden = new GoldenSnapshots(computeService, clock, settings);
+        for (int i = 0; i < settings.minSessions; i++) {
+            sessionStarted("repo1");
+        }
+        Thread tick = new Thread(golden::tick);
+        tick.start();
+        assertThat(creating.await(10, TimeUnit.SECONDS)).isTrue();
+
+        // The tick is inside a compute call; a new session must not wait for it.
+        CompletableFuture<Void> started = CompletableFuture.runAsync(() -> sessionStarted("repo2"));
+        started.get(10, TimeUnit.SECONDS);
+        release.countDown();
+        tick.join();
+        assertThat(computeService.size()).isEqualTo(1);
+    }
+
+    private String buildSnapshot() {
+        for (int i = 0; i < settings.minSessions; i++) {
+            sessionStarted("repo1");
+        }
+        golden.tick();
+        advance(Duration.ofMinutes(2));
+        golden.tick();
+        golden.tick();
+        return computeService.getGoldenSnapshot("repo1");
+    }
+
+    private void sessionStarted(String repoHash) {
+        golden.onSessionStarted(repoHash, "/src/" + repoHash, Collections.emptyList());
+    }
+
+    private void advance(Duration duration) {
+        clock.advanceTo(clock.millis() + duration.toMillis());
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.rbs;
+
+import static com.example.rbs.TestDays.FIRST_DAY;
+import static com.example.rbs.TestDays.at;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.api.model.PodSpec;
+import io.fabric8.kubernetes.api.model.Quantity;
+import io.fabric8.kubernetes.api.model.apps.Deployment;
+import io.fabric8.kubernetes.api.model.scheduling.v1.PriorityClass;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.server.mock.KubernetesServer;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class HeadroomBalloonsTest {
+    @Rule
+    public KubernetesServer server = new KubernetesServer(false, true);
+
+    private KubernetesClient client;
+    private VirtualClock clock;
+    private HeadroomBalloons.Settings settings;
+    private HeadroomBalloons balloons;
+
+    @Before
+    public void setUp() {
+        client = server.getClient();
+        clock = new VirtualClock(at(FIRST_DAY, 0));
+        settings = new HeadroomBalloons.Settings();
+        balloons = new HeadroomBalloons(client, Collections.singletonMap("rbs/pool", "build"),
+                new VerticalScaler.Size(4L << 30, 2000), clock, ZoneOffset.UTC, settings);
+    }
+
+    @Test
+    public void testSyncCreatesPriorityClassesAndMinimumHeadroom() {
+        settings.minPods = 2;
+        balloons.sync();
+
+        PriorityClass balloon = client.resources(PriorityClass.class)
+                .withName(HeadroomBalloons.BALLOON_PRIORITY_CLASS).get();
+        PriorityClass session = client.resources(PriorityClass.class)
+                .withName(HeadroomBalloons.SESSION_PRIORITY_CLASS).get();
+        assertThat(balloon.getValue()).isLessThan(session.getValue());
+        assertThat(balloon.getPreemptionPolicy()).isEqualTo("Never");
+        assertThat(session.getPreemptionPolicy()).isEqualTo("PreemptLowerPriority");
+
+        Deployment deployment = deployment();
+        assertThat(deployment.getSpec().getReplicas()).isEqualTo(2);
+        PodSpec template = deployment.getSpec().getTemplate().getSpec();
+        assertThat(template.getPriorityClassName()).isEqualTo(HeadroomBalloons.BALLOON_PRIORITY_CLASS);
+        assertThat(template.getNodeSelector()).containsEntry("rbs/pool", "build");
+        Map<String, Quantity> requests = template.getContainers().get(0).getResources().getRequests();
+        assertThat(requests.get("cpu").toString()).isEqualTo("2000m");
+        assertThat(requests.get("memory").toString()).isEqualTo("4096Mi");
+    }
+
+    @Test
+    public void testBurstGrowsHeadroomAtOnceAndShrinksItLate() {
+        balloons.sync();
+        for (int i = 0; i < 10; i++) {
+            balloons.onServerStarting();
+        }
+        tickAt(FIRST_DAY, 1);
+        int grown = balloons.getReplicas();
+        assertThat(grown).isPositive();
+        assertThat(deployment().getSpec().getReplicas()).isEqualTo(grown);
+
+        for (int minute = 2; minute <= 10; minute++) {
+            tickAt(FIRST_DAY, minute);
+        }
+        assertThat(balloons.getTarget()).isLessThan(grown);
+        assertThat(balloons.getReplicas()).isEqualTo(grown);
+
+        for (int minute = 11; minute <= 60; minute++) {
+            tickAt(FIRST_DAY, minute);
+        }
+        assertThat(balloons.getReplicas()).isLessThan(grown).isEqualTo(balloons.getTarget());
+        assertThat(deployment().getSpec().getReplicas()).isEqualTo(balloons.getReplicas());
+    }
+
+    @Test
+    public void testHeadroomIsInPlaceBeforeTheUsualMorningBurst() {
+        balloons.sync();
+        // Three days with two sessions a minute from 09:00 to 10:00.
+        for (int day = 0; day < 3; day++) {
+            for (int minute = 1; minute < 24 * 60; minute++) {
+                if (minute >= 9 * 60 && minute < 10 * 60) {
+                    balloons.onServerStarting();
+                    balloons.onServerStarting();
+                }
+                tickAt(FIRST_DAY.plusDays(day), minute);
+            }
+            tickAt(FIRST_DAY.plusDays(day + 1), 0);
+        }
+        LocalDate today = FIRST_DAY.plusDays(3);
+        for (int minute = 1; minute <= 8 * 60 + 50; minute++) {
+            tickAt(today, minute);
+        }
+        assertThat(balloons.getReplicas()).isZero();
+
+        // Nodes take five minutes, so the headroom is there by 08:56 without a single arrival today.
+        for (int minute = 8 * 60 + 51; minute <= 8 * 60 + 56; minute++) {
+            tickAt(today, minute);
+        }
+        assertThat(balloons.getReplicas()).isGreaterThanOrEqualTo(5);
+    }
+
+    @Test
+    public void testRestartSeedsTheMorningBurstFromSessionHistory() {
+        InMemorySessionRepository sessionRepo = new InMemorySessionRepository(clock);
+        balloons.setSessionRepository(sessionRepo, true);
+        // Three days with two sessions a minute from 09:00 to 10:00, seen by an earlier orchestrator.
+        for (int day = 0; day < 3; day++) {
+            for (int minute = 9 * 60; minute < 10 * 60; minute++) {
+                clock.advanceTo(at(FIRST_DAY.plusDays(day), minute));
+                balloons.onSessionStarted("alice", "repo", "/src", Collections.emptyList(), "");
+                balloons.onSessionStarted("bob", "repo", "/src", Collections.emptyList(), "");
+            }
+        }
+        LocalDate today = FIRST_DAY.plusDays(3);
+        clock.advanceTo(at(today, 8 * 60 + 50));
+
+        // A fresh orchestrator on the same repository.
+        balloons = new HeadroomBalloons(client, Collections.singletonMap("rbs/pool", "build"),
+                new VerticalScaler.Size(4L << 30, 2000), clock, ZoneOffset.UTC, settings);
+        balloons.setSessionRepository(sessionRepo, true);
+        balloons.loadHistory();
+        balloons.sync();
+        for (int minute = 8 * 60 + 51; minute <= 8 * 60 + 56; minute++) {
+            tickAt(today, minute);
+        }
+        assertThat(balloons.getReplicas()).isGreaterThanOrEqualTo(5);
+    }
+
+    @Test
+    public void testSessionPodsUseTheSessionPriorityClass() {
+        KubernetesComputeService service = new KubernetesComputeService(client);
+        service.setPriorityClassName(HeadroomBalloons.SESSION_PRIORITY_CLASS);
+        String podName = service.createContainer("alice", "abcdef123456", "session123", "/src/repo",
+                Collections.emptyList(), "us-west1");
+
+        Pod pod = client.pods().inNamespace("alice-rbs-abcdef123456-session1").withName(podName).get();
+        assertThat(pod.getSpec().getPriorityClassName()).isEqualTo(HeadroomBalloons.SESSION_PRIORITY_CLASS);
+    }
+
+    private Deployment deployment() {
+        return client.apps().deployments().inNamespace(settings.namespace).withName(HeadroomBalloons.DEPLOYMENT_NAME)
+                .get();
+    }
+
+    private void tickAt(LocalDate date, int minute) {
+        TestDays.tickAt(clock, date, minute, balloons::tick);
+    }
+}
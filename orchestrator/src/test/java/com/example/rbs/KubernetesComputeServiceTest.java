@@ -1,16 +1,21 @@
 package com.example.rbs;
 
 import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.api.model.StatusBuilder;
 import io.fabric8.kubernetes.api.model.Volume;
 import io.fabric8.kubernetes.api.model.VolumeMount;
 import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
 import io.fabric8.kubernetes.client.server.mock.KubernetesServer;
 import org.junit.Rule;
 import org.junit.Test;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.List;
 import java.util.Arrays;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -76,4 +81,360 @@ public class KubernetesComputeServiceTest {
                 .findFirst().get().getValue();
         assertEquals("--foo=bar", startupOpts);
     }
+
+    @Test
+    public void testSyncedWorkspaceIsMaterialisedInThePod() {
+        KubernetesClient client = server.getClient();
+        KubernetesComputeService service = new KubernetesComputeService(client);
+        String tree = "b".repeat(64) + "/142";
+
+        String podName = service.createContainer("testUser", "abcdef123456", "session123",
+                WorkspaceSync.CAS_SOURCE_PREFIX + tree, Arrays.asList(), "");
+
+        Pod pod = client.pods().inNamespace("testuser-rbs-abcdef123456-session1").withName(podName).get();
+        io.fabric8.kubernetes.api.model.Container container = pod.getSpec().getContainers().get(0);
+        Volume workspace = pod.getSpec().getVolumes().stream()
+                .filter(v -> "workspace-volume".equals(v.getName())).findFirst().get();
+        assertNotNull(workspace.getEmptyDir());
+        assertEquals(null, workspace.getHostPath());
+        assertEquals(KubernetesComputeService.WORKSPACE_MOUNT + "/src", container.getWorkingDir());
+        assertEquals(KubernetesComputeService.WORKSPACE_MOUNT + "/src", env(container, "RBS_WORKSPACE_DIR"));
+        assertEquals(tree, env(container, "RBS_WORKSPACE_DIGEST"));
+    }
+
+    @Test
+    public void testCreateContainerUsesCatalogImage() {
+        KubernetesClient client = server.getClient();
+        String digest = "sha256:" + "a".repeat(64);
+        AgentImageCatalog catalog = AgentImageCatalog.parse(Arrays.asList(
+                "image 7.1.0 registry.example.com/agent@" + digest,
+                "default 7.1.0"));
+        java.util.Map<String, String> selector = java.util.Collections.singletonMap("rbs/pool", "build");
+        KubernetesComputeService service = new KubernetesComputeService(client, catalog, selector);
+
+        String podName = service.createContainer("testUser", "abcdef123456", "session123", "/src",
+                Arrays.asList(), "");
+
+        Pod pod = client.pods().inNamespace("testuser-rbs-abcdef123456-session1").withName(podName).get();
+        assertEquals("registry.example.com/agent@" + digest, pod.getSpec().getContainers().get(0).getImage());
+        assertEquals("IfNotPresent", pod.getSpec().getContainers().get(0).getImagePullPolicy());
+        assertEquals("build", pod.getSpec().getNodeSelector().get("rbs/pool"));
+        assertEquals("7.1.0", pod.getMetadata().getAnnotations().get("rbs.bazel-version"));
+    }
+
+    @Test
+    public void testPrePullerCreatesDaemonSetForCatalogImages() {
+        KubernetesClient client = server.getClient();
+        AgentImageCatalog catalog = AgentImageCatalog.parse(Arrays.asList(
+                "image 7.1.0 registry.example.com/agent@sha256:" + "a".repeat(64),
+                "image 8.0.0 registry.example.com/agent@sha256:" + "b".repeat(64)));
+        java.util.Map<String, String> selector = java.util.Collections.singletonMap("rbs/pool", "build");
+
+        new ImagePrePuller(client, catalog, "rbs-system", selector).sync();
+
+        io.fabric8.kubernetes.api.model.apps.DaemonSet ds = client.apps().daemonSets().inNamespace("rbs-system")
+                .withName(ImagePrePuller.DAEMONSET_NAME).get();
+        assertNotNull("Pre-pull DaemonSet should exist", ds);
+        assertEquals(2, ds.getSpec().getTemplate().getSpec().getInitContainers().size());
+        // Agent images have no shell; the init containers exit through the agent itself.
+        assertEquals(Arrays.asList("/app/agent", "--version"),
+                ds.getSpec().getTemplate().getSpec().getInitContainers().get(0).getCommand());
+        assertTrue(ds.getSpec().getTemplate().getSpec().getContainers().get(0).getImage().contains("@sha256:"));
+        assertEquals("build", ds.getSpec().getTemplate().getSpec().getNodeSelector().get("rbs/pool"));
+    }
+
+    @Test
+    public void testCreateContainerConfiguresReadinessAndWarmup() {
+        KubernetesClient client = server.getClient();
+        AgentImageCatalog catalog = AgentImageCatalog.parse(Arrays.asList(
+                "warmup * build --nobuild //...",
+                "warmup abcdef123456 query //src/..."));
+        KubernetesComputeService service = new KubernetesComputeService(client, catalog,
+                java.util.Collections.emptyMap());
+
+        String podName = service.createContainer("testUser", "abcdef123456", "session123", "/src",
+                Arrays.asList(), "");
+
+        Pod pod = client.pods().inNamespace("testuser-rbs-abcdef123456-session1").withName(podName).get();
+        io.fabric8.kubernetes.api.model.Container container = pod.getSpec().getContainers().get(0);
+        assertEquals(Integer.valueOf(9011), container.getReadinessProbe().getGrpc().getPort());
+        assertEquals("/src", container.getWorkingDir());
+        String warmup = container.getEnv().stream()
+                .filter(e -> "RBS_WARMUP_COMMAND".equals(e.getName()))
+                .findFirst().get().getValue();
+        assertEquals("query //src/...", warmup);
+        assertEquals("build --nobuild //...", catalog.warmupCommand("other"));
+    }
+
+    @Test
+    public void testGoldenBuildKeepsOutputBaseOnVolume() {
+        KubernetesClient client = server.getClient();
+        KubernetesComputeService service = new KubernetesComputeService(client);
+        String namespace = "rbsgolden-rbs-abcdef123456-lz3kq0a1";
+
+        service.createGoldenBuild("abcdef123456", "lz3kq0a1-golden", "/src", Arrays.asList("--foo"), "build //...");
+
+        Pod pod = client.pods().inNamespace(namespace).withName("bazel-server").get();
+        io.fabric8.kubernetes.api.model.Container container = pod.getSpec().getContainers().get(0);
+        assertEquals("Never", pod.getSpec().getRestartPolicy());
+        assertEquals("build //...", env(container, "RBS_WARMUP_COMMAND"));
+        assertEquals("1", env(container, "RBS_GOLDEN"));
+        assertEquals("--foo|||--output_base=/var/cache/rbs/output-base/base",
+                env(container, "BAZEL_STARTUP_OPTIONS"));
+        assertTrue(container.getVolumeMounts().stream()
+                .anyMatch(m -> KubernetesComputeService.OUTPUT_BASE_MOUNT.equals(m.getMountPath())));
+        assertNotNull(client.persistentVolumeClaims().inNamespace(namespace).withName("output-base").get());
+
+        // The build is done, not dead, once the agent exits successfully.
+        pod.setStatus(new io.fabric8.kubernetes.api.model.PodStatusBuilder().withPhase("Succeeded").build());
+        pod.getMetadata().setResourceVersion(null);
+        client.pods().inNamespace(namespace).withName("bazel-server").delete();
+        client.pods().inNamespace(namespace).resource(pod).create();
+        assertEquals("READY", service.getContainerStatus(ComputeService.GOLDEN_USER, "abcdef123456",
+                "lz3kq0a1-golden").getStatus());
+    }
+
+    @Test
+    public void testSessionsPreferTheirWorkspacesLastNode() {
+        KubernetesClient client = server.getClient();
+        KubernetesComputeService service = new KubernetesComputeService(client);
+        service.setLocalCacheRoot("/mnt/rbs-cache");
+        String namespace = "testuser-rbs-abcdef123456-session1";
+
+        service.createContainer("testUser", "abcdef123456", "session123", "/src", Arrays.asList(), null);
+        Pod pod = client.pods().inNamespace(namespace).withName("bazel-server").get();
+        assertEquals(null, pod.getSpec().getAffinity());
+        assertEquals(KubernetesComputeService.LOCAL_CACHE_MOUNT, env(pod.getSpec().getContainers().get(0),
+                "RBS_LOCAL_CACHE"));
+        assertTrue(pod.getSpec().getVolumes().stream().anyMatch(v -> v.getHostPath() != null
+                && "/mnt/rbs-cache/testuser-abcdef123456".equals(v.getHostPath().getPath())));
+
+        // The session turns READY on node-a.
+        client.pods().inNamespace(namespace).withName("bazel-server").delete();
+        client.pods().inNamespace(namespace).resource(new io.fabric8.kubernetes.api.model.PodBuilder(
+                podWithStatus(namespace, "True")).withNewSpec().withNodeName("node-a").endSpec().build()).create();
+        assertEquals("READY", service.getContainerStatus("testUser", "abcdef123456", "session123").getStatus());
+
+        service.createContainer("testUser", "abcdef123456", "session456", "/src", Arrays.asList(), null);
+        io.fabric8.kubernetes.api.model.PreferredSchedulingTerm preferred = client.pods()
+                .inNamespace("testuser-rbs-abcdef123456-session4").withName("bazel-server").get().getSpec()
+                .getAffinity().getNodeAffinity().getPreferredDuringSchedulingIgnoredDuringExecution().get(0);
+        assertEquals("metadata.name", preferred.getPreference().getMatchFields().get(0).getKey());
+        assertEquals(Arrays.asList("node-a"), preferred.getPreference().getMatchFields().get(0).getValues());
+
+        // Another user's session of the same repo is placed freely.
+        service.createContainer("otherUser", "abcdef123456", "session789", "/src", Arrays.asList(), null);
+        assertEquals(null, client.pods().inNamespace("otheruser-rbs-abcdef123456-session7").withName("bazel-server")
+                .get().getSpec().getAffinity());
+    }
+
+    private static String env(io.fabric8.kubernetes.api.model.Container container, String name) {
+        return container.getEnv().stream().filter(e -> name.equals(e.getName())).findFirst().get().getValue();
+    }
+
+    @Test
+    public void testReadyRequiresPodReadyCondition() {
+        KubernetesClient client = server.getClient();
+        KubernetesComputeService service = new KubernetesComputeService(client);
+        String namespace = "testuser-rbs-abcdef123456-session1";
+
+        client.pods().inNamespace(namespace).resource(podWithStatus(namespace, "False")).create();
+        assertEquals("PENDING", service.getContainerStatus("testUser", "abcdef123456", "session123").getStatus());
+
+        client.pods().inNamespace(namespace).withName("bazel-server").delete();
+        client.pods().inNamespace(namespace).resource(podWithStatus(namespace, "True")).create();
+        ComputeService.ContainerStatus status = service.getContainerStatus("testUser", "abcdef123456",
+                "session123");
+        assertEquals("READY", status.getStatus());
+        assertEquals("10.1.2.3", status.getAddress());
+    }
+
+    @Test
+    public void testCreateContainerIsIdempotent() {
+        KubernetesClient client = server.getClient();
+        KubernetesComputeService service = new KubernetesComputeService(client);
+        String namespace = "testuser-rbs-abcdef123456-session1";
+        // Left over from an earlier, partially failed attempt.
+        client.namespaces().resource(new io.fabric8.kubernetes.api.model.NamespaceBuilder()
+                .withNewMetadata().withName(namespace).endMetadata().build()).create();
+
+        service.createContainer("testUser", "abcdef123456", "session123", "/src", Arrays.asList("--foo"), null);
+        assertNotNull(client.serviceAccounts().inNamespace(namespace).withName("sa-testuser").get());
+        assertNotNull(client.pods().inNamespace(namespace).withName("bazel-server").get());
+
+        // A duplicate request for the same session converges without touching the API server.
+        int requests = server.getMockServer().getRequestCount();
+        service.createContainer("testUser", "abcdef123456", "session123", "/src", Arrays.asList("--foo"), null);
+        assertEquals(requests, server.getMockServer().getRequestCount());
+    }
+
+    @Test
+    public void testRetriesForbiddenOnlyForThePodsMissingServiceAccount() {
+        // Admission rejects the named pod while its service account does not exist yet.
+        assertTrue(KubernetesComputeService.isRetryable(forbidden("pods", "bazel-server")));
+        // RBAC denies the resource as a whole; retrying cannot help.
+        assertFalse(KubernetesComputeService.isRetryable(forbidden("pods", null)));
+        assertFalse(KubernetesComputeService.isRetryable(forbidden("serviceaccounts", "sa-testuser")));
+    }
+
+    private static KubernetesClientException forbidden(String kind, String name) {
+        return new KubernetesClientException(new StatusBuilder()
+                .withCode(403)
+                .withReason("Forbidden")
+                .withNewDetails().withKind(kind).withName(name).endDetails()
+                .build());
+    }
+
+    @Test
+    public void testProvisioningTimelineFromConditionsAndEvents() {
+        KubernetesClient client = server.getClient();
+        KubernetesComputeService service = new KubernetesComputeService(client);
+        String namespace = "testuser-rbs-abcdef123456-session1";
+        service.createContainer("testUser", "abcdef123456", "session123", "/src", Arrays.asList(), null);
+
+        Instant base = Instant.now().plusSeconds(60).truncatedTo(ChronoUnit.SECONDS);
+        createPodEvent(client, namespace, "pulling", "Pulling", base.plusSeconds(2));
+        createPodEvent(client, namespace, "pulled", "Pulled", base.plusSeconds(12));
+        client.pods().inNamespace(namespace).withName("bazel-server").delete();
+        client.pods().inNamespace(namespace).resource(new io.fabric8.kubernetes.api.model.PodBuilder()
+                .withNewMetadata().withName("bazel-server").withNamespace(namespace).endMetadata()
+                .withNewStatus()
+                .withPhase("Running")
+                .withPodIP("10.1.2.3")
+                .addNewCondition().withType("PodScheduled").withStatus("True")
+                .withLastTransitionTime(base.plusSeconds(1).toString()).endCondition()
+                .addNewCondition().withType("Ready").withStatus("True")
+                .withLastTransitionTime(base.plusSeconds(20).toString()).endCondition()
+                .addNewContainerStatus().withName("bazel-server").withNewState().withNewRunning()
+                .withStartedAt(base.plusSeconds(13).toString()).endRunning().endState().endContainerStatus()
+                .endStatus()
+                .build()).create();
+
+        assertEquals("READY", service.getContainerStatus("testUser", "abcdef123456", "session123").getStatus());
+
+        ProvisioningTimeline timeline = service.getProvisioningTimeline("testUser", "abcdef123456", "session123");
+        List<String> names = new java.util.ArrayList<>();
+        java.util.Map<String, Long> durations = new java.util.HashMap<>();
+        for (ProvisioningTimeline.Phase phase : timeline.getPhases()) {
+            names.add(phase.name);
+            durations.put(phase.name, phase.getDurationMillis());
+        }
+        assertEquals(Arrays.asList("namespace", "service_account", "pod_create", "scheduling", "sandbox",
+                "image_pull", "container_start", "agent_ready"), names);
+        assertEquals(Long.valueOf(1000), durations.get("sandbox"));
+        assertEquals(Long.valueOf(10000), durations.get("image_pull"));
+        assertEquals(Long.valueOf(1000), durations.get("container_start"));
+        assertEquals(Long.valueOf(7000), durations.get("agent_ready"));
+
+        // Later polls leave the recorded breakdown alone.
+        service.getContainerStatus("testUser", "abcdef123456", "session123");
+        assertEquals(names.size(), timeline.getPhases().size());
+    }
+
+    @Test
+    public void testResizesPodFromHeartbeatUsage() {
+        KubernetesClient client = server.getClient();
+        List<String> resizes = new java.util.ArrayList<>();
+        KubernetesComputeService service = new KubernetesComputeService(client) {
+            @Override
+            void resizePod(String namespace, VerticalScaler.Size size) {
+                resizes.add(namespace + " " + size);
+            }
+        };
+        VirtualClock clock = new VirtualClock(1_000_000);
+        service.setVerticalScaler(new VerticalScaler(clock, new VerticalScaler.Settings()));
+        String namespace = "testuser-rbs-abcdef123456-session1";
+        service.createContainer("testUser", "abcdef123456", "session123", "/src", Arrays.asList(), null);
+
+        io.fabric8.kubernetes.api.model.Container container = client.pods().inNamespace(namespace)
+                .withName("bazel-server").get().getSpec().getContainers().get(0);
+        assertEquals("4096Mi", container.getResources().getLimits().get("memory").toString());
+        assertEquals("2000m", container.getResources().getRequests().get("cpu").toString());
+        assertEquals("NotRequired", container.getResizePolicy().get(0).getRestartPolicy());
+
+        // A build close to the memory limit grows the pod before it is OOM-killed.
+        long gib = 1L << 30;
+        service.reportUsage("testUser", "abcdef123456", "session123", com.example.rbs.proto.ResourceUsage.newBuilder()
+                .setRssBytes(gib * 7 / 2).setMemoryLimitBytes(4 * gib)
+                .setCpuMillicores(500).setCpuLimitMillicores(2000)
+                .setActiveCommand("build")
+                .build());
+        assertEquals(Arrays.asList(namespace + " 6144Mi/2000m"), resizes);
+
+        // Idle long enough: shrinks to usage plus headroom, but not while the last resize cools down.
+        com.example.rbs.proto.ResourceUsage idle = com.example.rbs.proto.ResourceUsage.newBuilder()
+                .setRssBytes(gib).setMemoryLimitBytes(6 * gib)
+                .setCpuLimitMillicores(2000)
+                .setHeapMaxBytes(gib)
+                .setIdleMillis(java.time.Duration.ofMinutes(15).toMillis())
+                .build();
+        service.reportUsage("testUser", "abcdef123456", "session123", idle);
+        assertEquals(1, resizes.size());
+        clock.advanceTo(clock.millis() + java.time.Duration.ofMinutes(2).toMillis());
+        service.reportUsage("testUser", "abcdef123456", "session123", idle);
+        assertEquals(namespace + " 2048Mi/1000m", resizes.get(1));
+    }
+
+    @Test
+    public void testFailedResizeBacksOff() {
+        KubernetesClient client = server.getClient();
+        List<String> resizes = new java.util.ArrayList<>();
+        boolean[] rejecting = {true};
+        KubernetesComputeService service = new KubernetesComputeService(client) {
+            @Override
+            void resizePod(String namespace, VerticalScaler.Size size) {
+                resizes.add(size.toString());
+                if (rejecting[0]) {
+                    throw new KubernetesClientException("Infeasible: node has no room");
+                }
+            }
+        };
+        VirtualClock clock = new VirtualClock(1_000_000);
+        service.setVerticalScaler(new VerticalScaler(clock, new VerticalScaler.Settings()));
+        long gib = 1L << 30;
+        com.example.rbs.proto.ResourceUsage busy = com.example.rbs.proto.ResourceUsage.newBuilder()
+                .setRssBytes(gib * 7 / 2).setMemoryLimitBytes(4 * gib)
+                .setCpuLimitMillicores(2000)
+                .setActiveCommand("build")
+                .build();
+
+        service.reportUsage("testUser", "abcdef123456", "session123", busy);
+        assertEquals(1, resizes.size());
+        // Not retried on every heartbeat, and the wait doubles after each failure.
+        clock.advanceTo(clock.millis() + java.time.Duration.ofSeconds(30).toMillis());
+        service.reportUsage("testUser", "abcdef123456", "session123", busy);
+        assertEquals(1, resizes.size());
+        clock.advanceTo(clock.millis() + java.time.Duration.ofSeconds(30).toMillis());
+        service.reportUsage("testUser", "abcdef123456", "session123", busy);
+        assertEquals(2, resizes.size());
+        clock.advanceTo(clock.millis() + java.time.Duration.ofMinutes(1).toMillis());
+        service.reportUsage("testUser", "abcdef123456", "session123", busy);
+        assertEquals(2, resizes.size());
+
+        rejecting[0] = false;
+        clock.advanceTo(clock.millis() + java.time.Duration.ofMinutes(1).toMillis());
+        service.reportUsage("testUser", "abcdef123456", "session123", busy);
+        assertEquals(Arrays.asList("6144Mi/2000m", "6144Mi/2000m", "6144Mi/2000m"), resizes);
+    }
+
+    private static void createPodEvent(KubernetesClient client, String namespace, String name, String reason,
+            Instant at) {
+        client.v1().events().inNamespace(namespace).resource(new io.fabric8.kubernetes.api.model.EventBuilder()
+                .withNewMetadata().withName(name).withNamespace(namespace).endMetadata()
+                .withNewInvolvedObject().withKind("Pod").withName("bazel-server").endInvolvedObject()
+                .withReason(reason)
+                .withFirstTimestamp(at.toString())
+                .build()).create();
+    }
+
+    private static Pod podWithStatus(String namespace, String ready) {
+        return new io.fabric8.kubernetes.api.model.PodBuilder()
+                .withNewMetadata().withName("bazel-server").withNamespace(namespace).endMetadata()
+                .withNewStatus()
+                .withPhase("Running")
+                .withPodIP("10.1.2.3")
+                .addNewCondition().withType("Ready").withStatus(ready).endCondition()
+                .endStatus()
+                .build();
+    }
 }
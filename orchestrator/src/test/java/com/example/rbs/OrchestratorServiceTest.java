@@ -2,7 +2,9 @@ package com.example.rbs;
 
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.times;
@@ -10,7 +12,15 @@ import static org.mockito.Mockito.never;
 
 import com.example.rbs.proto.GetServerRequest;
 import com.example.rbs.proto.GetServerResponse;
+import com.example.rbs.proto.HeartbeatRequest;
+import com.example.rbs.proto.HeartbeatResponse;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
 import io.grpc.stub.StreamObserver;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -58,6 +68,30 @@ public class OrchestratorServiceTest {
         }
     }
 
+    @Test
+    public void testGetServer_ReadySessionGetsGatewayToken() {
+        SessionRepository sessionRepo = mock(SessionRepository.class);
+        ComputeService computeService = mock(ComputeService.class);
+        when(sessionRepo.getSession(anyString())).thenReturn(new SessionRepository.BuildSession("testuser", "hash",
+                "session123", "10.0.0.1", "READY", System.currentTimeMillis()));
+        when(computeService.getContainerStatus(anyString(), anyString(), anyString()))
+                .thenReturn(new ComputeService.ContainerStatus("READY", "10.0.0.1"));
+        SessionTokens tokens = SessionTokens.random();
+        OrchestratorService service = new OrchestratorService(sessionRepo, computeService);
+        service.setSessionTokens(tokens);
+
+        StreamObserver<GetServerResponse> responseObserver = mock(StreamObserver.class);
+        service.getServer(GetServerRequest.newBuilder().setUserId("testuser").setRepoHash("hash")
+                .setSessionId("session123").build(), responseObserver);
+
+        ArgumentCaptor<GetServerResponse> responseCaptor = ArgumentCaptor.forClass(GetServerResponse.class);
+        verify(responseObserver).onNext(responseCaptor.capture());
+        if (!tokens.verify("session123", responseCaptor.getValue().getSessionToken())) {
+            throw new RuntimeException("Expected a token for session123, got "
+                    + responseCaptor.getValue().getSessionToken());
+        }
+    }
+
     @Test
     public void testGetServer_UpdatesHeartbeat() {
         // This test verifies the fix for the race condition where long startup times
@@ -98,4 +132,244 @@ public class OrchestratorServiceTest {
         verify(responseObserver).onNext(any(GetServerResponse.class));
         verify(responseObserver).onCompleted();
     }
+
+    @Test
+    public void testHeartbeat_UnknownSessionIsNotFound() {
+        SessionRepository sessionRepo = mock(SessionRepository.class);
+        ComputeService computeService = mock(ComputeService.class);
+        OrchestratorService service = new OrchestratorService(sessionRepo, computeService);
+
+        // E.g. preempted while idle: the proxy must learn it has to ask for a server again.
+        StreamObserver<HeartbeatResponse> responseObserver = mock(StreamObserver.class);
+        service.heartbeat(HeartbeatRequest.newBuilder().setSessionId("session-gone").build(), responseObserver);
+
+        ArgumentCaptor<Throwable> errorCaptor = ArgumentCaptor.forClass(Throwable.class);
+        verify(responseObserver).onError(errorCaptor.capture());
+        verify(responseObserver, never()).onNext(any());
+        verify(sessionRepo, never()).updateHeartbeat(anyString());
+        if (io.grpc.Status.fromThrowable(errorCaptor.getValue()).getCode() != io.grpc.Status.Code.NOT_FOUND) {
+            throw new RuntimeException("Expected NOT_FOUND, got " + errorCaptor.getValue());
+        }
+    }
+
+    @Test
+    public void testReaper_OnlyReapsOwnedSessions() {
+        SessionRepository sessionRepo = mock(SessionRepository.class);
+        ComputeService computeService = mock(ComputeService.class);
+
+        SessionRepository.BuildSession mine = new SessionRepository.BuildSession("user1", "hash", "session-mine",
+                null, "READY", 0);
+        SessionRepository.BuildSession theirs = new SessionRepository.BuildSession("user2", "hash", "session-theirs",
+                null, "READY", 0);
+        when(sessionRepo.getStaleSessions(org.mockito.ArgumentMatchers.anyLong()))
+                .thenReturn(Arrays.asList(mine, theirs));
+
+        SessionOwnership ownership = mock(SessionOwnership.class);
+        when(ownership.isLocal("session-mine")).thenReturn(true);
+        when(ownership.isLocal("session-theirs")).thenReturn(false);
+
+        OrchestratorService service = new OrchestratorService(sessionRepo, computeService, null,
+                java.time.Duration.ofMinutes(1), java.time.Duration.ofMinutes(5));
+        service.setShardRouter(new ShardRouter(ownership, "replica-a", SessionTokens.random()));
+
+        service.reapStaleSessions();
+
+        verify(computeService).deleteContainer("user1", "hash", "session-mine");
+        verify(sessionRepo).deleteSession("session-mine");
+        verify(computeService, never()).deleteContainer(anyString(), anyString(), org.mockito.ArgumentMatchers.eq(
+                "session-theirs"));
+        verify(sessionRepo, never()).deleteSession("session-theirs");
+    }
+
+    @Test
+    public void testGetServer_UnknownOwnerIsUnavailable() {
+        SessionRepository sessionRepo = mock(SessionRepository.class);
+        ComputeService computeService = mock(ComputeService.class);
+
+        SessionOwnership ownership = mock(SessionOwnership.class);
+        when(ownership.isLocal(anyString())).thenReturn(false);
+        when(ownership.ownerAddress(anyString())).thenReturn(null);
+
+        OrchestratorService service = new OrchestratorService(sessionRepo, computeService, null,
+                java.time.Duration.ofMinutes(1), java.time.Duration.ofMinutes(5));
+        service.setShardRouter(new ShardRouter(ownership, "replica-a", SessionTokens.random()));
+
+        GetServerRequest request = GetServerRequest.newBuilder()
+                .setUserId("user1")
+                .setRepoHash("hash")
+                .setSessionId("session-elsewhere")
+                .build();
+        StreamObserver<GetServerResponse> responseObserver = mock(StreamObserver.class);
+
+        service.getServer(request, responseObserver);
+
+        ArgumentCaptor<Throwable> errorCaptor = ArgumentCaptor.forClass(Throwable.class);
+        verify(responseObserver).onError(errorCaptor.capture());
+        if (io.grpc.Status.fromThrowable(errorCaptor.getValue()).getCode() != io.grpc.Status.Code.UNAVAILABLE) {
+            throw new RuntimeException("Expected UNAVAILABLE, got " + errorCaptor.getValue());
+        }
+        // Not owned here: nothing is provisioned or recorded locally.
+        verify(sessionRepo, never()).getSession(anyString());
+        verify(computeService, never()).createContainer(anyString(), anyString(), anyString(), anyString(),
+                any(), anyString());
+    }
+
+    @Test
+    public void testShardRouter_OnlyHonoursSignedForwardedHeader() {
+        SessionOwnership ownership = mock(SessionOwnership.class);
+        when(ownership.isLocal(anyString())).thenReturn(false);
+        SessionTokens tokens = SessionTokens.random();
+        ShardRouter router = new ShardRouter(ownership, "replica-a", tokens);
+
+        Metadata forged = new Metadata();
+        forged.put(ShardRouter.FORWARDED_BY, "replica-b");
+        if (handledLocally(router, forged) || forged.containsKey(ShardRouter.FORWARDED_BY)) {
+            throw new RuntimeException("An unsigned forwarded header must be stripped");
+        }
+        Metadata wrongKey = new Metadata();
+        wrongKey.put(ShardRouter.FORWARDED_BY, "replica-b");
+        wrongKey.put(ShardRouter.FORWARD_TOKEN, SessionTokens.random().issueForwarding("replica-b"));
+        if (handledLocally(router, wrongKey)) {
+            throw new RuntimeException("A forwarded header signed with another key must be ignored");
+        }
+        // A session token is not a forwarding token, even for a session ID that looks like one.
+        Metadata sessionToken = new Metadata();
+        sessionToken.put(ShardRouter.FORWARDED_BY, "replica-b");
+        sessionToken.put(ShardRouter.FORWARD_TOKEN, tokens.issue("replica-b"));
+        if (handledLocally(router, sessionToken)) {
+            throw new RuntimeException("A session token must not sign a forwarded header");
+        }
+        Metadata signed = new Metadata();
+        signed.put(ShardRouter.FORWARDED_BY, "replica-b");
+        signed.put(ShardRouter.FORWARD_TOKEN, tokens.issueForwarding("replica-b"));
+        if (!handledLocally(router, signed)) {
+            throw new RuntimeException("A signed forwarded call must be handled locally");
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean handledLocally(ShardRouter router, Metadata headers) {
+        AtomicReference<Boolean> local = new AtomicReference<>();
+        ServerCallHandler<Object, Object> next = (call, h) -> {
+            local.set(router.shouldHandleLocally("session-elsewhere"));
+            return new ServerCall.Listener<Object>() {
+            };
+        };
+        router.interceptCall(mock(ServerCall.class), headers, next);
+        return local.get();
+    }
+
+    @Test
+    public void testGetServer_ResumesLiveServerWithSameStartupOptions() {
+        VirtualClock clock = new VirtualClock(0);
+        InMemorySessionRepository sessionRepo = new InMemorySessionRepository(clock);
+        FakeComputeService computeService = new FakeComputeService(clock, () -> 10_000, 0);
+        OrchestratorService service = new OrchestratorService(sessionRepo, computeService, null,
+                java.time.Duration.ofMinutes(1), java.time.Duration.ofMinutes(5));
+        service.setSessionResumption(true);
+
+        getServer(service, "session-1", "--host_jvm_args=-Xmx8g");
+        clock.advanceTo(20_000);
+        GetServerResponse first = getServer(service, "session-1", "--host_jvm_args=-Xmx8g");
+
+        // The proxy restarts with a new session ID: the warm server is rebound, not replaced.
+        clock.advanceTo(60_000);
+        GetServerResponse resumed = getServer(service, "session-2", "--host_jvm_args=-Xmx8g");
+        if (!"READY".equals(resumed.getStatus()) || !first.getServerAddress().equals(resumed.getServerAddress())) {
+            throw new RuntimeException("Expected the warm server " + first.getServerAddress() + ", got " + resumed);
+        }
+        if (computeService.size() != 1 || sessionRepo.getSession("session-1") != null
+                || !"session-1".equals(sessionRepo.getSession("session-2").computeSessionId)) {
+            throw new RuntimeException("Expected session-2 to take over session-1's server");
+        }
+
+        // Different startup options need a different server.
+        GetServerResponse other = getServer(service, "session-3", "--host_jvm_args=-Xmx16g");
+        if (!"PENDING".equals(other.getStatus()) || computeService.size() != 2) {
+            throw new RuntimeException("Expected a new server for different startup options, got " + other);
+        }
+    }
+
+    @Test
+    public void testGetServer_QueuesBeyondCapacityUntilASlotFrees() {
+        VirtualClock clock = new VirtualClock(0);
+        InMemorySessionRepository sessionRepo = new InMemorySessionRepository(clock);
+        FakeComputeService computeService = new FakeComputeService(clock, () -> 10_000, 0);
+        OrchestratorService service = new OrchestratorService(sessionRepo, computeService, null,
+                java.time.Duration.ofMinutes(1), java.time.Duration.ofMinutes(5));
+        AdmissionController.Settings settings = new AdmissionController.Settings();
+        settings.maxSessions = 1;
+        service.setAdmissionController(new AdmissionController(clock, settings));
+
+        getServer(service, "session-1", "--foo");
+        GetServerResponse queued = getServer(service, "session-2", "--foo");
+        if (!"QUEUED".equals(queued.getStatus()) || queued.getQueuePosition() != 1 || computeService.size() != 1) {
+            throw new RuntimeException("Expected session-2 to wait first in line, got " + queued);
+        }
+
+        // session-1's proxy went away; session-2 keeps polling and gets the freed slot.
+        clock.advanceTo(java.time.Duration.ofMinutes(6).toMillis());
+        getServer(service, "session-2", "--foo");
+        service.reapStaleSessions();
+        GetServerResponse admitted = getServer(service, "session-2", "--foo");
+        if (!"PENDING".equals(admitted.getStatus()) || computeService.size() != 1
+                || sessionRepo.getSession("session-1") != null) {
+            throw new RuntimeException("Expected session-2 to be admitted after session-1 was reaped, got " + admitted);
+        }
+    }
+
+    @Test
+    public void testGetServer_ConcurrentCallsCreateOneServer() throws Exception {
+        VirtualClock clock = new VirtualClock(0);
+        InMemorySessionRepository sessionRepo = spy(new InMemorySessionRepository(clock));
+        ComputeService computeService = mock(ComputeService.class);
+        when(computeService.getContainerStatus(anyString(), anyString(), anyString()))
+                .thenReturn(new ComputeService.ContainerStatus("PENDING", null));
+        CountDownLatch claiming = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            claiming.countDown();
+            release.await();
+            return invocation.callRealMethod();
+        }).when(sessionRepo).claimSession(anyString(), anyString(), anyString(), anyString(), anyString());
+        OrchestratorService service = new OrchestratorService(sessionRepo, computeService, null,
+                java.time.Duration.ofMinutes(1), java.time.Duration.ofMinutes(5));
+
+        // The proxy's call times out while the server is being created, and it retries.
+        AtomicReference<GetServerResponse> first = new AtomicReference<>();
+        AtomicReference<GetServerResponse> retry = new AtomicReference<>();
+        Thread firstCall = new Thread(() -> first.set(getServer(service, "session-1", "--foo")));
+        firstCall.start();
+        claiming.await();
+        Thread retryCall = new Thread(() -> retry.set(getServer(service, "session-1", "--foo")));
+        retryCall.start();
+        while (retryCall.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        firstCall.join();
+        retryCall.join();
+
+        verify(computeService, times(1)).createContainer(anyString(), anyString(), anyString(), anyString(), any(),
+                any());
+        if (!"PENDING".equals(first.get().getStatus()) || !"PENDING".equals(retry.get().getStatus())) {
+            throw new RuntimeException("Expected both calls to see the one server starting, got " + first.get()
+                    + " and " + retry.get());
+        }
+    }
+
+    private static GetServerResponse getServer(OrchestratorService service, String sessionId,
+            String startupOption) {
+        StreamObserver<GetServerResponse> responseObserver = mock(StreamObserver.class);
+        service.getServer(GetServerRequest.newBuilder()
+                .setUserId("user1")
+                .setRepoHash("hash")
+                .setSessionId(sessionId)
+                .setSourcePath("/src")
+                .addStartupOptions(startupOption)
+                .build(), responseObserver);
+        ArgumentCaptor<GetServerResponse> responseCaptor = ArgumentCaptor.forClass(GetServerResponse.class);
+        verify(responseObserver).onNext(responseCaptor.capture());
+        return responseCaptor.getValue();
+    }
 }
@@ -0,0 +1,193 @@
+package com.example.rbs;
+
+import static com.example.rbs.TestDays.FIRST_DAY;
+import static com.example.rbs.TestDays.at;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.example.rbs.proto.GetServerRequest;
+import com.example.rbs.proto.GetServerResponse;
+import io.grpc.stub.StreamObserver;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PreProvisionerTest {
+    private VirtualClock clock;
+    private InMemorySessionRepository sessionRepo;
+    private FakeComputeService computeService;
+    private SessionHistory history;
+    private PreProvisioner.Settings settings;
+    private PreProvisioner preProvisioner;
+    private OrchestratorService service;
+
+    @Before
+    public void setUp() {
+        clock = new VirtualClock(at(FIRST_DAY, 0));
+        sessionRepo = new InMemorySessionRepository(clock);
+        computeService = new FakeComputeService(clock, () -> 60_000, 0);
+        history = new SessionHistory(ZoneOffset.UTC);
+        settings = new PreProvisioner.Settings();
+        preProvisioner = new PreProvisioner(sessionRepo, computeService, history, clock, settings);
+        service = new OrchestratorService(sessionRepo, computeService, null, Duration.ofMinutes(1),
+                Duration.ofMinutes(5));
+        service.setPreProvisioner(preProvisioner);
+    }
+
+    @Test
+    public void testPredictedArrivalFindsWarmServer() {
+        // A week of 09:00 starts (Mon-Fri), each session ending in the evening.
+        for (int day = 0; day < 5; day++) {
+            workDay(FIRST_DAY.plusDays(day), 9 * 60 + day, "alice");
+        }
+        LocalDate monday = FIRST_DAY.plusDays(7);
+
+        tickAt(monday, 8 * 60 + 50);
+        assertThat(preProvisioner.getCreated()).isZero();
+        tickAt(monday, 8 * 60 + 56);
+        assertThat(preProvisioner.getCreated()).isEqualTo(1);
+
+        // The server became ready while nobody was waiting; the first GetServer gets it at once.
+        clock.advanceTo(at(monday, 9 * 60 + 2));
+        GetServerResponse response = getServer("alice", "session-monday");
+        assertThat(response.getStatus()).isEqualTo("READY");
+        assertThat(preProvisioner.getHits()).isEqualTo(1);
+        assertThat(computeService.size()).isEqualTo(1);
+        assertThat(sessionRepo.getSession("session-monday").computeSessionId)
+                .startsWith(PreProvisioner.SESSION_PREFIX);
+    }
+
+    @Test
+    public void testRestartKeepsArrivalHistory() {
+        for (int day = 0; day < 5; day++) {
+            workDay(FIRST_DAY.plusDays(day), 9 * 60, "alice");
+        }
+        // A fresh orchestrator on the same repository.
+        history = new SessionHistory(ZoneOffset.UTC);
+        preProvisioner = new PreProvisioner(sessionRepo, computeService, history, clock, settings);
+        preProvisioner.loadHistory();
+        assertThat(history.isActive("alice", "repo")).isFalse();
+
+        tickAt(FIRST_DAY.plusDays(7), 8 * 60 + 56);
+        assertThat(preProvisioner.getCreated()).isEqualTo(1);
+    }
+
+    @Test
+    public void testMismatchedClaimDoesNotWaitForTheRelease() throws Exception {
+        CountDownLatch deleting = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean blockDeletes = new AtomicBoolean();
+        computeService = new FakeComputeService(clock, () -> 60_000, 0) {
+            @Override
+            public void deleteContainer(String userId, String repoHash, String sessionId) {
+                if (blockDeletes.get()) {
+                    deleting.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                super.deleteContainer(userId, repoHash, sessionId);
+            }
+        };
+        preProvisioner = new PreProvisioner(sessionRepo, computeService, history, clock, settings);
+        service = new OrchestratorService(sessionRepo, computeService, null, Duration.ofMinutes(1),
+                Duration.ofMinutes(5));
+        service.setPreProvisioner(preProvisioner);
+        for (int day = 0; day < 5; day++) {
+            workDay(FIRST_DAY.plusDays(day), 9 * 60, "alice");
+        }
+        tickAt(FIRST_DAY.plusDays(7), 8 * 60 + 56);
+        assertThat(preProvisioner.getCreated()).isEqualTo(1);
+
+        blockDeletes.set(true);
+        CompletableFuture<SessionRepository.BuildSession> claimed = CompletableFuture.supplyAsync(
+                () -> preProvisioner.claim("alice", "repo", Collections.singletonList("--batch")));
+        assertThat(claimed.get(10, TimeUnit.SECONDS)).isNull();
+        // The server is deleted in the background instead.
+        assertThat(deleting.await(10, TimeUnit.SECONDS)).isTrue();
+        release.countDown();
+    }
+
+    @Test
+    public void testUnclaimedServersAreReleasedAndCapped() {
+        settings.maxSessions = 1;
+        for (int day = 0; day < 5; day++) {
+            workDay(FIRST_DAY.plusDays(day), 9 * 60, "alice", "bob");
+        }
+        LocalDate monday = FIRST_DAY.plusDays(7);
+
+        tickAt(monday, 8 * 60 + 56);
+        tickAt(monday, 8 * 60 + 57);
+        assertThat(preProvisioner.getCreated()).isEqualTo(1);
+        assertThat(preProvisioner.getCapped()).isEqualTo(1);
+
+        // Nobody shows up: after the hold time the server is deleted, too late to start one for the other user.
+        tickAt(monday, 9 * 60 + 30);
+        assertThat(preProvisioner.getMisses()).isEqualTo(1);
+        assertThat(preProvisioner.getCreated()).isEqualTo(1);
+        assertThat(computeService.size()).isZero();
+    }
+
+    @Test
+    public void testNoPredictionForIrregularUser() {
+        int[] starts = {7 * 60, 13 * 60, 10 * 60, 16 * 60, 8 * 60};
+        for (int day = 0; day < 5; day++) {
+            workDay(FIRST_DAY.plusDays(day), starts[day], "carol");
+        }
+        assertThat(history.predict("carol", "repo", FIRST_DAY.plusDays(7))).isNull();
+        assertThat(history.predict("carol", "repo", FIRST_DAY.plusDays(12))).isNull(); // Saturday
+    }
+
+    /** One session per user starting at {@code startMinute}, reaped after the proxies leave at 18:00. */
+    private void workDay(LocalDate date, int startMinute, String... userIds) {
+        clock.advanceTo(at(date, startMinute));
+        for (String userId : userIds) {
+            getServer(userId, "session-" + userId + "-" + date);
+        }
+        clock.advanceTo(at(date, 18 * 60));
+        service.reapStaleSessions();
+    }
+
+    private void tickAt(LocalDate date, int minute) {
+        TestDays.tickAt(clock, date, minute, preProvisioner::tick);
+    }
+
+    private GetServerResponse getServer(String userId, String sessionId) {
+        List<GetServerResponse> responses = new ArrayList<>();
+        StreamObserver<GetServerResponse> observer = new StreamObserver<GetServerResponse>() {
+            @Override
+            public void onNext(GetServerResponse value) {
+                responses.add(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                throw new AssertionError(t);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        };
+        service.getServer(GetServerRequest.newBuilder()
+                .setUserId(userId)
+                .setRepoHash("repo")
+                .setSessionId(sessionId)
+                .setSourcePath("/src")
+                .build(), observer);
+        return responses.get(0);
+    }
+}
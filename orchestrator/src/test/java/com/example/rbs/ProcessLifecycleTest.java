@@ -147,6 +147,55 @@ public class ProcessLifecycleTest {
         assertThat(isAlive).as("Process " + pid + " should be dead").isFalse();
     }
 
+    @Test
+    public void testRestartedComputeServiceAdoptsSurvivingAgents() throws Exception {
+        java.nio.file.Path agentsDir = java.nio.file.Files.createTempDirectory("rbs-agents");
+        computeService.adoptAgents(agentsDir, java.util.Collections.emptyList());
+        callGetServer(GetServerRequest.newBuilder()
+                .setUserId("user1").setRepoHash("repo1").setSessionId("kept").build());
+        callGetServer(GetServerRequest.newBuilder()
+                .setUserId("user1").setRepoHash("repo1").setSessionId("dropped").build());
+        long keptPid = computeService.getPid("user1", "repo1", "kept");
+        long droppedPid = computeService.getPid("user1", "repo1", "dropped");
+        String address = computeService.getContainerStatus("user1", "repo1", "kept").getAddress();
+
+        // A new orchestrator process recovers only the first session.
+        ProcessComputeService restarted = new ProcessComputeService();
+        try {
+            restarted.adoptAgents(agentsDir, java.util.Collections.singletonList(sessionRepo.getSession("kept")));
+
+            ComputeService.ContainerStatus status = restarted.getContainerStatus("user1", "repo1", "kept");
+            assertThat(status.getStatus()).isEqualTo("READY");
+            assertThat(status.getAddress()).isEqualTo(address);
+            assertThat(restarted.getPid("user1", "repo1", "kept")).isEqualTo(keptPid);
+            assertThat(restarted.getContainerStatus("user1", "repo1", "dropped")).isNull();
+            ProcessHandle.of(droppedPid).ifPresent(handle -> handle.onExit().join());
+
+            restarted.deleteContainer("user1", "repo1", "kept");
+            assertThat(ProcessHandle.of(keptPid).map(ProcessHandle::isAlive).orElse(false)).isFalse();
+        } finally {
+            restarted.cleanup();
+        }
+    }
+
+    @Test
+    public void testFailedSpawnRemovesItsCgroup() throws Exception {
+        // A plain directory laid out like a delegated cgroup v2 root.
+        java.nio.file.Path root = java.nio.file.Files.createTempDirectory("rbs-cgroups");
+        java.nio.file.Files.write(root.resolve("cgroup.controllers"),
+                "cpu io memory".getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        java.nio.file.Files.write(root.resolve("cgroup.subtree_control"), new byte[0]);
+        CgroupManager cgroups = CgroupManager.open(root, new CgroupManager.Settings());
+        computeService.setCgroupManager(cgroups);
+
+        // The agent cannot start in a source directory that does not exist.
+        String missing = root.resolve("no-such-source").toString();
+        org.assertj.core.api.Assertions.assertThatThrownBy(() -> computeService.createContainer("user1", "repo1",
+                "broken", missing, null, null)).isInstanceOf(RuntimeException.class);
+
+        assertThat(cgroups.usage("proc-user1-repo1-broken")).isNull();
+    }
+
     private GetServerResponse callGetServer(GetServerRequest req) {
         AtomicReference<GetServerResponse> ref = new AtomicReference<>();
         service.getServer(req, new StreamObserver<GetServerResponse>() {
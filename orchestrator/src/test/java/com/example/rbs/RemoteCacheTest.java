@@ -0,0 +1,233 @@
+package com.example.rbs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import build.bazel.remote.execution.v2.ActionCacheGrpc;
+import build.bazel.remote.execution.v2.ActionResult;
+import build.bazel.remote.execution.v2.BatchUpdateBlobsRequest;
+import build.bazel.remote.execution.v2.BatchUpdateBlobsResponse;
+import build.bazel.remote.execution.v2.ContentAddressableStorageGrpc;
+import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.FindMissingBlobsRequest;
+import build.bazel.remote.execution.v2.GetActionResultRequest;
+import build.bazel.remote.execution.v2.OutputFile;
+import build.bazel.remote.execution.v2.UpdateActionResultRequest;
+import com.google.bytestream.ByteStreamGrpc;
+import com.google.bytestream.ByteStreamProto.ReadRequest;
+import com.google.bytestream.ByteStreamProto.ReadResponse;
+import com.google.bytestream.ByteStreamProto.WriteRequest;
+import com.google.bytestream.ByteStreamProto.WriteResponse;
+import com.google.protobuf.ByteString;
+import io.grpc.BindableService;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RemoteCacheTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Server server;
+    private ManagedChannel channel;
+
+    @After
+    public void tearDown() {
+        if (channel != null) {
+            channel.shutdownNow();
+        }
+        if (server != null) {
+            server.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testActionResultsAreSharedThroughTheCache() throws Exception {
+        start(new RemoteCache(new CasStore(tmp.getRoot().toPath().resolve("cas"), 1 << 20),
+                new CasStore(tmp.getRoot().toPath().resolve("ac"), 1 << 20)));
+        ContentAddressableStorageGrpc.ContentAddressableStorageBlockingStub cas =
+                ContentAddressableStorageGrpc.newBlockingStub(channel);
+        ActionCacheGrpc.ActionCacheBlockingStub actionCache = ActionCacheGrpc.newBlockingStub(channel);
+
+        // One session builds an action and uploads its output and result.
+        ByteString output = ByteString.copyFrom("compiled output", StandardCharsets.UTF_8);
+        Digest outputDigest = digest(output);
+        Digest actionDigest = digest(ByteString.copyFrom("action", StandardCharsets.UTF_8));
+        assertThat(cas.findMissingBlobs(FindMissingBlobsRequest.newBuilder().addBlobDigests(outputDigest).build())
+                .getMissingBlobDigestsList()).containsExactly(outputDigest);
+        upload(cas, outputDigest, output);
+        actionCache.updateActionResult(UpdateActionResultRequest.newBuilder()
+                .setActionDigest(actionDigest)
+                .setActionResult(resultWith(outputDigest))
+                .build());
+
+        // Another session finds the result and downloads the output.
+        ActionResult cached = actionCache.getActionResult(
+                GetActionResultRequest.newBuilder().setActionDigest(actionDigest).build());
+        assertThat(cached.getOutputFiles(0).getDigest()).isEqualTo(outputDigest);
+        Iterator<ReadResponse> read = ByteStreamGrpc.newBlockingStub(channel).read(ReadRequest.newBuilder()
+                .setResourceName("main/blobs/" + outputDigest.getHash() + "/" + outputDigest.getSizeBytes())
+                .build());
+        assertThat(read.next().getData()).isEqualTo(output);
+        assertThat(cas.findMissingBlobs(FindMissingBlobsRequest.newBuilder().addBlobDigests(outputDigest).build())
+                .getMissingBlobDigestsList()).isEmpty();
+    }
+
+    @Test
+    public void testEvictedOutputsInvalidateActionResult() throws Exception {
+        // Room for one 600-byte blob only.
+        RemoteCache cache = new RemoteCache(new CasStore(tmp.getRoot().toPath().resolve("cas"), 1000),
+                new CasStore(tmp.getRoot().toPath().resolve("ac"), 1000));
+        start(cache);
+        ContentAddressableStorageGrpc.ContentAddressableStorageBlockingStub cas =
+                ContentAddressableStorageGrpc.newBlockingStub(channel);
+        ActionCacheGrpc.ActionCacheBlockingStub actionCache = ActionCacheGrpc.newBlockingStub(channel);
+
+        ByteString first = ByteString.copyFrom(new byte[600]);
+        Digest actionDigest = digest(ByteString.copyFrom("action", StandardCharsets.UTF_8));
+        upload(cas, digest(first), first);
+        actionCache.updateActionResult(UpdateActionResultRequest.newBuilder()
+                .setActionDigest(actionDigest)
+                .setActionResult(resultWith(digest(first)))
+                .build());
+
+        ByteString second = ByteString.copyFrom(new byte[601]);
+        upload(cas, digest(second), second);
+
+        assertThatThrownBy(() -> actionCache.getActionResult(
+                GetActionResultRequest.newBuilder().setActionDigest(actionDigest).build()))
+                .isInstanceOf(StatusRuntimeException.class)
+                .satisfies(e -> assertThat(Status.fromThrowable(e).getCode()).isEqualTo(Status.Code.NOT_FOUND));
+        assertThat(cache.getActionCacheMisses()).isEqualTo(1);
+    }
+
+    @Test
+    public void testRejectsCorruptUploadsAndReloadsIndex() throws Exception {
+        Path dir = tmp.getRoot().toPath().resolve("cas");
+        start(new RemoteCache(new CasStore(dir, 1 << 20), new CasStore(tmp.getRoot().toPath().resolve("ac"), 1024)));
+        ContentAddressableStorageGrpc.ContentAddressableStorageBlockingStub cas =
+                ContentAddressableStorageGrpc.newBlockingStub(channel);
+
+        ByteString blob = ByteString.copyFrom("blob", StandardCharsets.UTF_8);
+        BatchUpdateBlobsResponse corrupt = cas.batchUpdateBlobs(BatchUpdateBlobsRequest.newBuilder()
+                .addRequests(BatchUpdateBlobsRequest.Request.newBuilder()
+                        .setDigest(digest(ByteString.copyFrom("other", StandardCharsets.UTF_8)))
+                        .setData(blob))
+                .build());
+        assertThat(corrupt.getResponses(0).getStatus().getCode()).isEqualTo(Status.Code.INVALID_ARGUMENT.value());
+        upload(cas, digest(blob), blob);
+
+        CasStore reopened = new CasStore(dir, 1 << 20);
+        assertThat(reopened.getBlobCount()).isEqualTo(1);
+        assertThat(reopened.contains(CasStore.key(digest(blob).getHash(), blob.size()))).isTrue();
+    }
+
+    @Test
+    public void testStreamsBlobsInChunksAndLimitsUploads() throws Exception {
+        RemoteCache cache = new RemoteCache(new CasStore(tmp.getRoot().toPath().resolve("cas"), 1 << 20),
+                new CasStore(tmp.getRoot().toPath().resolve("ac"), 1024));
+        cache.setMaxBlobBytes(200_000);
+        start(cache);
+
+        byte[] bytes = new byte[150_000];
+        new java.util.Random(42).nextBytes(bytes);
+        ByteString blob = ByteString.copyFrom(bytes);
+        Digest digest = digest(blob);
+        String name = "blobs/" + digest.getHash() + "/" + digest.getSizeBytes();
+        assertThat(write("uploads/1/" + name, blob).getCode()).isEqualTo(Status.Code.OK);
+
+        ByteString read = ByteString.EMPTY;
+        int chunks = 0;
+        for (Iterator<ReadResponse> it = ByteStreamGrpc.newBlockingStub(channel).read(ReadRequest.newBuilder()
+                .setResourceName(name).setReadOffset(1000).setReadLimit(140_000).build()); it.hasNext();) {
+            read = read.concat(it.next().getData());
+            chunks++;
+        }
+        assertThat(read).isEqualTo(blob.substring(1000, 141_000));
+        assertThat(chunks).isEqualTo(3);
+
+        // Too large for the cache: refused before anything is written.
+        Digest huge = Digest.newBuilder().setHash(digest.getHash()).setSizeBytes(200_001).build();
+        assertThat(write("uploads/2/blobs/" + huge.getHash() + "/" + huge.getSizeBytes(), blob).getCode())
+                .isEqualTo(Status.Code.RESOURCE_EXHAUSTED);
+        // More data than declared is refused as it arrives.
+        Digest small = digest(ByteString.copyFrom("small", StandardCharsets.UTF_8));
+        assertThat(write("uploads/3/blobs/" + small.getHash() + "/" + small.getSizeBytes(), blob).getCode())
+                .isEqualTo(Status.Code.INVALID_ARGUMENT);
+    }
+
+    private Status write(String resourceName, ByteString data) throws Exception {
+        CompletableFuture<Status> result = new CompletableFuture<>();
+        StreamObserver<WriteRequest> requests = ByteStreamGrpc.newStub(channel).write(
+                new StreamObserver<WriteResponse>() {
+                    @Override
+                    public void onNext(WriteResponse value) {
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        result.complete(Status.fromThrowable(t));
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        result.complete(Status.OK);
+                    }
+                });
+        requests.onNext(WriteRequest.newBuilder().setResourceName(resourceName).setData(data).setFinishWrite(true)
+                .build());
+        requests.onCompleted();
+        return result.get(10, TimeUnit.SECONDS);
+    }
+
+    private void start(RemoteCache cache) throws IOException {
+        String name = InProcessServerBuilder.generateName();
+        InProcessServerBuilder builder = InProcessServerBuilder.forName(name).directExecutor();
+        for (BindableService service : cache.services()) {
+            builder.addService(service);
+        }
+        server = builder.build().start();
+        channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+    }
+
+    private static void upload(ContentAddressableStorageGrpc.ContentAddressableStorageBlockingStub cas,
+            Digest digest, ByteString data) {
+        BatchUpdateBlobsResponse response = cas.batchUpdateBlobs(BatchUpdateBlobsRequest.newBuilder()
+                .addRequests(BatchUpdateBlobsRequest.Request.newBuilder().setDigest(digest).setData(data))
+                .build());
+        assertThat(response.getResponses(0).getStatus().getCode()).isEqualTo(Status.Code.OK.value());
+    }
+
+    private static ActionResult resultWith(Digest output) {
+        return ActionResult.newBuilder()
+                .addOutputFiles(OutputFile.newBuilder().setPath("bazel-out/out.o").setDigest(output))
+                .build();
+    }
+
+    private static Digest digest(ByteString data) throws Exception {
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(data.toByteArray());
+        StringBuilder hex = new StringBuilder();
+        for (byte b : hash) {
+            hex.append(String.format("%02x", b));
+        }
+        return Digest.newBuilder().setHash(hex.toString()).setSizeBytes(data.size()).build();
+    }
+}
@@ -0,0 +1,290 @@
+package com.example.rbs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import build.bazel.remote.asset.v1.FetchBlobRequest;
+import build.bazel.remote.asset.v1.FetchBlobResponse;
+import build.bazel.remote.asset.v1.Qualifier;
+import build.bazel.remote.execution.v2.Digest;
+import com.sun.net.httpserver.HttpServer;
+import io.grpc.Status;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RemoteDownloaderTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final Map<String, byte[]> content = new HashMap<>();
+    private final AtomicInteger opens = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private volatile boolean blocking;
+    private CasStore cas;
+    private RemoteCache cache;
+    private InMemorySessionRepository sessionRepo;
+    private RemoteDownloader downloader;
+
+    @Before
+    public void setUp() throws Exception {
+        // Room for one archive: storing another evicts it.
+        cas = new CasStore(tmp.getRoot().toPath().resolve("cas"), 16);
+        cache = new RemoteCache(cas, new CasStore(tmp.getRoot().toPath().resolve("ac"), 1 << 20));
+        sessionRepo = new InMemorySessionRepository(Clock.systemUTC());
+        downloader = new RemoteDownloader(cache, sessionRepo, Clock.systemUTC(), new RemoteDownloader.Settings(),
+                (uri, headers, timeout) -> open(uri.toString()));
+        content.put("https://mirror/rules.tar.gz", bytes("rules v1"));
+    }
+
+    @Test
+    public void testConcurrentRequestsShareOneDownload() throws Exception {
+        blocking = true;
+        CompletableFuture<FetchBlobResponse> first = downloader.fetchBlob(request("https://mirror/rules.tar.gz"),
+                null);
+        CompletableFuture<FetchBlobResponse> second = downloader.fetchBlob(request("https://mirror/rules.tar.gz"),
+                null);
+        release.countDown();
+
+        assertThat(first.get(10, TimeUnit.SECONDS).getStatus().getCode()).isEqualTo(Status.Code.OK.value());
+        assertThat(second.get(10, TimeUnit.SECONDS).getBlobDigest()).isEqualTo(digest("rules v1"));
+        assertThat(opens.get()).isEqualTo(1);
+        assertThat(downloader.getDownloads()).isEqualTo(1);
+    }
+
+    @Test
+    public void testLaterRequestsAreServedFromTheCache() throws Exception {
+        FetchBlobResponse response = downloader.fetchBlob(request("https://mirror/rules.tar.gz"), null).get();
+        assertThat(response.getUri()).isEqualTo("https://mirror/rules.tar.gz");
+        assertThat(cache.hasBlob(response.getBlobDigest())).isTrue();
+
+        // A different URI with the same checksum is the same archive.
+        response = downloader.fetchBlob(request("https://other/rules.tar.gz"), null).get();
+        assertThat(response.getStatus().getCode()).isEqualTo(Status.Code.OK.value());
+        assertThat(response.getBlobDigest()).isEqualTo(digest("rules v1"));
+        assertThat(opens.get()).isEqualTo(1);
+        assertThat(downloader.getHits()).isEqualTo(1);
+    }
+
+    @Test
+    public void testChecksumMismatchFallsThroughToTheNextUri() throws Exception {
+        content.put("https://bad/rules.tar.gz", bytes("tampered"));
+        FetchBlobResponse response = downloader.fetchBlob(
+                request("https://bad/rules.tar.gz", "https://mirror/rules.tar.gz"), null).get();
+        assertThat(response.getStatus().getCode()).isEqualTo(Status.Code.OK.value());
+        assertThat(response.getUri()).isEqualTo("https://mirror/rules.tar.gz");
+
+        response = downloader.fetchBlob(request("https://bad/rules.tar.gz", "https://missing/rules.tar.gz")
+                .toBuilder().setQualifiers(0, checksum("rules v2")).build(), null).get();
+        assertThat(response.getStatus().getCode()).isEqualTo(Status.Code.NOT_FOUND.value());
+        assertThat(cache.hasBlob(digest("tampered"))).isFalse();
+    }
+
+    @Test
+    public void testPrefetchesEvictedArchivesOfBusyRepos() throws Exception {
+        sessionRepo.saveSession("alice", "repo1", "session1", "localhost:1", "READY");
+        for (int i = 0; i < 3; i++) {
+            downloader.onSessionStarted("repo1");
+        }
+        downloader.fetchBlob(request("https://mirror/rules.tar.gz"), "session1").get();
+        downloader.tick();
+        Thread.sleep(100);
+        assertThat(opens.get()).isEqualTo(1);
+
+        cas.put(CasStore.key(digest("other blob").getHash(), 10), bytes("other blob"));
+        assertThat(cache.hasBlob(digest("rules v1"))).isFalse();
+        downloader.tick();
+        for (int i = 0; i < 100 && downloader.getPrefetched() == 0; i++) {
+            Thread.sleep(50);
+        }
+        assertThat(downloader.getPrefetched()).isEqualTo(1);
+        assertThat(opens.get()).isEqualTo(2);
+        assertThat(cache.hasBlob(digest("rules v1"))).isTrue();
+    }
+
+    @Test
+    public void testFollowsRedirectsCheckingEveryHop() throws Exception {
+        HttpServer server = redirectingServer("/rules.tar.gz");
+        List<URI> checked = new ArrayList<>();
+        RemoteDownloader.Settings settings = new RemoteDownloader.Settings();
+        settings.allowPrivateAddresses = true;
+        downloader = new RemoteDownloader(cache, sessionRepo, Clock.systemUTC(), settings) {
+            @Override
+            List<InetAddress> checkAddress(URI uri) throws IOException {
+                checked.add(uri);
+                return super.checkAddress(uri);
+            }
+        };
+        try {
+            String base = "http://127.0.0.1:" + server.getAddress().getPort();
+            FetchBlobResponse response = downloader.fetchBlob(request(base + "/mirror"), null).get(10,
+                    TimeUnit.SECONDS);
+
+            assertThat(response.getStatus().getCode()).isEqualTo(Status.Code.OK.value());
+            assertThat(response.getBlobDigest()).isEqualTo(digest("rules v1"));
+            assertThat(checked).containsExactly(URI.create(base + "/mirror"), URI.create(base + "/rules.tar.gz"));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testRefusesRedirectsToPrivateAddresses() throws Exception {
+        HttpServer server = redirectingServer("/rules.tar.gz");
+        AtomicInteger hops = new AtomicInteger();
+        downloader = new RemoteDownloader(cache, sessionRepo, Clock.systemUTC(), new RemoteDownloader.Settings()) {
+            @Override
+            List<InetAddress> checkAddress(URI uri) throws IOException {
+                // The first hop stands in for a public mirror.
+                if (hops.incrementAndGet() == 1) {
+                    return Arrays.asList(InetAddress.getAllByName(uri.getHost()));
+                }
+                return super.checkAddress(uri);
+            }
+        };
+        try {
+            String base = "http://127.0.0.1:" + server.getAddress().getPort();
+            FetchBlobResponse response = downloader.fetchBlob(request(base + "/mirror"), null).get(10,
+                    TimeUnit.SECONDS);
+
+            assertThat(response.getStatus().getCode()).isEqualTo(Status.Code.NOT_FOUND.value());
+            assertThat(response.getStatus().getMessage()).contains("refusing private address");
+            assertThat(cache.hasBlob(digest("rules v1"))).isFalse();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testRefusesSharedAndUniqueLocalAddresses() throws Exception {
+        for (String uri : new String[] {"http://100.64.0.1/a", "http://100.127.255.254/a", "http://[fd12::1]/a",
+                "http://[fc00::1]/a", "http://10.1.2.3/a", "http://[::1]/a"}) {
+            assertThatThrownBy(() -> downloader.checkAddress(URI.create(uri)))
+                    .isInstanceOf(IOException.class)
+                    .hasMessageContaining("refusing private address");
+        }
+        assertThat(downloader.checkAddress(URI.create("http://100.128.0.1/a")))
+                .containsExactly(InetAddress.getByName("100.128.0.1"));
+        assertThat(RemoteDownloader.isPrivate(InetAddress.getByName("2001:db8::1"))).isFalse();
+    }
+
+    @Test
+    public void testStalledDownloadIsAbortedAtItsTimeout() throws Exception {
+        CountDownLatch never = new CountDownLatch(1);
+        downloader = new RemoteDownloader(cache, sessionRepo, Clock.systemUTC(), new RemoteDownloader.Settings(),
+                (uri, headers, timeout) -> opens.incrementAndGet() > 1 ? open(uri.toString()) : new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        // A server that stops sending: only the abort ends this read.
+                        try {
+                            never.await();
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
+                        }
+                        return -1;
+                    }
+                });
+
+        FetchBlobResponse response = downloader.fetchBlob(request("https://mirror/rules.tar.gz").toBuilder()
+                .setTimeout(com.google.protobuf.Duration.newBuilder().setNanos(200_000_000)).build(), null)
+                .get(10, TimeUnit.SECONDS);
+        assertThat(response.getStatus().getCode()).isEqualTo(Status.Code.DEADLINE_EXCEEDED.value());
+        for (int i = 0; i < 100 && downloader.getInflight() > 0; i++) {
+            Thread.sleep(50);
+        }
+        assertThat(downloader.getInflight()).isZero();
+
+        // The next request starts a new download instead of joining the stalled one.
+        response = downloader.fetchBlob(request("https://mirror/rules.tar.gz"), null).get(10, TimeUnit.SECONDS);
+        assertThat(response.getStatus().getCode()).isEqualTo(Status.Code.OK.value());
+        assertThat(opens.get()).isEqualTo(2);
+    }
+
+    /** Serves "rules v1" at {@code path} and redirects {@code /mirror} there. */
+    private static HttpServer redirectingServer(String path) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/mirror", exchange -> {
+            exchange.getResponseHeaders().add("Location", path);
+            exchange.sendResponseHeaders(302, -1);
+            exchange.close();
+        });
+        server.createContext(path, exchange -> {
+            byte[] body = bytes("rules v1");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private InputStream open(String uri) throws IOException {
+        opens.incrementAndGet();
+        if (blocking) {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+        byte[] data = content.get(uri);
+        if (data == null) {
+            throw new IOException("HTTP 404");
+        }
+        return new ByteArrayInputStream(data);
+    }
+
+    private static FetchBlobRequest request(String... uris) throws Exception {
+        FetchBlobRequest.Builder request = FetchBlobRequest.newBuilder().addQualifiers(checksum("rules v1"));
+        for (String uri : uris) {
+            request.addUris(uri);
+        }
+        return request.build();
+    }
+
+    private static Qualifier checksum(String content) throws Exception {
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(bytes(content));
+        return Qualifier.newBuilder()
+                .setName(RemoteDownloader.CHECKSUM_QUALIFIER)
+                .setValue("sha256-" + Base64.getEncoder().encodeToString(hash))
+                .build();
+    }
+
+    private static Digest digest(String content) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes(content))) {
+            hex.append(String.format("%02x", b));
+        }
+        return Digest.newBuilder().setHash(hex.toString()).setSizeBytes(content.length()).build();
+    }
+
+    private static byte[] bytes(String content) {
+        return content.getBytes(StandardCharsets.UTF_8);
+    }
+}
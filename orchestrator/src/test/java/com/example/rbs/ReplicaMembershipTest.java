@@ -0,0 +1,120 @@
+package com.example.rbs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import io.fabric8.kubernetes.api.model.coordination.v1.Lease;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.server.mock.KubernetesServer;
+import java.util.Arrays;
+import java.util.TreeSet;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ReplicaMembershipTest {
+    @Rule
+    public KubernetesServer server = new KubernetesServer(false, true);
+
+    @Test
+    public void testRingOnlyMovesKeysOfRemovedMember() {
+        ConsistentHashRing three = new ConsistentHashRing(Arrays.asList("a", "b", "c"));
+        ConsistentHashRing two = new ConsistentHashRing(Arrays.asList("a", "b"));
+
+        int ownedByC = 0;
+        for (int i = 0; i < 3000; i++) {
+            String key = "session-" + i;
+            String before = three.ownerOf(key);
+            if ("c".equals(before)) {
+                ownedByC++;
+            } else {
+                assertEquals("Keys not owned by the removed member must not move", before, two.ownerOf(key));
+            }
+        }
+        // 128 virtual nodes keep each member within a loose band around a third.
+        assertTrue("Unbalanced ring: c owns " + ownedByC, ownedByC > 700 && ownedByC < 1300);
+        assertNull(new ConsistentHashRing(new TreeSet<>()).ownerOf("session-1"));
+    }
+
+    @Test
+    public void testReplicasAgreeAndExpiredReplicaDropsOut() {
+        KubernetesClient client = server.getClient();
+        VirtualClock clock = new VirtualClock(1_000_000);
+        ReplicaMembership a = new ReplicaMembership(client, "default", "replica-a", "10.0.0.1:50051", 15, clock);
+        ReplicaMembership b = new ReplicaMembership(client, "default", "replica-b", "10.0.0.2:50051", 15, clock);
+
+        a.renew();
+        b.renew();
+        a.refresh();
+        b.refresh();
+        assertEquals(new TreeSet<>(Arrays.asList("replica-a", "replica-b")), a.getMembers());
+        assertEquals(a.getMembers(), b.getMembers());
+
+        int localToA = 0;
+        for (int i = 0; i < 200; i++) {
+            String sessionId = "session-" + i;
+            assertNotEquals("Exactly one replica owns " + sessionId, a.isLocal(sessionId), b.isLocal(sessionId));
+            if (a.isLocal(sessionId)) {
+                localToA++;
+                assertNull(a.ownerAddress(sessionId));
+                assertEquals("10.0.0.1:50051", b.ownerAddress(sessionId));
+            } else {
+                assertEquals("10.0.0.2:50051", a.ownerAddress(sessionId));
+            }
+        }
+        assertTrue(localToA > 0 && localToA < 200);
+
+        // B stops renewing; after one lease duration A takes over everything.
+        clock.advanceTo(clock.millis() + 16_000);
+        a.renew();
+        a.refresh();
+        assertEquals(new TreeSet<>(Arrays.asList("replica-a")), a.getMembers());
+        for (int i = 0; i < 200; i++) {
+            assertTrue(a.isLocal("session-" + i));
+        }
+    }
+
+    @Test
+    public void testLivenessIgnoresClockSkewBetweenReplicas() {
+        KubernetesClient client = server.getClient();
+        VirtualClock clockA = new VirtualClock(10_000_000);
+        // B's clock runs an hour behind A's.
+        VirtualClock clockB = new VirtualClock(10_000_000 - 3_600_000);
+        ReplicaMembership a = new ReplicaMembership(client, "default", "replica-a", "10.0.0.1:50051", 15, clockA);
+        ReplicaMembership b = new ReplicaMembership(client, "default", "replica-b", "10.0.0.2:50051", 15, clockB);
+
+        for (int i = 0; i < 4; i++) {
+            a.renew();
+            b.renew();
+            a.refresh();
+            clockA.advanceTo(clockA.millis() + 5_000);
+            clockB.advanceTo(clockB.millis() + 5_000);
+        }
+        assertEquals(new TreeSet<>(Arrays.asList("replica-a", "replica-b")), a.getMembers());
+
+        // B stops renewing; A notices within a lease duration of its own clock.
+        for (int i = 0; i < 4; i++) {
+            a.renew();
+            a.refresh();
+            clockA.advanceTo(clockA.millis() + 5_000);
+        }
+        assertEquals(new TreeSet<>(Arrays.asList("replica-a")), a.getMembers());
+    }
+
+    @Test
+    public void testStopReleasesLease() {
+        KubernetesClient client = server.getClient();
+        ReplicaMembership a = new ReplicaMembership(client, "default", "replica-a", "10.0.0.1:50051", 15,
+                new VirtualClock(0));
+        a.renew();
+        assertEquals(1, client.resources(Lease.class).inNamespace("default").list().getItems().size());
+
+        a.stop();
+
+        assertEquals(0, client.resources(Lease.class).inNamespace("default").list().getItems().size());
+    }
+}
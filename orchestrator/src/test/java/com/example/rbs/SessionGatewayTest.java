@@ -0,0 +1,250 @@
+package com.example.rbs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import io.grpc.CallOptions;
+import io.grpc.ClientInterceptors;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.ServerCalls;
+import io.grpc.stub.StreamObserver;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class SessionGatewayTest {
+    private static final MethodDescriptor.Marshaller<String> STRINGS = new MethodDescriptor.Marshaller<String>() {
+        @Override
+        public InputStream stream(String value) {
+            return new ByteArrayInputStream(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public String parse(InputStream stream) {
+            try {
+                return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    };
+    private static final MethodDescriptor<String, String> ECHO = MethodDescriptor.newBuilder(STRINGS, STRINGS)
+            .setFullMethodName("test.Echo/Echo")
+            .setType(MethodDescriptor.MethodType.BIDI_STREAMING)
+            .build();
+
+    private final VirtualClock clock = new VirtualClock(1_000_000);
+    private final List<String> dialed = new ArrayList<>();
+    private final SessionTokens tokens = SessionTokens.random();
+    private InMemorySessionRepository sessionRepo;
+    private SessionGateway gateway;
+    private Server agent;
+    private Server server;
+    private ManagedChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        sessionRepo = new InMemorySessionRepository(clock);
+        String agentName = InProcessServerBuilder.generateName();
+        agent = InProcessServerBuilder.forName(agentName).directExecutor()
+                .addService(ServerServiceDefinition.builder("test.Echo")
+                        .addMethod(ECHO, ServerCalls.asyncBidiStreamingCall(SessionGatewayTest::echo))
+                        .build())
+                .build().start();
+
+        SessionGateway.Settings settings = new SessionGateway.Settings();
+        settings.channelIdleTimeout = Duration.ofMinutes(10);
+        gateway = new SessionGateway(sessionRepo, tokens, 9011, clock, settings, address -> {
+            dialed.add(address);
+            return InProcessChannelBuilder.forName(agentName).directExecutor().build();
+        });
+        String name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name).directExecutor()
+                .fallbackHandlerRegistry(gateway.registry()).build().start();
+        channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+    }
+
+    @After
+    public void tearDown() {
+        channel.shutdownNow();
+        server.shutdownNow();
+        gateway.shutdown();
+        agent.shutdownNow();
+    }
+
+    @Test
+    public void testRelaysStreamToSessionAgent() {
+        sessionRepo.saveSession("user1", "hash", "session-1", "10.0.0.1", "READY");
+        List<String> replies = new ArrayList<>();
+        StreamObserver<String> requests = ClientCalls.asyncBidiStreamingCall(
+                channelFor("session-1").newCall(ECHO, CallOptions.DEFAULT), collect(replies));
+
+        requests.onNext("build //...");
+        requests.onNext("info");
+        requests.onCompleted();
+
+        assertThat(replies).containsExactly("build //...", "info", "done");
+        assertThat(dialed).containsExactly("10.0.0.1:9011");
+        assertThat(gateway.getChannelCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testRejectsStreamsWithoutReadyServer() {
+        sessionRepo.saveSession("user1", "hash", "session-1", null, "PENDING");
+
+        assertThatThrownBy(() -> ClientCalls.blockingUnaryCall(channelFor("session-1"), unary(), CallOptions.DEFAULT,
+                "info"))
+                .isInstanceOfSatisfying(StatusRuntimeException.class,
+                        e -> assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.UNAVAILABLE));
+        assertThatThrownBy(() -> ClientCalls.blockingUnaryCall(channel, unary(), CallOptions.DEFAULT, "info"))
+                .isInstanceOfSatisfying(StatusRuntimeException.class,
+                        e -> assertThat(e.getStatus().getDescription()).contains("x-rbs-session-id"));
+        assertThat(dialed).isEmpty();
+    }
+
+    @Test
+    public void testRejectsStreamsWithoutTheSessionToken() {
+        sessionRepo.saveSession("user1", "hash", "session-1", "127.0.0.1:4000", "READY");
+
+        assertThatThrownBy(() -> ClientCalls.blockingUnaryCall(channelFor("session-1", null), unary(),
+                CallOptions.DEFAULT, "info"))
+                .isInstanceOfSatisfying(StatusRuntimeException.class,
+                        e -> assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.PERMISSION_DENIED));
+        // Another session's token does not open this one.
+        assertThatThrownBy(() -> ClientCalls.blockingUnaryCall(
+                channelFor("session-1", tokens.issue("session-2")), unary(), CallOptions.DEFAULT, "info"))
+                .isInstanceOfSatisfying(StatusRuntimeException.class,
+                        e -> assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.PERMISSION_DENIED));
+        assertThatThrownBy(() -> ClientCalls.blockingUnaryCall(channelFor("session-1", "not-a-token!"), unary(),
+                CallOptions.DEFAULT, "info"))
+                .isInstanceOfSatisfying(StatusRuntimeException.class,
+                        e -> assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.PERMISSION_DENIED));
+        assertThat(dialed).isEmpty();
+
+        // A key shared by replicas yields the same tokens on each.
+        byte[] key = new byte[SessionTokens.KEY_BYTES];
+        assertThat(new SessionTokens(key).verify("session-1", new SessionTokens(key).issue("session-1"))).isTrue();
+    }
+
+    @Test
+    public void testParsesServerAddresses() {
+        assertThat(SessionGateway.target("10.0.0.1", 9011)).isEqualTo("10.0.0.1:9011");
+        assertThat(SessionGateway.target("127.0.0.1:4000", 9011)).isEqualTo("127.0.0.1:4000");
+        assertThat(SessionGateway.target("fd00::1", 9011)).isEqualTo("[fd00::1]:9011");
+        assertThat(SessionGateway.target("[fd00::1]:4000", 9011)).isEqualTo("[fd00::1]:4000");
+        assertThat(SessionGateway.target("[fd00::1]", 9011)).isEqualTo("[fd00::1]:9011");
+        for (String malformed : new String[] {"[::1", "host:abc", "host:", "host:70000", "[::1]x", ":4000", ""}) {
+            assertThatThrownBy(() -> SessionGateway.target(malformed, 9011))
+                    .isInstanceOf(IllegalArgumentException.class);
+        }
+    }
+
+    @Test
+    public void testRejectsStreamsToMalformedServerAddresses() {
+        sessionRepo.saveSession("user1", "hash", "session-1", "[::1", "READY");
+
+        assertThatThrownBy(() -> ClientCalls.blockingUnaryCall(channelFor("session-1"), unary(), CallOptions.DEFAULT,
+                "info"))
+                .isInstanceOfSatisfying(StatusRuntimeException.class,
+                        e -> assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.UNAVAILABLE));
+        assertThat(dialed).isEmpty();
+    }
+
+    @Test
+    public void testClosesIdleChannels() {
+        sessionRepo.saveSession("user1", "hash", "session-1", "127.0.0.1:4000", "READY");
+        List<String> replies = new ArrayList<>();
+        StreamObserver<String> requests = ClientCalls.asyncBidiStreamingCall(
+                channelFor("session-1").newCall(ECHO, CallOptions.DEFAULT), collect(replies));
+        requests.onNext("build //...");
+
+        // The stream is still open, so its channel stays however long it takes.
+        clock.advanceTo(clock.millis() + Duration.ofMinutes(30).toMillis());
+        gateway.closeIdleChannels();
+        assertThat(gateway.getChannelCount()).isEqualTo(1);
+
+        requests.onCompleted();
+        clock.advanceTo(clock.millis() + Duration.ofMinutes(5).toMillis());
+        gateway.closeIdleChannels();
+        assertThat(gateway.getChannelCount()).isEqualTo(1);
+        clock.advanceTo(clock.millis() + Duration.ofMinutes(5).toMillis());
+        gateway.closeIdleChannels();
+        assertThat(gateway.getChannelCount()).isZero();
+        assertThat(dialed).containsExactly("127.0.0.1:4000");
+    }
+
+    private io.grpc.Channel channelFor(String sessionId) {
+        return channelFor(sessionId, tokens.issue(sessionId));
+    }
+
+    private io.grpc.Channel channelFor(String sessionId, String token) {
+        Metadata headers = new Metadata();
+        headers.put(ExecutionScheduler.SESSION_HEADER, sessionId);
+        if (token != null) {
+            headers.put(SessionGateway.TOKEN_HEADER, token);
+        }
+        return ClientInterceptors.intercept(channel, MetadataUtils.newAttachHeadersInterceptor(headers));
+    }
+
+    private static MethodDescriptor<String, String> unary() {
+        return ECHO.toBuilder().setType(MethodDescriptor.MethodType.UNARY).build();
+    }
+
+    private static StreamObserver<String> echo(StreamObserver<String> responses) {
+        return new StreamObserver<String>() {
+            @Override
+            public void onNext(String value) {
+                responses.onNext(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onCompleted() {
+                responses.onNext("done");
+                responses.onCompleted();
+            }
+        };
+    }
+
+    private static StreamObserver<String> collect(List<String> into) {
+        return new StreamObserver<String>() {
+            @Override
+            public void onNext(String value) {
+                into.add(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                throw new AssertionError(t);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        };
+    }
+}
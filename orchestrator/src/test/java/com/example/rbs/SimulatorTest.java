@@ -0,0 +1,93 @@
+package com.example.rbs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class SimulatorTest {
+
+    private static final List<Simulator.TraceEvent> TRACE = Arrays.asList(
+            new Simulator.TraceEvent(0, "start", "alice", "repo1", "s1"),
+            new Simulator.TraceEvent(10_000, "start", "bob", "repo1", "s2"),
+            new Simulator.TraceEvent(3_600_000, "end", "alice", "repo1", "s1"),
+            new Simulator.TraceEvent(7_200_000, "end", "bob", "repo1", "s2"));
+
+    @Test
+    public void testSessionsBecomeReadyAndAreReapedAfterDeparture() {
+        Simulator.Settings settings = new Simulator.Settings();
+        settings.startMedianMillis = 30_000;
+        settings.startSigma = 0;
+
+        Simulator.Report report = new Simulator(settings).run(TRACE);
+
+        assertThat(report.sessions).isEqualTo(2);
+        assertThat(report.readySessions).isEqualTo(2);
+        assertThat(report.lostSessions).isZero();
+        assertThat(report.reacquiredServers).isZero();
+        assertThat(report.reapedContainers).isEqualTo(2);
+        // Polling every second: READY is observed within a second of the 30s start.
+        assertThat(report.timeToReadyPercentile(100)).isBetween(30_000L, 31_000L);
+        // Each container outlives its proxy by roughly the stale threshold (minus up to one
+        // heartbeat interval, plus up to one reaper interval).
+        assertThat(report.idleContainerHours).isBetween(2 * 4.5 / 60.0, 2 * 6 / 60.0);
+    }
+
+    @Test
+    public void testWarmPoolShortensTimeToReady() {
+        Simulator.Settings settings = new Simulator.Settings();
+        settings.startMedianMillis = 30_000;
+        settings.startSigma = 0;
+        settings.warmPoolSize = 1;
+        settings.warmStartMillis = 2_000;
+
+        Simulator.Report report = new Simulator(settings).run(TRACE);
+
+        assertThat(report.warmPoolHits).isEqualTo(1);
+        assertThat(report.timeToReadyPercentile(0)).isBetween(2_000L, 3_000L);
+    }
+
+    @Test
+    public void testStaleThresholdBelowHeartbeatIntervalLosesSessions() {
+        Simulator.Settings settings = new Simulator.Settings();
+        settings.staleThreshold = Duration.ofSeconds(15);
+        settings.reapInterval = Duration.ofSeconds(5);
+
+        Simulator.Report report = new Simulator(settings).run(TRACE);
+
+        assertThat(report.lostSessions).isEqualTo(2);
+        // Each proxy asks for a new server whenever a heartbeat finds its session reaped.
+        assertThat(report.reacquiredServers).isGreaterThanOrEqualTo(2);
+        assertThat(report.readySessions).isEqualTo(2);
+    }
+
+    @Test
+    public void testSyntheticDayReplays() {
+        List<Simulator.TraceEvent> day = Simulator.syntheticDay(50, new Random(7));
+
+        Simulator.Report report = new Simulator(new Simulator.Settings()).run(day);
+
+        assertThat(report.readySessions).isEqualTo(report.sessions);
+        assertThat(report.peakContainers).isGreaterThan(0);
+    }
+
+    @Test
+    public void testVirtualClockViewsInOtherZonesShareTime() {
+        VirtualClock clock = new VirtualClock(0);
+        Clock tokyo = clock.withZone(ZoneId.of("Asia/Tokyo"));
+        clock.advanceTo(3_600_000);
+
+        assertThat(tokyo.millis()).isEqualTo(3_600_000);
+        assertThat(tokyo.getZone()).isEqualTo(ZoneId.of("Asia/Tokyo"));
+        assertThat(LocalTime.now(tokyo)).isEqualTo(LocalTime.of(10, 0));
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.rbs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import io.grpc.ManagedChannel;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.health.v1.HealthCheckRequest;
+import io.grpc.health.v1.HealthCheckResponse.ServingStatus;
+import io.grpc.health.v1.HealthGrpc;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.ServerCalls;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class StartupGateTest {
+    private static final MethodDescriptor.Marshaller<String> STRINGS = new MethodDescriptor.Marshaller<String>() {
+        @Override
+        public InputStream stream(String value) {
+            return new ByteArrayInputStream(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public String parse(InputStream stream) {
+            try {
+                return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    };
+    private static final MethodDescriptor<String, String> ECHO = MethodDescriptor.newBuilder(STRINGS, STRINGS)
+            .setFullMethodName("test.Echo/Echo")
+            .setType(MethodDescriptor.MethodType.UNARY)
+            .build();
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private StartupGate gate;
+    private Server server;
+    private ManagedChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        gate = new StartupGate(Clock.systemUTC(), Duration.ofMillis(10));
+        String name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name).directExecutor()
+                .addService(ServerServiceDefinition.builder("test.Echo")
+                        .addMethod(ECHO, ServerCalls.asyncUnaryCall((request, responses) -> {
+                            responses.onNext(request);
+                            responses.onCompleted();
+                        }))
+                        .build())
+                .addService(gate.healthService())
+                .intercept(gate)
+                .build().start();
+        channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+    }
+
+    @After
+    public void tearDown() {
+        channel.shutdownNow();
+        server.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testHoldsCallsBackUntilBootstrapFinishes() throws Exception {
+        CountDownLatch schema = new CountDownLatch(1);
+        gate.add("schema", schema::await);
+        gate.start(executor);
+
+        assertThat(health()).isEqualTo(ServingStatus.NOT_SERVING);
+        assertThatThrownBy(() -> echo("hello"))
+                .isInstanceOfSatisfying(StatusRuntimeException.class,
+                        e -> assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.UNAVAILABLE));
+
+        schema.countDown();
+        awaitReady();
+        assertThat(health()).isEqualTo(ServingStatus.SERVING);
+        assertThat(echo("hello")).isEqualTo("hello");
+    }
+
+    @Test
+    public void testRetriesFailedTaskWithoutRerunningEarlierOnes() throws Exception {
+        AtomicInteger first = new AtomicInteger();
+        AtomicInteger second = new AtomicInteger();
+        gate.add("first", first::incrementAndGet);
+        gate.add("second", () -> {
+            if (second.incrementAndGet() < 3) {
+                throw new IllegalStateException("backend not up yet");
+            }
+        });
+        gate.start(executor);
+
+        awaitReady();
+        assertThat(first.get()).isEqualTo(1);
+        assertThat(second.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void testStopsServingOnShutdown() throws Exception {
+        gate.start(executor);
+        awaitReady();
+
+        gate.shutdown();
+
+        assertThat(gate.isReady()).isFalse();
+        assertThat(health()).isEqualTo(ServingStatus.NOT_SERVING);
+    }
+
+    private ServingStatus health() {
+        return HealthGrpc.newBlockingStub(channel).check(HealthCheckRequest.getDefaultInstance()).getStatus();
+    }
+
+    private String echo(String message) {
+        return ClientCalls.blockingUnaryCall(channel, ECHO, io.grpc.CallOptions.DEFAULT, message);
+    }
+
+    private void awaitReady() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!gate.isReady() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(gate.isReady()).isTrue();
+    }
+}
@@ -0,0 +1,23 @@
+package com.example.rbs;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+
+/** Virtual days, in UTC, for tests of the models that learn a daily pattern. */
+final class TestDays {
+    /** A Monday. */
+    static final LocalDate FIRST_DAY = LocalDate.of(2026, 10, 5);
+
+    private TestDays() {
+    }
+
+    static long at(LocalDate date, int minute) {
+        return date.atStartOfDay(ZoneOffset.UTC).plusMinutes(minute).toInstant().toEpochMilli();
+    }
+
+    /** Moves {@code clock} to {@code minute} of {@code date} and runs {@code tick}. */
+    static void tickAt(VirtualClock clock, LocalDate date, int minute, Runnable tick) {
+        clock.advanceTo(at(date, minute));
+        tick.run();
+    }
+}
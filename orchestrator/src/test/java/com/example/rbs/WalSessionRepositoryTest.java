@@ -0,0 +1,163 @@
+package com.example.rbs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class WalSessionRepositoryTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testRecoversSessionsAfterRestart() throws IOException {
+        Path dir = tmp.getRoot().toPath();
+        VirtualClock clock = new VirtualClock(1_000);
+
+        WalSessionRepository repo = new WalSessionRepository(dir, clock);
+        repo.saveSession("user1", "hash", "session-a", "session-a", null, "PENDING", "options-hash");
+        repo.saveSession("user2", "hash", "session-b", null, "PENDING");
+        repo.saveSession("user1", "hash", "session-a", "10.0.0.1:50051", "READY");
+        repo.deleteSession("session-b");
+        repo.close();
+
+        clock.advanceTo(500_000);
+        WalSessionRepository recovered = new WalSessionRepository(dir, clock);
+
+        SessionRepository.BuildSession session = recovered.getSession("session-a");
+        assertThat(session).isNotNull();
+        assertThat(session.userId).isEqualTo("user1");
+        assertThat(session.serverAddress).isEqualTo("10.0.0.1:50051");
+        assertThat(session.status).isEqualTo("READY");
+        // Status updates keep the startup options hash saved with the session.
+        assertThat(session.startupOptionsHash).isEqualTo("options-hash");
+        assertThat(recovered.findSessions("user1", "hash")).hasSize(1);
+        // Heartbeats are reset on recovery so proxies can reconnect before the reaper runs.
+        assertThat(session.lastHeartbeat).isEqualTo(500_000);
+        assertThat(recovered.getSession("session-b")).isNull();
+        assertThat(recovered.getStaleSessions(60_000)).isEmpty();
+        recovered.close();
+    }
+
+    @Test
+    public void testReplaysSegmentsAfterSnapshotWithoutCleanShutdown() throws IOException {
+        Path dir = tmp.getRoot().toPath();
+        VirtualClock clock = new VirtualClock(0);
+
+        // Snapshot every 3 records: records 1-3 land in the snapshot, 4-5 only in the log.
+        WalSessionRepository crashed = new WalSessionRepository(dir, clock, 3);
+        for (int i = 0; i < 4; i++) {
+            crashed.saveSession("user" + i, "hash", "session-" + i, null, "PENDING");
+        }
+        crashed.deleteSession("session-0");
+        assertThat(dir.resolve(WalSessionRepository.SNAPSHOT_FILE)).exists();
+
+        // No close(): every acknowledged write must already be durable.
+        WalSessionRepository recovered = new WalSessionRepository(dir, clock, 3);
+        assertThat(recovered.getSession("session-0")).isNull();
+        for (int i = 1; i < 4; i++) {
+            assertThat(recovered.getSession("session-" + i)).isNotNull();
+        }
+        recovered.close();
+    }
+
+    @Test
+    public void testDiscardsTornTail() throws IOException {
+        Path dir = tmp.getRoot().toPath();
+        VirtualClock clock = new VirtualClock(0);
+
+        WalSessionRepository crashed = new WalSessionRepository(dir, clock);
+        crashed.saveSession("user1", "hash", "session-a", null, "PENDING");
+        crashed.saveSession("user2", "hash", "session-b", null, "PENDING");
+        // A crash mid-append leaves a partial frame at the end of the live segment.
+        Files.write(latestSegment(dir), new byte[] {0, 0, 0, 100, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        WalSessionRepository recovered = new WalSessionRepository(dir, clock);
+        assertThat(recovered.getSession("session-a")).isNotNull();
+        assertThat(recovered.getSession("session-b")).isNotNull();
+        recovered.saveSession("user3", "hash", "session-c", null, "PENDING");
+        recovered.close();
+
+        WalSessionRepository again = new WalSessionRepository(dir, clock);
+        assertThat(again.getSession("session-a")).isNotNull();
+        assertThat(again.getSession("session-c")).isNotNull();
+        again.close();
+    }
+
+    @Test
+    public void testRecoversSessionHistoryFromSnapshotAndLog() throws IOException {
+        Path dir = tmp.getRoot().toPath();
+        VirtualClock clock = new VirtualClock(0);
+
+        // Snapshot every 3 records: the first three events land in the snapshot, the rest only in the log.
+        WalSessionRepository crashed = new WalSessionRepository(dir, clock, 3);
+        crashed.recordSessionEvent(SessionRepository.SessionEvent.start("user1", "hash", 1_000, "/src",
+                null, null));
+        crashed.recordSessionEvent(SessionRepository.SessionEvent.end("user1", "hash", 2_000));
+        crashed.recordSessionEvent(SessionRepository.SessionEvent.start("user1", "hash", 3_000, "/src",
+                Arrays.asList("--host_jvm_args=-Xmx4g"), "us-west1"));
+        crashed.recordSessionEvent(SessionRepository.SessionEvent.start("user2", "hash", 4_000, "/src",
+                null, null));
+        crashed.deleteSessionEvents(2_000);
+
+        WalSessionRepository recovered = new WalSessionRepository(dir, clock, 3);
+        List<SessionRepository.SessionEvent> events = recovered.getSessionEvents(0);
+        assertThat(events).extracting(e -> e.atMillis).containsExactly(2_000L, 3_000L, 4_000L);
+        assertThat(events.get(0).start).isFalse();
+        assertThat(events.get(1).startupOptions).containsExactly("--host_jvm_args=-Xmx4g");
+        assertThat(events.get(1).region).isEqualTo("us-west1");
+        assertThat(events.get(2).userId).isEqualTo("user2");
+        assertThat(recovered.getSessionEvents(3_500)).hasSize(1);
+        recovered.close();
+    }
+
+    @Test
+    public void testConcurrentWritesShareFsyncs() throws Exception {
+        WalSessionRepository repo = new WalSessionRepository(tmp.getRoot().toPath(), new VirtualClock(0));
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int thread = t;
+            futures.add(pool.submit(() -> {
+                for (int i = 0; i < 50; i++) {
+                    repo.saveSession("user" + thread, "hash", "session-" + thread + "-" + i, null, "PENDING");
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        pool.shutdown();
+
+        assertThat(repo.getStaleSessions(-1)).hasSize(400);
+        assertThat(repo.getFsyncCount()).isBetween(1L, 400L);
+        repo.close();
+    }
+
+    private static Path latestSegment(Path dir) throws IOException {
+        Path latest = null;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "wal-*.log")) {
+            for (Path file : files) {
+                if (latest == null || file.getFileName().toString().compareTo(latest.getFileName().toString()) > 0) {
+                    latest = file;
+                }
+            }
+        }
+        return latest;
+    }
+}
@@ -0,0 +1,185 @@
+package com.example.rbs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.Directory;
+import build.bazel.remote.execution.v2.DirectoryNode;
+import build.bazel.remote.execution.v2.FileNode;
+import build.bazel.remote.execution.v2.SymlinkNode;
+import com.example.rbs.proto.SyncWorkspaceResponse;
+import com.google.protobuf.ByteString;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class WorkspaceSyncTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private CasStore cas;
+    private WorkspaceSync sync;
+    private Path workspace;
+
+    @Before
+    public void setUp() throws Exception {
+        cas = new CasStore(tmp.getRoot().toPath().resolve("cas"), 1 << 20);
+        RemoteCache cache = new RemoteCache(cas, new CasStore(tmp.getRoot().toPath().resolve("ac"), 1 << 20));
+        sync = new WorkspaceSync(cache, tmp.getRoot().toPath().resolve("workspaces"));
+        workspace = sync.workspacePath("alice", "repo1");
+    }
+
+    @Test
+    public void testReportsMissingBlobsThenMaterialisesTree() throws Exception {
+        Digest main = digest("package main");
+        Digest script = digest("#!/bin/sh");
+        Directory src = Directory.newBuilder().addFiles(file("main.go", main, false)).build();
+        Directory root = Directory.newBuilder()
+                .addFiles(file("run.sh", script, true))
+                .addDirectories(directory("src", src))
+                .addSymlinks(SymlinkNode.newBuilder().setName("link").setTarget("src/main.go"))
+                .build();
+        Digest rootDigest = upload(root);
+        upload(src);
+
+        // Only the directories are uploaded so far: nothing is written.
+        SyncWorkspaceResponse response = sync.sync("alice", "repo1", rootDigest);
+        assertThat(response.getMissingDigestsList()).containsExactlyInAnyOrder(main, script);
+        assertThat(Files.exists(workspace)).isFalse();
+
+        upload("package main");
+        upload("#!/bin/sh");
+        response = sync.sync("alice", "repo1", rootDigest);
+        assertThat(response.getMissingDigestsList()).isEmpty();
+        assertThat(response.getWorkspacePath()).isEqualTo(workspace.toString());
+        assertThat(response.getFilesWritten()).isEqualTo(2);
+        assertThat(read(workspace.resolve("src/main.go"))).isEqualTo("package main");
+        assertThat(Files.isExecutable(workspace.resolve("run.sh"))).isTrue();
+        assertThat(Files.readSymbolicLink(workspace.resolve("link")).toString()).isEqualTo("src/main.go");
+    }
+
+    @Test
+    public void testOnlyChecksTheTreeWhenPodsMaterialiseIt() throws Exception {
+        RemoteCache cache = new RemoteCache(cas, new CasStore(tmp.getRoot().toPath().resolve("ac2"), 1 << 20));
+        WorkspaceSync pods = new WorkspaceSync(cache, null);
+        Digest main = digest("package main");
+        Digest rootDigest = upload(Directory.newBuilder().addFiles(file("main.go", main, false)).build());
+
+        SyncWorkspaceResponse response = pods.sync("alice", "repo1", rootDigest);
+        assertThat(response.getMissingDigestsList()).containsExactly(main);
+
+        upload("package main");
+        response = pods.sync("alice", "repo1", rootDigest);
+        assertThat(response.getMissingDigestsList()).isEmpty();
+        assertThat(response.getWorkspacePath()).isEmpty();
+        assertThat(pods.materialises()).isFalse();
+        assertThat(WorkspaceSync.parseDigest(rootDigest.getHash() + "/" + rootDigest.getSizeBytes()))
+                .isEqualTo(rootDigest);
+    }
+
+    @Test
+    public void testLaterSyncsOnlyWriteChanges() throws Exception {
+        Directory lib = Directory.newBuilder().addFiles(file("lib.go", upload("package lib"), false)).build();
+        Directory src = Directory.newBuilder()
+                .addFiles(file("main.go", upload("package main"), false))
+                .addFiles(file("old.go", upload("package old"), false))
+                .build();
+        Digest first = upload(Directory.newBuilder()
+                .addDirectories(directory("lib", lib))
+                .addDirectories(directory("src", src))
+                .build());
+        upload(lib);
+        upload(src);
+        assertThat(sync.sync("alice", "repo1", first).getFilesWritten()).isEqualTo(3);
+
+        // One file edited and one deleted; lib is unchanged and not even walked.
+        Directory src2 = Directory.newBuilder().addFiles(file("main.go", upload("package main // v2"), false)).build();
+        upload(src2);
+        Digest second = upload(Directory.newBuilder()
+                .addDirectories(directory("lib", lib))
+                .addDirectories(directory("src", src2))
+                .build());
+        SyncWorkspaceResponse response = sync.sync("alice", "repo1", second);
+        assertThat(response.getFilesWritten()).isEqualTo(1);
+        assertThat(response.getBytesWritten()).isEqualTo("package main // v2".length());
+        assertThat(response.getEntriesDeleted()).isEqualTo(1);
+        assertThat(read(workspace.resolve("src/main.go"))).isEqualTo("package main // v2");
+        assertThat(Files.exists(workspace.resolve("src/old.go"))).isFalse();
+        assertThat(read(workspace.resolve("lib/lib.go"))).isEqualTo("package lib");
+
+        // Syncing the same tree again writes nothing.
+        response = sync.sync("alice", "repo1", second);
+        assertThat(response.getFilesWritten()).isZero();
+        assertThat(response.getEntriesDeleted()).isZero();
+    }
+
+    @Test
+    public void testComparesAgainstDiskWhenPreviousTreeIsUnknown() throws Exception {
+        Files.createDirectories(workspace);
+        Files.write(workspace.resolve("same.txt"), "same".getBytes(StandardCharsets.UTF_8));
+        Files.write(workspace.resolve("changed.txt"), "before".getBytes(StandardCharsets.UTF_8));
+        Files.write(workspace.resolve("stale.txt"), "stale".getBytes(StandardCharsets.UTF_8));
+        Files.createSymbolicLink(workspace.resolve("bazel-out"), tmp.getRoot().toPath());
+
+        Digest root = upload(Directory.newBuilder()
+                .addFiles(file("changed.txt", upload("after"), false))
+                .addFiles(file("same.txt", upload("same"), false))
+                .build());
+        SyncWorkspaceResponse response = sync.sync("alice", "repo1", root);
+
+        assertThat(response.getFilesWritten()).isEqualTo(1);
+        assertThat(response.getEntriesDeleted()).isEqualTo(1);
+        assertThat(read(workspace.resolve("changed.txt"))).isEqualTo("after");
+        assertThat(Files.exists(workspace.resolve("stale.txt"))).isFalse();
+        // Bazel's convenience symlinks are left alone.
+        assertThat(Files.isSymbolicLink(workspace.resolve("bazel-out"))).isTrue();
+    }
+
+    private static FileNode file(String name, Digest digest, boolean executable) {
+        return FileNode.newBuilder().setName(name).setDigest(digest).setIsExecutable(executable).build();
+    }
+
+    private static DirectoryNode directory(String name, Directory directory) throws Exception {
+        return DirectoryNode.newBuilder().setName(name).setDigest(digest(directory.toByteString())).build();
+    }
+
+    private Digest upload(String content) throws Exception {
+        return upload(ByteString.copyFrom(content, StandardCharsets.UTF_8));
+    }
+
+    private Digest upload(Directory directory) throws Exception {
+        return upload(directory.toByteString());
+    }
+
+    private Digest upload(ByteString data) throws Exception {
+        Digest digest = digest(data);
+        if (digest.getSizeBytes() > 0) {
+            cas.put(CasStore.key(digest.getHash(), digest.getSizeBytes()), data.toByteArray());
+        }
+        return digest;
+    }
+
+    private static Digest digest(String content) throws Exception {
+        return digest(ByteString.copyFrom(content, StandardCharsets.UTF_8));
+    }
+
+    private static Digest digest(ByteString data) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(data.toByteArray())) {
+            hex.append(String.format("%02x", b));
+        }
+        return Digest.newBuilder().setHash(hex.toString()).setSizeBytes(data.size()).build();
+    }
+
+    private static String read(Path path) throws Exception {
+        return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.rbs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.envoyproxy.envoy.config.core.v3.SocketAddress;
+import io.envoyproxy.envoy.config.endpoint.v3.ClusterLoadAssignment;
+import io.envoyproxy.envoy.config.listener.v3.Listener;
+import io.envoyproxy.envoy.service.discovery.v3.AggregatedDiscoveryServiceGrpc;
+import io.envoyproxy.envoy.service.discovery.v3.DeltaDiscoveryRequest;
+import io.envoyproxy.envoy.service.discovery.v3.DeltaDiscoveryResponse;
+import io.envoyproxy.envoy.service.discovery.v3.DiscoveryRequest;
+import io.envoyproxy.envoy.service.discovery.v3.DiscoveryResponse;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class XdsServerTest {
+    private final VirtualClock clock = new VirtualClock(1_000_000);
+    private InMemorySessionRepository sessionRepo;
+    private XdsServer xds;
+    private Server server;
+    private ManagedChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        sessionRepo = new InMemorySessionRepository(clock);
+        xds = new XdsServer(sessionRepo, 9011);
+        String name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name).directExecutor().addService(xds.service()).build().start();
+        channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+    }
+
+    @After
+    public void tearDown() {
+        channel.shutdownNow();
+        server.shutdownNow();
+    }
+
+    @Test
+    public void testPushesEndpointChangesToSubscribers() throws Exception {
+        sessionRepo.saveSession("user1", "hash", "session-1", "10.0.0.1", "READY");
+        List<DiscoveryResponse> responses = new ArrayList<>();
+        StreamObserver<DiscoveryRequest> requests = AggregatedDiscoveryServiceGrpc.newStub(channel)
+                .streamAggregatedResources(collect(responses));
+
+        requests.onNext(request(XdsServer.LISTENER_TYPE, "session-1"));
+        Listener listener = responses.get(0).getResources(0).unpack(Listener.class);
+        assertThat(listener.getName()).isEqualTo("session-1");
+        assertThat(listener.getApiListener().hasApiListener()).isTrue();
+
+        // Looked up in the repository on first subscription.
+        requests.onNext(request(XdsServer.ENDPOINT_TYPE, "session-1"));
+        assertThat(address(responses.get(1))).isEqualTo("10.0.0.1:9011");
+        // The ACK gets no response.
+        requests.onNext(request(XdsServer.ENDPOINT_TYPE, "session-1").toBuilder()
+                .setResponseNonce(responses.get(1).getNonce()).build());
+        assertThat(responses).hasSize(2);
+
+        // The pod is rescheduled: the subscriber follows it without asking.
+        xds.onContainerChanged("session-1", new ComputeService.ContainerStatus("PENDING", null));
+        assertThat(responses.get(2).getResources(0).unpack(ClusterLoadAssignment.class).getEndpointsCount())
+                .isZero();
+        xds.onContainerChanged("session-1", new ComputeService.ContainerStatus("READY", "10.0.0.2"));
+        assertThat(address(responses.get(3))).isEqualTo("10.0.0.2:9011");
+
+        // Other sessions' changes are not sent to this stream.
+        xds.publish("session-2", "session-2", "10.0.0.3");
+        assertThat(responses).hasSize(4);
+
+        requests.onCompleted();
+        assertThat(xds.getStreamCount()).isZero();
+    }
+
+    @Test
+    public void testDeltaStreamsOnlyGetChangedResources() throws Exception {
+        xds.publish("session-1", "session-1", "127.0.0.1:4000");
+        xds.publish("session-2", "session-2", "127.0.0.1:4001");
+        List<DeltaDiscoveryResponse> responses = new ArrayList<>();
+        StreamObserver<DeltaDiscoveryRequest> requests = AggregatedDiscoveryServiceGrpc.newStub(channel)
+                .deltaAggregatedResources(collect(responses));
+
+        requests.onNext(DeltaDiscoveryRequest.newBuilder()
+                .setTypeUrl(XdsServer.ENDPOINT_TYPE)
+                .addResourceNamesSubscribe("session-1")
+                .addResourceNamesSubscribe("session-2")
+                .build());
+        assertThat(responses.get(0).getResourcesCount()).isEqualTo(2);
+
+        xds.publish("session-2", "session-2", "127.0.0.1:4002");
+        assertThat(responses).hasSize(2);
+        assertThat(responses.get(1).getResourcesCount()).isEqualTo(1);
+        assertThat(responses.get(1).getResources(0).getName()).isEqualTo("session-2");
+        SocketAddress moved = responses.get(1).getResources(0).getResource().unpack(ClusterLoadAssignment.class)
+                .getEndpoints(0).getLbEndpoints(0).getEndpoint().getAddress().getSocketAddress();
+        assertThat(moved.getPortValue()).isEqualTo(4002);
+
+        // Publishing what the client already has sends nothing.
+        xds.publish("session-1", "session-1", "127.0.0.1:4000");
+        assertThat(responses).hasSize(2);
+    }
+
+    @Test
+    public void testParsesServerAddresses() {
+        assertThat(XdsServer.socketAddress("10.0.0.1", 9011).getPortValue()).isEqualTo(9011);
+        assertThat(XdsServer.socketAddress("127.0.0.1:4000", 9011).getPortValue()).isEqualTo(4000);
+        assertThat(XdsServer.socketAddress("fd00::1", 9011).getAddress()).isEqualTo("fd00::1");
+        SocketAddress v6 = XdsServer.socketAddress("[fd00::1]:4000", 9011);
+        assertThat(v6.getAddress()).isEqualTo("fd00::1");
+        assertThat(v6.getPortValue()).isEqualTo(4000);
+    }
+
+    private static DiscoveryRequest request(String typeUrl, String name) {
+        return DiscoveryRequest.newBuilder().setTypeUrl(typeUrl).addResourceNames(name).build();
+    }
+
+    private static String address(DiscoveryResponse response) throws Exception {
+        SocketAddress address = response.getResources(0).unpack(ClusterLoadAssignment.class)
+                .getEndpoints(0).getLbEndpoints(0).getEndpoint().getAddress().getSocketAddress();
+        return address.getAddress() + ":" + address.getPortValue();
+    }
+
+    private static <T> StreamObserver<T> collect(List<T> into) {
+        return new StreamObserver<T>() {
+            @Override
+            public void onNext(T value) {
+                into.add(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                throw new AssertionError(t);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        };
+    }
+}
@@ -12,15 +12,18 @@ import (
 	"os"
 	"os/signal"
 	"path/filepath"
+	"sync/atomic"
 	"syscall"
 	"time"
 
+	agentpb "github.com/example/remote-build-server/agent/src/main/proto"
 	orchpb "github.com/example/remote-build-server/orchestrator/src/main/proto"
 	"google.golang.org/grpc"
 	"google.golang.org/grpc/codes"
 	"google.golang.org/grpc/credentials/insecure"
 	"google.golang.org/grpc/metadata"
 	"google.golang.org/grpc/status"
+	"google.golang.org/protobuf/types/known/emptypb"
 )
 
 // ProxyCodec to handle raw bytes
@@ -110,10 +113,21 @@ func runServerMode(outputBase, workspaceDir string, startupArgs []string) {
 	if userId == "" {
 		userId = "user1" // Default
 	}
-	sessionId := "session-" + fmt.Sprintf("%d", time.Now().Unix())
+	// Random, so nobody can guess another developer's session ID.
+	sessionBytes := make([]byte, 16)
+	if _, err := rand.Read(sessionBytes); err != nil {
+		slog.Error("failed to generate session ID", "error", err)
+		os.Exit(1)
+	}
+	sessionId := fmt.Sprintf("session-%x", sessionBytes)
 
 	slog.Info("Proxy Server Mode starting", "user", userId, "repo", repoHash, "args", startupArgs)
 
+	// Behind a VPN or NAT that cannot route to pod IPs, the agent is reached
+	// through the orchestrator's gateway, which routes by x-rbs-session-id and
+	// checks the session token GetServer returned.
+	gatewayAddr := os.Getenv("RBS_GATEWAY_ADDR")
+
 	conn, err := grpc.Dial(orchestratorAddr, grpc.WithTransportCredentials(insecure.NewCredentials()))
 	if err != nil {
 		slog.Error("did not connect to orchestrator", "error", err)
@@ -122,47 +136,41 @@ func runServerMode(outputBase, workspaceDir string, startupArgs []string) {
 	defer conn.Close()
 	orchClient := orchpb.NewOrchestratorClient(conn)
 
-	ctx, cancel := context.WithTimeout(context.Background(), 120*time.Second) // Long timeout for pod spinup
-	defer cancel()
-
-	var targetAddr string
-	// Polling
-	for {
-		req := &orchpb.GetServerRequest{
-			UserId:         userId,
-			RepoHash:       repoHash,
-			SessionId:      sessionId,
-			SourcePath:     workspaceDir,
-			StartupOptions: startupArgs,
-			Region:         detectRegion(),
-		}
-		resp, err := orchClient.GetServer(ctx, req)
+	req := &orchpb.GetServerRequest{
+		UserId:         userId,
+		RepoHash:       repoHash,
+		SessionId:      sessionId,
+		SourcePath:     workspaceDir,
+		StartupOptions: startupArgs,
+		Region:         detectRegion(),
+	}
+	// Without a shared file system, the workspace goes through the remote cache.
+	var syncer *workspaceSyncer
+	if os.Getenv("RBS_SYNC_WORKSPACE") != "" {
+		syncer = newWorkspaceSyncer(workspaceDir, userId, repoHash, conn)
+		ctx, cancel := context.WithTimeout(context.Background(), 10*time.Minute)
+		root, err := syncer.syncInitial(ctx)
+		cancel()
 		if err != nil {
-			slog.Info("Waiting for server...", "error", err)
-			time.Sleep(2 * time.Second)
-			continue
+			slog.Error("failed to sync the workspace", "error", err)
+			os.Exit(1)
 		}
-
-		if resp.GetStatus() == "READY" {
-			targetAddr = resp.GetServerAddress()
-			slog.Info("Remote Server READY", "addr", targetAddr)
-
-			// Start Heartbeat Loop
-			go func() {
-				ticker := time.NewTicker(30 * time.Second)
-				defer ticker.Stop()
-				for range ticker.C {
-					hbCtx, hbCancel := context.WithTimeout(context.Background(), 5*time.Second)
-					_, err := orchClient.Heartbeat(hbCtx, &orchpb.HeartbeatRequest{SessionId: sessionId})
-					hbCancel()
-					if err != nil {
-						slog.Warn("Heartbeat failed", "error", err)
-					}
-				}
-			}()
-			break
+		req.SourcePath = ""
+		if root.hash != "" {
+			req.WorkspaceDigest = root.String()
 		}
-		time.Sleep(1 * time.Second)
+		slog.Info("Workspace synced", "inPod", root.hash != "")
+	}
+	// The session's agent (an agentTarget); replaced if the orchestrator loses
+	// the session and starts a new server for it.
+	var target atomic.Value
+	target.Store(acquireServer(orchClient, req, gatewayAddr))
+	go heartbeatLoop(orchClient, req, gatewayAddr, &target)
+	// With the orchestrator's xDS control plane, a rescheduled pod's new address
+	// is pushed at once instead of waiting for the session to be lost. The
+	// gateway already routes by session, so it needs no updates.
+	if os.Getenv("RBS_XDS") != "" && gatewayAddr == "" {
+		go watchEndpoints(conn, sessionId, &target)
 	}
 
 	// 2. Setup Local Listener
@@ -211,7 +219,8 @@ func runServerMode(outputBase, workspaceDir string, startupArgs []string) {
 	// Forward to Remote Agent
 	proxyHandler := func(srv interface{}, stream grpc.ServerStream) error {
 		// Dial Backend (per request or pooled)
-		targetConn, err := grpc.Dial(targetAddr,
+		agent := target.Load().(agentTarget)
+		targetConn, err := grpc.Dial(agent.addr,
 			grpc.WithTransportCredentials(insecure.NewCredentials()),
 			grpc.WithDefaultCallOptions(grpc.ForceCodec(proxyCodec{})),
 		)
@@ -220,7 +229,17 @@ func runServerMode(outputBase, workspaceDir string, startupArgs []string) {
 		}
 		defer targetConn.Close()
 
-		err = forwardStream(stream, targetConn, sessionId)
+		if method, _ := grpc.Method(stream.Context()); syncer != nil && method == "/command_server.CommandServer/Run" {
+			headers := metadata.Pairs("x-rbs-session-id", sessionId)
+			if agent.token != "" {
+				headers.Append("x-rbs-session-token", agent.token)
+			}
+			if err := syncer.resync(stream.Context(), targetConn, headers); err != nil {
+				return status.Errorf(codes.Unavailable, "failed to sync the workspace: %v", err)
+			}
+		}
+
+		err = forwardStream(stream, targetConn, sessionId, agent.token)
 		if _, ok := err.(*UpstreamClosedError); ok {
 			// If upstream closed, we should shutdown the proxy too.
 			// Especially in Server Mode (one-to-one mapping).
@@ -251,6 +270,103 @@ func runServerMode(outputBase, workspaceDir string, startupArgs []string) {
 	}
 }
 
+// agentTarget is where the proxy reaches the session's agent: the agent
+// itself, or the gateway with the session's token.
+type agentTarget struct {
+	addr  string
+	token string
+}
+
+// acquireServer polls GetServer until the session's server is READY, waiting
+// in the admission queue if need be, and returns where its agent is reached.
+func acquireServer(orchClient orchpb.OrchestratorClient, req *orchpb.GetServerRequest, gatewayAddr string) agentTarget {
+	for {
+		// No overall deadline: the session may wait in the admission queue for a while.
+		ctx, cancel := context.WithTimeout(context.Background(), 10*time.Second)
+		resp, err := orchClient.GetServer(ctx, req)
+		cancel()
+		if err != nil {
+			slog.Info("Waiting for server...", "error", err)
+			time.Sleep(2 * time.Second)
+			continue
+		}
+
+		if resp.GetStatus() == "READY" {
+			targetAddr := resp.GetServerAddress()
+			slog.Info("Remote Server READY", "addr", targetAddr)
+			if gatewayAddr != "" {
+				slog.Info("Reaching the agent through the gateway", "gateway", gatewayAddr)
+				return agentTarget{addr: gatewayAddr, token: resp.GetSessionToken()}
+			}
+			return agentTarget{addr: targetAddr}
+		}
+		if resp.GetStatus() == "QUEUED" {
+			slog.Info("Waiting for a free server", "position", resp.GetQueuePosition())
+		}
+		time.Sleep(1 * time.Second)
+	}
+}
+
+// heartbeatLoop keeps the session alive. If the orchestrator no longer knows
+// the session (it was reaped, or preempted while idle), it asks for a server
+// again under the same session ID, queueing if need be, and points the proxy
+// at the new one.
+func heartbeatLoop(orchClient orchpb.OrchestratorClient, req *orchpb.GetServerRequest, gatewayAddr string,
+	target *atomic.Value) {
+	ticker := time.NewTicker(30 * time.Second)
+	defer ticker.Stop()
+	var agentConn *grpc.ClientConn
+	var agent agentTarget
+	for range ticker.C {
+		if current := target.Load().(agentTarget); current != agent {
+			if agentConn != nil {
+				agentConn.Close()
+				agentConn = nil
+			}
+			agent = current
+			conn, err := grpc.Dial(agent.addr, grpc.WithTransportCredentials(insecure.NewCredentials()))
+			if err != nil {
+				slog.Warn("failed to connect to agent for resource usage", "error", err)
+			} else {
+				agentConn = conn
+			}
+		}
+		hbReq := &orchpb.HeartbeatRequest{SessionId: req.GetSessionId()}
+		if agentConn != nil {
+			hbReq.Usage = sampleUsage(agentpb.NewRunnerClient(agentConn), req.GetSessionId(), agent.token)
+		}
+		hbCtx, hbCancel := context.WithTimeout(context.Background(), 5*time.Second)
+		_, err := orchClient.Heartbeat(hbCtx, hbReq)
+		hbCancel()
+		if status.Code(err) == codes.NotFound {
+			slog.Warn("Orchestrator lost the session, requesting a new server", "session", req.GetSessionId())
+			target.Store(acquireServer(orchClient, req, gatewayAddr))
+			continue
+		}
+		if err != nil {
+			slog.Warn("Heartbeat failed", "error", err)
+		}
+	}
+}
+
+// sampleUsage asks the agent for the server's resource usage, which the
+// heartbeat carries to the orchestrator. Heartbeats go out without it if the
+// agent does not answer in time: they also keep the session alive.
+func sampleUsage(agent agentpb.RunnerClient, sessionId, token string) *orchpb.ResourceUsage {
+	ctx, cancel := context.WithTimeout(context.Background(), 5*time.Second)
+	defer cancel()
+	ctx = metadata.AppendToOutgoingContext(ctx, "x-rbs-session-id", sessionId)
+	if token != "" {
+		ctx = metadata.AppendToOutgoingContext(ctx, "x-rbs-session-token", token)
+	}
+	usage, err := agent.GetResourceUsage(ctx, &emptypb.Empty{})
+	if err != nil {
+		slog.Debug("Resource usage unavailable", "error", err)
+		return nil
+	}
+	return usage
+}
+
 func runProxy(listenPath, targetAddr string) {
 	// Clean up old socket
 	if err := os.Remove(listenPath); err != nil && !os.IsNotExist(err) {
@@ -287,7 +403,7 @@ func runProxy(listenPath, targetAddr string) {
 			return err
 		}
 		defer conn.Close()
-		err = forwardStream(stream, conn, "") // No session ID for legacy mode?
+		err = forwardStream(stream, conn, "", "") // No session ID for legacy mode?
 
 		if _, ok := err.(*UpstreamClosedError); ok {
 			slog.Info("Upstream closed, shutting down proxy...")
@@ -323,7 +439,7 @@ func (e *UpstreamClosedError) Error() string {
 	return fmt.Sprintf("upstream closed: %v", e.Err)
 }
 
-func forwardStream(serverStream grpc.ServerStream, clientConn *grpc.ClientConn, sessionId string) error {
+func forwardStream(serverStream grpc.ServerStream, clientConn *grpc.ClientConn, sessionId, token string) error {
 	ctx := serverStream.Context()
 
 	// 1. Extract Method Name
@@ -338,6 +454,9 @@ func forwardStream(serverStream grpc.ServerStream, clientConn *grpc.ClientConn,
 	if sessionId != "" {
 		outCtx = metadata.AppendToOutgoingContext(outCtx, "x-rbs-session-id", sessionId)
 	}
+	if token != "" {
+		outCtx = metadata.AppendToOutgoingContext(outCtx, "x-rbs-session-token", token)
+	}
 
 	// 3. Initiate client stream
 	desc := &grpc.StreamDesc{
@@ -0,0 +1,405 @@
+package main
+
+import (
+	"context"
+	"crypto/rand"
+	"crypto/sha256"
+	"encoding/hex"
+	"fmt"
+	"io"
+	"os"
+	"path/filepath"
+	"strings"
+	"sync"
+	"time"
+
+	"google.golang.org/grpc"
+	"google.golang.org/grpc/metadata"
+	"google.golang.org/protobuf/encoding/protowire"
+)
+
+// Workspace sync (RBS_SYNC_WORKSPACE=1): instead of a source_path the build
+// pool has to mount, the proxy uploads the workspace to the orchestrator's
+// remote cache as a Merkle tree of remote execution Directory messages and
+// has it materialised where the session runs. FindMissingBlobs keeps content
+// the cache already holds off the wire, and files whose size and mtime did
+// not change are not hashed again. The first sync goes to the orchestrator:
+// in local mode it materialises the workspace itself; otherwise it only
+// checks the tree, GetServer passes the root digest to the session's pod, and
+// later syncs, before each command, go to the session's agent. Messages are
+// encoded by hand on raw frames, like the rest of the proxy.
+
+const (
+	findMissingBlobsMethod = "/build.bazel.remote.execution.v2.ContentAddressableStorage/FindMissingBlobs"
+	byteStreamWriteMethod  = "/google.bytestream.ByteStream/Write"
+	syncWorkspaceMethod    = "/rbs.WorkspaceSync/SyncWorkspace"
+
+	// Digests per FindMissingBlobs call, well under the default 4 MiB message limit.
+	findMissingBatch = 10000
+	byteStreamChunk  = 64 * 1024
+	syncAttempts     = 3
+)
+
+type blobDigest struct {
+	hash string
+	size int64
+}
+
+func (d blobDigest) encode() []byte {
+	b := appendBytesField(nil, 1, []byte(d.hash))
+	if d.size != 0 {
+		b = protowire.AppendTag(b, 2, protowire.VarintType)
+		b = protowire.AppendVarint(b, uint64(d.size))
+	}
+	return b
+}
+
+func (d blobDigest) String() string {
+	return fmt.Sprintf("%s/%d", d.hash, d.size)
+}
+
+func digestOf(data []byte) blobDigest {
+	sum := sha256.Sum256(data)
+	return blobDigest{hash: hex.EncodeToString(sum[:]), size: int64(len(data))}
+}
+
+func appendBytesField(b []byte, num protowire.Number, value []byte) []byte {
+	b = protowire.AppendTag(b, num, protowire.BytesType)
+	return protowire.AppendBytes(b, value)
+}
+
+// bytesFields returns the values of a length-delimited field of a message.
+func bytesFields(b []byte, want protowire.Number) ([][]byte, error) {
+	var values [][]byte
+	for len(b) > 0 {
+		num, typ, n := protowire.ConsumeTag(b)
+		if n < 0 {
+			return nil, protowire.ParseError(n)
+		}
+		b = b[n:]
+		if num == want && typ == protowire.BytesType {
+			value, m := protowire.ConsumeBytes(b)
+			if m < 0 {
+				return nil, protowire.ParseError(m)
+			}
+			values = append(values, value)
+			n = m
+		} else {
+			n = protowire.ConsumeFieldValue(num, typ, b)
+			if n < 0 {
+				return nil, protowire.ParseError(n)
+			}
+		}
+		b = b[n:]
+	}
+	return values, nil
+}
+
+func parseBlobDigest(b []byte) (blobDigest, error) {
+	var d blobDigest
+	for len(b) > 0 {
+		num, typ, n := protowire.ConsumeTag(b)
+		if n < 0 {
+			return d, protowire.ParseError(n)
+		}
+		b = b[n:]
+		switch {
+		case num == 1 && typ == protowire.BytesType:
+			value, m := protowire.ConsumeBytes(b)
+			d.hash, n = string(value), m
+		case num == 2 && typ == protowire.VarintType:
+			value, m := protowire.ConsumeVarint(b)
+			d.size, n = int64(value), m
+		default:
+			n = protowire.ConsumeFieldValue(num, typ, b)
+		}
+		if n < 0 {
+			return d, protowire.ParseError(n)
+		}
+		b = b[n:]
+	}
+	return d, nil
+}
+
+type hashedFile struct {
+	size    int64
+	modTime time.Time
+	digest  blobDigest
+}
+
+// workspaceTree is a snapshot of the workspace: its encoded directories and
+// where each file's content is.
+type workspaceTree struct {
+	root  blobDigest
+	dirs  map[blobDigest][]byte
+	files map[blobDigest]string
+}
+
+type workspaceSyncer struct {
+	dir      string
+	userId   string
+	repoHash string
+	cache    *grpc.ClientConn // the orchestrator, which serves the remote cache
+
+	mu     sync.Mutex
+	hashes map[string]hashedFile // keyed by path
+	inPod  bool                  // whether the session's agent materialises the workspace
+}
+
+func newWorkspaceSyncer(dir, userId, repoHash string, cache *grpc.ClientConn) *workspaceSyncer {
+	return &workspaceSyncer{dir: dir, userId: userId, repoHash: repoHash, cache: cache,
+		hashes: map[string]hashedFile{}}
+}
+
+// syncInitial uploads the workspace and syncs it through the orchestrator.
+// It returns the root digest to pass to GetServer if the session's pod
+// materialises the workspace, and an empty one if the orchestrator did.
+func (s *workspaceSyncer) syncInitial(ctx context.Context) (blobDigest, error) {
+	s.mu.Lock()
+	defer s.mu.Unlock()
+	root, workspacePath, err := s.upload(ctx, s.cache, ctx)
+	if err != nil {
+		return blobDigest{}, err
+	}
+	s.inPod = workspacePath == ""
+	if !s.inPod {
+		return blobDigest{}, nil
+	}
+	return root, nil
+}
+
+// resync brings the session's workspace up to date before a command. agent
+// is the connection the command is forwarded on, and headers are the
+// session's headers for it.
+func (s *workspaceSyncer) resync(ctx context.Context, agent *grpc.ClientConn, headers metadata.MD) error {
+	s.mu.Lock()
+	defer s.mu.Unlock()
+	if !s.inPod {
+		_, _, err := s.upload(ctx, s.cache, ctx)
+		return err
+	}
+	_, _, err := s.upload(ctx, agent, metadata.NewOutgoingContext(ctx, headers))
+	return err
+}
+
+// upload snapshots the workspace, uploads what the cache lacks and asks
+// target to sync to it (calling with targetCtx), retrying if blobs went
+// missing in between. It returns the root digest and where target
+// materialised the workspace.
+func (s *workspaceSyncer) upload(ctx context.Context, target *grpc.ClientConn,
+	targetCtx context.Context) (blobDigest, string, error) {
+	for attempt := 1; ; attempt++ {
+		tree, err := s.snapshot()
+		if err != nil {
+			return blobDigest{}, "", fmt.Errorf("reading workspace: %w", err)
+		}
+		if err := s.uploadMissing(ctx, tree); err != nil {
+			return blobDigest{}, "", err
+		}
+		request := appendBytesField(nil, 1, []byte(s.userId))
+		request = appendBytesField(request, 2, []byte(s.repoHash))
+		request = appendBytesField(request, 3, tree.root.encode())
+		var response []byte
+		if err := target.Invoke(targetCtx, syncWorkspaceMethod, &request, &response,
+			grpc.ForceCodec(proxyCodec{})); err != nil {
+			return blobDigest{}, "", fmt.Errorf("syncing workspace: %w", err)
+		}
+		missing, err := bytesFields(response, 1)
+		if err != nil {
+			return blobDigest{}, "", err
+		}
+		if len(missing) == 0 {
+			paths, err := bytesFields(response, 2)
+			if err != nil || len(paths) == 0 {
+				return tree.root, "", err
+			}
+			return tree.root, string(paths[len(paths)-1]), nil
+		}
+		if attempt == syncAttempts {
+			return blobDigest{}, "", fmt.Errorf("workspace tree %s still misses %d blobs", tree.root, len(missing))
+		}
+	}
+}
+
+func (s *workspaceSyncer) snapshot() (*workspaceTree, error) {
+	tree := &workspaceTree{dirs: map[blobDigest][]byte{}, files: map[blobDigest]string{}}
+	seen := map[string]bool{}
+	root, err := s.encodeDirectory(s.dir, true, tree, seen)
+	if err != nil {
+		return nil, err
+	}
+	tree.root = digestOf(root)
+	tree.dirs[tree.root] = root
+	// Forget deleted files.
+	for path := range s.hashes {
+		if !seen[path] {
+			delete(s.hashes, path)
+		}
+	}
+	return tree, nil
+}
+
+// encodeDirectory encodes dir as a Directory, recording its subdirectories
+// and files in tree.
+func (s *workspaceSyncer) encodeDirectory(dir string, top bool, tree *workspaceTree, seen map[string]bool) ([]byte,
+	error) {
+	entries, err := os.ReadDir(dir) // Sorted by name, as Directory requires.
+	if err != nil {
+		return nil, err
+	}
+	var files, dirs, symlinks []byte
+	for _, entry := range entries {
+		name := entry.Name()
+		if top && strings.HasPrefix(name, "bazel-") {
+			continue // Bazel's convenience symlinks into the output base.
+		}
+		path := filepath.Join(dir, name)
+		node := appendBytesField(nil, 1, []byte(name))
+		switch {
+		case entry.Type()&os.ModeSymlink != 0:
+			target, err := os.Readlink(path)
+			if err != nil {
+				return nil, err
+			}
+			node = appendBytesField(node, 2, []byte(target))
+			symlinks = appendBytesField(symlinks, 3, node)
+		case entry.IsDir():
+			subdir, err := s.encodeDirectory(path, false, tree, seen)
+			if err != nil {
+				return nil, err
+			}
+			d := digestOf(subdir)
+			tree.dirs[d] = subdir
+			node = appendBytesField(node, 2, d.encode())
+			dirs = appendBytesField(dirs, 2, node)
+		case entry.Type().IsRegular():
+			info, err := entry.Info()
+			if err != nil {
+				return nil, err
+			}
+			d, err := s.fileDigest(path, info)
+			if err != nil {
+				return nil, err
+			}
+			seen[path] = true
+			tree.files[d] = path
+			node = appendBytesField(node, 2, d.encode())
+			if info.Mode()&0o111 != 0 {
+				node = protowire.AppendTag(node, 4, protowire.VarintType)
+				node = protowire.AppendVarint(node, 1)
+			}
+			files = appendBytesField(files, 1, node)
+		}
+		// Sockets, pipes and devices are not part of a workspace.
+	}
+	return append(append(files, dirs...), symlinks...), nil
+}
+
+func (s *workspaceSyncer) fileDigest(path string, info os.FileInfo) (blobDigest, error) {
+	if h, ok := s.hashes[path]; ok && h.size == info.Size() && h.modTime.Equal(info.ModTime()) {
+		return h.digest, nil
+	}
+	f, err := os.Open(path)
+	if err != nil {
+		return blobDigest{}, err
+	}
+	defer f.Close()
+	sum := sha256.New()
+	n, err := io.Copy(sum, f)
+	if err != nil {
+		return blobDigest{}, err
+	}
+	d := blobDigest{hash: hex.EncodeToString(sum.Sum(nil)), size: n}
+	s.hashes[path] = hashedFile{size: info.Size(), modTime: info.ModTime(), digest: d}
+	return d, nil
+}
+
+// uploadMissing uploads the directories and files of the tree the cache
+// does not have yet.
+func (s *workspaceSyncer) uploadMissing(ctx context.Context, tree *workspaceTree) error {
+	var all []blobDigest
+	for d := range tree.dirs {
+		all = append(all, d)
+	}
+	for d := range tree.files {
+		all = append(all, d)
+	}
+	for start := 0; start < len(all); start += findMissingBatch {
+		var request []byte
+		for _, d := range all[start:min(start+findMissingBatch, len(all))] {
+			request = appendBytesField(request, 2, d.encode())
+		}
+		var response []byte
+		if err := s.cache.Invoke(ctx, findMissingBlobsMethod, &request, &response,
+			grpc.ForceCodec(proxyCodec{})); err != nil {
+			return fmt.Errorf("finding missing blobs: %w", err)
+		}
+		missing, err := bytesFields(response, 2)
+		if err != nil {
+			return err
+		}
+		for _, encoded := range missing {
+			d, err := parseBlobDigest(encoded)
+			if err != nil {
+				return err
+			}
+			data, ok := tree.dirs[d]
+			if !ok {
+				if data, err = os.ReadFile(tree.files[d]); err != nil {
+					return err
+				}
+				if digestOf(data) != d {
+					return fmt.Errorf("%s changed during the sync", tree.files[d])
+				}
+			}
+			if err := s.write(ctx, d, data); err != nil {
+				return fmt.Errorf("uploading %s: %w", d, err)
+			}
+		}
+	}
+	return nil
+}
+
+func (s *workspaceSyncer) write(ctx context.Context, d blobDigest, data []byte) error {
+	if d.size == 0 {
+		return nil
+	}
+	stream, err := s.cache.NewStream(ctx, &grpc.StreamDesc{ClientStreams: true}, byteStreamWriteMethod,
+		grpc.ForceCodec(proxyCodec{}))
+	if err != nil {
+		return err
+	}
+	uuid := make([]byte, 16)
+	if _, err := rand.Read(uuid); err != nil {
+		return err
+	}
+	for offset := 0; offset < len(data); {
+		end := min(offset+byteStreamChunk, len(data))
+		var request []byte
+		if offset == 0 {
+			resource := fmt.Sprintf("uploads/%x-%x-%x-%x-%x/blobs/%s/%d", uuid[0:4], uuid[4:6], uuid[6:8],
+				uuid[8:10], uuid[10:], d.hash, d.size)
+			request = appendBytesField(request, 1, []byte(resource))
+		}
+		request = protowire.AppendTag(request, 2, protowire.VarintType)
+		request = protowire.AppendVarint(request, uint64(offset))
+		if end == len(data) {
+			request = protowire.AppendTag(request, 3, protowire.VarintType)
+			request = protowire.AppendVarint(request, 1)
+		}
+		request = appendBytesField(request, 10, data[offset:end])
+		if err := stream.SendMsg(&request); err != nil {
+			// io.EOF: the server ended the stream; RecvMsg has its status.
+			if err != io.EOF {
+				return err
+			}
+			break
+		}
+		offset = end
+	}
+	if err := stream.CloseSend(); err != nil {
+		return err
+	}
+	var response []byte
+	return stream.RecvMsg(&response)
+}
@@ -0,0 +1,188 @@
+package main
+
+import (
+	"context"
+	"log/slog"
+	"net"
+	"strconv"
+	"sync/atomic"
+	"time"
+
+	"google.golang.org/grpc"
+	"google.golang.org/protobuf/encoding/protowire"
+)
+
+// Endpoint discovery over the orchestrator's xDS control plane (--xds). The
+// proxy subscribes to its session's ClusterLoadAssignment on an ADS stream and
+// repoints itself whenever the orchestrator pushes a new server address, e.g.
+// after the pod was rescheduled. Only this one resource is needed, so the
+// stream is spoken directly on raw frames rather than through grpc-go's xds
+// resolver, which would pull in the go-control-plane modules.
+
+const (
+	adsStreamMethod = "/envoy.service.discovery.v3.AggregatedDiscoveryService/StreamAggregatedResources"
+	endpointTypeURL = "type.googleapis.com/envoy.config.endpoint.v3.ClusterLoadAssignment"
+)
+
+// watchEndpoints follows the session's endpoint until the process exits,
+// reopening the stream after a failure.
+func watchEndpoints(orchestrator *grpc.ClientConn, sessionId string, target *atomic.Value) {
+	backoff := time.Second
+	for {
+		err := watchEndpointsOnce(orchestrator, sessionId, target)
+		slog.Warn("xDS stream ended, reconnecting", "error", err, "in", backoff)
+		time.Sleep(backoff)
+		backoff = min(2*backoff, 30*time.Second)
+	}
+}
+
+func watchEndpointsOnce(orchestrator *grpc.ClientConn, sessionId string, target *atomic.Value) error {
+	ctx, cancel := context.WithCancel(context.Background())
+	defer cancel()
+	stream, err := orchestrator.NewStream(ctx, &grpc.StreamDesc{ServerStreams: true, ClientStreams: true},
+		adsStreamMethod, grpc.ForceCodec(proxyCodec{}))
+	if err != nil {
+		return err
+	}
+	request := discoveryRequest(sessionId, "", "")
+	if err := stream.SendMsg(&request); err != nil {
+		return err
+	}
+	for {
+		var response []byte
+		if err := stream.RecvMsg(&response); err != nil {
+			return err
+		}
+		version, nonce, addr, err := parseEndpointResponse(response, sessionId)
+		if err != nil {
+			return err
+		}
+		if addr != "" {
+			if current := target.Load().(agentTarget); current.addr != addr {
+				slog.Info("xDS moved the session's server", "from", current.addr, "to", addr)
+				target.Store(agentTarget{addr: addr})
+			}
+		}
+		// ACK, so the control plane knows which version the proxy runs with.
+		ack := discoveryRequest(sessionId, version, nonce)
+		if err := stream.SendMsg(&ack); err != nil {
+			return err
+		}
+	}
+}
+
+// discoveryRequest encodes a DiscoveryRequest for the session's load assignment.
+func discoveryRequest(sessionId, version, nonce string) []byte {
+	var b []byte
+	if version != "" {
+		b = appendBytesField(b, 1, []byte(version))
+	}
+	b = appendBytesField(b, 2, appendBytesField(nil, 1, []byte(sessionId)))
+	b = appendBytesField(b, 3, []byte(sessionId))
+	b = appendBytesField(b, 4, []byte(endpointTypeURL))
+	if nonce != "" {
+		b = appendBytesField(b, 5, []byte(nonce))
+	}
+	return b
+}
+
+// parseEndpointResponse returns a DiscoveryResponse's version and nonce, and
+// the address of the first endpoint of the session's load assignment, which
+// is empty while the session's server is not ready.
+func parseEndpointResponse(b []byte, sessionId string) (version, nonce, addr string, err error) {
+	version, err = stringField(b, 1)
+	if err == nil {
+		nonce, err = stringField(b, 5)
+	}
+	if err != nil {
+		return "", "", "", err
+	}
+	resources, err := bytesFields(b, 2)
+	if err != nil {
+		return "", "", "", err
+	}
+	for _, resource := range resources {
+		typeURL, err := stringField(resource, 1)
+		if err != nil {
+			return "", "", "", err
+		}
+		values, err := bytesFields(resource, 2)
+		if err != nil || typeURL != endpointTypeURL || len(values) == 0 {
+			continue
+		}
+		if name, _ := stringField(values[0], 1); name != sessionId {
+			continue
+		}
+		addr, err = firstEndpoint(values[0])
+		if err != nil {
+			return "", "", "", err
+		}
+		break
+	}
+	return version, nonce, addr, nil
+}
+
+// firstEndpoint walks ClusterLoadAssignment.endpoints.lb_endpoints.endpoint.
+// address.socket_address to a host:port.
+func firstEndpoint(assignment []byte) (string, error) {
+	path := []protowire.Number{2, 2, 1, 1, 1}
+	messages := [][]byte{assignment}
+	for _, num := range path {
+		var next [][]byte
+		for _, m := range messages {
+			values, err := bytesFields(m, num)
+			if err != nil {
+				return "", err
+			}
+			next = append(next, values...)
+		}
+		messages = next
+	}
+	for _, socket := range messages {
+		host, err := stringField(socket, 2)
+		if err != nil {
+			return "", err
+		}
+		port, err := varintField(socket, 3)
+		if err != nil {
+			return "", err
+		}
+		if host != "" && port > 0 {
+			return net.JoinHostPort(host, strconv.FormatUint(port, 10)), nil
+		}
+	}
+	return "", nil
+}
+
+func stringField(b []byte, num protowire.Number) (string, error) {
+	values, err := bytesFields(b, num)
+	if err != nil || len(values) == 0 {
+		return "", err
+	}
+	return string(values[len(values)-1]), nil
+}
+
+func varintField(b []byte, want protowire.Number) (uint64, error) {
+	var value uint64
+	for len(b) > 0 {
+		num, typ, n := protowire.ConsumeTag(b)
+		if n < 0 {
+			return 0, protowire.ParseError(n)
+		}
+		b = b[n:]
+		if num == want && typ == protowire.VarintType {
+			v, m := protowire.ConsumeVarint(b)
+			if m < 0 {
+				return 0, protowire.ParseError(m)
+			}
+			value, n = v, m
+		} else {
+			n = protowire.ConsumeFieldValue(num, typ, b)
+			if n < 0 {
+				return 0, protowire.ParseError(n)
+			}
+		}
+		b = b[n:]
+	}
+	return value, nil
+}
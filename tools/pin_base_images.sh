@@ -0,0 +1,82 @@
+#!/bin/bash
+# Pins the orchestrator image's base and the matching Temurin JRE in
+# MODULE.bazel: records the manifest-list digest of the eclipse-temurin tag
+# as distroless_java's `digest`, and the sha256 of the JRE archive as
+# temurin_jre's `sha256`, checked against the one Adoptium publishes next to
+# the archive. Run from the workspace root with network access after bumping
+# either pin; it prints the values it wrote.
+#
+# Usage: tools/pin_base_images.sh [<eclipse-temurin tag>]
+set -euo pipefail
+
+module=MODULE.bazel
+tag="${1:-$(sed -n 's/^ *# Tag: \(.*\)$/\1/p' "$module" | head -1)}"
+if [ -z "$tag" ]; then
+    tag="$(awk '/name = "distroless_java"/ {f = 1} f && /tag = / {gsub(/[",]/, "", $3); print $3; exit}' "$module")"
+fi
+if [ -z "$tag" ]; then
+    echo >&2 "No eclipse-temurin tag given or found in $module"
+    exit 1
+fi
+
+# The manifest list, so both platforms resolve through the one digest.
+token="$(curl -fsSL "https://auth.docker.io/token?service=registry.docker.io&scope=repository:library/eclipse-temurin:pull" \
+    | sed -n 's/.*"token": *"\([^"]*\)".*/\1/p')"
+digest="$(curl -fsSI \
+    -H "Authorization: Bearer $token" \
+    -H "Accept: application/vnd.oci.image.index.v1+json" \
+    -H "Accept: application/vnd.docker.distribution.manifest.list.v2+json" \
+    "https://index.docker.io/v2/library/eclipse-temurin/manifests/$tag" \
+    | tr -d '\r' | sed -n 's/^docker-content-digest: *//Ip')"
+if [[ ! "$digest" =~ ^sha256:[0-9a-f]{64}$ ]]; then
+    echo >&2 "Could not resolve eclipse-temurin:$tag to a digest"
+    exit 1
+fi
+
+url="$(sed -n 's|.*urls = \["\(https://github.com/adoptium/[^"]*\)"\].*|\1|p' "$module")"
+if [ -z "$url" ]; then
+    echo >&2 "No Adoptium URL in $module"
+    exit 1
+fi
+archive="$(mktemp)"
+trap 'rm -f "$archive"' EXIT
+curl -fsSL -o "$archive" "$url"
+sha256="$(sha256sum "$archive" | cut -d' ' -f1)"
+published="$(curl -fsSL "$url.sha256.txt" | cut -d' ' -f1)"
+if [ "$sha256" != "$published" ]; then
+    echo >&2 "$url hashes to $sha256, but Adoptium publishes $published"
+    exit 1
+fi
+
+# distroless_java: the tag stays as a comment, the digest is what is pulled.
+awk -v tag="$tag" -v digest="$digest" '
+    /name = "distroless_java"/ { f = 1 }
+    f && /^ *(tag|digest) = / {
+        print "    # Tag: " tag
+        print "    digest = \"" digest "\","
+        f = 0
+        next
+    }
+    f && /^ *# Tag: / { next }
+    { print }
+' "$module" >"$module.tmp"
+# temurin_jre: replace or add sha256 after strip_prefix.
+awk -v sha256="$sha256" '
+    /name = "temurin_jre"/ { f = 1 }
+    f == 2 && /^ *sha256 = / { next }
+    f == 2 { f = 0 }
+    f == 1 && /^ *strip_prefix = / {
+        print
+        print "    sha256 = \"" sha256 "\","
+        f = 2
+        next
+    }
+    { print }
+' "$module.tmp" >"$module"
+rm -f "$module.tmp"
+
+echo "distroless_java: eclipse-temurin:$tag@$digest"
+echo "temurin_jre:     $sha256"
+if command -v bazel >/dev/null; then
+    bazel mod deps --lockfile_mode=update >/dev/null
+fi